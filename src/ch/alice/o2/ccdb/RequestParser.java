@@ -123,15 +123,6 @@ public class RequestParser {
 		if (pathInfo.startsWith(servletPath))
 			pathInfo = pathInfo.substring(servletPath.length());
 
-		final StringTokenizer st = new StringTokenizer(pathInfo, "/");
-
-		if (st.countTokens() < 1)
-			return;
-
-		final List<String> pathElements = new ArrayList<>();
-
-		ok = true;
-
 		try {
 			final String browseLimitHeader = request.getHeader("Browse-Limit");
 
@@ -169,6 +160,25 @@ public class RequestParser {
 			// ignore
 		}
 
+		parsePath(pathInfo, optionalTimeConstraints);
+	}
+
+	/**
+	 * Parse an object path in the URL format: <code>path/startTime[/endTime][/key=value]*[/UUID]</code>
+	 *
+	 * @param pathInfo
+	 * @param optionalTimeConstraints
+	 */
+	private void parsePath(final String pathInfo, final boolean optionalTimeConstraints) {
+		final StringTokenizer st = new StringTokenizer(pathInfo, "/");
+
+		if (st.countTokens() < 1)
+			return;
+
+		final List<String> pathElements = new ArrayList<>();
+
+		ok = true;
+
 		// search for path tokens, stop at the first numeric value which would be the start time
 		while (st.hasMoreTokens()) {
 			final String token = st.nextToken();
@@ -253,6 +263,22 @@ public class RequestParser {
 		path = pathBuilder.toString();
 	}
 
+	/**
+	 * Parse an object path outside of a request, for example the ones of the objects in a batch upload
+	 *
+	 * @param pathInfo
+	 *            object path, in the same format as the URL of a single upload: <code>path/startTime[/endTime][/key=value]*[/UUID]</code>
+	 * @return the parsed path, check its {@link #ok} field
+	 */
+	public static RequestParser fromPath(final String pathInfo) {
+		final RequestParser ret = new RequestParser(null);
+
+		if (pathInfo != null && !pathInfo.isEmpty())
+			ret.parsePath(pathInfo, false);
+
+		return ret;
+	}
+
 	@Override
 	public String toString() {
 		final StringBuilder sb = new StringBuilder();
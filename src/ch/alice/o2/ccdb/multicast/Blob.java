@@ -9,6 +9,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -24,7 +25,6 @@ import java.util.logging.Logger;
 
 import alien.catalogue.GUIDUtils;
 import alien.test.cassandra.tomcat.Options;
-import ch.alice.o2.ccdb.UUIDTools;
 import ch.alice.o2.ccdb.multicast.Utils.Pair;
 import ch.alice.o2.ccdb.servlets.LocalObjectWithVersion;
 import ch.alice.o2.ccdb.servlets.SQLObject;
@@ -60,16 +60,80 @@ public class Blob implements Comparable<Blob> {
 	 */
 	public final static byte SMALL_BLOB_CODE = 2;
 
+	/**
+	 * XOR parity of a group of metadata fragments
+	 */
+	public final static byte METADATA_PARITY_CODE = 3;
+
+	/**
+	 * XOR parity of a group of data fragments
+	 */
+	public final static byte DATA_PARITY_CODE = 4;
+
+	/**
+	 * Set in the packet type of the {@link #DATA_CODE}, {@link #DATA_PARITY_CODE} and {@link #SMALL_BLOB_CODE} packets when they carry the compressed form of the payload instead of the original
+	 * one. The blob length field is then the length of the compressed form, while the checksum field is still the one of the original payload.
+	 */
+	public final static byte COMPRESSED_FLAG = 0x40;
+
+	/**
+	 * Length of the header that precedes the Deflate stream in the compressed form of the payload
+	 */
+	public final static int COMPRESSION_HEADER = PayloadBuffer.COMPRESSION_HEADER;
+
+	/**
+	 * Whether to send the payloads compressed with Deflate (<code>udp_sender.compression</code>, default false)
+	 */
+	private final static boolean COMPRESS = lazyj.Utils.stringToBool(Options.getOption("udp_sender.compression", "false"), false);
+
+	/**
+	 * Deflate level (<code>udp_sender.compression_level</code>, default 1 = fastest)
+	 */
+	private final static int COMPRESSION_LEVEL = Options.getIntOption("udp_sender.compression_level", 1);
+
+	/**
+	 * Smaller payloads are sent as they are (<code>udp_sender.compression_min_size</code>, default 4KB)
+	 */
+	private final static int COMPRESSION_MIN_SIZE = Options.getIntOption("udp_sender.compression_min_size", 4096);
+
+	/**
+	 * The compressed form is only used if it is at most this fraction of the original size
+	 */
+	private final static double COMPRESSION_MAX_RATIO = 0.9;
+
 	private final UUID uuid;
 	private final String key;
 	private byte[] payloadChecksum = null;
 	private byte[] metadataChecksum = null;
 	private byte[] metadata = null;
-	private byte[] payload = null;
+	private volatile PayloadBuffer payload = null;
+
+	/**
+	 * Whether the reference that this object holds to its payload was given up
+	 */
+	private boolean payloadReleased = false;
+
+	/**
+	 * Set while the compressed form of the payload is being received, until {@link #isComplete()} inflates it
+	 */
+	private boolean payloadCompressed = false;
+
+	/**
+	 * Compressed form of the payload, as it was sent or received, if any
+	 */
+	private volatile PayloadBuffer compressedPayload = null;
+
+	private boolean compressionTried = false;
 
 	private final List<Pair> metadataByteRanges = new Vector<>();
 	private final List<Pair> payloadByteRanges = new Vector<>();
 
+	/**
+	 * Received parity packets, only while the object is incomplete
+	 */
+	private ParityGroups metadataParity = null;
+	private ParityGroups payloadParity = null;
+
 	/**
 	 * Start of the validity interval
 	 */
@@ -82,6 +146,8 @@ public class Blob implements Comparable<Blob> {
 
 	private volatile long lastTouched = System.currentTimeMillis();
 
+	private volatile long lastAccessed = lastTouched;
+
 	private volatile boolean complete = true;
 
 	private volatile boolean isCompleteRecalculate = true;
@@ -110,14 +176,14 @@ public class Blob implements Comparable<Blob> {
 		this.metadata = metadata;
 		this.metadataChecksum = Utils.calculateChecksum(this.metadata);
 
-		this.payload = payload;
-		this.payloadChecksum = Utils.calculateChecksum(this.payload);
+		this.payload = PayloadBuffer.copyOf(payload);
+		this.payloadChecksum = Utils.calculateChecksum(payload);
 
 		this.key = key;
 		this.uuid = uuid;
 
 		this.metadataByteRanges.add(new Pair(0, this.metadata.length));
-		this.payloadByteRanges.add(new Pair(0, this.payload.length));
+		this.payloadByteRanges.add(new Pair(0, payload.length));
 
 		setComplete(true);
 	}
@@ -143,12 +209,12 @@ public class Blob implements Comparable<Blob> {
 	public Blob(final Map<String, String> metadataMap, final byte[] payload, final String key, final UUID uuid) throws NoSuchAlgorithmException, SecurityException, IOException {
 		this.metadata = Utils.serializeMetadata(metadataMap);
 		this.metadataChecksum = Utils.calculateChecksum(this.metadata);
-		this.payload = payload;
-		this.payloadChecksum = Utils.calculateChecksum(this.payload);
+		this.payload = PayloadBuffer.copyOf(payload);
+		this.payloadChecksum = Utils.calculateChecksum(payload);
 		this.key = key;
 		this.uuid = uuid;
 		this.metadataByteRanges.add(new Pair(0, this.metadata.length));
-		this.payloadByteRanges.add(new Pair(0, this.payload.length));
+		this.payloadByteRanges.add(new Pair(0, payload.length));
 	}
 
 	/**
@@ -191,19 +257,22 @@ public class Blob implements Comparable<Blob> {
 		cachedMetadataMap.put("Valid-From", String.valueOf(this.startTime));
 		cachedMetadataMap.put("Created", String.valueOf(ref.getCreateTime()));
 
-		payload = new byte[(int) ref.referenceFile.length()];
+		final byte[] content = new byte[(int) ref.referenceFile.length()];
 
 		try (RandomAccessFile input = new RandomAccessFile(ref.referenceFile, "r")) {
-			input.read(payload, 0, payload.length);
+			input.read(content, 0, content.length);
 		}
 
-		this.payloadChecksum = Utils.calculateChecksum(this.payload);
+		// objects to be sent out are short lived, keep them on the heap
+		payload = PayloadBuffer.wrap(content);
+
+		this.payloadChecksum = Utils.calculateChecksum(content);
 
 		this.metadata = Utils.serializeMetadata(cachedMetadataMap);
 		this.metadataChecksum = Utils.calculateChecksum(this.metadata);
 
 		this.metadataByteRanges.add(new Pair(0, this.metadata.length));
-		this.payloadByteRanges.add(new Pair(0, this.payload.length));
+		this.payloadByteRanges.add(new Pair(0, this.payload.length()));
 
 		setComplete(true);
 	}
@@ -243,22 +312,24 @@ public class Blob implements Comparable<Blob> {
 		final File localFile = ref.getLocalFile(false);
 
 		if (localFile != null) {
-			payload = new byte[(int) localFile.length()];
+			final byte[] content = new byte[(int) localFile.length()];
 
 			try (RandomAccessFile input = new RandomAccessFile(localFile, "r")) {
-				input.read(payload, 0, payload.length);
+				input.read(content, 0, content.length);
 			}
+
+			payload = PayloadBuffer.wrap(content);
 		}
 		else
 			throw new IOException("Cannot locate a local file for " + ref.id);
 
-		this.payloadChecksum = Utils.calculateChecksum(this.payload);
+		this.payloadChecksum = Utils.calculateChecksum(this.payload.toByteArray());
 
 		this.metadata = Utils.serializeMetadata(cachedMetadataMap);
 		this.metadataChecksum = Utils.calculateChecksum(this.metadata);
 
 		this.metadataByteRanges.add(new Pair(0, this.metadata.length));
-		this.payloadByteRanges.add(new Pair(0, this.payload.length));
+		this.payloadByteRanges.add(new Pair(0, this.payload.length()));
 
 		setComplete(true);
 	}
@@ -284,194 +355,250 @@ public class Blob implements Comparable<Blob> {
 	 * @throws NoSuchAlgorithmException
 	 */
 	public void send(final int maxPayloadSize, final Pair missingBlock, final byte packetType, final String targetIp, final int port) throws IOException, NoSuchAlgorithmException {
+		send(maxPayloadSize, missingBlock, packetType, UDPSender.get(targetIp, port));
+	}
 
-		if (packetType == METADATA_CODE) {
-			// fragment [missingBlock.first, missingBlock.second]
-			// build packet
-			// Utils.sendFragmentMulticast(packet, targetIp, port);
-			final byte[] metadataToSend = new byte[missingBlock.second - missingBlock.first];
-			System.arraycopy(this.metadata, missingBlock.first, metadataToSend, 0, missingBlock.second - missingBlock.first);
-			/*
-			 * fragment metadata
-			 */
-			final byte[] commonHeader = new byte[Utils.SIZE_OF_FRAGMENTED_BLOB_HEADER - Utils.SIZE_OF_FRAGMENT_OFFSET - Utils.SIZE_OF_PAYLOAD_CHECKSUM];
-
-			// 2. 1 byte, packet type or flags
-			commonHeader[0] = METADATA_CODE;
-
-			// 3. 16 bytes, uuid
-			System.arraycopy(UUIDTools.getBytes(this.uuid), 0, commonHeader, Utils.SIZE_OF_PACKET_TYPE, Utils.SIZE_OF_UUID);
-
-			// 4. 4 bytes, blob metadata Length
-			System.arraycopy(Utils.intToByteArray(this.metadata.length), 0, commonHeader, Utils.SIZE_OF_PACKET_TYPE + Utils.SIZE_OF_UUID, Utils.SIZE_OF_BLOB_PAYLOAD_LENGTH);
-
-			// 5. 2 bytes, keyLength
-			System.arraycopy(Utils.shortToByteArray((short) this.key.getBytes().length), 0, commonHeader, Utils.SIZE_OF_PACKET_TYPE + Utils.SIZE_OF_UUID + Utils.SIZE_OF_BLOB_PAYLOAD_LENGTH,
-					Utils.SIZE_OF_KEY_LENGTH);
-
-			int indexMetadata = 0;
-
-			while (indexMetadata < metadataToSend.length) {
-				int maxPayloadSize_copy = maxPayloadSize;
-
-				if (maxPayloadSize_copy + indexMetadata > metadataToSend.length) {
-					maxPayloadSize_copy = metadataToSend.length - indexMetadata;
-				}
-
-				final byte[] packet = new byte[Utils.SIZE_OF_FRAGMENTED_BLOB_HEADER_AND_TRAILER + maxPayloadSize_copy + this.key.getBytes().length];
-
-				// 1. fragment offset
-				System.arraycopy(Utils.intToByteArray(indexMetadata), 0, packet, Utils.FRAGMENT_OFFSET_START_INDEX, Utils.SIZE_OF_FRAGMENT_OFFSET);
-
-				// Fields 2,3,4,5 from commonHeader:packet type, uuid, blob metadata Length,
-				// keyLength
-				System.arraycopy(commonHeader, 0, packet, Utils.PACKET_TYPE_START_INDEX, commonHeader.length);
-
-				// payload checksum
-				System.arraycopy(this.metadataChecksum, 0, packet, Utils.PAYLOAD_CHECKSUM_START_INDEX, Utils.SIZE_OF_PAYLOAD_CHECKSUM);
-
-				// the key
-				System.arraycopy(this.key.getBytes(), 0, packet, Utils.KEY_START_INDEX, this.key.getBytes().length);
-
-				// the payload metadata
-				System.arraycopy(metadataToSend, indexMetadata, packet, Utils.KEY_START_INDEX + this.key.getBytes().length, maxPayloadSize_copy);
-
-				// the packet checksum
-				System.arraycopy(Utils.calculateChecksum(Arrays.copyOfRange(packet, 0, packet.length - Utils.SIZE_OF_PACKET_CHECKSUM)), 0, packet,
-						Utils.KEY_START_INDEX + this.key.getBytes().length + maxPayloadSize_copy, Utils.SIZE_OF_PACKET_CHECKSUM);
+	/**
+	 * Send method - fragment (if necessary) and send the missingBlock from metadata
+	 * or payload as packetType parameter specifies
+	 *
+	 * @param maxPayloadSize
+	 *            - the maximum payload supported by a fragmented packet
+	 * @param missingBlock
+	 *            - the interval to be sent via multicast from metadata
+	 *            or payload
+	 * @param packetType
+	 *            - specify what kind of data is missing so that it
+	 *            should be send: METADATA_CODE or DATA_CODE
+	 * @param sink
+	 *            - Destination
+	 *
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	public void send(final int maxPayloadSize, final Pair missingBlock, final byte packetType, final FragmentSink sink) throws IOException, NoSuchAlgorithmException {
+		send(maxPayloadSize, missingBlock, packetType, sink, FragmentEncoder.FEC_GROUP);
+	}
 
-				// send the metadata packet
-				Utils.sendFragmentMulticast(packet, targetIp, port);
+	/**
+	 * Send method - fragment (if necessary) and send the missingBlock from metadata
+	 * or payload as packetType parameter specifies
+	 *
+	 * @param maxPayloadSize
+	 *            - the maximum payload supported by a fragmented packet
+	 * @param missingBlock
+	 *            - the interval to be sent via multicast from metadata
+	 *            or payload
+	 * @param packetType
+	 *            - specify what kind of data is missing so that it
+	 *            should be send: METADATA_CODE, DATA_CODE or DATA_CODE | COMPRESSED_FLAG
+	 *            (the missingBlock is then a range of the compressed form)
+	 * @param sink
+	 *            - Destination
+	 * @param fecGroup
+	 *            - after how many fragments to send a parity packet, 0 for none
+	 *
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	public void send(final int maxPayloadSize, final Pair missingBlock, final byte packetType, final FragmentSink sink, final int fecGroup) throws IOException, NoSuchAlgorithmException {
+		final ByteBuffer content;
+		final byte[] checksum;
 
-				indexMetadata = indexMetadata + maxPayloadSize;
-			}
+		// the off-heap content cannot be freed by an eviction while it is being sent
+		PayloadBuffer held = null;
 
+		if (packetType == METADATA_CODE) {
+			content = ByteBuffer.wrap(this.metadata);
+			checksum = this.metadataChecksum;
 		}
 		else
 			if (packetType == DATA_CODE) {
-				// fragment [missingBlock.first, missingBlock.second]
-				// build packet
-				// Utils.sendFragmentMulticast(packet, targetIp, port);
-				final byte[] payloadToSend = new byte[missingBlock.second - missingBlock.first];
-
-				System.arraycopy(this.payload, missingBlock.first, payloadToSend, 0, missingBlock.second - missingBlock.first);
-
-				/*
-				 * fragment metadata
-				 */
-				final byte[] commonHeader = new byte[Utils.SIZE_OF_FRAGMENTED_BLOB_HEADER - Utils.SIZE_OF_FRAGMENT_OFFSET - Utils.SIZE_OF_PAYLOAD_CHECKSUM];
-
-				// 2. 1 byte, packet type or flags
-				commonHeader[0] = DATA_CODE;
-
-				// 3. 16 bytes, uuid
-				System.arraycopy(UUIDTools.getBytes(this.uuid), 0, commonHeader, Utils.SIZE_OF_PACKET_TYPE, Utils.SIZE_OF_UUID);
-
-				// 4. 4 bytes, blob payload Length
-				System.arraycopy(Utils.intToByteArray(this.payload.length), 0, commonHeader, Utils.SIZE_OF_PACKET_TYPE + Utils.SIZE_OF_UUID, Utils.SIZE_OF_BLOB_PAYLOAD_LENGTH);
-
-				// 5. 2 bytes, keyLength
-				System.arraycopy(Utils.shortToByteArray((short) this.key.getBytes().length), 0, commonHeader, Utils.SIZE_OF_PACKET_TYPE + Utils.SIZE_OF_UUID + Utils.SIZE_OF_BLOB_PAYLOAD_LENGTH,
-						Utils.SIZE_OF_KEY_LENGTH);
-
-				int indexPayload = 0;
-
-				while (indexPayload < payloadToSend.length) {
-					int maxPayloadSize_copy = maxPayloadSize;
-					if (maxPayloadSize_copy + indexPayload > payloadToSend.length) {
-						maxPayloadSize_copy = payloadToSend.length - indexPayload;
-					}
+				held = retainContent(this.payload);
+				content = held.slice(0, held.length());
+				checksum = this.payloadChecksum;
+			}
+			else
+				if (packetType == (DATA_CODE | COMPRESSED_FLAG)) {
+					final PayloadBuffer compressed = getCompressedPayload();
 
-					final byte[] packet = new byte[Utils.SIZE_OF_FRAGMENTED_BLOB_HEADER_AND_TRAILER + maxPayloadSize_copy + this.key.getBytes().length];
+					if (compressed == null)
+						throw new IOException("The payload of " + this.uuid + " is not compressed");
 
-					// 1. fragment offset
-					System.arraycopy(Utils.intToByteArray(indexPayload), 0, packet, Utils.FRAGMENT_OFFSET_START_INDEX, Utils.SIZE_OF_FRAGMENT_OFFSET);
+					held = retainContent(compressed);
+					content = held.slice(0, held.length());
+					checksum = this.payloadChecksum;
+				}
+				else {
+					throw new IOException("Packet type not recognized!");
+				}
 
-					// Fields 2,3,4,5 from commonHeader:packet type, uuid, blob metadata Length,
-					// keyLength
-					System.arraycopy(commonHeader, 0, packet, Utils.PACKET_TYPE_START_INDEX, commonHeader.length);
+		try {
+			// the fragments are encoded in reused per-thread buffers, taking the content directly from the metadata or payload
+			FragmentEncoder.get().sendFragments(sink, packetType, this.uuid, getKeyBytes(), content.capacity(), checksum, content, missingBlock.first, missingBlock.second, maxPayloadSize,
+					fecGroup);
+		}
+		finally {
+			if (held != null)
+				held.release();
+		}
+	}
 
-					// payload checksum
-					System.arraycopy(this.payloadChecksum, 0, packet, Utils.PAYLOAD_CHECKSUM_START_INDEX, Utils.SIZE_OF_PAYLOAD_CHECKSUM);
+	/**
+	 * Send method - fragments a blob into smaller serialized fragmentedBlobs and
+	 * sends them via UDP multicast. Reads the maxPayloadSize from a file <--TODO
+	 *
+	 * @param targetIp
+	 *            - Destination multicast IP
+	 * @param port
+	 *            - Socket port number
+	 * @throws NoSuchAlgorithmException
+	 * @throws IOException
+	 */
+	public void send(final String targetIp, final int port) throws NoSuchAlgorithmException, IOException {
+		send(UDPSender.get(targetIp, port));
+	}
 
-					// the key
-					System.arraycopy(this.key.getBytes(), 0, packet, Utils.KEY_START_INDEX, this.key.getBytes().length);
-					// the payload metadata
-					System.arraycopy(payloadToSend, indexPayload, packet, Utils.KEY_START_INDEX + this.key.getBytes().length, maxPayloadSize_copy);
+	/**
+	 * Send method - fragments a blob into smaller serialized fragmentedBlobs and
+	 * sends them via UDP multicast
+	 *
+	 * @param sink
+	 *            - Destination
+	 * @throws NoSuchAlgorithmException
+	 * @throws IOException
+	 */
+	public void send(final FragmentSink sink) throws NoSuchAlgorithmException, IOException {
+		send(sink, FragmentEncoder.FEC_GROUP);
+	}
 
-					// the packet checksum
-					System.arraycopy(Utils.calculateChecksum(Arrays.copyOfRange(packet, 0, packet.length - Utils.SIZE_OF_PACKET_CHECKSUM)), 0, packet,
-							Utils.KEY_START_INDEX + this.key.getBytes().length + maxPayloadSize_copy, Utils.SIZE_OF_PACKET_CHECKSUM);
+	/**
+	 * Send method - fragments a blob into smaller serialized fragmentedBlobs and
+	 * sends them via UDP multicast
+	 *
+	 * @param sink
+	 *            - Destination
+	 * @param fecGroup
+	 *            - after how many fragments to send a parity packet, 0 for none
+	 * @throws NoSuchAlgorithmException
+	 * @throws IOException
+	 */
+	public void send(final FragmentSink sink, final int fecGroup) throws NoSuchAlgorithmException, IOException {
+		final int maxPayloadSize = Options.getIntOption("max.payload.size", 1200);
 
-					// send the metadata packet
-					Utils.sendFragmentMulticast(packet, targetIp, port);
+		final PayloadBuffer compressed = getCompressedPayload();
+		final PayloadBuffer content = retainContent(compressed != null ? compressed : this.payload);
 
-					indexPayload = indexPayload + maxPayloadSize;
-				}
+		try {
+			if (maxPayloadSize > content.length() + this.metadata.length) {
+				// no need to fragment the Blob
+				FragmentEncoder.get().sendSmallBlob(sink, this.uuid, getKeyBytes(), this.metadata, content.slice(0, content.length()), this.payloadChecksum, compressed != null);
 			}
 			else {
-				throw new IOException("Packet type not recognized!");
+				send(maxPayloadSize, new Pair(0, this.metadata.length), METADATA_CODE, sink, fecGroup);
+				send(maxPayloadSize, new Pair(0, content.length()), compressed != null ? (byte) (DATA_CODE | COMPRESSED_FLAG) : DATA_CODE, sink, fecGroup);
 			}
+		}
+		finally {
+			content.release();
+		}
 	}
 
 	/**
-	 * Send method - fragments a blob into smaller serialized fragmentedBlobs and
-	 * sends them via UDP multicast. Reads the maxPayloadSize from a file <--TODO
+	 * Send the object in several steps, so that the sender can interleave other objects between them. The first step (<code>offset = 0</code>) also sends the metadata, or the entire object
+	 * if it fits in a single packet.
 	 *
-	 * @param targetIp
-	 *            - Destination multicast IP
-	 * @param port
-	 *            - Socket port number
+	 * @param sink
+	 *            - Destination
+	 * @param offset
+	 *            - where to continue sending the payload from
+	 * @param maxBytes
+	 *            - how many payload bytes to send in this step, rounded down to entire fragments
+	 * @return the offset to continue from, the object was completely sent once this reaches {@link #getTransmittedSize()}
 	 * @throws NoSuchAlgorithmException
 	 * @throws IOException
 	 */
-	public void send(final String targetIp, final int port) throws NoSuchAlgorithmException, IOException {
+	public int sendPart(final FragmentSink sink, final int offset, final int maxBytes) throws NoSuchAlgorithmException, IOException {
 		final int maxPayloadSize = Options.getIntOption("max.payload.size", 1200);
 
-		if (maxPayloadSize > this.payload.length + this.metadata.length) {
-			// no need to fragment the Blob
-			final byte[] metadataAndPayload = new byte[this.payload.length + this.metadata.length];
+		final PayloadBuffer compressed = getCompressedPayload();
+		final PayloadBuffer content = compressed != null ? compressed : this.payload;
 
-			System.arraycopy(this.metadata, 0, metadataAndPayload, 0, this.metadata.length);
-			System.arraycopy(this.payload, 0, metadataAndPayload, this.metadata.length, this.payload.length);
+		if (maxPayloadSize > content.length() + this.metadata.length) {
+			if (offset == 0) {
+				retainContent(content);
 
-			final byte[] packet = new byte[Utils.SIZE_OF_FRAGMENTED_BLOB_HEADER_AND_TRAILER + metadataAndPayload.length + this.key.getBytes().length];
-			// Fill the fields:
-			// 1. fragment offset will always be zero
-			System.arraycopy(Utils.intToByteArray(0), 0, packet, Utils.FRAGMENT_OFFSET_START_INDEX, Utils.SIZE_OF_FRAGMENT_OFFSET);
+				try {
+					FragmentEncoder.get().sendSmallBlob(sink, this.uuid, getKeyBytes(), this.metadata, content.slice(0, content.length()), this.payloadChecksum, compressed != null);
+				}
+				finally {
+					content.release();
+				}
+			}
 
-			// 2. 1 byte, packet type
-			packet[Utils.PACKET_TYPE_START_INDEX] = SMALL_BLOB_CODE;
+			return content.length();
+		}
 
-			// 3. 16 bytes, uuid
-			System.arraycopy(UUIDTools.getBytes(this.uuid), 0, packet, Utils.UUID_START_INDEX, Utils.SIZE_OF_UUID);
+		if (offset == 0)
+			send(maxPayloadSize, new Pair(0, this.metadata.length), METADATA_CODE, sink);
 
-			// 4. 4 bytes, blob payload + metadata Length
-			System.arraycopy(Utils.intToByteArray(this.payload.length), 0, packet, Utils.BLOB_PAYLOAD_LENGTH_START_INDEX, Utils.SIZE_OF_BLOB_PAYLOAD_LENGTH);
+		final int end = (int) Math.min(content.length(), offset + Math.max(maxBytes / maxPayloadSize, 1) * (long) maxPayloadSize);
 
-			// 5. 2 bytes, keyLength
-			System.arraycopy(Utils.shortToByteArray((short) this.key.getBytes().length), 0, packet, Utils.KEY_LENGTH_START_INDEX, Utils.SIZE_OF_KEY_LENGTH);
+		if (end > offset)
+			send(maxPayloadSize, new Pair(offset, end), compressed != null ? (byte) (DATA_CODE | COMPRESSED_FLAG) : DATA_CODE, sink);
 
-			// 6. payload checksum
-			System.arraycopy(this.payloadChecksum, 0, packet, Utils.PAYLOAD_CHECKSUM_START_INDEX, Utils.SIZE_OF_PAYLOAD_CHECKSUM);
+		return end;
+	}
 
-			// 7. the key
-			System.arraycopy(this.key.getBytes(), 0, packet, Utils.KEY_START_INDEX, this.key.getBytes().length);
+	/**
+	 * Take a reference to the content for as long as a view of it is used
+	 *
+	 * @param content
+	 * @return the same content
+	 * @throws IOException if this object was evicted from memory and the content was already freed
+	 */
+	private PayloadBuffer retainContent(final PayloadBuffer content) throws IOException {
+		if (content == null || !content.retain())
+			throw new IOException("The content of " + this.uuid + " was evicted from memory");
 
-			// 8. the payload and metadata
-			System.arraycopy(metadataAndPayload, 0, packet, Utils.KEY_START_INDEX + this.key.getBytes().length, metadataAndPayload.length);
+		return content;
+	}
 
-			// 9. the packet checksum
-			System.arraycopy(Utils.calculateChecksum(Arrays.copyOfRange(packet, 0, packet.length - Utils.SIZE_OF_PACKET_CHECKSUM)), 0, packet,
-					Utils.KEY_START_INDEX + this.key.getBytes().length + metadataAndPayload.length, Utils.SIZE_OF_PACKET_CHECKSUM);
+	/**
+	 * @return how many payload bytes go out on the network, less than {@link #getSize()} if the payload is sent compressed
+	 */
+	public int getTransmittedSize() {
+		final PayloadBuffer compressed = getCompressedPayload();
 
-			// send the metadata packet
-			Utils.sendFragmentMulticast(packet, targetIp, port);
-		}
-		else {
-			send(maxPayloadSize, new Pair(0, this.metadata.length), METADATA_CODE, targetIp, port);
-			send(maxPayloadSize, new Pair(0, this.payload.length), DATA_CODE, targetIp, port);
+		return compressed != null ? compressed.length() : this.payload.length();
+	}
+
+	/**
+	 * Compress the payload the first time it is sent, if enabled and if it is worth it. The compressed form is kept for the next destinations and for the clients that accept it.
+	 *
+	 * @return the compressed form of the payload, or <code>null</code> if it is sent as it is
+	 */
+	private synchronized PayloadBuffer getCompressedPayload() {
+		if (!compressionTried && compressedPayload == null) {
+			compressionTried = true;
+
+			if (COMPRESS && this.payload != null && !payloadReleased && this.payload.length() >= COMPRESSION_MIN_SIZE)
+				compressedPayload = this.payload.deflate(COMPRESSION_LEVEL, COMPRESSION_MAX_RATIO);
 		}
+
+		return compressedPayload;
+	}
+
+	private byte[] keyBytes = null;
+
+	/**
+	 * @return the key, as it is sent out
+	 */
+	private byte[] getKeyBytes() {
+		if (keyBytes == null)
+			keyBytes = this.key.getBytes();
+
+		return keyBytes;
 	}
 
 	/**
@@ -530,15 +657,30 @@ public class Blob implements Comparable<Blob> {
 		}
 
 		// Check byte ranges payload:
-		if (this.payloadByteRanges.get(0).first != 0 || this.payloadByteRanges.get(0).second != this.payload.length) {
+		if (this.payloadByteRanges.get(0).first != 0 || this.payloadByteRanges.get(0).second != this.payload.length()) {
 			// System.err.println("Payload inconsistent with its content");
 			return complete;
 		}
 
+		if (this.payloadCompressed)
+			inflatePayload();
+
 		if (VERIFY_CHECKSUMS) {
-			if (!Arrays.equals(this.payloadChecksum, Utils.calculateChecksum(this.payload))) {
-				// System.err.println("Payload checksum inconsistent");
-				throw new IOException("Payload checksum failed");
+			final PayloadBuffer content = this.payload;
+
+			if (!content.retain()) {
+				// evicted from memory in the meantime
+				return complete;
+			}
+
+			try {
+				if (!Arrays.equals(this.payloadChecksum, content.checksum())) {
+					// System.err.println("Payload checksum inconsistent");
+					throw new IOException("Payload checksum failed");
+				}
+			}
+			finally {
+				content.release();
 			}
 
 			if (!Arrays.equals(this.metadataChecksum, Utils.calculateChecksum(this.metadata))) {
@@ -555,9 +697,37 @@ public class Blob implements Comparable<Blob> {
 
 		complete = true;
 
+		// parity packets of groups that were completed in another way
+		metadataParity = null;
+		payloadParity = null;
+
 		return complete;
 	}
 
+	/**
+	 * Replace the received compressed form with the original content, keeping the compressed one for the clients that accept it
+	 *
+	 * @throws IOException if the compressed content is corrupted
+	 */
+	private synchronized void inflatePayload() throws IOException {
+		if (!this.payloadCompressed)
+			return;
+
+		if (payloadReleased)
+			throw new IOException("The content of " + this.uuid + " was evicted from memory");
+
+		final PayloadBuffer compressed = this.payload;
+
+		this.payload = compressed.inflate();
+		this.compressedPayload = compressed;
+		this.payloadCompressed = false;
+
+		synchronized (payloadByteRanges) {
+			payloadByteRanges.clear();
+			payloadByteRanges.add(new Pair(0, this.payload.length()));
+		}
+	}
+
 	private static void addPairToList(final List<Pair> list, final Pair newRange) {
 		synchronized (list) {
 			if (list.size() == 0) {
@@ -618,70 +788,162 @@ public class Blob implements Comparable<Blob> {
 	 * Assemble a Blob by adding one FragmentedBlob to it
 	 *
 	 * @param fragmentedBlob
+	 * @return how many lost fragments could be rebuilt from the parity packets after this one was added
 	 * @throws NoSuchAlgorithmException
 	 * @throws UnsupportedEncodingException
 	 * @throws IOException
 	 */
-	public synchronized void addFragmentedBlob(final FragmentedBlob fragmentedBlob) throws NoSuchAlgorithmException, UnsupportedEncodingException, IOException {
+	public synchronized int addFragmentedBlob(final FragmentedBlob fragmentedBlob) throws NoSuchAlgorithmException, UnsupportedEncodingException, IOException {
+		// evicted while still being received, its content must not be touched any more
+		if (payloadReleased)
+			return 0;
+
 		touch();
 
-		final byte[] fragmentedPayload = fragmentedBlob.getPayload();
+		// the fragment content is copied straight from the received packet to its final place
+		final byte[] packet = fragmentedBlob.getPacket();
+		final int payloadStart = fragmentedBlob.getPayloadStart();
+		final int payloadLength = fragmentedBlob.getPayloadLength();
 		final int fragmentOffset = fragmentedBlob.getFragmentOffset();
-		final Pair pair = new Pair(fragmentOffset, fragmentOffset + fragmentedPayload.length);
-		if (fragmentedBlob.getPachetType() == DATA_CODE) {
+		final byte packetType = fragmentedBlob.getPachetType();
+
+		if (packetType == DATA_CODE || packetType == DATA_PARITY_CODE) {
 			if (this.payload == null) {
-				this.payload = new byte[fragmentedBlob.getblobDataLength()];
+				this.payload = PayloadBuffer.allocate(fragmentedBlob.getblobDataLength());
 				this.payloadChecksum = fragmentedBlob.getPayloadChecksum();
+				this.payloadCompressed = fragmentedBlob.isCompressed();
 			}
 
-			if (this.payload.length != fragmentedBlob.getblobDataLength()) { // Another fragment
+			if (this.payload.length() != fragmentedBlob.getblobDataLength()) { // Another fragment
 				throw new IOException("payload.length should have size = " + fragmentedBlob.getblobDataLength());
 			}
 
-			System.arraycopy(fragmentedPayload, 0, this.payload, fragmentOffset, fragmentedPayload.length);
+			if (this.payloadCompressed != fragmentedBlob.isCompressed())
+				throw new IOException("Mixed compressed and uncompressed fragments of " + this.uuid);
 
-			addPairToList(this.payloadByteRanges, pair);
-		}
-		else
-			if (fragmentedBlob.getPachetType() == METADATA_CODE) {
-				if (this.metadata == null) {
-					this.metadata = new byte[fragmentedBlob.getblobDataLength()];
-					this.metadataChecksum = fragmentedBlob.getPayloadChecksum(); // metadata == payload
-				}
-				if (this.metadata.length != fragmentedBlob.getblobDataLength()) { // Another fragment
-					throw new IOException("metadata.length should have size = " + fragmentedBlob.getblobDataLength());
-				}
+			// isComplete() drops the parities once the object is complete, possibly from another thread
+			ParityGroups parity = this.payloadParity;
 
-				System.arraycopy(fragmentedPayload, 0, this.metadata, fragmentOffset, fragmentedPayload.length);
+			if (packetType == DATA_CODE) {
+				this.payload.put(fragmentOffset, packet, payloadStart, payloadLength);
 
-				addPairToList(this.metadataByteRanges, pair);
+				addPairToList(this.payloadByteRanges, new Pair(fragmentOffset, fragmentOffset + payloadLength));
 			}
-			else
-				if (fragmentedBlob.getPachetType() == SMALL_BLOB_CODE) {
-					if (this.metadata == null && this.payload == null) {
-						final int metadataLength = fragmentedPayload.length - fragmentedBlob.getblobDataLength();
-						final int payloadLength = fragmentedBlob.getblobDataLength();
-						this.metadata = new byte[metadataLength];
-						this.payload = new byte[payloadLength];
-
-						System.arraycopy(fragmentedPayload, 0, this.metadata, fragmentOffset, metadataLength);
-						System.arraycopy(fragmentedPayload, metadataLength, this.payload, fragmentOffset, payloadLength);
-						this.payloadChecksum = fragmentedBlob.getPayloadChecksum();
-						this.metadataChecksum = Utils.calculateChecksum(this.metadata);
-						this.payloadByteRanges.add(new Pair(0, payloadLength));
-						this.metadataByteRanges.add(new Pair(0, metadataLength));
-					}
-					else {
-						logger.log(Level.WARNING, "metadata and payload byte arrays should be null for an empty SMALL BLOB");
-					}
+			else {
+				if (parity == null) {
+					parity = new ParityGroups();
+					this.payloadParity = parity;
 				}
-				else {
-					throw new IOException("Packet type not recognized!");
+
+				parity.add(fragmentOffset, packet, payloadStart, payloadLength);
+			}
+
+			if (parity == null)
+				return 0;
+
+			final PayloadBuffer content = this.payload;
+
+			final Pair rebuilt = parity.rebuild(fragmentOffset, this.payloadByteRanges, content.length(), content::get, content::put);
+
+			if (rebuilt == null)
+				return 0;
+
+			addPairToList(this.payloadByteRanges, rebuilt);
+
+			return 1;
+		}
+
+		if (packetType == METADATA_CODE || packetType == METADATA_PARITY_CODE) {
+			if (this.metadata == null) {
+				this.metadata = new byte[fragmentedBlob.getblobDataLength()];
+				this.metadataChecksum = fragmentedBlob.getPayloadChecksum(); // metadata == payload
+			}
+			if (this.metadata.length != fragmentedBlob.getblobDataLength()) { // Another fragment
+				throw new IOException("metadata.length should have size = " + fragmentedBlob.getblobDataLength());
+			}
+
+			ParityGroups parity = this.metadataParity;
+
+			if (packetType == METADATA_CODE) {
+				System.arraycopy(packet, payloadStart, this.metadata, fragmentOffset, payloadLength);
+
+				addPairToList(this.metadataByteRanges, new Pair(fragmentOffset, fragmentOffset + payloadLength));
+			}
+			else {
+				if (parity == null) {
+					parity = new ParityGroups();
+					this.metadataParity = parity;
 				}
+
+				parity.add(fragmentOffset, packet, payloadStart, payloadLength);
+			}
+
+			if (parity == null)
+				return 0;
+
+			final byte[] content = this.metadata;
+
+			final Pair rebuilt = parity.rebuild(fragmentOffset, this.metadataByteRanges, content.length,
+					(offset, buffer, bufferOffset, length) -> System.arraycopy(content, offset, buffer, bufferOffset, length),
+					(offset, buffer, bufferOffset, length) -> System.arraycopy(buffer, bufferOffset, content, offset, length));
+
+			if (rebuilt == null)
+				return 0;
+
+			addPairToList(this.metadataByteRanges, rebuilt);
+
+			return 1;
+		}
+
+		if (packetType == SMALL_BLOB_CODE) {
+			if (this.metadata == null && this.payload == null) {
+				final int objectLength = fragmentedBlob.getblobDataLength();
+				final int metadataLength = payloadLength - objectLength;
+				this.metadata = new byte[metadataLength];
+				this.payload = PayloadBuffer.allocate(objectLength);
+
+				System.arraycopy(packet, payloadStart, this.metadata, fragmentOffset, metadataLength);
+				this.payload.put(fragmentOffset, packet, payloadStart + metadataLength, objectLength);
+				this.payloadChecksum = fragmentedBlob.getPayloadChecksum();
+				this.payloadCompressed = fragmentedBlob.isCompressed();
+				this.metadataChecksum = Utils.calculateChecksum(this.metadata);
+				this.payloadByteRanges.add(new Pair(0, objectLength));
+				this.metadataByteRanges.add(new Pair(0, metadataLength));
+			}
+			else {
+				logger.log(Level.WARNING, "metadata and payload byte arrays should be null for an empty SMALL BLOB");
+			}
+
+			return 0;
+		}
+
+		throw new IOException("Packet type not recognized!");
+	}
+
+	/**
+	 * Add a received UDP packet to this object, for receivers that already know which object the packets belong to
+	 *
+	 * @param packet
+	 * @param length
+	 * @return how many lost fragments could be rebuilt from the parity packets after this one was added
+	 * @throws NoSuchAlgorithmException
+	 * @throws IOException if the packet is corrupted or belongs to another object
+	 */
+	public int addPacket(final byte[] packet, final int length) throws NoSuchAlgorithmException, IOException {
+		final FragmentedBlob fragmentedBlob = new FragmentedBlob(packet, length);
+
+		if (!this.uuid.equals(fragmentedBlob.getUuid()))
+			throw new IOException("Packet of " + fragmentedBlob.getUuid() + " doesn't belong to " + this.uuid);
+
+		final int rebuilt = addFragmentedBlob(fragmentedBlob);
+
+		recomputeIsComplete();
+
+		return rebuilt;
 	}
 
 	/**
-	 * @return ranges of missing data blocks
+	 * @return ranges of missing data blocks, or <code>null</code> if the entire content has to be retrieved
 	 */
 	public ArrayList<Pair> getMissingPayloadBlocks() {
 		if (this.payload == null) {
@@ -689,6 +951,11 @@ public class Blob implements Comparable<Blob> {
 			return null;
 		}
 
+		if (this.payloadCompressed) {
+			// the ranges are of the compressed form while the HTTP server serves the original content
+			return null;
+		}
+
 		final ArrayList<Pair> missingBlocks = new ArrayList<>();
 
 		synchronized (payloadByteRanges) {
@@ -705,8 +972,8 @@ public class Blob implements Comparable<Blob> {
 
 			final Pair last = payloadByteRanges.get(payloadByteRanges.size() - 1);
 
-			if (last.second < payload.length)
-				missingBlocks.add(new Pair(last.second, payload.length - 1));
+			if (last.second < payload.length())
+				missingBlocks.add(new Pair(last.second, payload.length() - 1));
 		}
 
 		return missingBlocks;
@@ -716,13 +983,16 @@ public class Blob implements Comparable<Blob> {
 	 * @param data
 	 * @param missingBlock
 	 */
-	public void addByteRange(final byte[] data, final Pair missingBlock) {
+	public synchronized void addByteRange(final byte[] data, final Pair missingBlock) {
+		if (payloadReleased)
+			return;
+
 		if (this.payload == null) {
 			// getting the entire payload blob
-			this.payload = new byte[data.length];
+			this.payload = PayloadBuffer.allocate(data.length);
 		}
 
-		System.arraycopy(data, 0, this.payload, missingBlock.first, data.length);
+		this.payload.put(missingBlock.first, data, 0, data.length);
 
 		addPairToList(this.payloadByteRanges, missingBlock);
 	}
@@ -819,18 +1089,93 @@ public class Blob implements Comparable<Blob> {
 	}
 
 	/**
-	 * @return payload blob
+	 * @return payload blob, a copy of it if the content is stored off-heap, or <code>null</code> if not known or already evicted. Use {@link #retainPayload()} to access the content without copying it.
 	 */
 	public byte[] getPayload() {
-		return this.payload;
+		final PayloadBuffer content = this.payload;
+
+		if (content == null || !content.retain())
+			return null;
+
+		try {
+			return content.toByteArray();
+		}
+		finally {
+			content.release();
+		}
+	}
+
+	/**
+	 * Get the content for reading. The caller has to {@link PayloadBuffer#release()} it when done, while the content is held it is not given back to the memory budget even if the object is
+	 * evicted in the meantime.
+	 *
+	 * @return the content, or <code>null</code> if it is not known yet or this object was already evicted
+	 */
+	public PayloadBuffer retainPayload() {
+		final PayloadBuffer content = this.payload;
+
+		if (content == null || !content.retain())
+			return null;
+
+		lastAccessed = System.currentTimeMillis();
+
+		return content;
+	}
+
+	/**
+	 * Give up the reference that this object holds to its content, when it is evicted from memory. Further {@link #retainPayload()} calls will fail once all readers have finished.
+	 */
+	public synchronized void releasePayload() {
+		if (this.payload != null && !payloadReleased) {
+			payloadReleased = true;
+			this.payload.release();
+
+			if (this.compressedPayload != null)
+				this.compressedPayload.release();
+		}
+	}
+
+	/**
+	 * Like {@link #retainPayload()}, for the compressed form of the content. It starts with {@link #COMPRESSION_HEADER} bytes holding the original length, followed by the Deflate (zlib) stream.
+	 *
+	 * @return the compressed content, or <code>null</code> if this object was not sent or received compressed
+	 */
+	public PayloadBuffer retainCompressedPayload() {
+		final PayloadBuffer content = this.compressedPayload;
+
+		if (content == null || this.payloadCompressed || !content.retain())
+			return null;
+
+		lastAccessed = System.currentTimeMillis();
+
+		return content;
+	}
+
+	/**
+	 * @return when the content was last served to a client, or when the object was created if never
+	 */
+	public long getLastAccessed() {
+		return lastAccessed;
 	}
 
 	/**
 	 * @param payload
 	 *            new payload blob
 	 */
-	public void setPayload(final byte[] payload) {
-		this.payload = payload;
+	public synchronized void setPayload(final byte[] payload) {
+		if (this.payload != null && !payloadReleased) {
+			this.payload.release();
+
+			if (this.compressedPayload != null)
+				this.compressedPayload.release();
+		}
+
+		payloadReleased = false;
+		payloadCompressed = false;
+		compressedPayload = null;
+		compressionTried = false;
+
+		this.payload = PayloadBuffer.copyOf(payload);
 
 		try {
 			this.payloadChecksum = Utils.calculateChecksum(payload);
@@ -851,7 +1196,7 @@ public class Blob implements Comparable<Blob> {
 		output += "\t key = " + this.key + ", uuid = " + this.uuid.toString() + "\n";
 		output += "\t validity between " + this.startTime + " and " + this.endTime + "\n";
 		output += "\t metadata = " + getMetadataMap() + "\n";
-		output += "\t payload = " + payload.length + " bytes\n";
+		output += "\t payload = " + (payload != null ? payload.length() : -1) + " bytes\n";
 
 		return output;
 	}
@@ -885,7 +1230,13 @@ public class Blob implements Comparable<Blob> {
 		}
 
 		// Verify payload
-		if (!Arrays.equals(this.payload, blob.getPayload())) {
+		try {
+			if (this.payload != blob.payload && (this.payload == null || !this.payload.contentEquals(blob.payload))) {
+				return false;
+			}
+		}
+		catch (@SuppressWarnings("unused") final IllegalStateException ise) {
+			// one of them was evicted from memory, its content is not known any more
 			return false;
 		}
 
@@ -1068,7 +1419,9 @@ public class Blob implements Comparable<Blob> {
 	 * @return size of the content, if known at this point
 	 */
 	public long getSize() {
-		return payload != null ? payload.length : -1;
+		final PayloadBuffer content = payload;
+
+		return content != null ? content.length() : -1;
 	}
 
 	/**
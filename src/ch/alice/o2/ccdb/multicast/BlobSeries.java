@@ -0,0 +1,298 @@
+package ch.alice.o2.ccdb.multicast;
+
+import java.lang.ref.Reference;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * The in-memory versions of one object path, ordered by their start time. The readers work on an immutable snapshot of the content, without taking any lock, while the (rare) modifications
+ * build a new snapshot under the lock of this series only.<br>
+ * <br>
+ * Each entry also keeps the largest end time of all the entries up to it, so that the objects covering a given time are found with a binary search on the start time and a backwards walk that
+ * stops as soon as no earlier object can still be valid at that time.<br>
+ * <br>
+ * When the content is stored off-heap ({@link PayloadBuffer#OFF_HEAP}) the objects are strongly referenced and their content is released when they are removed from the series, the memory budget
+ * deciding what to evict instead of the garbage collector.
+ *
+ * @author costing
+ * @since 2026-10-18
+ */
+public final class BlobSeries {
+	private static final class Entry {
+		/**
+		 * Only set when the content is stored off-heap
+		 */
+		final Blob strong;
+
+		final Reference<Blob> ref;
+
+		final long startTime;
+
+		final long endTime;
+
+		/**
+		 * Largest end time of this entry and all the ones before it in the snapshot it was published in
+		 */
+		final long maxEndTime;
+
+		Entry(final Blob strong, final Reference<Blob> ref, final Blob blob) {
+			this.strong = strong;
+			this.ref = ref;
+			this.startTime = blob.startTime;
+			this.endTime = blob.getEndTime();
+			this.maxEndTime = this.endTime;
+		}
+
+		/**
+		 * Copy of another entry for a new snapshot, the entries of the previous snapshots are never modified since readers might still use them
+		 *
+		 * @param other
+		 * @param maxEndTime
+		 */
+		Entry(final Entry other, final long maxEndTime) {
+			this.strong = other.strong;
+			this.ref = other.ref;
+			this.startTime = other.startTime;
+			this.endTime = other.endTime;
+			this.maxEndTime = maxEndTime;
+		}
+
+		Blob get() {
+			return strong != null ? strong : ref.get();
+		}
+	}
+
+	private static final Comparator<Entry> startTimeComparator = Comparator.comparingLong(e -> e.startTime);
+
+	private static final Entry[] EMPTY = new Entry[0];
+
+	private volatile Entry[] entries = EMPTY;
+
+	/**
+	 * Set once the series was removed from the index, the objects have to go to a new series from then on
+	 */
+	private boolean retired = false;
+
+	/**
+	 * @param uuid
+	 * @return the object with this ID, if it is in memory
+	 */
+	public Blob get(final UUID uuid) {
+		for (final Entry e : entries) {
+			final Blob b = e.get();
+
+			if (b != null && b.getUuid().equals(uuid))
+				return b;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Add an object to this series, unless another one with the same ID is already there
+	 *
+	 * @param blob
+	 * @param softReferences how many of the most recent objects are kept through soft references, the older ones only through weak references
+	 * @return the object that is now in memory for this ID (either the existing one or the given one), or <code>null</code> if this series was retired and the object has to be added to a new
+	 *         one
+	 */
+	public synchronized Blob add(final Blob blob, final int softReferences) {
+		if (retired)
+			return null;
+
+		final Blob existing = get(blob.getUuid());
+
+		if (existing != null)
+			return existing;
+
+		final List<Entry> newEntries = new ArrayList<>(entries.length + 1);
+
+		for (final Entry e : entries)
+			if (e.get() != null)
+				newEntries.add(e);
+
+		if (PayloadBuffer.OFF_HEAP)
+			newEntries.add(new Entry(blob, null, blob));
+		else
+			newEntries.add(new Entry(null, new SoftReference<>(blob), blob));
+
+		newEntries.sort(startTimeComparator);
+
+		// first entries are the oldest
+		for (int i = 0; i < newEntries.size() - softReferences; i++) {
+			final Entry e = newEntries.get(i);
+
+			if (e.ref instanceof SoftReference) {
+				final Blob b = e.get();
+
+				if (b != null)
+					newEntries.set(i, new Entry(null, new WeakReference<>(b), b));
+			}
+		}
+
+		publish(newEntries);
+
+		return blob;
+	}
+
+	/**
+	 * Sort the entries again, after the validity interval of some objects became known
+	 */
+	public synchronized void resort() {
+		final List<Entry> newEntries = new ArrayList<>(entries.length);
+
+		for (final Entry e : entries) {
+			final Blob b = e.get();
+
+			if (b != null)
+				newEntries.add(new Entry(e.strong, e.ref, b));
+		}
+
+		newEntries.sort(startTimeComparator);
+
+		publish(newEntries);
+	}
+
+	/**
+	 * @param blob object to remove from memory
+	 * @return <code>true</code> if it was found and removed
+	 */
+	public boolean remove(final Blob blob) {
+		return removeAll(Set.of(blob.getUuid())) > 0;
+	}
+
+	/**
+	 * Remove the given objects, and the ones that were already garbage collected. The content of the removed objects is released.
+	 *
+	 * @param uuids IDs of the objects to remove
+	 * @return how many entries were removed
+	 */
+	public synchronized int removeAll(final Collection<UUID> uuids) {
+		final List<Entry> newEntries = new ArrayList<>(entries.length);
+
+		for (final Entry e : entries) {
+			final Blob b = e.get();
+
+			if (b == null)
+				continue;
+
+			if (uuids.contains(b.getUuid()))
+				b.releasePayload();
+			else
+				newEntries.add(e);
+		}
+
+		final int removed = entries.length - newEntries.size();
+
+		if (removed > 0)
+			publish(newEntries);
+
+		return removed;
+	}
+
+	/**
+	 * Mark this series as retired if it is empty. Further additions will fail and have to go to a new series.
+	 *
+	 * @return <code>true</code> if the series was empty and can be removed from the index
+	 */
+	public synchronized boolean retireIfEmpty() {
+		if (entries.length == 0)
+			retired = true;
+
+		return retired;
+	}
+
+	private void publish(final List<Entry> newEntries) {
+		final Entry[] snapshot = new Entry[newEntries.size()];
+
+		long maxEndTime = Long.MIN_VALUE;
+
+		for (int i = 0; i < snapshot.length; i++) {
+			final Entry e = newEntries.get(i);
+
+			maxEndTime = Math.max(maxEndTime, e.endTime);
+
+			snapshot[i] = e.maxEndTime == maxEndTime ? e : new Entry(e, maxEndTime);
+		}
+
+		entries = snapshot;
+	}
+
+	/**
+	 * @return the objects still in memory, in the order of their start time
+	 */
+	public List<Blob> getBlobs() {
+		return Arrays.stream(entries).map(e -> e.get()).filter(b -> b != null).collect(Collectors.toList());
+	}
+
+	/**
+	 * @return number of entries, including the ones whose objects might have been garbage collected in the meantime
+	 */
+	public int size() {
+		return entries.length;
+	}
+
+	/**
+	 * @param filter
+	 * @return the most recently created object accepted by the filter
+	 */
+	public Blob getMostRecent(final Predicate<Blob> filter) {
+		Blob bestMatch = null;
+
+		for (final Entry e : entries) {
+			final Blob b = e.get();
+
+			if (b != null && (bestMatch == null || b.compareTo(bestMatch) < 0) && filter.test(b))
+				bestMatch = b;
+		}
+
+		return bestMatch;
+	}
+
+	/**
+	 * @param referenceTime
+	 * @param filter
+	 * @return the most recently created object that is valid at the reference time and accepted by the filter
+	 */
+	public Blob getMostRecentCovering(final long referenceTime, final Predicate<Blob> filter) {
+		final Entry[] snapshot = entries;
+
+		// last entry starting at or before the reference time
+		int lo = 0;
+		int hi = snapshot.length - 1;
+
+		while (lo <= hi) {
+			final int mid = (lo + hi) >>> 1;
+
+			if (snapshot[mid].startTime <= referenceTime)
+				lo = mid + 1;
+			else
+				hi = mid - 1;
+		}
+
+		Blob bestMatch = null;
+
+		for (int i = hi; i >= 0 && snapshot[i].maxEndTime > referenceTime; i--) {
+			final Entry e = snapshot[i];
+
+			if (e.endTime <= referenceTime)
+				continue;
+
+			final Blob b = e.get();
+
+			if (b != null && (bestMatch == null || b.compareTo(bestMatch) < 0) && filter.test(b))
+				bestMatch = b;
+		}
+
+		return bestMatch;
+	}
+}
@@ -0,0 +1,290 @@
+package ch.alice.o2.ccdb.multicast;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.UUID;
+
+import alien.test.cassandra.tomcat.Options;
+
+/**
+ * Encoder of the UDP packets, one instance per thread. The header fields are written in place in reused direct buffers, the content is copied straight from the object and the packet checksum
+ * is computed with a reused digest, so that sending an object doesn't allocate anything per fragment. The wire format is the one described in {@link Utils}.<br>
+ * <br>
+ * When <code>udp_sender.fec_group</code> is set to K &gt; 0 (default 0, disabled) each group of (at most) K consecutive fragments is followed by a parity packet
+ * ({@link Blob#METADATA_PARITY_CODE} or {@link Blob#DATA_PARITY_CODE}). Its fragment offset is the offset of the first fragment of the group and its content is the number of fragments in the
+ * group (2 bytes) followed by the XOR of their content, the shorter last fragment being padded with zeros. A receiver can then rebuild any single lost fragment of a group without asking the
+ * server for it, at the cost of 1/K more packets.
+ *
+ * @author costing
+ * @since 2026-10-18
+ */
+final class FragmentEncoder {
+	private static final ThreadLocal<FragmentEncoder> encoders = ThreadLocal.withInitial(() -> {
+		try {
+			return new FragmentEncoder();
+		}
+		catch (final NoSuchAlgorithmException e) {
+			throw new IllegalStateException("Checksum algorithm " + Utils.CHECKSUM_TYPE + " is not available", e);
+		}
+	});
+
+	/**
+	 * How many data fragments are protected by one parity packet, 0 to send no parity packets
+	 */
+	static final int FEC_GROUP = Math.max(Options.getIntOption("udp_sender.fec_group", 0), 0);
+
+	private final ByteBuffer[] packets = new ByteBuffer[UDPSender.BATCH_SIZE];
+
+	/**
+	 * XOR of the fragments of the current group
+	 */
+	private ByteBuffer parity = null;
+
+	/**
+	 * How many of the packets are ready to be sent
+	 */
+	private int count = 0;
+
+	private final MessageDigest digest;
+
+	private final byte[] packetChecksum = new byte[Utils.SIZE_OF_PACKET_CHECKSUM];
+
+	private FragmentEncoder() throws NoSuchAlgorithmException {
+		digest = MessageDigest.getInstance(Utils.CHECKSUM_TYPE);
+	}
+
+	/**
+	 * @return the encoder of the current thread
+	 */
+	static FragmentEncoder get() {
+		return encoders.get();
+	}
+
+	/**
+	 * @param length
+	 * @return the next free buffer of the batch, large enough for a packet of the given length
+	 */
+	private ByteBuffer nextPacket(final int length) {
+		ByteBuffer packet = packets[count];
+
+		if (packet == null || packet.capacity() < length) {
+			packet = ByteBuffer.allocateDirect(Math.max(length, 2048));
+			packets[count] = packet;
+		}
+
+		packet.clear();
+
+		count++;
+
+		return packet;
+	}
+
+	private static void writeHeader(final ByteBuffer packet, final int fragmentOffset, final byte packetType, final UUID uuid, final int blobLength, final byte[] key, final byte[] blobChecksum) {
+		// all fields are big endian, the ByteBuffer default
+		packet.putInt(Utils.FRAGMENT_OFFSET_START_INDEX, fragmentOffset);
+		packet.put(Utils.PACKET_TYPE_START_INDEX, packetType);
+		packet.putLong(Utils.UUID_START_INDEX, uuid.getMostSignificantBits());
+		packet.putLong(Utils.UUID_START_INDEX + Long.BYTES, uuid.getLeastSignificantBits());
+		packet.putInt(Utils.BLOB_PAYLOAD_LENGTH_START_INDEX, blobLength);
+		packet.putShort(Utils.KEY_LENGTH_START_INDEX, (short) key.length);
+
+		packet.position(Utils.PAYLOAD_CHECKSUM_START_INDEX);
+		packet.put(blobChecksum, 0, Utils.SIZE_OF_PAYLOAD_CHECKSUM);
+		packet.put(key);
+	}
+
+	/**
+	 * Append the checksum of everything written so far and make the packet ready to be sent
+	 *
+	 * @param packet
+	 * @throws IOException
+	 */
+	private void writeTrailer(final ByteBuffer packet) throws IOException {
+		final int contentEnd = packet.position();
+
+		packet.flip();
+
+		digest.update(packet);
+
+		try {
+			digest.digest(packetChecksum, 0, packetChecksum.length);
+		}
+		catch (final DigestException e) {
+			throw new IOException("Cannot compute the packet checksum", e);
+		}
+
+		packet.limit(contentEnd + packetChecksum.length);
+		packet.put(packetChecksum);
+		packet.flip();
+	}
+
+	/**
+	 * Send the batch if all its packets are used
+	 *
+	 * @param sink
+	 * @throws IOException
+	 */
+	private void flushIfFull(final FragmentSink sink) throws IOException {
+		if (count == packets.length)
+			flush(sink);
+	}
+
+	private void flush(final FragmentSink sink) throws IOException {
+		if (count == 0)
+			return;
+
+		try {
+			sink.send(packets, count);
+		}
+		finally {
+			count = 0;
+		}
+	}
+
+	/**
+	 * Fragment and send a range of the metadata or payload of an object
+	 *
+	 * @param sink where to send the packets to
+	 * @param packetType {@link Blob#METADATA_CODE} or {@link Blob#DATA_CODE}, the latter possibly with {@link Blob#COMPRESSED_FLAG}
+	 * @param uuid object ID
+	 * @param key object path
+	 * @param blobLength total length of the metadata or payload
+	 * @param blobChecksum checksum of the entire metadata or payload
+	 * @param content the metadata or payload, addressed by absolute offsets; its position and limit are changed
+	 * @param first start of the range to send (inclusive)
+	 * @param last end of the range to send (exclusive)
+	 * @param maxPayloadSize how much content to put in each packet
+	 * @param fecGroup after how many fragments to send a parity packet, 0 for none
+	 * @throws IOException
+	 */
+	void sendFragments(final FragmentSink sink, final byte packetType, final UUID uuid, final byte[] key, final int blobLength, final byte[] blobChecksum, final ByteBuffer content,
+			final int first, final int last, final int maxPayloadSize, final int fecGroup) throws IOException {
+		final byte parityType = (byte) ((packetType & Blob.COMPRESSED_FLAG) | ((packetType & ~Blob.COMPRESSED_FLAG) == Blob.METADATA_CODE ? Blob.METADATA_PARITY_CODE : Blob.DATA_PARITY_CODE));
+
+		if (fecGroup > 0 && (parity == null || parity.capacity() < maxPayloadSize))
+			parity = ByteBuffer.allocate(maxPayloadSize);
+
+		try {
+			int groupStart = first;
+			int groupFragments = 0;
+			int parityLength = 0;
+
+			for (int offset = first; offset < last; offset += maxPayloadSize) {
+				final int length = Math.min(maxPayloadSize, last - offset);
+
+				final ByteBuffer packet = nextPacket(Utils.SIZE_OF_FRAGMENTED_BLOB_HEADER_AND_TRAILER + key.length + length);
+
+				writeHeader(packet, offset, packetType, uuid, blobLength, key, blobChecksum);
+
+				content.limit(offset + length);
+				content.position(offset);
+				packet.put(content);
+
+				writeTrailer(packet);
+
+				flushIfFull(sink);
+
+				if (fecGroup > 0) {
+					if (groupFragments == 0) {
+						// the first fragment of a group is the longest one
+						groupStart = offset;
+						parityLength = length;
+					}
+
+					addToParity(content, offset, length, groupFragments == 0);
+
+					groupFragments++;
+
+					if (groupFragments == fecGroup || offset + length >= last) {
+						sendParity(sink, parityType, uuid, key, blobLength, blobChecksum, groupStart, groupFragments, parityLength);
+						groupFragments = 0;
+					}
+				}
+			}
+
+			flush(sink);
+		}
+		finally {
+			count = 0;
+		}
+	}
+
+	/**
+	 * @param content
+	 * @param offset
+	 * @param length
+	 * @param firstInGroup whether to start a new parity instead of adding to the current one
+	 */
+	private void addToParity(final ByteBuffer content, final int offset, final int length, final boolean firstInGroup) {
+		if (firstInGroup) {
+			content.limit(offset + length);
+			content.position(offset);
+
+			final ByteBuffer target = parity.duplicate();
+			target.clear();
+			target.put(content);
+
+			return;
+		}
+
+		int i = 0;
+
+		for (; i + Long.BYTES <= length; i += Long.BYTES)
+			parity.putLong(i, parity.getLong(i) ^ content.getLong(offset + i));
+
+		for (; i < length; i++)
+			parity.put(i, (byte) (parity.get(i) ^ content.get(offset + i)));
+	}
+
+	private void sendParity(final FragmentSink sink, final byte parityType, final UUID uuid, final byte[] key, final int blobLength, final byte[] blobChecksum, final int groupStart,
+			final int groupFragments, final int parityLength) throws IOException {
+		final ByteBuffer packet = nextPacket(Utils.SIZE_OF_FRAGMENTED_BLOB_HEADER_AND_TRAILER + key.length + Short.BYTES + parityLength);
+
+		writeHeader(packet, groupStart, parityType, uuid, blobLength, key, blobChecksum);
+
+		packet.putShort((short) groupFragments);
+
+		final ByteBuffer source = parity.duplicate();
+		source.clear();
+		source.limit(parityLength);
+		packet.put(source);
+
+		writeTrailer(packet);
+
+		flushIfFull(sink);
+	}
+
+	/**
+	 * Send an entire object in a single packet
+	 *
+	 * @param sink where to send the packet to
+	 * @param uuid object ID
+	 * @param key object path
+	 * @param metadata serialized metadata
+	 * @param payload the entire payload, between its position and limit
+	 * @param payloadChecksum
+	 * @param compressed whether the payload is the compressed form of the original one
+	 * @throws IOException
+	 */
+	void sendSmallBlob(final FragmentSink sink, final UUID uuid, final byte[] key, final byte[] metadata, final ByteBuffer payload, final byte[] payloadChecksum, final boolean compressed)
+			throws IOException {
+		try {
+			final ByteBuffer packet = nextPacket(Utils.SIZE_OF_FRAGMENTED_BLOB_HEADER_AND_TRAILER + key.length + metadata.length + payload.remaining());
+
+			writeHeader(packet, 0, compressed ? (byte) (Blob.SMALL_BLOB_CODE | Blob.COMPRESSED_FLAG) : Blob.SMALL_BLOB_CODE, uuid, payload.remaining(), key, payloadChecksum);
+
+			packet.put(metadata);
+			packet.put(payload);
+
+			writeTrailer(packet);
+
+			flush(sink);
+		}
+		finally {
+			count = 0;
+		}
+	}
+}
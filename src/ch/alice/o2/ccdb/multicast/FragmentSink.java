@@ -0,0 +1,21 @@
+package ch.alice.o2.ccdb.multicast;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Destination of the encoded UDP packets
+ *
+ * @author costing
+ * @since 2026-10-18
+ */
+public interface FragmentSink {
+	/**
+	 * Send a batch of packets. The buffers are reused by the caller once this method returns.
+	 *
+	 * @param packets complete packets, each between its position and limit
+	 * @param count how many of the array entries are to be sent
+	 * @throws IOException
+	 */
+	void send(ByteBuffer[] packets, int count) throws IOException;
+}
@@ -19,6 +19,7 @@ class FragmentedBlob {
 
 	private int fragmentOffset;
 	private byte packetType;
+	private boolean compressed;
 	private UUID uuid;
 	// Total length of the Blob's payload if packetType is DATA or SMALL_BLOB
 	// Total length of the Blob's metadata if packetType is METADATA
@@ -27,7 +28,14 @@ class FragmentedBlob {
 	// private short keyLength; // <-- key.length()
 	private byte[] payloadChecksum;
 	private String key;
-	private byte[] payload;
+	private byte[] payload = null;
+
+	/**
+	 * The received packet, the content is only copied out of it when needed
+	 */
+	private final byte[] packet;
+	private int payloadStart;
+	private int payloadLength;
 	private byte[] packetChecksum = null;
 
 	/**
@@ -55,8 +63,11 @@ class FragmentedBlob {
 		// Field 1: Fragment Offset
 		this.fragmentOffset = Utils.intFromByteArray(serialisedFragmentedBlob, Utils.FRAGMENT_OFFSET_START_INDEX);
 
-		// Field 2: Packet type
-		this.packetType = serialisedFragmentedBlob[Utils.PACKET_TYPE_START_INDEX];
+		// Field 2: Packet type, possibly with the compression flag
+		final byte rawPacketType = serialisedFragmentedBlob[Utils.PACKET_TYPE_START_INDEX];
+
+		this.packetType = (byte) (rawPacketType & ~Blob.COMPRESSED_FLAG);
+		this.compressed = (rawPacketType & Blob.COMPRESSED_FLAG) != 0;
 
 		// Field 3: UUID
 		final byte[] uuid_byte_array = Arrays.copyOfRange(serialisedFragmentedBlob, Utils.UUID_START_INDEX, Utils.UUID_START_INDEX + Utils.SIZE_OF_UUID);
@@ -78,7 +89,9 @@ class FragmentedBlob {
 		this.key = new String(key_byte_array, StandardCharsets.UTF_8);
 
 		// Field 8: Payload
-		this.payload = Arrays.copyOfRange(serialisedFragmentedBlob, Utils.KEY_START_INDEX + keyLength, packetLength - Utils.SIZE_OF_PACKET_CHECKSUM);
+		this.packet = serialisedFragmentedBlob;
+		this.payloadStart = Utils.KEY_START_INDEX + keyLength;
+		this.payloadLength = packetLength - Utils.SIZE_OF_PACKET_CHECKSUM - this.payloadStart;
 	}
 
 	/**
@@ -171,10 +184,20 @@ class FragmentedBlob {
 		this.packetType = packetType;
 	}
 
+	/**
+	 * @return <code>true</code> if the payload that this packet is part of is compressed
+	 */
+	boolean isCompressed() {
+		return this.compressed;
+	}
+
 	/**
 	 * @return content
 	 */
 	byte[] getPayload() {
+		if (this.payload == null)
+			this.payload = Arrays.copyOfRange(this.packet, this.payloadStart, this.payloadStart + this.payloadLength);
+
 		return this.payload;
 	}
 
@@ -184,6 +207,29 @@ class FragmentedBlob {
 	 */
 	void setPayload(final byte[] payload) {
 		this.payload = payload;
+		this.payloadStart = 0;
+		this.payloadLength = payload.length;
+	}
+
+	/**
+	 * @return the array holding the content, starting at {@link #getPayloadStart()}
+	 */
+	byte[] getPacket() {
+		return this.payload != null ? this.payload : this.packet;
+	}
+
+	/**
+	 * @return where the content starts in {@link #getPacket()}
+	 */
+	int getPayloadStart() {
+		return this.payloadStart;
+	}
+
+	/**
+	 * @return content length
+	 */
+	int getPayloadLength() {
+		return this.payloadLength;
 	}
 
 	@Override
@@ -197,15 +243,24 @@ class FragmentedBlob {
 		case Blob.DATA_CODE:
 			output.append("Data");
 			break;
+		case Blob.METADATA_PARITY_CODE:
+			output.append("Metadata parity");
+			break;
+		case Blob.DATA_PARITY_CODE:
+			output.append("Data parity");
+			break;
 		default:
 			output.append("Small Blob");
 		}
 
+		if (this.compressed)
+			output.append(" (compressed)");
+
 		output.append(" fragmentedBlob with \nfragmentOffset = ").append(this.fragmentOffset);
 		output.append("\nkey = ").append(this.key);
 		output.append("\nuuid = ").append(this.uuid.toString());
 		output.append("\npayloadChecksum = ").append(Utils.humanReadableChecksum(payloadChecksum));
-		output.append("\npayload = ").append(payload.length).append(" bytes");
+		output.append("\npayload = ").append(payloadLength).append(" bytes");
 
 		if (Blob.VERIFY_CHECKSUMS)
 			output.append("\npacketChecksum = ").append(Utils.humanReadableChecksum(packetChecksum));
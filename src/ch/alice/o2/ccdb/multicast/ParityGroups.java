@@ -0,0 +1,177 @@
+package ch.alice.o2.ccdb.multicast;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import ch.alice.o2.ccdb.multicast.Utils.Pair;
+
+/**
+ * Received parity packets of the metadata or of the payload of one object, used to rebuild a single lost fragment in each group. See {@link FragmentEncoder} for the format.
+ *
+ * @author costing
+ * @since 2026-10-18
+ */
+final class ParityGroups {
+	/**
+	 * Copy bytes between the metadata or payload being assembled and a buffer, in one direction or the other
+	 */
+	interface Access {
+		/**
+		 * @param offset in the metadata or payload
+		 * @param buffer
+		 * @param bufferOffset
+		 * @param length
+		 */
+		void copy(int offset, byte[] buffer, int bufferOffset, int length);
+	}
+
+	private static final class Group {
+		final int fragments;
+
+		/**
+		 * XOR of the fragments, as long as the first (longest) one
+		 */
+		final byte[] parity;
+
+		Group(final int fragments, final byte[] parity) {
+			this.fragments = fragments;
+			this.parity = parity;
+		}
+	}
+
+	/**
+	 * Indexed by the offset of the first fragment of each group
+	 */
+	private final TreeMap<Integer, Group> groups = new TreeMap<>();
+
+	/**
+	 * Keep a parity packet until its group is complete
+	 *
+	 * @param groupStart offset of the first fragment of the group
+	 * @param packet
+	 * @param payloadStart where the content of the parity packet starts
+	 * @param payloadLength length of the content
+	 */
+	void add(final int groupStart, final byte[] packet, final int payloadStart, final int payloadLength) {
+		if (payloadLength <= Short.BYTES)
+			return;
+
+		final int fragments = Utils.shortFromByteArray(packet, payloadStart) & 0xFFFF;
+
+		if (fragments == 0)
+			return;
+
+		groups.put(Integer.valueOf(groupStart), new Group(fragments, Arrays.copyOfRange(packet, payloadStart + Short.BYTES, payloadStart + payloadLength)));
+	}
+
+	/**
+	 * @return <code>true</code> if no parity is waiting to be used
+	 */
+	boolean isEmpty() {
+		return groups.isEmpty();
+	}
+
+	/**
+	 * Check the group that covers the given offset, after a fragment or the parity of the group was received. If exactly one fragment of the group is missing it is rebuilt from the parity and
+	 * the other fragments.
+	 *
+	 * @param offset
+	 * @param received ranges of the metadata or payload that were received so far
+	 * @param blockLength total length of the metadata or payload
+	 * @param reader copies the received content out
+	 * @param writer copies the rebuilt fragment in
+	 * @return the range that was rebuilt, or <code>null</code> if nothing could be done (yet)
+	 */
+	Pair rebuild(final int offset, final List<Pair> received, final int blockLength, final Access reader, final Access writer) {
+		final Map.Entry<Integer, Group> entry = groups.floorEntry(Integer.valueOf(offset));
+
+		if (entry == null)
+			return null;
+
+		final int start = entry.getKey().intValue();
+		final Group group = entry.getValue();
+		final int fragmentSize = group.parity.length;
+		final int end = (int) Math.min(blockLength, start + (long) group.fragments * fragmentSize);
+
+		if (offset >= end)
+			return null;
+
+		final List<Pair> missing = getMissing(received, start, end);
+
+		if (missing.isEmpty()) {
+			groups.remove(entry.getKey());
+			return null;
+		}
+
+		if (missing.size() > 1)
+			return null;
+
+		final Pair hole = missing.get(0);
+
+		final int holeStart = start + (hole.first - start) / fragmentSize * fragmentSize;
+		final int holeEnd = Math.min(end, holeStart + fragmentSize);
+
+		if (hole.first != holeStart || hole.second != holeEnd)
+			// more than one fragment is missing
+			return null;
+
+		final byte[] rebuilt = group.parity.clone();
+		final byte[] fragment = new byte[fragmentSize];
+
+		for (int fragmentStart = start; fragmentStart < end; fragmentStart += fragmentSize) {
+			if (fragmentStart == holeStart)
+				continue;
+
+			final int length = Math.min(fragmentSize, end - fragmentStart);
+
+			reader.copy(fragmentStart, fragment, 0, length);
+
+			for (int i = 0; i < length; i++)
+				rebuilt[i] ^= fragment[i];
+		}
+
+		writer.copy(holeStart, rebuilt, 0, holeEnd - holeStart);
+
+		groups.remove(entry.getKey());
+
+		return new Pair(holeStart, holeEnd);
+	}
+
+	/**
+	 * @param received sorted, non overlapping ranges
+	 * @param from
+	 * @param to
+	 * @return the ranges between <code>from</code> and <code>to</code> that are not covered by the received ones
+	 */
+	static List<Pair> getMissing(final List<Pair> received, final int from, final int to) {
+		final List<Pair> ret = new ArrayList<>();
+
+		int cursor = from;
+
+		synchronized (received) {
+			for (final Pair p : received) {
+				if (p.second <= cursor)
+					continue;
+
+				if (p.first >= to)
+					break;
+
+				if (p.first > cursor)
+					ret.add(new Pair(cursor, p.first));
+
+				cursor = p.second;
+
+				if (cursor >= to)
+					break;
+			}
+		}
+
+		if (cursor < to)
+			ret.add(new Pair(cursor, to));
+
+		return ret;
+	}
+}
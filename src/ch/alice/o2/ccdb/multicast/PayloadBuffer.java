@@ -0,0 +1,510 @@
+package ch.alice.o2.ccdb.multicast;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.ref.Cleaner;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import alien.test.cassandra.tomcat.Options;
+
+/**
+ * Content of an in-memory object.<br>
+ * <br>
+ * When <code>udp_receiver.offheap_budget_mb</code> is set (default 0, disabled) the received objects are kept in direct buffers, outside of the Java heap, and are not left to the garbage
+ * collector for eviction any more. Each buffer is reference counted: the owning {@link Blob} holds one reference until it is evicted and each download holds another one while the content is
+ * written out. The bytes of the buffers that were not released yet are accounted against the budget, and the expiration checker of {@link UDPReceiver} evicts the least recently used objects
+ * once the budget is exceeded. Allocations beyond the budget fall back to heap buffers until enough space was freed.<br>
+ * <br>
+ * The native memory of a direct buffer is freed as soon as its last reference is released, so the budget really bounds it, instead of waiting for the garbage collector. Accessing a released buffer
+ * fails with an {@link IllegalStateException}, and the views returned by {@link #slice(int, int)} may only be used while holding a reference.
+ *
+ * @author costing
+ * @since 2026-10-18
+ */
+public final class PayloadBuffer {
+	private static final Logger logger = SingletonLogger.getLogger();
+
+	private static final long BUDGET = Options.getIntOption("udp_receiver.offheap_budget_mb", 0) * 1024L * 1024;
+
+	/**
+	 * Whether the received objects are stored off-heap
+	 */
+	public static final boolean OFF_HEAP = BUDGET > 0;
+
+	/**
+	 * Size of the chunks in which direct buffers are written to output streams
+	 */
+	private static final int TRANSFER_CHUNK = 64 * 1024;
+
+	/**
+	 * The compressed form starts with the length of the original content
+	 */
+	static final int COMPRESSION_HEADER = Integer.BYTES;
+
+	private static final ThreadLocal<byte[]> transferBuffer = ThreadLocal.withInitial(() -> new byte[TRANSFER_CHUNK]);
+
+	private static final AtomicLong offHeapBytes = new AtomicLong();
+
+	private static final AtomicLong overBudgetAllocations = new AtomicLong();
+
+	private static final Object budgetLock = new Object();
+
+	private static final Cleaner cleaner = OFF_HEAP ? Cleaner.create() : null;
+
+	/**
+	 * <code>sun.misc.Unsafe.invokeCleaner(ByteBuffer)</code>, to free the native memory of a direct buffer right away
+	 */
+	private static final MethodHandle freer = OFF_HEAP ? getFreer() : null;
+
+	/**
+	 * Reference count of an off-heap buffer, kept apart from the buffer so that the cleaner can still account buffers that were dropped without being released. The garbage collector frees the
+	 * memory of those.
+	 */
+	private static final class State implements Runnable {
+		final AtomicInteger references = new AtomicInteger(1);
+
+		final int length;
+
+		State(final int length) {
+			this.length = length;
+		}
+
+		@Override
+		public void run() {
+			if (references.getAndSet(0) > 0)
+				offHeapBytes.addAndGet(-length);
+		}
+	}
+
+	private final ByteBuffer buffer;
+
+	/**
+	 * <code>null</code> for heap buffers, which are not accounted
+	 */
+	private final State state;
+
+	private PayloadBuffer(final ByteBuffer buffer, final State state) {
+		this.buffer = buffer;
+		this.state = state;
+
+		if (state != null)
+			cleaner.register(this, state);
+	}
+
+	/**
+	 * @param length
+	 * @return a new buffer of the given size, off-heap if this is enabled and the budget allows it. The caller owns the only reference to it.
+	 */
+	public static PayloadBuffer allocate(final int length) {
+		if (OFF_HEAP) {
+			if (offHeapBytes.addAndGet(length) <= BUDGET)
+				return new PayloadBuffer(ByteBuffer.allocateDirect(length), new State(length));
+
+			offHeapBytes.addAndGet(-length);
+
+			overBudgetAllocations.incrementAndGet();
+
+			synchronized (budgetLock) {
+				budgetLock.notifyAll();
+			}
+		}
+
+		return new PayloadBuffer(ByteBuffer.allocate(length), null);
+	}
+
+	/**
+	 * @param content
+	 * @return an off-heap copy of the given content, if enabled, otherwise a heap buffer backed by it
+	 */
+	public static PayloadBuffer copyOf(final byte[] content) {
+		if (!OFF_HEAP)
+			return wrap(content);
+
+		final PayloadBuffer ret = allocate(content.length);
+		ret.put(0, content, 0, content.length);
+		return ret;
+	}
+
+	/**
+	 * @param content
+	 * @return a heap buffer backed by the given array, for the objects that are not kept in memory
+	 */
+	public static PayloadBuffer wrap(final byte[] content) {
+		return new PayloadBuffer(ByteBuffer.wrap(content), null);
+	}
+
+	/**
+	 * @return content length
+	 */
+	public int length() {
+		return buffer.capacity();
+	}
+
+	/**
+	 * @return <code>true</code> if the content is stored outside of the Java heap
+	 */
+	public boolean isDirect() {
+		return buffer.isDirect();
+	}
+
+	/**
+	 * Copy some bytes in this buffer
+	 *
+	 * @param offset where to write in this buffer
+	 * @param source
+	 * @param sourceOffset
+	 * @param length
+	 */
+	public void put(final int offset, final byte[] source, final int sourceOffset, final int length) {
+		acquire();
+
+		try {
+			final ByteBuffer view = buffer.duplicate();
+			view.position(offset);
+			view.put(source, sourceOffset, length);
+		}
+		finally {
+			release();
+		}
+	}
+
+	/**
+	 * Copy some bytes out of this buffer
+	 *
+	 * @param offset where to read from in this buffer
+	 * @param target
+	 * @param targetOffset
+	 * @param length
+	 */
+	public void get(final int offset, final byte[] target, final int targetOffset, final int length) {
+		acquire();
+
+		try {
+			final ByteBuffer view = buffer.duplicate();
+			view.position(offset);
+			view.get(target, targetOffset, length);
+		}
+		finally {
+			release();
+		}
+	}
+
+	/**
+	 * @return a heap copy of the entire content
+	 */
+	public byte[] toByteArray() {
+		if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.array().length == buffer.capacity())
+			return buffer.array();
+
+		final byte[] ret = new byte[buffer.capacity()];
+		get(0, ret, 0, ret.length);
+		return ret;
+	}
+
+	/**
+	 * @param offset
+	 * @param length
+	 * @return a read-only view of the given range of the content, with its own position and limit. For off-heap buffers the caller has to hold a reference for as long as it uses the view.
+	 */
+	public ByteBuffer slice(final int offset, final int length) {
+		final ByteBuffer view = buffer.asReadOnlyBuffer();
+		view.position(offset);
+		view.limit(offset + length);
+		return view;
+	}
+
+	/**
+	 * @return the checksum of the content
+	 * @throws NoSuchAlgorithmException
+	 * @see Utils#calculateChecksum(byte[])
+	 */
+	public byte[] checksum() throws NoSuchAlgorithmException {
+		final MessageDigest mDigest = MessageDigest.getInstance(Utils.CHECKSUM_TYPE);
+
+		acquire();
+
+		try {
+			mDigest.update(buffer.duplicate().clear());
+		}
+		finally {
+			release();
+		}
+
+		return mDigest.digest();
+	}
+
+	/**
+	 * Write a range of the content to the given stream. Direct buffers go through a small per-thread transfer buffer, so no heap copy of the full content is made.
+	 *
+	 * @param os
+	 * @param offset
+	 * @param length
+	 * @throws IOException
+	 */
+	public void writeTo(final OutputStream os, final long offset, final long length) throws IOException {
+		if (buffer.hasArray()) {
+			os.write(buffer.array(), buffer.arrayOffset() + (int) offset, (int) length);
+			return;
+		}
+
+		acquire();
+
+		try {
+			final ByteBuffer view = slice((int) offset, (int) length);
+
+			final byte[] chunk = transferBuffer.get();
+
+			while (view.hasRemaining()) {
+				final int count = Math.min(chunk.length, view.remaining());
+
+				view.get(chunk, 0, count);
+				os.write(chunk, 0, count);
+			}
+		}
+		finally {
+			release();
+		}
+	}
+
+	/**
+	 * Compress the content with Deflate. The compressed form is the length of the original content (4 bytes) followed by the Deflate (zlib) stream.
+	 *
+	 * @param level compression level, see {@link Deflater}
+	 * @param maxRatio give up if the compressed form would be larger than this fraction of the original content
+	 * @return a heap buffer with the compressed form, or <code>null</code> if the content doesn't compress well enough
+	 */
+	PayloadBuffer deflate(final int level, final double maxRatio) {
+		final int limit = COMPRESSION_HEADER + (int) (length() * maxRatio);
+
+		final byte[] out = new byte[limit];
+
+		ByteBuffer.wrap(out).putInt(length());
+
+		final Deflater deflater = new Deflater(level);
+
+		acquire();
+
+		try {
+			deflater.setInput(buffer.duplicate().clear());
+			deflater.finish();
+
+			int position = COMPRESSION_HEADER;
+
+			while (!deflater.finished()) {
+				if (position == limit)
+					return null;
+
+				position += deflater.deflate(out, position, limit - position);
+			}
+
+			return wrap(Arrays.copyOf(out, position));
+		}
+		finally {
+			deflater.end();
+
+			release();
+		}
+	}
+
+	/**
+	 * @return the original content of a buffer produced by {@link #deflate(int, double)}, in a new buffer (off-heap if enabled) that the caller owns
+	 * @throws IOException if the compressed content is corrupted
+	 */
+	PayloadBuffer inflate() throws IOException {
+		if (length() < COMPRESSION_HEADER)
+			throw new IOException("The compressed content is too short");
+
+		acquire();
+
+		try {
+			return inflateHeld();
+		}
+		finally {
+			release();
+		}
+	}
+
+	private PayloadBuffer inflateHeld() throws IOException {
+		final int originalLength = buffer.getInt(0);
+
+		if (originalLength < 0)
+			throw new IOException("Invalid original length of the compressed content: " + originalLength);
+
+		final PayloadBuffer ret = allocate(originalLength);
+
+		final Inflater inflater = new Inflater();
+
+		try {
+			final ByteBuffer input = buffer.duplicate();
+			input.clear();
+			input.position(COMPRESSION_HEADER);
+
+			inflater.setInput(input);
+
+			final ByteBuffer output = ret.buffer.duplicate();
+			output.clear();
+
+			while (output.hasRemaining()) {
+				final int count = inflater.inflate(output);
+
+				if (count == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+					throw new IOException("The compressed content is shorter than the announced " + originalLength + " bytes");
+			}
+
+			if (!inflater.finished() && inflater.inflate(new byte[1]) > 0)
+				throw new IOException("The compressed content is longer than the announced " + originalLength + " bytes");
+
+			return ret;
+		}
+		catch (final DataFormatException e) {
+			ret.release();
+			throw new IOException("Corrupted compressed content", e);
+		}
+		catch (final IOException ioe) {
+			ret.release();
+			throw ioe;
+		}
+		finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * @param other
+	 * @return <code>true</code> if the two buffers have the same content
+	 */
+	public boolean contentEquals(final PayloadBuffer other) {
+		if (other == null)
+			return false;
+
+		acquire();
+
+		try {
+			other.acquire();
+
+			try {
+				return buffer.duplicate().clear().equals(other.buffer.duplicate().clear());
+			}
+			finally {
+				other.release();
+			}
+		}
+		finally {
+			release();
+		}
+	}
+
+	/**
+	 * Take one more reference to this buffer, for example while the content is served to a client
+	 *
+	 * @return <code>false</code> if the buffer was already released by all its users and cannot be used any more
+	 */
+	public boolean retain() {
+		if (state == null)
+			return true;
+
+		int current;
+
+		do {
+			current = state.references.get();
+
+			if (current <= 0)
+				return false;
+		}
+		while (!state.references.compareAndSet(current, current + 1));
+
+		return true;
+	}
+
+	/**
+	 * Take a reference for the duration of an access to the content
+	 *
+	 * @throws IllegalStateException if the buffer was already released by all its users
+	 */
+	private void acquire() {
+		if (!retain())
+			throw new IllegalStateException("The content was already released");
+	}
+
+	/**
+	 * Give up one reference to this buffer. When the last one is released the memory is freed and given back to the budget.
+	 */
+	public void release() {
+		if (state != null && state.references.decrementAndGet() == 0) {
+			offHeapBytes.addAndGet(-state.length);
+
+			free(buffer);
+		}
+	}
+
+	private static MethodHandle getFreer() {
+		try {
+			final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+
+			return MethodHandles.lookup().findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class)).bindTo(theUnsafe.get(null));
+		}
+		catch (final Throwable t) {
+			logger.log(Level.WARNING, "Cannot free the off-heap buffers explicitly, they will only be freed when garbage collected", t);
+			return null;
+		}
+	}
+
+	private static void free(final ByteBuffer direct) {
+		if (freer != null)
+			try {
+				freer.invoke(direct);
+			}
+			catch (final Throwable t) {
+				logger.log(Level.WARNING, "Cannot free an off-heap buffer", t);
+			}
+	}
+
+	/**
+	 * @return the budget for the off-heap buffers, in bytes, 0 if disabled
+	 */
+	static long getBudget() {
+		return BUDGET;
+	}
+
+	/**
+	 * @return how many bytes are currently allocated off-heap
+	 */
+	static long getOffHeapBytes() {
+		return offHeapBytes.get();
+	}
+
+	/**
+	 * @return how many allocations could not be done off-heap since the last call
+	 */
+	static long getAndResetOverBudgetAllocations() {
+		return overBudgetAllocations.getAndSet(0);
+	}
+
+	/**
+	 * Wait until an allocation doesn't fit in the budget any more, or until the timeout expires
+	 *
+	 * @param timeout in milliseconds
+	 * @throws InterruptedException
+	 */
+	static void awaitOverBudget(final long timeout) throws InterruptedException {
+		synchronized (budgetLock) {
+			budgetLock.wait(timeout);
+		}
+	}
+}
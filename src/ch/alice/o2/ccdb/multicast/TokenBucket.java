@@ -0,0 +1,77 @@
+package ch.alice.o2.ccdb.multicast;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bandwidth ceiling for the UDP packets. The bucket is refilled at <code>rate</code> bytes per second and holds at most <code>burst</code> bytes, that can be sent back to back after an idle
+ * period. A sender takes the bytes it is about to send out of the bucket, going into debt if there are not enough, and then waits until the debt is paid back. Concurrent senders thus queue
+ * behind each other in the order in which they asked for the bytes.
+ *
+ * @author costing
+ * @since 2026-10-18
+ */
+public final class TokenBucket {
+	private final long rate;
+
+	private final long burst;
+
+	/**
+	 * Available bytes, negative when the senders are ahead of the allowed rate
+	 */
+	private double tokens;
+
+	private long lastRefill = System.nanoTime();
+
+	/**
+	 * @param rate bytes per second
+	 * @param burst how many bytes can be sent at once
+	 */
+	public TokenBucket(final long rate, final long burst) {
+		if (rate <= 0)
+			throw new IllegalArgumentException("The rate has to be positive");
+
+		this.rate = rate;
+		this.burst = Math.max(burst, 1);
+		this.tokens = this.burst;
+	}
+
+	/**
+	 * @param rate bytes per second
+	 * @param burst
+	 * @return a bucket for the given rate, or <code>null</code> if the rate is not limited
+	 */
+	static TokenBucket create(final long rate, final long burst) {
+		return rate > 0 ? new TokenBucket(rate, burst) : null;
+	}
+
+	/**
+	 * @return the configured rate, in bytes per second
+	 */
+	public long getRate() {
+		return rate;
+	}
+
+	/**
+	 * Take the given number of bytes out of the bucket, waiting until the rate allows them to be sent
+	 *
+	 * @param bytes
+	 * @throws InterruptedException
+	 */
+	public void acquire(final long bytes) throws InterruptedException {
+		final long waitNanos;
+
+		synchronized (this) {
+			final long now = System.nanoTime();
+
+			tokens = Math.min(burst, tokens + (now - lastRefill) * (double) rate / 1000000000L);
+			lastRefill = now;
+
+			tokens -= bytes;
+
+			waitNanos = tokens < 0 ? (long) (-tokens * 1000000000L / rate) : 0;
+		}
+
+		if (waitNanos > 0)
+			TimeUnit.NANOSECONDS.sleep(waitNanos);
+	}
+}
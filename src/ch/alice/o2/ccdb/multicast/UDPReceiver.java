@@ -3,9 +3,6 @@ package ch.alice.o2.ccdb.multicast;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.lang.ref.Reference;
-import java.lang.ref.SoftReference;
-import java.lang.ref.WeakReference;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.HttpURLConnection;
@@ -14,22 +11,18 @@ import java.net.MulticastSocket;
 import java.net.URL;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
-import java.util.Vector;
+import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.DelayQueue;
 import java.util.concurrent.Delayed;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -73,14 +66,9 @@ public class UDPReceiver extends Thread {
 	private static String recoveryBaseURL = Options.getOption("udp_receiver.recovery_url", "http://o2-ccdb.internal/");
 
 	/**
-	 * Blob-uri complete
+	 * Blob-uri complete, per key. Each series has its own lock for modifications, the lookups don't take any lock.
 	 */
-	public static final Map<String, List<Reference<Blob>>> currentCacheContent = new ConcurrentHashMap<>();
-
-	private static final ReentrantReadWriteLock contentStructureLock = new ReentrantReadWriteLock();
-
-	private static final ReadLock contentStructureReadLock = contentStructureLock.readLock();
-	private static final WriteLock contentStructureWriteLock = contentStructureLock.writeLock();
+	public static final Map<String, BlobSeries> currentCacheContent = new ConcurrentHashMap<>();
 
 	private static final int SOFT_REFERENCE_THRESHOLD = Options.getIntOption("udpreceiver.soft_references_threshold", 10);
 
@@ -397,36 +385,6 @@ public class UDPReceiver extends Thread {
 		}
 	}, "IncompleteBlobRecovery");
 
-	private static final Comparator<Reference<Blob>> startTimeComparator = (sb1, sb2) -> {
-		final Blob o1 = sb1.get();
-		final Blob o2 = sb2.get();
-
-		if (o1 == null && o2 == null)
-			return 0;
-
-		if (o1 == null)
-			return -1;
-
-		if (o2 == null)
-			return 1;
-
-		final long diff = o1.startTime - o2.startTime;
-
-		if (diff > Integer.MAX_VALUE)
-			return Integer.MAX_VALUE;
-
-		if (diff > 0)
-			return (int) diff;
-
-		if (diff < Integer.MIN_VALUE)
-			return Integer.MIN_VALUE;
-
-		if (diff < 0)
-			return (int) diff;
-
-		return 0;
-	};
-
 	/**
 	 * Add the complete Blob to the cache
 	 *
@@ -434,82 +392,33 @@ public class UDPReceiver extends Thread {
 	 * @return <code>null</code> if it was added, otherwise a pointer to the existing object
 	 */
 	public static Blob addToCacheContent(final Blob blob) {
-		contentStructureWriteLock.lock();
-
-		try {
-			final List<Reference<Blob>> currentBlobsForKey = currentCacheContent.computeIfAbsent(blob.getKey(), k -> new Vector<>(Arrays.asList(new SoftReference<>(blob))));
-
-			for (final Reference<Blob> sb : currentBlobsForKey) {
-				final Blob b = sb.get();
-
-				if (b != null && b.getUuid().equals(blob.getUuid()))
-					return b;
-			}
-
-			currentBlobsForKey.add(new SoftReference<>(blob));
-			currentBlobsForKey.sort(startTimeComparator);
-
-			// first entries are the oldest
-			for (int i = 0; i < currentBlobsForKey.size() - SOFT_REFERENCE_THRESHOLD; i++) {
-				final Reference<Blob> existing = currentBlobsForKey.get(i);
+		while (true) {
+			final BlobSeries series = currentCacheContent.computeIfAbsent(blob.getKey(), k -> new BlobSeries());
 
-				if (existing instanceof SoftReference) {
-					final Blob b = existing.get();
+			final Blob ret = series.add(blob, SOFT_REFERENCE_THRESHOLD);
 
-					if (b != null)
-						currentBlobsForKey.set(i, new WeakReference<>(b));
-					else {
-						currentBlobsForKey.remove(i);
-						i--;
-					}
-				}
-			}
+			if (ret != null)
+				return ret;
 
-			return blob;
-		}
-		finally {
-			contentStructureWriteLock.unlock();
+			// the expiration checker has just removed the empty series, make sure it is gone and try again with a new one
+			currentCacheContent.remove(blob.getKey(), series);
 		}
 	}
 
 	private static void sort(final String key) {
-		contentStructureReadLock.lock();
+		final BlobSeries series = currentCacheContent.get(key);
 
-		try {
-			final List<Reference<Blob>> currentBlobsForKey = currentCacheContent.get(key);
-
-			if (currentBlobsForKey != null)
-				currentBlobsForKey.sort(startTimeComparator);
-		}
-		finally {
-			contentStructureReadLock.unlock();
-		}
+		if (series != null)
+			series.resort();
 	}
 
 	private static void processPacket(final byte[] packet) throws NoSuchAlgorithmException, IOException {
 		// System.out.println("Fragment payload offset " + fragmentedBlob.getFragmentOffset() + " size " + fragmentedBlob.getblobDataLength());
 		final FragmentedBlob fragmentedBlob = new FragmentedBlob(packet, packet.length);
 
-		contentStructureReadLock.lock();
+		final BlobSeries candidates = currentCacheContent.get(fragmentedBlob.getKey());
 
-		Blob blob = null;
-
-		try {
-			final List<Reference<Blob>> candidates = currentCacheContent.get(fragmentedBlob.getKey());
-
-			if (candidates != null)
-				for (final Reference<Blob> sb : candidates) {
-					final Blob b = sb.get();
-
-					if (b != null && b.getUuid().equals(fragmentedBlob.getUuid())) {
-						blob = b;
-						break;
-					}
-				}
-		}
-		finally {
-			contentStructureReadLock.unlock();
-		}
+		Blob blob = candidates != null ? candidates.get(fragmentedBlob.getUuid()) : null;
 
 		if (blob != null && blob.isComplete()) {
 			// the complete object was already in memory, keep it and ignore retransmissions of other fragments of the same
@@ -521,9 +430,12 @@ public class UDPReceiver extends Thread {
 			blob = addToCacheContent(new Blob(fragmentedBlob.getKey(), fragmentedBlob.getUuid()));
 		}
 
-		blob.addFragmentedBlob(fragmentedBlob);
+		final int rebuilt = blob.addFragmentedBlob(fragmentedBlob);
 		blob.recomputeIsComplete();
 
+		if (rebuilt > 0)
+			monitor.incrementCounter("fec_rebuilt_fragments", rebuilt);
+
 		final DelayedBlob delayedBlob = new DelayedBlob(blob);
 
 		if (blob.isComplete()) {
@@ -632,115 +544,120 @@ public class UDPReceiver extends Thread {
 		@Override
 		public void run() {
 			while (true) {
-				contentStructureWriteLock.lock();
-
 				long seriesInMemory = 0;
 				long objectsInMemory = 0;
 				long sizeOfObjectsInMemory = 0;
 
-				try {
-					final Iterator<Map.Entry<String, List<Reference<Blob>>>> cacheContentIterator = currentCacheContent.entrySet().iterator();
-
-					while (cacheContentIterator.hasNext()) {
-						final Map.Entry<String, List<Reference<Blob>>> currentEntry = cacheContentIterator.next();
+				// candidates for eviction when the off-heap budget is exceeded
+				final List<Blob> evictable = PayloadBuffer.OFF_HEAP ? new ArrayList<>() : null;
 
-						final List<Reference<Blob>> objects = currentEntry.getValue();
+				// each series is only locked while its expired objects are removed
+				for (final Map.Entry<String, BlobSeries> currentEntry : currentCacheContent.entrySet()) {
+					final BlobSeries objects = currentEntry.getValue();
 
-						if (objects.size() == 0) {
+					if (objects.size() == 0) {
+						if (objects.retireIfEmpty()) {
 							monitor.incrementCounter("cleaned_empty_lists");
 
-							cacheContentIterator.remove();
-							continue;
+							currentCacheContent.remove(currentEntry.getKey(), objects);
 						}
 
-						seriesInMemory++;
-
-						final long currentTime = System.currentTimeMillis();
-
-						synchronized (objects) {
-							final Iterator<Reference<Blob>> objectIterator = objects.iterator();
+						continue;
+					}
 
-							while (objectIterator.hasNext()) {
-								final Reference<Blob> sb = objectIterator.next();
+					seriesInMemory++;
 
-								final Blob b = sb.get();
+					final long currentTime = System.currentTimeMillis();
 
-								if (b == null) {
-									monitor.incrementCounter("evicted_gc_objects");
+					final List<Blob> remaining = objects.getBlobs();
 
-									objectIterator.remove();
-									continue;
-								}
+					final Set<UUID> toRemove = new HashSet<>();
 
-								try {
-									if (b.isComplete()) {
-										if (b.getEndTime() < currentTime) {
-											if (logger.isLoggable(Level.INFO))
-												logger.log(Level.INFO, "Removing expired object for " + b.getKey() + ": " + b.getUuid() + " (expired " + b.getEndTime() + ")");
+					final Iterator<Blob> objectIterator = remaining.iterator();
 
-											monitor.incrementCounter("evicted_expired_objects");
+					while (objectIterator.hasNext()) {
+						final Blob b = objectIterator.next();
 
-											objectIterator.remove();
-										}
-									}
-									else
-										if (System.currentTimeMillis() - b.getLastTouched() > 1000 * 10) {
-											if (logger.isLoggable(Level.INFO))
-												logger.log(Level.INFO, "Removing incomplete and not yet recovered object " + b.getKey() + ": " + b.getUuid());
+						try {
+							if (b.isComplete()) {
+								if (b.getEndTime() < currentTime) {
+									if (logger.isLoggable(Level.INFO))
+										logger.log(Level.INFO, "Removing expired object for " + b.getKey() + ": " + b.getUuid() + " (expired " + b.getEndTime() + ")");
 
-											monitor.incrementCounter("evicted_incomplete_objects");
+									monitor.incrementCounter("evicted_expired_objects");
 
-											objectIterator.remove();
-										}
-								}
-								catch (@SuppressWarnings("unused") final NoSuchAlgorithmException e) {
-									// ignore
-								}
-								catch (@SuppressWarnings("unused") final IOException e) {
-									// checksum is wrong, drop the hot potato
+									toRemove.add(b.getUuid());
 									objectIterator.remove();
 								}
 							}
+							else
+								if (System.currentTimeMillis() - b.getLastTouched() > 1000 * 10) {
+									if (logger.isLoggable(Level.INFO))
+										logger.log(Level.INFO, "Removing incomplete and not yet recovered object " + b.getKey() + ": " + b.getUuid());
 
-							// the most recent object should stay in any case
-							for (int i = 0; i < objects.size() - 1; i++) {
-								final Reference<Blob> sb = objects.get(i);
-
-								final Blob b = sb.get();
+									monitor.incrementCounter("evicted_incomplete_objects");
 
-								try {
-									if (b == null || !b.isComplete())
-										continue;
-								}
-								catch (@SuppressWarnings("unused") NoSuchAlgorithmException | IOException e) {
-									// ignore
+									toRemove.add(b.getUuid());
+									objectIterator.remove();
 								}
+						}
+						catch (@SuppressWarnings("unused") final NoSuchAlgorithmException e) {
+							// ignore
+						}
+						catch (@SuppressWarnings("unused") final IOException e) {
+							// checksum is wrong, drop the hot potato
+							toRemove.add(b.getUuid());
+							objectIterator.remove();
+						}
+					}
 
-								if (currentTime - b.getOrSetSupersededTimestamp(currentTime) > TTL_FOR_SUPERSEDED_OBJECTS) {
-									// more than 2 minutes old and superseded by a newer one, can be removed
-									if (logger.isLoggable(Level.INFO))
-										logger.log(Level.INFO, "Removing superseded object for " + b.getKey() + ": " + b.getUuid() + " (valid since " + b.getStartTime() + "):\n" + b);
+					// the most recent object should stay in any case
+					for (int i = 0; i < remaining.size() - 1; i++) {
+						final Blob b = remaining.get(i);
 
-									monitor.incrementCounter("evicted_superseded_objects");
+						try {
+							if (!b.isComplete())
+								continue;
+						}
+						catch (@SuppressWarnings("unused") NoSuchAlgorithmException | IOException e) {
+							// ignore
+						}
 
-									objects.remove(i);
-									i--;
-								}
-							}
+						if (currentTime - b.getOrSetSupersededTimestamp(currentTime) > TTL_FOR_SUPERSEDED_OBJECTS) {
+							// more than 2 minutes old and superseded by a newer one, can be removed
+							if (logger.isLoggable(Level.INFO))
+								logger.log(Level.INFO, "Removing superseded object for " + b.getKey() + ": " + b.getUuid() + " (valid since " + b.getStartTime() + "):\n" + b);
 
-							for (final Reference<Blob> activeObject : objects) {
-								final Blob b = activeObject.get();
+							monitor.incrementCounter("evicted_superseded_objects");
 
-								if (b != null) {
-									objectsInMemory++;
-									sizeOfObjectsInMemory += b.getSize();
-								}
-							}
+							toRemove.add(b.getUuid());
+							remaining.remove(i);
+							i--;
 						}
 					}
+
+					// whatever else is dropped was garbage collected
+					final int evictedByGC = objects.removeAll(toRemove) - toRemove.size();
+
+					if (evictedByGC > 0)
+						monitor.incrementCounter("evicted_gc_objects", evictedByGC);
+
+					for (final Blob b : remaining) {
+						objectsInMemory++;
+						sizeOfObjectsInMemory += b.getSize();
+					}
+
+					if (evictable != null && remaining.size() > 1)
+						evictable.addAll(remaining.subList(0, remaining.size() - 1));
 				}
-				finally {
-					contentStructureWriteLock.unlock();
+
+				if (evictable != null) {
+					final long evicted = enforceBudget(evictable);
+
+					objectsInMemory -= evicted;
+
+					monitor.sendParameter("offheap_bytes", Double.valueOf(PayloadBuffer.getOffHeapBytes()));
+					monitor.sendParameter("offheap_over_budget_allocations", Double.valueOf(PayloadBuffer.getAndResetOverBudgetAllocations()));
 				}
 
 				monitor.sendParameter("active_series_cnt", Double.valueOf(seriesInMemory));
@@ -748,13 +665,52 @@ public class UDPReceiver extends Thread {
 				monitor.sendParameter("objects_in_memory_size", Double.valueOf(sizeOfObjectsInMemory));
 
 				try {
-					sleep(15000);
+					if (PayloadBuffer.OFF_HEAP)
+						PayloadBuffer.awaitOverBudget(15000);
+					else
+						sleep(15000);
 				}
 				catch (@SuppressWarnings("unused") final InterruptedException e) {
 					return;
 				}
 			}
 		}
+
+		/**
+		 * Evict the least recently accessed objects, except the most recent one of each series, until the off-heap memory goes below 90% of the budget
+		 *
+		 * @param evictable
+		 * @return how many objects were evicted
+		 */
+		private static long enforceBudget(final List<Blob> evictable) {
+			final long target = PayloadBuffer.getBudget() / 10 * 9;
+
+			if (PayloadBuffer.getOffHeapBytes() <= PayloadBuffer.getBudget())
+				return 0;
+
+			evictable.sort((a, b) -> Long.compare(a.getLastAccessed(), b.getLastAccessed()));
+
+			long evicted = 0;
+
+			for (final Blob b : evictable) {
+				if (PayloadBuffer.getOffHeapBytes() <= target)
+					break;
+
+				final BlobSeries series = currentCacheContent.get(b.getKey());
+
+				if (series != null && series.remove(b)) {
+					if (logger.isLoggable(Level.FINE))
+						logger.log(Level.FINE, "Evicting " + b.getKey() + ": " + b.getUuid() + " to stay within the off-heap budget");
+
+					evicted++;
+				}
+			}
+
+			if (evicted > 0)
+				monitor.incrementCounter("evicted_budget_objects", evicted);
+
+			return evicted;
+		}
 	}
 
 	private static ExpirationChecker expirationChecker = null;
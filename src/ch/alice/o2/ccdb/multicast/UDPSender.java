@@ -0,0 +1,260 @@
+package ch.alice.o2.ccdb.multicast;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import alien.test.cassandra.tomcat.Options;
+
+/**
+ * Long-lived sender of UDP packets to one destination (multicast group or unicast host). The address is resolved once and the same channel is used for all the packets, instead of a new socket
+ * per packet.<br>
+ * <br>
+ * Configuration keys:
+ * <ul>
+ * <li><code>udp_sender.sndbuf</code> - socket send buffer size in bytes (default 4MB, 0 to leave the system default)</li>
+ * <li><code>udp_sender.ttl</code> - TTL of the multicast packets (default 1)</li>
+ * <li><code>udp_sender.interface</code> - name of the network interface to send the multicast packets on (default: let the system decide)</li>
+ * <li><code>udp_sender.batch_size</code> - how many packets {@link Blob#send(FragmentSink)} prepares before handing them over (default 64)</li>
+ * <li><code>udp_sender.max_rate</code> - ceiling of the total outgoing rate, in bytes per second, over all destinations (default 0, not limited)</li>
+ * <li><code>udp_sender.max_rate_per_destination</code> - ceiling of the outgoing rate to each destination, in bytes per second (default 0, not limited)</li>
+ * <li><code>udp_sender.burst</code> - how many bytes can go out back to back when the rate is limited (default 1MB)</li>
+ * <li><code>udp_sender.fec_group</code> - send one parity packet for each group of this many fragments, see {@link FragmentEncoder} (default 0, no parity packets)</li>
+ * <li><code>udp_sender.compression</code> - send the payloads compressed with Deflate, see {@link Blob#COMPRESSED_FLAG} (default false)</li>
+ * <li><code>udp_sender.compression_level</code> - Deflate level, 1 (fastest) to 9 (smallest) (default 1)</li>
+ * <li><code>udp_sender.compression_min_size</code> - payloads smaller than this many bytes are sent as they are (default 4KB)</li>
+ * </ul>
+ * The rate ceilings are enforced with a {@link TokenBucket} for each destination and one shared by all of them. The bytes are taken out of the buckets for an entire batch of packets before it is
+ * sent, so the packets of a batch still leave at line rate and the batch size together with the burst size bound what the network sees at once.
+ *
+ * @author costing
+ * @since 2026-10-18
+ */
+public final class UDPSender implements FragmentSink {
+	private static final Logger logger = SingletonLogger.getLogger();
+
+	private static final int SNDBUF = Options.getIntOption("udp_sender.sndbuf", 4 * 1024 * 1024);
+
+	private static final int TTL = Options.getIntOption("udp_sender.ttl", 1);
+
+	private static final String INTERFACE = Options.getOption("udp_sender.interface", null);
+
+	/**
+	 * How many packets to send in one go
+	 */
+	static final int BATCH_SIZE = Math.max(Options.getIntOption("udp_sender.batch_size", 64), 1);
+
+	private static final int BURST = Options.getIntOption("udp_sender.burst", 1024 * 1024);
+
+	private static final TokenBucket globalBucket = TokenBucket.create(Options.getIntOption("udp_sender.max_rate", 0), BURST);
+
+	private static final int DESTINATION_RATE = Options.getIntOption("udp_sender.max_rate_per_destination", 0);
+
+	private static final Map<String, UDPSender> senders = new ConcurrentHashMap<>();
+
+	private final String host;
+
+	private final int port;
+
+	private InetSocketAddress address = null;
+
+	private DatagramChannel channel = null;
+
+	private final TokenBucket bucket = TokenBucket.create(DESTINATION_RATE, BURST);
+
+	private final AtomicLong sentBytes = new AtomicLong();
+
+	private final AtomicLong sentPackets = new AtomicLong();
+
+	private UDPSender(final String host, final int port) {
+		this.host = host;
+		this.port = port;
+	}
+
+	/**
+	 * @param host
+	 * @param port
+	 * @return the shared sender for this destination
+	 */
+	public static UDPSender get(final String host, final int port) {
+		final String key = host + ":" + port;
+
+		UDPSender ret = senders.get(key);
+
+		if (ret == null)
+			ret = senders.computeIfAbsent(key, k -> new UDPSender(host, port));
+
+		return ret;
+	}
+
+	private DatagramChannel getChannel() throws IOException {
+		if (channel != null && channel.isOpen())
+			return channel;
+
+		final InetAddress target = InetAddress.getByName(host);
+
+		final DatagramChannel newChannel = DatagramChannel.open(target instanceof Inet6Address ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET);
+
+		try {
+			if (SNDBUF > 0)
+				newChannel.setOption(StandardSocketOptions.SO_SNDBUF, Integer.valueOf(SNDBUF));
+
+			if (target.isMulticastAddress()) {
+				newChannel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, Integer.valueOf(TTL));
+
+				if (INTERFACE != null && !INTERFACE.trim().isEmpty()) {
+					final NetworkInterface nif = NetworkInterface.getByName(INTERFACE);
+
+					if (nif != null)
+						newChannel.setOption(StandardSocketOptions.IP_MULTICAST_IF, nif);
+					else
+						logger.log(Level.WARNING, "Network interface `" + INTERFACE + "` doesn't exist, letting the system pick one for " + host);
+				}
+			}
+		}
+		catch (final IOException ioe) {
+			newChannel.close();
+			throw ioe;
+		}
+
+		address = new InetSocketAddress(target, port);
+		channel = newChannel;
+
+		return channel;
+	}
+
+	/**
+	 * Close the channel after an error, the next packet will open a new one and resolve the address again
+	 */
+	private void reset() {
+		if (channel != null) {
+			try {
+				channel.close();
+			}
+			catch (@SuppressWarnings("unused") final IOException ioe) {
+				// ignore
+			}
+
+			channel = null;
+		}
+	}
+
+	/**
+	 * Wait until the rate ceilings allow the given number of bytes to be sent
+	 *
+	 * @param bytes
+	 * @param packets
+	 * @throws InterruptedIOException
+	 */
+	private void pace(final long bytes, final int packets) throws InterruptedIOException {
+		try {
+			if (bucket != null)
+				bucket.acquire(bytes);
+
+			if (globalBucket != null)
+				globalBucket.acquire(bytes);
+		}
+		catch (@SuppressWarnings("unused") final InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to send to " + this);
+		}
+
+		sentBytes.addAndGet(bytes);
+		sentPackets.addAndGet(packets);
+	}
+
+	/**
+	 * @return how many bytes were sent to this destination so far
+	 */
+	public long getSentBytes() {
+		return sentBytes.get();
+	}
+
+	/**
+	 * @return how many packets were sent to this destination so far
+	 */
+	public long getSentPackets() {
+		return sentPackets.get();
+	}
+
+	/**
+	 * @param packet one complete packet
+	 * @throws IOException
+	 */
+	public synchronized void send(final byte[] packet) throws IOException {
+		pace(packet.length, 1);
+
+		try {
+			getChannel().send(ByteBuffer.wrap(packet), address);
+		}
+		catch (final IOException ioe) {
+			reset();
+			throw ioe;
+		}
+	}
+
+	/**
+	 * Send several packets in one go, holding the channel for the entire batch
+	 *
+	 * @param packets
+	 * @throws IOException
+	 */
+	public synchronized void send(final List<byte[]> packets) throws IOException {
+		long bytes = 0;
+
+		for (final byte[] packet : packets)
+			bytes += packet.length;
+
+		pace(bytes, packets.size());
+
+		try {
+			final DatagramChannel ch = getChannel();
+
+			for (final byte[] packet : packets)
+				ch.send(ByteBuffer.wrap(packet), address);
+		}
+		catch (final IOException ioe) {
+			reset();
+			throw ioe;
+		}
+	}
+
+	@Override
+	public synchronized void send(final ByteBuffer[] packets, final int count) throws IOException {
+		long bytes = 0;
+
+		for (int i = 0; i < count; i++)
+			bytes += packets[i].remaining();
+
+		pace(bytes, count);
+
+		try {
+			final DatagramChannel ch = getChannel();
+
+			for (int i = 0; i < count; i++)
+				ch.send(packets[i], address);
+		}
+		catch (final IOException ioe) {
+			reset();
+			throw ioe;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return host + ":" + port;
+	}
+}
@@ -3,9 +3,6 @@ package ch.alice.o2.ccdb.multicast;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -188,20 +185,17 @@ public class Utils {
 
 	/**
 	 * Sends multicast message that contains the serialized version of a
-	 * fragmentedBlob
+	 * fragmentedBlob, through the shared sender of this destination
 	 *
 	 * @param packet - serialized fragmented Blob to send
 	 * @param destinationIp - Destination IP address (multicast)
 	 * @param destinationPort - Destination port number
 	 * @throws IOException
 	 * @throws NoSuchAlgorithmException
+	 * @see UDPSender
 	 */
 	public static void sendFragmentMulticast(final byte[] packet, final String destinationIp, final int destinationPort) throws IOException, NoSuchAlgorithmException {
-		try (DatagramSocket socket = new DatagramSocket()) {
-			final InetAddress group = InetAddress.getByName(destinationIp);
-			final DatagramPacket datagramPacket = new DatagramPacket(packet, packet.length, group, destinationPort);
-			socket.send(datagramPacket);
-		}
+		UDPSender.get(destinationIp, destinationPort).send(packet);
 	}
 
 	// Java has only signed data types, be aware of negatives values
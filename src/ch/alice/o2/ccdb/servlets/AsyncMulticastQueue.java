@@ -65,6 +65,23 @@ public class AsyncMulticastQueue {
 		return false;
 	}
 
+	/**
+	 * Hand a newly uploaded object directly to the UDP sender, ahead of the objects that are sent again on request
+	 *
+	 * @param obj
+	 * @return <code>true</code> if the object was accepted for sending
+	 */
+	static boolean queueNewObject(final SQLObject obj) {
+		if (sender == null || !SQLBacked.udpSender() || obj.getLocalFile(false) == null)
+			return queueObject(obj);
+
+		recentlyBroadcastedObjects.put(obj.id, obj.id, 1000 * 30);
+
+		sender.newObject(obj);
+
+		return true;
+	}
+
 	private static Thread multicastSenderThread = new Thread("AsyncMulticastQueue.sender") {
 		@Override
 		public void run() {
@@ -80,7 +97,13 @@ public class AsyncMulticastQueue {
 				if (obj != null && SQLBacked.udpSender() && sender != null) {
 					logger.log(Level.INFO, "Broadcasting " + obj.getPath() + "/" + obj.id + " of " + obj.size + " bytes");
 
-					sender.newObject(obj);
+					// one object at a time, so that the bounded queue above still limits what is waiting to be sent
+					try {
+						sender.queue(obj, SQLtoUDP.Priority.BACKGROUND).await();
+					}
+					catch (@SuppressWarnings("unused") final InterruptedException e) {
+						return;
+					}
 				}
 			}
 		}
@@ -1,53 +1,497 @@
 package ch.alice.o2.ccdb.servlets;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import alien.monitoring.Monitor;
+import alien.monitoring.MonitorFactory;
+import alien.monitoring.Timing;
+import ch.alice.o2.ccdb.Options;
 
 /**
- * Physical removal of files is expensive so don't make the client wait until it happens but instead return control immediately and do the physical removal asynchronously
+ * Physical removal of files is expensive so don't make the client wait until it happens but instead return control immediately and do the physical removal asynchronously.<br>
+ * <br>
+ * <code>deletion.workers</code> threads (default 4) take up to <code>deletion.batch_size</code> (default 100) deletions at a time from a queue of at most <code>deletion.queue_size</code>
+ * (default 100000) entries, producers block when it is full. The queue only holds the few fields needed to remove the replicas, not the full objects. The pending deletions are also appended to
+ * a journal file (<code>deletion.journal</code>, by default <code>.pending_deletions</code> in the repository folder) that is replayed at startup, so that a restart doesn't leave orphaned files
+ * behind. Each journaled deletion has a sequence number, and a completion marker with the same number is appended once the deletion is done, so that the replay skips
+ * it. The journal is flushed once per batch of deletions instead of once per record. It is rewritten with only the deletions that are not completed yet at startup, when all of them are done
+ * and, under a steady load, once more than <code>deletion.journal_compact_lines</code> (default 10000) lines were written and most of them are obsolete.
  *
  * @author costing
  * @since 2018-06-08
  */
 public class AsyncPhysicalRemovalThread extends Thread {
-	private AsyncPhysicalRemovalThread() {
-		// singleton
+	private static final Logger logger = Logger.getLogger(AsyncPhysicalRemovalThread.class.getCanonicalName());
+
+	private static final Monitor monitor = MonitorFactory.getMonitor(AsyncPhysicalRemovalThread.class.getCanonicalName());
+
+	private static final int workers = Math.max(Options.getIntOption("deletion.workers", 4), 1);
+
+	private static final int batchSize = Math.max(Options.getIntOption("deletion.batch_size", 100), 1);
+
+	private static final File journalFile = new File(Options.getOption("deletion.journal", SQLBacked.basePath + File.separator + ".pending_deletions"));
+
+	private static final int journalCompactLines = Math.max(Options.getIntOption("deletion.journal_compact_lines", 10000), 1);
+
+	/**
+	 * Prefix of the journal lines marking a sequence number as completed
+	 */
+	private static final String COMPLETED_MARKER = "done\t";
+
+	/**
+	 * What is needed to remove the replicas of a deleted object
+	 */
+	static final class DeletionRecord {
+		final UUID id;
+
+		final Integer pathId;
+
+		/**
+		 * The path is kept since it could be removed from the database before the replicas are. Objects of the same path share the same instance.
+		 */
+		final String path;
+
+		final int[] replicas;
+
+		final long size;
+
+		final String md5;
+
+		final long createTime;
+
+		/**
+		 * Sequence number in the journal, assigned when the record is appended to it
+		 */
+		long seq;
+
+		DeletionRecord(final SQLObject object) {
+			id = object.id;
+			pathId = object.getPathId(false);
+			path = object.getPath();
+			replicas = object.replicas.stream().mapToInt(Integer::intValue).toArray();
+			size = object.size;
+			md5 = object.md5;
+			createTime = object.createTime;
+		}
+
+		/**
+		 * Parse a line of the journal. The lines written before the sequence numbers were added to it get <code>-1</code>.
+		 *
+		 * @param line
+		 */
+		DeletionRecord(final String line) {
+			final String[] fields = line.split("\t", -1);
+
+			final int o = fields.length > 7 ? 1 : 0;
+
+			seq = o > 0 ? Long.parseLong(fields[0]) : -1;
+
+			id = UUID.fromString(fields[o]);
+			pathId = fields[o + 1].isEmpty() ? null : Integer.valueOf(fields[o + 1]);
+			path = fields[o + 2];
+
+			if (fields[o + 3].isEmpty())
+				replicas = new int[0];
+			else {
+				final String[] r = fields[o + 3].split(",");
+
+				replicas = new int[r.length];
+
+				for (int i = 0; i < r.length; i++)
+					replicas[i] = Integer.parseInt(r[i]);
+			}
+
+			size = Long.parseLong(fields[o + 4]);
+			md5 = fields[o + 5];
+			createTime = Long.parseLong(fields[o + 6]);
+		}
+
+		/**
+		 * @return the line to write in the journal
+		 */
+		String toLine() {
+			final StringBuilder sb = new StringBuilder(128);
+
+			sb.append(seq).append('\t').append(id).append('\t').append(pathId != null ? pathId.toString() : "").append('\t').append(path).append('\t');
+
+			for (int i = 0; i < replicas.length; i++) {
+				if (i > 0)
+					sb.append(',');
+
+				sb.append(replicas[i]);
+			}
+
+			sb.append('\t').append(size).append('\t').append(md5 != null ? md5 : "").append('\t').append(createTime);
+
+			return sb.toString();
+		}
+
+		/**
+		 * @return an object with the fields that the notifiers need to remove the replicas
+		 */
+		SQLObject toObject() {
+			final SQLObject object = SQLObject.fromPath(path);
+
+			object.id = id;
+			object.size = size;
+			object.md5 = md5;
+			object.createTime = createTime;
+
+			for (final int replica : replicas)
+				object.replicas.add(Integer.valueOf(replica));
+
+			return object;
+		}
+	}
+
+	private static final BlockingQueue<DeletionRecord> queue = new LinkedBlockingQueue<>(Math.max(Options.getIntOption("deletion.queue_size", 100000), 1));
+
+	/**
+	 * Deletions that were not completed yet, either queued or being processed
+	 */
+	private static long pending = 0;
+
+	/**
+	 * Records in the journal that were not completed yet, by sequence number. This is what a compaction keeps.
+	 */
+	private static final TreeMap<Long, DeletionRecord> journaled = new TreeMap<>();
+
+	private static long nextSeq = 0;
+
+	/**
+	 * Lines in the journal file, including the ones of the completed deletions
+	 */
+	private static long journalLines = 0;
+
+	/**
+	 * Records appended to the journal since its last flush
+	 */
+	private static int unflushed = 0;
+
+	private static BufferedWriter journal = null;
+
+	private static final Object journalLock = new Object();
+
+	private static boolean started = false;
+
+	private AsyncPhysicalRemovalThread(final int workerNo) {
+		super("AsyncPhysicalRemovalThread-" + workerNo);
+
+		setDaemon(true);
 	}
 
 	@Override
 	public void run() {
+		final List<DeletionRecord> batch = new ArrayList<>(batchSize);
+
 		while (true) {
-			SQLObject object;
 			try {
-				object = asyncPhysicalRemovalQueue.take();
-
-				if (object != null)
-					for (final SQLNotifier notifier : SQLBacked.getNotifiers())
-						notifier.deletedObject(object);
+				batch.add(queue.take());
 			}
 			catch (final InterruptedException e) {
 				e.printStackTrace();
+				continue;
+			}
+
+			queue.drainTo(batch, batchSize - 1);
+
+			// the records of this batch, and whatever was appended after them, reach the file before the replicas are removed
+			flushJournal();
+
+			final List<SQLObject> objects = new ArrayList<>(batch.size());
+
+			for (final DeletionRecord record : batch)
+				objects.add(record.toObject());
+
+			try (Timing t = new Timing(monitor, "deletion_batch_ms")) {
+				for (final SQLNotifier notifier : SQLBacked.getNotifiers())
+					try {
+						notifier.deletedObjects(objects);
+					}
+					catch (final Throwable th) {
+						logger.log(Level.WARNING, "Notifier " + notifier + " failed to remove " + objects.size() + " objects", th);
+					}
 			}
+
+			if (monitor != null)
+				monitor.incrementCounter("deleted_objects", batch.size());
+
+			completed(batch);
+
+			batch.clear();
 		}
 	}
 
-	private final BlockingQueue<SQLObject> asyncPhysicalRemovalQueue = new LinkedBlockingQueue<>();
+	/**
+	 * Start the workers and resume the deletions left over from a previous run
+	 */
+	static synchronized void startWorkers() {
+		if (started)
+			return;
+
+		if (monitor != null)
+			monitor.addMonitoring("deletions", (names, values) -> {
+				names.add("deletion_queue");
+				values.add(Double.valueOf(queue.size()));
+
+				names.add("deletion_pending");
+
+				synchronized (journalLock) {
+					values.add(Double.valueOf(pending));
+				}
+			});
 
-	private static AsyncPhysicalRemovalThread instance = null;
+		final List<DeletionRecord> replay = readJournal();
 
-	private static synchronized AsyncPhysicalRemovalThread getInstance() {
-		if (instance == null) {
-			instance = new AsyncPhysicalRemovalThread();
-			instance.start();
+		synchronized (journalLock) {
+			pending = replay.size();
+
+			// numbered again from 0, the journal is rewritten with the new numbers
+			for (final DeletionRecord record : replay) {
+				record.seq = nextSeq++;
+				journaled.put(Long.valueOf(record.seq), record);
+			}
+
+			rewriteJournal();
+
+			if (journal == null)
+				logger.log(Level.WARNING, "Cannot write the journal of pending deletions to " + journalFile.getAbsolutePath() + ", they will not survive a restart");
+		}
+
+		for (int i = 0; i < workers; i++)
+			new AsyncPhysicalRemovalThread(i).start();
+
+		if (replay.size() > 0) {
+			logger.log(Level.INFO, "Resuming " + replay.size() + " pending deletions from " + journalFile.getAbsolutePath());
+
+			// the queue is bounded, feed it in the background
+			final Thread replayThread = new Thread(() -> {
+				for (int i = 0; i < replay.size(); i++)
+					try {
+						queue.put(replay.get(i));
+					}
+					catch (@SuppressWarnings("unused") final InterruptedException e) {
+						// the rest stay in the journal for the next start
+						notQueued(replay.size() - i);
+						return;
+					}
+			}, "AsyncPhysicalRemovalThread-replay");
+
+			replayThread.setDaemon(true);
+			replayThread.start();
+		}
+
+		started = true;
+	}
+
+	/**
+	 * @return the deletions of the journal that don't have a completion marker
+	 */
+	private static List<DeletionRecord> readJournal() {
+		final List<DeletionRecord> ret = new ArrayList<>();
+
+		if (!journalFile.exists())
+			return ret;
+
+		final Map<Long, DeletionRecord> numbered = new LinkedHashMap<>();
+
+		try (BufferedReader br = new BufferedReader(new FileReader(journalFile))) {
+			String line;
+
+			while ((line = br.readLine()) != null)
+				try {
+					if (line.startsWith(COMPLETED_MARKER)) {
+						numbered.remove(Long.valueOf(line.substring(COMPLETED_MARKER.length())));
+						continue;
+					}
+
+					final DeletionRecord record = new DeletionRecord(line);
+
+					if (record.seq >= 0)
+						numbered.put(Long.valueOf(record.seq), record);
+					else
+						ret.add(record);
+				}
+				catch (@SuppressWarnings("unused") final RuntimeException e) {
+					// a partially written last line
+					logger.log(Level.WARNING, "Ignoring invalid line in " + journalFile.getAbsolutePath() + ": " + line);
+				}
+		}
+		catch (final IOException ioe) {
+			logger.log(Level.WARNING, "Cannot read the pending deletions from " + journalFile.getAbsolutePath(), ioe);
 		}
 
-		return instance;
+		ret.addAll(numbered.values());
+
+		return ret;
 	}
 
 	/**
-	 * @param object object to delete asynchronously
+	 * Mark the deletions as completed in the journal. Once all of them are done the journal is emptied, otherwise it is compacted when most of its lines are obsolete.
+	 *
+	 * @param batch
+	 */
+	private static void completed(final List<DeletionRecord> batch) {
+		synchronized (journalLock) {
+			pending -= batch.size();
+
+			for (final DeletionRecord record : batch)
+				journaled.remove(Long.valueOf(record.seq));
+
+			if (journal == null)
+				return;
+
+			if (journaled.isEmpty()) {
+				if (journalLines > 0)
+					rewriteJournal();
+
+				return;
+			}
+
+			if (journalLines >= journalCompactLines && journalLines > 2L * journaled.size()) {
+				rewriteJournal();
+				return;
+			}
+
+			try {
+				for (final DeletionRecord record : batch) {
+					journal.write(COMPLETED_MARKER);
+					journal.write(Long.toString(record.seq));
+					journal.newLine();
+				}
+
+				journalLines += batch.size();
+
+				// together with the new records appended since the last flush
+				journal.flush();
+				unflushed = 0;
+			}
+			catch (final IOException ioe) {
+				logger.log(Level.WARNING, "Cannot mark the completed deletions in the journal " + journalFile.getAbsolutePath(), ioe);
+			}
+		}
+	}
+
+	/**
+	 * Deletions that are in the journal but could not be queued. They are no longer pending in this run but are kept in the journal, to be done after a restart.
+	 *
+	 * @param count
+	 */
+	private static void notQueued(final int count) {
+		synchronized (journalLock) {
+			pending -= count;
+		}
+
+		logger.log(Level.WARNING, "Interrupted while queuing " + count + " deletions, they will be resumed from " + journalFile.getAbsolutePath() + " after a restart");
+	}
+
+	/**
+	 * Replace the journal with one that only has the deletions that are not completed yet. Must be called with the journal lock held.
+	 */
+	private static void rewriteJournal() {
+		final File tmp = new File(journalFile.getAbsolutePath() + ".tmp");
+
+		try (Timing t = new Timing(monitor, "deletion_journal_compact_ms")) {
+			if (journal != null)
+				journal.close();
+
+			try (BufferedWriter bw = new BufferedWriter(new FileWriter(tmp, false))) {
+				for (final DeletionRecord record : journaled.values()) {
+					bw.write(record.toLine());
+					bw.newLine();
+				}
+			}
+
+			Files.move(tmp.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+			journal = new BufferedWriter(new FileWriter(journalFile, true));
+
+			journalLines = journaled.size();
+			unflushed = 0;
+
+			if (monitor != null)
+				monitor.incrementCounter("deletion_journal_compactions");
+		}
+		catch (final IOException ioe) {
+			logger.log(Level.WARNING, "Cannot compact the journal of pending deletions " + journalFile.getAbsolutePath(), ioe);
+			journal = null;
+		}
+	}
+
+	/**
+	 * Push the records appended so far to the journal file
+	 */
+	private static void flushJournal() {
+		synchronized (journalLock) {
+			if (journal == null || unflushed == 0)
+				return;
+
+			try {
+				journal.flush();
+				unflushed = 0;
+			}
+			catch (final IOException ioe) {
+				logger.log(Level.WARNING, "Cannot flush the journal of pending deletions " + journalFile.getAbsolutePath(), ioe);
+			}
+		}
+	}
+
+	/**
+	 * @param object object to delete asynchronously. The call blocks while the queue is full.
 	 */
 	static void queueDeletion(final SQLObject object) {
-		getInstance().asyncPhysicalRemovalQueue.offer(object);
+		if (!started)
+			startWorkers();
+
+		final DeletionRecord record = new DeletionRecord(object);
+
+		synchronized (journalLock) {
+			pending++;
+
+			record.seq = nextSeq++;
+
+			if (journal != null)
+				try {
+					journal.write(record.toLine());
+					journal.newLine();
+
+					journaled.put(Long.valueOf(record.seq), record);
+					journalLines++;
+
+					// the workers flush it before each batch, but they might all be busy
+					if (++unflushed >= batchSize) {
+						journal.flush();
+						unflushed = 0;
+					}
+				}
+				catch (final IOException ioe) {
+					logger.log(Level.WARNING, "Cannot append to the journal of pending deletions " + journalFile.getAbsolutePath(), ioe);
+				}
+		}
+
+		try {
+			queue.put(record);
+		}
+		catch (@SuppressWarnings("unused") final InterruptedException e) {
+			notQueued(1);
+			Thread.currentThread().interrupt();
+		}
 	}
 }
@@ -3,6 +3,7 @@ package ch.alice.o2.ccdb.servlets;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.StringTokenizer;
@@ -241,6 +242,21 @@ public class AsyncReplication extends Thread implements SQLNotifier {
 		if (targets == null || targets.isEmpty())
 			return; // nothing to do, but it's expected to be ok
 
+		queueReplication(object, targets);
+	}
+
+	@Override
+	public void newObjects(final Collection<SQLObject> objects) {
+		final List<String> targets = getTargetSEs();
+
+		if (targets == null || targets.isEmpty())
+			return;
+
+		for (final SQLObject object : objects)
+			queueReplication(object, targets);
+	}
+
+	private static void queueReplication(final SQLObject object, final List<String> targets) {
 		for (final String seName : targets) {
 			if (seName.contains("::"))
 				queueMirror(object, seName);
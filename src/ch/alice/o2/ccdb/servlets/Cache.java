@@ -1,23 +1,426 @@
 package ch.alice.o2.ccdb.servlets;
 
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Function;
+
+import alien.monitoring.Monitor;
+import alien.monitoring.MonitorFactory;
+import ch.alice.o2.ccdb.Options;
 
 /**
+ * Bounded two-way dictionary cache (value to ID and ID to value). The ID side is an open-addressing table keyed by the primitive <code>int</code> ID, split in independently locked segments that
+ * are read optimistically, so that cache hits never block. When the configured number of entries or the estimated memory footprint is exceeded, entries are evicted with the CLOCK (second chance)
+ * approximation of LRU.<br>
+ * <br>
+ * Each segment counts the explicit removals of its IDs. The loaders take a snapshot of the counters before going to the database and only cache what they found if no removal happened in the
+ * meantime, otherwise a lookup (or the startup preloading) that was already in progress could put back a mapping that was just removed.
+ *
  * @author rmucha
  * @since 2021-08-09
  */
 public class Cache {
-	private final boolean active;
+	private static final Monitor monitor = MonitorFactory.getMonitor(Cache.class.getCanonicalName());
+
+	/**
+	 * Maximum number of entries in each cache instance
+	 */
+	private static final long maxEntries = Options.getIntOption("dictionary.cache.entries", 1000000);
+
+	/**
+	 * Maximum estimated memory footprint of each cache instance, in MB
+	 */
+	private static final long maxBytes = Options.getIntOption("dictionary.cache.size_mb", 256) * 1024L * 1024;
+
+	/**
+	 * Lifetime of the entries on the multi-master instance, in milliseconds
+	 */
+	private static final long multiMasterTTL = Options.getIntOption("dictionary.cache.ttl", 2000);
+
+	/**
+	 * Estimated memory overhead of an entry beside the characters of the value: the node, the String object and the hash map entry on the value side
+	 */
+	private static final int ENTRY_OVERHEAD = 160;
+
+	private static final int SEGMENTS = 64;
+
+	private final String name;
+
+	private final long ttl;
+
+	private final Map<String, Node> valueToID = new ConcurrentHashMap<>();
+
+	private final Segment[] segments = new Segment[SEGMENTS];
+
+	/**
+	 * Database lookups in progress, to have concurrent misses on the same key wait for a single query instead of each of them going to the database
+	 */
+	private final Map<String, CompletableFuture<Integer>> pendingIDs = new ConcurrentHashMap<>();
+	private final Map<Integer, CompletableFuture<String>> pendingValues = new ConcurrentHashMap<>();
+
+	private static final class Node {
+		final int id;
+		final String value;
+		final int bytes;
+		final long expires;
+
+		/**
+		 * CLOCK reference bit, set on every access and cleared by the eviction hand
+		 */
+		volatile boolean referenced = true;
+
+		Node(final int id, final String value, final long expires) {
+			this.id = id;
+			this.value = value;
+			this.bytes = ENTRY_OVERHEAD + value.length();
+			this.expires = expires;
+		}
+	}
+
+	private static int spread(final int id) {
+		final int h = id * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * One independently locked part of the ID to value table
+	 */
+	private final class Segment extends StampedLock {
+		private static final long serialVersionUID = 1L;
+
+		private volatile Node[] table = new Node[16];
+
+		private int size = 0;
+
+		private long bytes = 0;
+
+		private int hand = 0;
+
+		/**
+		 * Number of explicit removals (and clears) of this segment, only modified under the write lock
+		 */
+		private volatile long removals = 0;
+
+		Node get(final int id) {
+			final long stamp = tryOptimisticRead();
+
+			Node n = find(table, id);
+
+			if (!validate(stamp)) {
+				// a concurrent modification, only now fall back to locking this segment
+				final long readStamp = readLock();
+
+				try {
+					n = find(table, id);
+				}
+				finally {
+					unlockRead(readStamp);
+				}
+			}
+
+			return n;
+		}
+
+		private Node find(final Node[] t, final int id) {
+			final int mask = t.length - 1;
+
+			int idx = spread(id) & mask;
+
+			for (int i = 0; i < t.length; i++) {
+				final Node n = t[idx];
+
+				if (n == null)
+					return null;
+
+				if (n.id == id)
+					return n;
+
+				idx = (idx + 1) & mask;
+			}
+
+			return null;
+		}
+
+		private int indexOf(final Node[] t, final int id) {
+			final int mask = t.length - 1;
+
+			int idx = spread(id) & mask;
+
+			while (t[idx] != null) {
+				if (t[idx].id == id)
+					return idx;
+
+				idx = (idx + 1) & mask;
+			}
+
+			return -1 - idx;
+		}
+
+		/**
+		 * @param node
+		 * @param expectedRemovals only add the node if the removal counter still has this value, a negative value to add it unconditionally
+		 * @return the node previously associated to the same ID, if any, or the given node itself if it was not added because of a concurrent removal
+		 */
+		Node put(final Node node, final long expectedRemovals) {
+			final long stamp = writeLock();
+
+			try {
+				if (expectedRemovals >= 0 && removals != expectedRemovals)
+					return node;
+
+				Node[] t = table;
+
+				int idx = indexOf(t, node.id);
+
+				final Node old;
+
+				if (idx >= 0) {
+					old = t[idx];
+					bytes -= old.bytes;
+				}
+				else {
+					old = null;
+
+					if ((size + 1) * 3 > t.length * 2) {
+						t = resize(t.length * 2);
+						idx = indexOf(t, node.id);
+					}
+
+					idx = -1 - idx;
+					size++;
+				}
+
+				t[idx] = node;
+				bytes += node.bytes;
+
+				evict();
+
+				return old;
+			}
+			finally {
+				unlockWrite(stamp);
+			}
+		}
+
+		private Node[] resize(final int newCapacity) {
+			final Node[] newTable = new Node[newCapacity];
+
+			for (final Node n : table)
+				if (n != null)
+					newTable[-1 - indexOf(newTable, n.id)] = n;
+
+			table = newTable;
+			hand = 0;
+
+			return newTable;
+		}
+
+		/**
+		 * @param id
+		 * @param expected if not <code>null</code>, only remove the entry if it is this exact node
+		 * @return the removed node, if any
+		 */
+		Node remove(final int id, final Node expected) {
+			final long stamp = writeLock();
+
+			try {
+				final int idx = indexOf(table, id);
+
+				if (idx < 0 || (expected != null && table[idx] != expected))
+					return null;
+
+				return removeAt(idx);
+			}
+			finally {
+				unlockWrite(stamp);
+			}
+		}
+
+		/**
+		 * Explicitly remove an ID, making the loaders that started before this call discard what they have found
+		 *
+		 * @param id
+		 * @return the removed node, if any
+		 */
+		Node invalidate(final int id) {
+			final long stamp = writeLock();
+
+			try {
+				removals++;
+
+				final int idx = indexOf(table, id);
+
+				return idx >= 0 ? removeAt(idx) : null;
+			}
+			finally {
+				unlockWrite(stamp);
+			}
+		}
+
+		/**
+		 * Remove the node at the given position and shift back the following nodes of the same probe sequence
+		 */
+		private Node removeAt(final int position) {
+			final Node[] t = table;
+			final int mask = t.length - 1;
+
+			final Node removed = t[position];
+
+			t[position] = null;
+			size--;
+			bytes -= removed.bytes;
+
+			int i = position;
+			int j = position;
+
+			while (true) {
+				j = (j + 1) & mask;
+
+				final Node n = t[j];
+
+				if (n == null)
+					break;
+
+				final int k = spread(n.id) & mask;
+
+				if ((j > i && (k <= i || k > j)) || (j < i && k <= i && k > j)) {
+					t[i] = n;
+					t[j] = null;
+					i = j;
+				}
+			}
+
+			return removed;
+		}
+
+		/**
+		 * Advance the CLOCK hand, giving a second chance to recently accessed entries, until the segment is back within its budget
+		 */
+		private void evict() {
+			final long entriesLimit = Math.max(maxEntries / SEGMENTS, 1);
+			final long bytesLimit = Math.max(maxBytes / SEGMENTS, ENTRY_OVERHEAD);
+
+			while (size > 0 && (size > entriesLimit || bytes > bytesLimit)) {
+				final Node[] t = table;
+
+				final Node n = t[hand];
 
-	private final Map<String, Integer> valueToID = new ConcurrentHashMap<>();
-	private final Map<Integer, String> IDToValue = new ConcurrentHashMap<>();
+				if (n != null && !n.referenced) {
+					removeAt(hand);
+					valueToID.remove(n.value, n);
+					monitor.incrementCounter(name + "_evictions");
+
+					// the slot might now hold a shifted node, look at it again
+					continue;
+				}
+
+				if (n != null)
+					n.referenced = false;
+
+				hand = (hand + 1) & (t.length - 1);
+			}
+		}
+
+		void clear() {
+			final long stamp = writeLock();
+
+			try {
+				removals++;
+
+				table = new Node[16];
+				size = 0;
+				bytes = 0;
+				hand = 0;
+			}
+			finally {
+				unlockWrite(stamp);
+			}
+		}
+	}
+
+	/**
+	 * @param name name of this cache, used to publish the monitoring values
+	 * @param shortLived set to `true` on the Online instance (multi-master-aware), where other instances can modify the database. Entries then expire after
+	 *            <code>dictionary.cache.ttl</code> milliseconds.
+	 */
+	public Cache(final String name, final boolean shortLived) {
+		this.name = name;
+		this.ttl = shortLived ? multiMasterTTL : 0;
+
+		for (int i = 0; i < SEGMENTS; i++)
+			segments[i] = new Segment();
+
+		monitor.addMonitoring(name, (names, values) -> {
+			long entries = 0;
+			long bytes = 0;
+
+			for (final Segment s : segments) {
+				final long stamp = s.readLock();
+
+				try {
+					entries += s.size;
+					bytes += s.bytes;
+				}
+				finally {
+					s.unlockRead(stamp);
+				}
+			}
+
+			names.add(name + "_entries");
+			values.add(Double.valueOf(entries));
+
+			names.add(name + "_bytes");
+			values.add(Double.valueOf(bytes));
+		});
+	}
+
+	/**
+	 * @return the maximum number of entries that each cache can hold
+	 */
+	static long getMaxEntries() {
+		return maxEntries;
+	}
 
 	/**
-	 * @param cacheActive set to `false` on the Online instance (multi-master-aware)
+	 * @return <code>true</code> if the entries of this cache expire after a short time
 	 */
-	public Cache(final boolean cacheActive) {
-		this.active = cacheActive;
+	boolean isShortLived() {
+		return ttl > 0;
+	}
+
+	private static int segmentIndex(final int id) {
+		return (spread(id) >>> 26) & (SEGMENTS - 1);
+	}
+
+	private Segment segmentFor(final int id) {
+		return segments[segmentIndex(id)];
+	}
+
+	/**
+	 * @return the current removal counters of all segments, to be passed to {@link #putInCache(Integer, String, long[])} after loading entries from the database
+	 */
+	long[] getRemovals() {
+		final long[] ret = new long[SEGMENTS];
+
+		for (int i = 0; i < SEGMENTS; i++)
+			ret[i] = segments[i].removals;
+
+		return ret;
+	}
+
+	private boolean isExpired(final Node n) {
+		if (ttl > 0 && n.expires < System.currentTimeMillis()) {
+			if (segmentFor(n.id).remove(n.id, n) != null)
+				monitor.incrementCounter(name + "_expirations");
+
+			valueToID.remove(n.value, n);
+
+			return true;
+		}
+
+		return false;
 	}
 
 	/**
@@ -25,9 +428,18 @@ public class Cache {
 	 * @return the known ID for the given value
 	 */
 	public Integer getIdFromCache(final String value) {
-		if (active && value != null) {
-			return valueToID.get(value);
+		if (value != null) {
+			final Node n = valueToID.get(value);
+
+			if (n != null && !isExpired(n)) {
+				n.referenced = true;
+				monitor.incrementCacheHits(name);
+				return Integer.valueOf(n.id);
+			}
+
+			monitor.incrementCacheMisses(name);
 		}
+
 		return null;
 	}
 
@@ -36,24 +448,152 @@ public class Cache {
 	 * @return the value associated to the given ID, if known
 	 */
 	public String getValueFromCache(final Integer id) {
-		if (active && id != null) {
-			return IDToValue.get(id);
+		if (id != null)
+			return getValueFromCache(id.intValue());
+
+		return null;
+	}
+
+	/**
+	 * @param id
+	 * @return the value associated to the given ID, if known
+	 */
+	public String getValueFromCache(final int id) {
+		final Node n = segmentFor(id).get(id);
+
+		if (n != null && !isExpired(n)) {
+			n.referenced = true;
+			monitor.incrementCacheHits(name);
+			return n.value;
 		}
+
+		monitor.incrementCacheMisses(name);
+
 		return null;
 	}
 
+	/**
+	 * Get the ID of the given value from the cache or, on a miss, from the loader. Cache hits don't take any lock. Concurrent misses for the same value share a single call to the loader while
+	 * misses on different values are resolved in parallel.
+	 *
+	 * @param value
+	 * @param loader function to resolve the value to an ID when it is not cached, typically a database query. Can return <code>null</code> if the value is not known.
+	 * @return the ID associated to this value, or <code>null</code> if not known
+	 */
+	public Integer getId(final String value, final Function<String, Integer> loader) {
+		if (value == null)
+			return null;
+
+		final Integer cached = getIdFromCache(value);
+
+		if (cached != null)
+			return cached;
+
+		final CompletableFuture<Integer> own = new CompletableFuture<>();
+
+		final CompletableFuture<Integer> pending = pendingIDs.putIfAbsent(value, own);
+
+		if (pending != null)
+			return pending.join();
+
+		try {
+			final long[] removals = getRemovals();
+
+			final Integer id = loader.apply(value);
+
+			putInCache(id, value, removals);
+
+			own.complete(id);
+
+			return id;
+		}
+		catch (final RuntimeException | Error e) {
+			own.completeExceptionally(e);
+			throw e;
+		}
+		finally {
+			pendingIDs.remove(value, own);
+		}
+	}
+
+	/**
+	 * Get the value associated to an ID from the cache or, on a miss, from the loader. Same locking properties as {@link #getId(String, Function)}.
+	 *
+	 * @param id
+	 * @param loader function to resolve the ID to its value when it is not cached
+	 * @return the value associated to this ID, or <code>null</code> if not known
+	 */
+	public String getValue(final Integer id, final Function<Integer, String> loader) {
+		if (id == null)
+			return null;
+
+		final String cached = getValueFromCache(id.intValue());
+
+		if (cached != null)
+			return cached;
+
+		final CompletableFuture<String> own = new CompletableFuture<>();
+
+		final CompletableFuture<String> pending = pendingValues.putIfAbsent(id, own);
+
+		if (pending != null)
+			return pending.join();
+
+		try {
+			final long[] removals = getRemovals();
+
+			final String value = loader.apply(id);
+
+			putInCache(id, value, removals);
+
+			own.complete(value);
+
+			return value;
+		}
+		catch (final RuntimeException | Error e) {
+			own.completeExceptionally(e);
+			throw e;
+		}
+		finally {
+			pendingValues.remove(id, own);
+		}
+	}
+
 	/**
 	 * Set a (key, value) pair
-	 * 
+	 *
 	 * @param id
 	 * @param value
 	 */
 	public void putInCache(final Integer id, final String value) {
-		if (active && id != null && value != null) {
-			synchronized (this) {
-				valueToID.put(value, id);
-				IDToValue.put(id, value);
+		putInCache(id, value, null);
+	}
+
+	/**
+	 * Set a (key, value) pair that was loaded from the database, unless the ID was removed from the cache since the loading has started
+	 *
+	 * @param id
+	 * @param value
+	 * @param removals the removal counters from {@link #getRemovals()} before loading the entry, or <code>null</code> to set it unconditionally
+	 */
+	void putInCache(final Integer id, final String value, final long[] removals) {
+		if (id != null && value != null) {
+			final Node n = new Node(id.intValue(), value, ttl > 0 ? System.currentTimeMillis() + ttl : Long.MAX_VALUE);
+
+			// value side first, so that if the new node is evicted right away it is cleaned up from both sides
+			valueToID.put(value, n);
+
+			final Node old = segmentFor(n.id).put(n, removals != null ? removals[segmentIndex(n.id)] : -1);
+
+			if (old == n) {
+				// removed while it was being loaded, the value side has to go as well
+				valueToID.remove(value, n);
+				monitor.incrementCounter(name + "_discarded_loads");
+				return;
 			}
+
+			if (old != null && !old.value.equals(value))
+				valueToID.remove(old.value, old);
 		}
 	}
 
@@ -63,13 +603,11 @@ public class Cache {
 	 */
 	public String removeById(final Integer id) {
 		if (id != null) {
-			synchronized (this) {
-				final String value = IDToValue.remove(id);
+			final Node n = segmentFor(id.intValue()).invalidate(id.intValue());
 
-				if (value != null)
-					valueToID.remove(value);
-
-				return value;
+			if (n != null) {
+				valueToID.remove(n.value, n);
+				return n.value;
 			}
 		}
 
@@ -77,9 +615,9 @@ public class Cache {
 	}
 
 	void clear() {
-		synchronized (this) {
-			valueToID.clear();
-			IDToValue.clear();
-		}
+		for (final Segment s : segments)
+			s.clear();
+
+		valueToID.clear();
 	}
 }
@@ -0,0 +1,119 @@
+package ch.alice.o2.ccdb.servlets;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import ch.alice.o2.ccdb.Options;
+import lazyj.Format;
+
+/**
+ * Fill the path, metadata and content type caches from the database at startup, in the background, so that the first requests after a restart don't each pay the single-row lookups. Requests
+ * arriving before the warm-up has finished are not blocked, cache misses simply fall back to the database for the individual keys.
+ *
+ * @author costing
+ * @since 2026-10-18
+ */
+class DictionaryPreloader extends Thread {
+	private static final int fetchSize = Options.getIntOption("dictionary.preload.fetch_size", 10000);
+
+	private static DictionaryPreloader instance = null;
+
+	private final CountDownLatch done = new CountDownLatch(1);
+
+	private volatile long duration = -1;
+
+	private final AtomicLong paths = new AtomicLong();
+	private final AtomicLong metadata = new AtomicLong();
+	private final AtomicLong contentTypes = new AtomicLong();
+
+	private DictionaryPreloader() {
+		super("DictionaryPreloader");
+		setDaemon(true);
+	}
+
+	/**
+	 * Start the warm-up, if enabled (<code>dictionary.preload</code>, default <code>true</code>) and useful (the caches are not short-lived, as on the multi-master instance)
+	 */
+	static synchronized void startPreloading() {
+		if (instance != null || !lazyj.Utils.stringToBool(Options.getOption("dictionary.preload", null), true) || SQLObject.pathsCache.isShortLived())
+			return;
+
+		instance = new DictionaryPreloader();
+
+		SQLObject.monitor.addMonitoring("dictionary_preload", (names, values) -> {
+			names.add("preload_ms");
+			values.add(Double.valueOf(instance.duration));
+
+			names.add("preload_paths");
+			values.add(Double.valueOf(instance.paths.get()));
+
+			names.add("preload_metadata");
+			values.add(Double.valueOf(instance.metadata.get()));
+
+			names.add("preload_contenttype");
+			values.add(Double.valueOf(instance.contentTypes.get()));
+		});
+
+		instance.start();
+	}
+
+	/**
+	 * Wait for the warm-up to finish
+	 *
+	 * @param timeout
+	 * @param unit
+	 * @return <code>true</code> if the warm-up is done (or was not started at all), <code>false</code> if the timeout has expired
+	 * @throws InterruptedException
+	 */
+	static boolean await(final long timeout, final TimeUnit unit) throws InterruptedException {
+		final DictionaryPreloader preloader;
+
+		synchronized (DictionaryPreloader.class) {
+			preloader = instance;
+		}
+
+		return preloader == null || preloader.done.await(timeout, unit);
+	}
+
+	@Override
+	public void run() {
+		final long start = System.currentTimeMillis();
+
+		try {
+			final Thread metadataLoader = new Thread(() -> load("SELECT metadataId, metadataKey FROM ccdb_metadata", SQLObject.metadataCache, metadata), "DictionaryPreloader-metadata");
+			final Thread contentTypeLoader = new Thread(() -> load("SELECT contentTypeId, contentType FROM ccdb_contenttype", SQLObject.contentTypeCache, contentTypes), "DictionaryPreloader-contenttype");
+
+			metadataLoader.start();
+			contentTypeLoader.start();
+
+			// the largest table, on this thread
+			load("SELECT pathId, path FROM ccdb_paths", SQLObject.pathsCache, paths);
+
+			metadataLoader.join();
+			contentTypeLoader.join();
+		}
+		catch (@SuppressWarnings("unused") final InterruptedException e) {
+			// stop
+		}
+		finally {
+			duration = System.currentTimeMillis() - start;
+
+			done.countDown();
+		}
+
+		SQLObject.logger.log(Level.INFO, "Dictionaries preloaded in " + Format.toInterval(duration) + ": " + paths + " paths, " + metadata + " metadata keys, " + contentTypes + " content types");
+	}
+
+	private static void load(final String query, final Cache cache, final AtomicLong counter) {
+		// entries removed while the query is running must not be put back from the older snapshot that the query sees
+		final long[] removals = cache.getRemovals();
+
+		// no point in reading more than the cache can hold, it would only evict what was just loaded
+		SQLObject.streamQuery(query + " LIMIT " + Cache.getMaxEntries(), fetchSize, (rs) -> {
+			cache.putInCache(Integer.valueOf(rs.getInt(1)), rs.getString(2), removals);
+			counter.incrementAndGet();
+		});
+	}
+}
@@ -0,0 +1,242 @@
+package ch.alice.o2.ccdb.servlets;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import alien.monitoring.Timing;
+import ch.alice.o2.ccdb.Options;
+import lazyj.DBFunctions;
+
+/**
+ * Optional group commit of the new objects, enabled with <code>sql.group_commit=true</code>. The inserts of concurrent uploads are queued and written by
+ * <code>sql.group_commit.writers</code> (default 1) background threads. Each of them waits up to <code>sql.group_commit.delay_ms</code> (default 2) for more objects, then inserts up to
+ * <code>sql.group_commit.max_batch</code> (default 500) of them in a single transaction.<br>
+ * <br>
+ * The statistics are not updated row by row by the <code>ccdb_increment</code> trigger (which makes all concurrent inserts wait for each other on the global <code>pathid=0</code> row of
+ * <code>ccdb_stats</code>). The transaction sets <code>ccdb.group_commit</code>, which the trigger skips on, and the per-path deltas of the batch are added in one statement before committing. The
+ * uploading threads only return after the commit.
+ *
+ * @author costing
+ * @since 2026-10-18
+ */
+final class GroupCommit {
+	/**
+	 * Whether the inserts go through the group commit
+	 */
+	static final boolean enabled = lazyj.Utils.stringToBool(Options.getOption("sql.group_commit", null), false);
+
+	private static final long maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(Options.getIntOption("sql.group_commit.delay_ms", 2));
+
+	private static final int maxBatch = Math.max(Options.getIntOption("sql.group_commit.max_batch", 500), 1);
+
+	private static final int writers = Math.max(Options.getIntOption("sql.group_commit.writers", 1), 1);
+
+	private static final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+
+	private static boolean started = false;
+
+	private static final class Pending {
+		final SQLObject object;
+
+		final String replicaArray;
+
+		final CompletableFuture<Boolean> done = new CompletableFuture<>();
+
+		Pending(final SQLObject object, final String replicaArray) {
+			this.object = object;
+			this.replicaArray = replicaArray;
+		}
+	}
+
+	private GroupCommit() {
+		// static methods only
+	}
+
+	private static synchronized void start() {
+		if (started)
+			return;
+
+		for (int i = 0; i < writers; i++) {
+			final Thread writer = new Thread(GroupCommit::run, "GroupCommit-" + i);
+			writer.setDaemon(true);
+			writer.start();
+		}
+
+		started = true;
+	}
+
+	/**
+	 * Insert a new object together with the ones of the other concurrent requests
+	 *
+	 * @param object
+	 * @param replicaArray
+	 * @return <code>true</code> if the object was committed, <code>false</code> if the batch has failed and the caller should insert the object by itself
+	 */
+	static boolean insert(final SQLObject object, final String replicaArray) {
+		if (!started)
+			start();
+
+		final Pending pending = new Pending(object, replicaArray);
+
+		queue.add(pending);
+
+		return pending.done.join().booleanValue();
+	}
+
+	private static void run() {
+		final List<Pending> batch = new ArrayList<>(maxBatch);
+
+		while (true) {
+			try {
+				batch.add(queue.take());
+
+				final long deadline = System.nanoTime() + maxDelayNanos;
+
+				while (batch.size() < maxBatch) {
+					final long wait = deadline - System.nanoTime();
+
+					final Pending next = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+
+					if (next == null)
+						break;
+
+					batch.add(next);
+				}
+			}
+			catch (@SuppressWarnings("unused") final InterruptedException e) {
+				// keep going, an empty batch is ignored
+			}
+
+			if (batch.isEmpty())
+				continue;
+
+			// whatever happens, this thread has to survive and all the waiting uploads have to be released
+			try {
+				final Boolean ok = Boolean.valueOf(commit(batch));
+
+				for (final Pending pending : batch)
+					pending.done.complete(ok);
+			}
+			catch (final Throwable t) {
+				SQLObject.logger.log(Level.SEVERE, "Unexpected exception committing a batch of " + batch.size() + " objects", t);
+
+				SQLObject.monitor.incrementCounter("group_commit_failures");
+			}
+			finally {
+				// no-op for the already completed ones, the others are told to insert the object by themselves
+				for (final Pending pending : batch)
+					pending.done.complete(Boolean.FALSE);
+
+				batch.clear();
+			}
+		}
+	}
+
+	private static boolean commit(final List<Pending> batch) {
+		try (Timing t = new Timing(SQLObject.monitor, "group_commit_ms"); DBFunctions db = SQLObject.getDB()) {
+			final DBFunctions.DBConnection dbc = db.getConnection();
+
+			if (dbc == null)
+				return false;
+
+			final Connection conn = dbc.getConnection();
+
+			final StringBuilder query = new StringBuilder("INSERT INTO ccdb (").append(SQLObject.INSERT_COLUMNS).append(") VALUES ");
+
+			final List<Object> arguments = new ArrayList<>(batch.size() * 13);
+
+			for (final Pending pending : batch) {
+				if (arguments.size() > 0)
+					query.append(", ");
+
+				query.append(pending.object.getInsertValues());
+				pending.object.addInsertArguments(arguments, pending.replicaArray);
+			}
+
+			query.append(" RETURNING pathid, size;");
+
+			try {
+				conn.setAutoCommit(false);
+
+				try (Statement stat = conn.createStatement()) {
+					stat.execute("SET LOCAL ccdb.group_commit = 'on';");
+				}
+
+				// ordered by path ID, so that concurrent writers lock the rows of ccdb_stats in the same order
+				final Map<Integer, long[]> deltas = new TreeMap<>();
+
+				final long[] total = new long[2];
+
+				try (PreparedStatement stat = conn.prepareStatement(query.toString())) {
+					for (int i = 0; i < arguments.size(); i++)
+						stat.setObject(i + 1, arguments.get(i));
+
+					try (ResultSet rs = stat.executeQuery()) {
+						while (rs.next()) {
+							final long[] delta = deltas.computeIfAbsent(Integer.valueOf(rs.getInt(1)), k -> new long[2]);
+							delta[0]++;
+							delta[1] += rs.getLong(2);
+
+							total[0]++;
+							total[1] += rs.getLong(2);
+						}
+					}
+				}
+
+				// in the asynchronous accounting mode the callers add the objects to the in-memory counters instead
+				if (!StatsCounters.enabled) {
+					final List<Object> statsArguments = StatsCounters.getUpsertArguments(deltas, total);
+
+					try (PreparedStatement stat = conn.prepareStatement(StatsCounters.getUpsertQuery(statsArguments.size() / 3))) {
+						for (int i = 0; i < statsArguments.size(); i++)
+							stat.setObject(i + 1, statsArguments.get(i));
+
+						stat.executeUpdate();
+					}
+				}
+
+				conn.commit();
+
+				SQLObject.monitor.addMeasurement("group_commit_objects", batch.size());
+
+				return true;
+			}
+			catch (final SQLException e) {
+				SQLObject.logger.log(Level.WARNING, "Group commit of " + batch.size() + " objects failed, they will be inserted one by one", e);
+
+				SQLObject.monitor.incrementCounter("group_commit_failures");
+
+				try {
+					conn.rollback();
+				}
+				catch (@SuppressWarnings("unused") final SQLException e2) {
+					// ignore
+				}
+
+				return false;
+			}
+			finally {
+				try {
+					conn.setAutoCommit(true);
+				}
+				catch (@SuppressWarnings("unused") final SQLException e) {
+					// ignore
+				}
+
+				dbc.free();
+			}
+		}
+	}
+}
@@ -0,0 +1,356 @@
+package ch.alice.o2.ccdb.servlets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import ch.alice.o2.ccdb.Options;
+import ch.alice.o2.ccdb.RequestParser;
+import lazyj.DBFunctions;
+
+/**
+ * In-memory index of the most recent objects of each path, answering the common <code>GET /path[/time][/key=value]</code> without going to the database. For each path ID the index keeps the
+ * <code>latest.index.depth</code> newest objects (by createTime), so that a match found in this window is by construction the same object that
+ * <code>ORDER BY createTime DESC LIMIT 1</code> would return. If nothing matches in the window and the window doesn't cover the entire history of the path the caller has to fall back to the
+ * database.<br>
+ * <br>
+ * Only used by the single-master implementation ({@link SQLObjectImpl}), where all modifications go through this JVM and are reflected here by {@link SQLObject#save(javax.servlet.http.HttpServletRequest)}
+ * and {@link SQLObject#delete()}.<br>
+ * <br>
+ * The cached objects are never handed out or taken in directly, only copies of them, since the callers are free to modify the objects they get (for example <code>PUT</code> changing the
+ * validity or the metadata before saving them back).
+ *
+ * @author costing
+ * @since 2026-10-18
+ */
+class LatestObjectIndex {
+	/**
+	 * How many paths to keep in memory at most. Set to 0 to disable the index.
+	 */
+	private static final int maxPaths = Options.getIntOption("latest.index.paths", 10000);
+
+	/**
+	 * How many of the most recent objects to keep for each path
+	 */
+	private static final int depth = Math.max(Options.getIntOption("latest.index.depth", 16), 1);
+
+	/**
+	 * Entries older than this (in seconds) are reloaded from the database on the next access
+	 */
+	private static final long maxAge = Options.getIntOption("latest.index.max_age", 300) * 1000L;
+
+	private static final boolean enabled = maxPaths > 0;
+
+	private static final Map<Integer, Entry> index = new ConcurrentHashMap<>();
+
+	/**
+	 * Modification counters, striped by path ID, to detect concurrent changes while an entry is being loaded from the database
+	 */
+	private static final AtomicLongArray generations = new AtomicLongArray(1024);
+
+	private static final Object evictionLock = new Object();
+
+	static {
+		if (enabled)
+			SQLObject.monitor.addMonitoring("latest_index", (names, values) -> {
+				long objects = 0;
+
+				for (final Entry e : index.values())
+					objects += e.objects.length;
+
+				names.add("latest_index_paths");
+				values.add(Double.valueOf(index.size()));
+
+				names.add("latest_index_objects");
+				values.add(Double.valueOf(objects));
+			});
+	}
+
+	/**
+	 * @param object
+	 * @return a private copy of the object, that can be modified without affecting the indexed one
+	 */
+	private static SQLObject copyOf(final SQLObject object) {
+		return new SQLObjectImpl((SQLObjectImpl) object);
+	}
+
+	private static final Comparator<SQLObject> newestFirst = (o1, o2) -> Long.compare(o2.createTime, o1.createTime);
+
+	/**
+	 * Immutable snapshot of the most recent objects of one path, newest first
+	 */
+	private static final class Entry {
+		final SQLObject[] objects;
+
+		/**
+		 * <code>true</code> if the array holds all the objects of this path, in which case a failed lookup is authoritative
+		 */
+		final boolean complete;
+
+		final long loaded;
+
+		volatile long lastAccessed;
+
+		Entry(final SQLObject[] objects, final boolean complete, final long loaded) {
+			this.objects = objects;
+			this.complete = complete;
+			this.loaded = loaded;
+			this.lastAccessed = System.currentTimeMillis();
+		}
+	}
+
+	private LatestObjectIndex() {
+		// static methods only
+	}
+
+	/**
+	 * @return <code>true</code> if the index should be used, i.e. it is enabled and the single-master implementation is active
+	 */
+	private static boolean isActive() {
+		return enabled && !SQLObject.multiMasterVersion;
+	}
+
+	private static int stripe(final Integer pathId) {
+		return (pathId.hashCode() & 0x7FFFFFFF) % generations.length();
+	}
+
+	/**
+	 * Mark a modification of the given path
+	 *
+	 * @param pathId
+	 */
+	private static void touch(final Integer pathId) {
+		generations.incrementAndGet(stripe(pathId));
+	}
+
+	/**
+	 * Look up the most recent object matching the request
+	 *
+	 * @param parser request constraints
+	 * @param pathId the already resolved path ID of <code>parser.path</code>
+	 * @param metadataConstraints metadata ID to value constraints, already resolved
+	 * @return one element array with the matching object (or <code>null</code> if the index knows there is no matching object), or <code>null</code> if the index cannot answer this query and the
+	 *         database has to be consulted
+	 */
+	static SQLObject[] getMatchingObject(final RequestParser parser, final Integer pathId, final Map<Integer, String> metadataConstraints) {
+		if (!isActive())
+			return null;
+
+		Entry e = index.get(pathId);
+
+		final long now = System.currentTimeMillis();
+
+		if (e == null || now - e.loaded > maxAge) {
+			SQLObject.monitor.incrementCacheMisses("latest_index");
+
+			e = load(pathId);
+
+			if (e == null)
+				return null;
+		}
+		else
+			SQLObject.monitor.incrementCacheHits("latest_index");
+
+		e.lastAccessed = now;
+
+		for (final SQLObject object : e.objects)
+			if (matches(object, parser, metadataConstraints))
+				return new SQLObject[] { copyOf(object) };
+
+		if (e.complete)
+			return new SQLObject[] { null };
+
+		return null;
+	}
+
+	private static boolean matches(final SQLObject object, final RequestParser parser, final Map<Integer, String> metadataConstraints) {
+		if (parser.uuidConstraint != null && !parser.uuidConstraint.equals(object.id))
+			return false;
+
+		if (parser.startTimeSet && (parser.startTime < object.validFrom || parser.startTime >= object.validUntil))
+			return false;
+
+		if (parser.notAfter > 0 && object.createTime > parser.notAfter)
+			return false;
+
+		if (parser.notBefore > 0 && object.createTime < parser.notBefore)
+			return false;
+
+		for (final Map.Entry<Integer, String> constraint : metadataConstraints.entrySet())
+			if (!constraint.getValue().equals(((SQLObjectImpl) object).getMetadataValue(constraint.getKey())))
+				return false;
+
+		return true;
+	}
+
+	private static Entry load(final Integer pathId) {
+		final int stripe = stripe(pathId);
+
+		final long generation = generations.get(stripe);
+
+		final List<SQLObject> objects = new ArrayList<>(depth);
+
+		try (DBFunctions db = SQLObject.getDB()) {
+			if (!db.query(SQLObjectImpl.selectAllFromCCDB + " WHERE pathId=? ORDER BY createTime DESC LIMIT " + depth, false, pathId))
+				return null;
+
+			while (db.moveNext())
+				objects.add(SQLObject.fromDb(db));
+		}
+
+		final Entry loaded = new Entry(objects.toArray(new SQLObject[0]), objects.size() < depth, System.currentTimeMillis());
+
+		// only install the entry if the path was not modified while running the query, otherwise the snapshot could miss the change
+		final Entry installed = index.compute(pathId, (k, old) -> generations.get(stripe) == generation ? loaded : old);
+
+		if (installed == loaded && index.size() > maxPaths)
+			evict();
+
+		return loaded;
+	}
+
+	/**
+	 * Drop the least recently accessed paths to bring the index back under its size limit, plus 10% more to amortize the cost of this operation
+	 */
+	private static void evict() {
+		synchronized (evictionLock) {
+			final int toRemove = index.size() - maxPaths + maxPaths / 10;
+
+			if (toRemove <= 0 || index.size() <= maxPaths)
+				return;
+
+			// take a snapshot of the access times, they keep changing while sorting
+			final List<Object[]> candidates = new ArrayList<>(index.size());
+
+			for (final Map.Entry<Integer, Entry> e : index.entrySet())
+				candidates.add(new Object[] { e.getKey(), e.getValue(), Long.valueOf(e.getValue().lastAccessed) });
+
+			candidates.sort((c1, c2) -> ((Long) c1[2]).compareTo((Long) c2[2]));
+
+			for (int i = 0; i < toRemove && i < candidates.size(); i++) {
+				final Object[] c = candidates.get(i);
+
+				if (index.remove(c[0], c[1]))
+					SQLObject.monitor.incrementCounter("latest_index_evictions");
+			}
+		}
+	}
+
+	/**
+	 * A new object was committed to the database
+	 *
+	 * @param object
+	 */
+	static void objectInserted(final SQLObject object) {
+		if (!isActive())
+			return;
+
+		final Integer pathId = object.getPathId(false);
+
+		if (pathId == null)
+			return;
+
+		touch(pathId);
+
+		final SQLObject copy = copyOf(object);
+
+		index.computeIfPresent(pathId, (k, e) -> {
+			final SQLObject[] newObjects = Arrays.copyOf(e.objects, e.objects.length + 1);
+			newObjects[e.objects.length] = copy;
+
+			Arrays.sort(newObjects, newestFirst);
+
+			if (newObjects.length > depth * 2)
+				return new Entry(Arrays.copyOf(newObjects, depth), false, e.loaded);
+
+			return new Entry(newObjects, e.complete, e.loaded);
+		});
+	}
+
+	/**
+	 * An existing object was modified (validity, metadata, replicas)
+	 *
+	 * @param object
+	 */
+	static void objectUpdated(final SQLObject object) {
+		if (!isActive())
+			return;
+
+		final Integer pathId = object.getPathId(false);
+
+		if (pathId == null)
+			return;
+
+		touch(pathId);
+
+		final SQLObject copy = copyOf(object);
+
+		index.computeIfPresent(pathId, (k, e) -> {
+			final SQLObject[] newObjects = e.objects.clone();
+
+			for (int i = 0; i < newObjects.length; i++)
+				if (newObjects[i].id.equals(object.id)) {
+					newObjects[i] = copy;
+					return new Entry(newObjects, e.complete, e.loaded);
+				}
+
+			return e;
+		});
+	}
+
+	/**
+	 * An object was removed from the database
+	 *
+	 * @param object
+	 */
+	static void objectDeleted(final SQLObject object) {
+		if (!isActive())
+			return;
+
+		final Integer pathId = object.getPathId(false);
+
+		if (pathId == null)
+			return;
+
+		touch(pathId);
+
+		index.computeIfPresent(pathId, (k, e) -> {
+			final List<SQLObject> newObjects = new ArrayList<>(e.objects.length);
+
+			for (final SQLObject o : e.objects)
+				if (!o.id.equals(object.id))
+					newObjects.add(o);
+
+			// removing any of the top N objects leaves the top N-1 of the remaining ones, so the window stays consistent
+			return new Entry(newObjects.toArray(new SQLObject[0]), e.complete, e.loaded);
+		});
+	}
+
+	/**
+	 * Forget everything about a path, for example when it was removed or when a write to it failed
+	 *
+	 * @param pathId
+	 */
+	static void invalidate(final Integer pathId) {
+		if (!isActive() || pathId == null)
+			return;
+
+		touch(pathId);
+
+		index.remove(pathId);
+	}
+
+	/**
+	 * Drop all entries
+	 */
+	static void clear() {
+		for (int i = 0; i < generations.length(); i++)
+			generations.incrementAndGet(i);
+
+		index.clear();
+	}
+}
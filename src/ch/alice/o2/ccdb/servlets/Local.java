@@ -3,13 +3,13 @@ package ch.alice.o2.ccdb.servlets;
 import static ch.alice.o2.ccdb.servlets.ServletHelper.printUsage;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.RandomAccessFile;
 import java.net.InetAddress;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -234,12 +234,12 @@ public class Local extends HttpServlet {
 			response.setHeader("Content-Type", obj.getProperty("Content-Type", "application/octet-stream"));
 			setMD5Header(obj, response);
 
-			try (InputStream is = new FileInputStream(obj.referenceFile); OutputStream os = response.getOutputStream()) {
-				IOUtils.copy(is, os);
-			}
+			final long fileSize = obj.referenceFile.length();
+
+			FileServing.serve(request, response, obj.referenceFile, 0, fileSize, monitor);
 
 			if (monitor != null)
-				monitor.addMeasurement("GET_data", obj.referenceFile.length());
+				monitor.addMeasurement("GET_data", fileSize);
 
 			return;
 		}
@@ -345,13 +345,10 @@ public class Local extends HttpServlet {
 			response.setHeader("Content-Disposition", "inline;filename=\"" + obj.getOriginalName() + "\"");
 			response.setHeader("Content-Type", obj.getProperty("Content-Type", "application/octet-stream"));
 
-			try (RandomAccessFile input = new RandomAccessFile(obj.referenceFile, "r"); OutputStream output = response.getOutputStream()) {
-				input.seek(first);
-				copy(input, output, toCopy);
+			FileServing.serve(request, response, obj.referenceFile, first, toCopy, monitor);
 
-				if (monitor != null)
-					monitor.addMeasurement("GET_data", toCopy);
-			}
+			if (monitor != null)
+				monitor.addMeasurement("GET_data", toCopy);
 
 			return;
 		}
@@ -390,7 +387,7 @@ public class Local extends HttpServlet {
 
 		response.setContentLengthLong(contentLength);
 
-		try (RandomAccessFile input = new RandomAccessFile(obj.referenceFile, "r"); OutputStream output = response.getOutputStream()) {
+		try (FileChannel input = FileChannel.open(obj.referenceFile.toPath(), StandardOpenOption.READ); OutputStream output = response.getOutputStream()) {
 			final Iterator<Map.Entry<Long, Long>> itRange = requestedRanges.iterator();
 			final Iterator<String> itSubHeader = subHeaders.iterator();
 
@@ -405,8 +402,7 @@ public class Local extends HttpServlet {
 
 				output.write(subHeader.getBytes());
 
-				input.seek(first);
-				copy(input, output, toCopy);
+				FileServing.copy(input, output, first, toCopy, monitor);
 
 				if (monitor != null)
 					monitor.addMeasurement("GET_data", toCopy);
@@ -416,23 +412,6 @@ public class Local extends HttpServlet {
 		}
 	}
 
-	private static void copy(final RandomAccessFile input, final OutputStream output, final long count) throws IOException {
-		final byte[] buffer = new byte[4096];
-		int cnt = 0;
-
-		long leftToCopy = count;
-
-		do {
-			final int toCopy = (int) Math.min(leftToCopy, buffer.length);
-
-			cnt = input.read(buffer, 0, toCopy);
-
-			output.write(buffer, 0, cnt);
-
-			leftToCopy -= cnt;
-		} while (leftToCopy > 0);
-	}
-
 	@Override
 	protected void doPost(final HttpServletRequest request, final HttpServletResponse response) throws ServletException, IOException {
 		// create the given object and return the unique identifier to it
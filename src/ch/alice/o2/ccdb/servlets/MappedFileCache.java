@@ -0,0 +1,359 @@
+package ch.alice.o2.ccdb.servlets;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import alien.monitoring.Monitor;
+import alien.monitoring.MonitorFactory;
+import ch.alice.o2.ccdb.Options;
+
+/**
+ * Read-only memory mappings of the most frequently downloaded local files, keyed by object ID. A hit is served straight from the page cache without opening, seeking or reading the file again,
+ * and the byte ranges of a multipart response are slices of the same mapping.<br>
+ * <br>
+ * The total size of the mappings is limited, the least recently used ones are unmapped to make room for new ones. A mapping that is still being sent to a client is only unmapped when that
+ * transfer is done, so the mapped size can temporarily exceed the limit.
+ *
+ * @author costing
+ * @since 2026-10-18
+ */
+final class MappedFileCache {
+	private static final Logger logger = Logger.getLogger(MappedFileCache.class.getCanonicalName());
+
+	private static final Monitor monitor = MonitorFactory.getMonitor(MappedFileCache.class.getCanonicalName());
+
+	/**
+	 * <code>sun.misc.Unsafe.invokeCleaner(ByteBuffer)</code>, to release a mapping right away instead of waiting for the garbage collector to find the buffer
+	 */
+	private static final MethodHandle cleaner = getCleaner();
+
+	/**
+	 * <code>write(ByteBuffer)</code> of the servlet output stream implementations that have it (Tomcat's CoyoteOutputStream), taking the mapped content without copying it to a heap array first
+	 */
+	private static final ClassValue<MethodHandle> bufferWriters = new ClassValue<>() {
+		@Override
+		protected MethodHandle computeValue(final Class<?> type) {
+			try {
+				return MethodHandles.publicLookup().findVirtual(type, "write", MethodType.methodType(void.class, ByteBuffer.class));
+			}
+			catch (@SuppressWarnings("unused") final ReflectiveOperationException e) {
+				return null;
+			}
+		}
+	};
+
+	/**
+	 * The instance used by {@link SQLDownload}. Its size is set in MB by <code>download.mmap.size</code>, 0 (the default) disables it. Objects larger than
+	 * <code>download.mmap.max_object_size</code> MB (default 64) are never mapped.
+	 */
+	static final MappedFileCache downloads = new MappedFileCache("mmap", Options.getIntOption("download.mmap.size", 0) * 1024L * 1024,
+			Options.getIntOption("download.mmap.max_object_size", 64) * 1024L * 1024);
+
+	/**
+	 * One mapped file. Each user holds a reference, and so does the cache while the mapping is in it. The file is unmapped when the last reference is released.
+	 */
+	static final class Mapping implements AutoCloseable {
+		private final MappedByteBuffer buffer;
+
+		private int references = 1;
+
+		private Mapping(final MappedByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		/**
+		 * @return the mapped size
+		 */
+		int size() {
+			return buffer.capacity();
+		}
+
+		private synchronized boolean acquire() {
+			if (references <= 0)
+				return false;
+
+			references++;
+			return true;
+		}
+
+		private void release() {
+			final boolean unmap;
+
+			synchronized (this) {
+				unmap = --references == 0;
+			}
+
+			if (unmap)
+				unmap(buffer);
+		}
+
+		/**
+		 * @param first offset of the first byte
+		 * @param count number of bytes
+		 * @return an independent view of this part of the file
+		 */
+		ByteBuffer slice(final long first, final long count) {
+			final ByteBuffer bb = buffer.duplicate();
+			bb.limit((int) (first + count));
+			bb.position((int) first);
+			return bb;
+		}
+
+		/**
+		 * Give this mapping back to the cache
+		 */
+		@Override
+		public void close() {
+			release();
+		}
+	}
+
+	private final long maxBytes;
+
+	private final long maxObjectSize;
+
+	private final Map<UUID, Mapping> mappings = new LinkedHashMap<>(16, 0.75f, true);
+
+	private long mappedBytes = 0;
+
+	private final LongAdder hits = new LongAdder();
+
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * Counters at the previous monitoring report, the hit ratio is published for each interval
+	 */
+	private long lastHits = 0;
+	private long lastMisses = 0;
+
+	/**
+	 * @param name prefix of the monitoring values
+	 * @param maxBytes total size of the mappings, in bytes
+	 * @param maxObjectSize largest file that is mapped, in bytes
+	 */
+	MappedFileCache(final String name, final long maxBytes, final long maxObjectSize) {
+		this.maxBytes = maxBytes;
+		this.maxObjectSize = Math.min(Math.min(maxObjectSize, maxBytes), Integer.MAX_VALUE);
+
+		if (maxBytes > 0 && monitor != null)
+			monitor.addMonitoring(name, (names, values) -> {
+				final long currentHits = hits.sum();
+				final long currentMisses = misses.sum();
+
+				final long deltaHits = currentHits - lastHits;
+				final long deltaMisses = currentMisses - lastMisses;
+
+				lastHits = currentHits;
+				lastMisses = currentMisses;
+
+				if (deltaHits + deltaMisses > 0) {
+					names.add(name + "_hit_ratio");
+					values.add(Double.valueOf(deltaHits * 100. / (deltaHits + deltaMisses)));
+				}
+
+				synchronized (mappings) {
+					names.add(name + "_mapped_bytes");
+					values.add(Double.valueOf(mappedBytes));
+
+					names.add(name + "_entries");
+					values.add(Double.valueOf(mappings.size()));
+				}
+			});
+	}
+
+	/**
+	 * @param size object size
+	 * @return <code>true</code> if objects of this size are served from memory mappings
+	 */
+	boolean accepts(final long size) {
+		return size > 0 && size <= maxObjectSize;
+	}
+
+	/**
+	 * Get the mapping of a file, mapping it if it is not in the cache yet
+	 *
+	 * @param id object ID
+	 * @param file local file holding the content of this object
+	 * @param size expected size of the file
+	 * @return the mapping, to be closed once the content was sent, or <code>null</code> if this file cannot be mapped
+	 */
+	Mapping get(final UUID id, final File file, final long size) {
+		if (!accepts(size))
+			return null;
+
+		synchronized (mappings) {
+			final Mapping existing = mappings.get(id);
+
+			if (existing != null && existing.acquire()) {
+				hits.increment();
+				return existing;
+			}
+		}
+
+		misses.increment();
+
+		final Mapping mapping;
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (channel.size() != size)
+				return null;
+
+			mapping = new Mapping(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+		}
+		catch (final IOException ioe) {
+			logger.log(Level.FINE, "Cannot map " + file.getAbsolutePath(), ioe);
+			return null;
+		}
+
+		final List<Mapping> evicted = new ArrayList<>();
+
+		final Mapping ret;
+
+		synchronized (mappings) {
+			final Mapping existing = mappings.get(id);
+
+			if (existing != null && existing.acquire()) {
+				// another thread has mapped the same file in the meantime
+				evicted.add(mapping);
+				ret = existing;
+			}
+			else {
+				final Mapping old = mappings.put(id, mapping);
+
+				if (old != null) {
+					mappedBytes -= old.size();
+					evicted.add(old);
+				}
+
+				mappedBytes += size;
+				mapping.acquire();
+				ret = mapping;
+
+				for (final Iterator<Mapping> it = mappings.values().iterator(); mappedBytes > maxBytes && it.hasNext();) {
+					final Mapping eldest = it.next();
+
+					if (eldest == mapping)
+						continue;
+
+					it.remove();
+					mappedBytes -= eldest.size();
+					evicted.add(eldest);
+				}
+			}
+		}
+
+		// unmapping is only done outside the lock, and only for the mappings that nobody is sending
+		for (final Mapping m : evicted)
+			m.release();
+
+		return ret;
+	}
+
+	/**
+	 * Drop the mapping of a removed object
+	 *
+	 * @param id object ID
+	 */
+	void invalidate(final UUID id) {
+		final Mapping old;
+
+		synchronized (mappings) {
+			old = mappings.remove(id);
+
+			if (old != null)
+				mappedBytes -= old.size();
+		}
+
+		if (old != null)
+			old.release();
+	}
+
+	/**
+	 * @return the total size of the mappings in the cache
+	 */
+	long getMappedBytes() {
+		synchronized (mappings) {
+			return mappedBytes;
+		}
+	}
+
+	/**
+	 * Send a part of a mapped file
+	 *
+	 * @param content what to send, for example a {@link Mapping#slice(long, long)}
+	 * @param output where to write it to
+	 * @param monitor where to account the transfer
+	 * @throws IOException
+	 */
+	static void write(final ByteBuffer content, final OutputStream output, final Monitor monitor) throws IOException {
+		final int count = content.remaining();
+
+		final MethodHandle writer = bufferWriters.get(output.getClass());
+
+		if (writer != null) {
+			try {
+				writer.invoke(output, content);
+			}
+			catch (final IOException | RuntimeException | Error e) {
+				throw e;
+			}
+			catch (final Throwable t) {
+				throw new IOException(t);
+			}
+		}
+		else {
+			// a plain stream, Channels copies through a small reused array
+			final WritableByteChannel target = Channels.newChannel(output);
+
+			while (content.hasRemaining())
+				target.write(content);
+		}
+
+		if (monitor != null)
+			monitor.addMeasurement("GET_mmap_bytes", count);
+	}
+
+	private static MethodHandle getCleaner() {
+		try {
+			final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+
+			return MethodHandles.lookup().findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class)).bindTo(theUnsafe.get(null));
+		}
+		catch (final Throwable t) {
+			logger.log(Level.WARNING, "Cannot release memory mappings explicitly, they will stay mapped until garbage collected", t);
+			return null;
+		}
+	}
+
+	private static void unmap(final MappedByteBuffer buffer) {
+		if (cleaner != null)
+			try {
+				cleaner.invoke(buffer);
+			}
+			catch (final Throwable t) {
+				logger.log(Level.WARNING, "Cannot unmap a buffer", t);
+			}
+	}
+}
@@ -5,7 +5,6 @@ import static ch.alice.o2.ccdb.servlets.ServletHelper.printUsage;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.lang.ref.Reference;
 import java.net.InetAddress;
 import java.security.NoSuchAlgorithmException;
 import java.util.AbstractMap;
@@ -33,6 +32,8 @@ import alien.test.cassandra.tomcat.Options;
 import ch.alice.o2.ccdb.RequestParser;
 import ch.alice.o2.ccdb.UUIDTools;
 import ch.alice.o2.ccdb.multicast.Blob;
+import ch.alice.o2.ccdb.multicast.BlobSeries;
+import ch.alice.o2.ccdb.multicast.PayloadBuffer;
 import ch.alice.o2.ccdb.multicast.UDPReceiver;
 import ch.alice.o2.ccdb.multicast.Utils;
 
@@ -167,7 +168,7 @@ public class Memory extends HttpServlet {
 				download(matchingObject, request, response);
 			}
 			else {
-				response.setContentLengthLong(matchingObject.getPayload().length);
+				response.setContentLengthLong(matchingObject.getSize());
 				response.setHeader("Content-Disposition", "inline;filename=\"" + matchingObject.getOriginalName() + "\"");
 				response.setHeader("Content-Type", matchingObject.getMetadataMap().getOrDefault("Content-Type", "application/octet-stream"));
 				response.setHeader("Accept-Ranges", "bytes");
@@ -234,30 +235,121 @@ public class Memory extends HttpServlet {
 	 * @throws IOException
 	 */
 	static void download(final Blob obj, final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+		// hold the content while it is written out, even if the object is evicted in the meantime
+		final PayloadBuffer payload = obj.retainPayload();
+
+		if (payload == null) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND, "Object " + obj.getUuid() + " was evicted from memory");
+			return;
+		}
+
+		try {
+			download(obj, payload, request, response);
+		}
+		finally {
+			payload.release();
+		}
+	}
+
+	/**
+	 * @param request
+	 * @return <code>true</code> if the client declared that it can decode the "deflate" content encoding
+	 */
+	private static boolean acceptsDeflate(final HttpServletRequest request) {
+		final String acceptEncoding = request.getHeader("Accept-Encoding");
+
+		if (acceptEncoding == null)
+			return false;
+
+		final StringTokenizer st = new StringTokenizer(acceptEncoding, ",");
+
+		while (st.hasMoreTokens()) {
+			final String token = st.nextToken().trim();
+
+			final int idx = token.indexOf(';');
+
+			final String coding = idx >= 0 ? token.substring(0, idx).trim() : token;
+
+			if (!coding.equalsIgnoreCase("deflate"))
+				continue;
+
+			if (idx < 0)
+				return true;
+
+			final String param = token.substring(idx + 1).trim().replace(" ", "");
+
+			// "deflate;q=0" means that the client refuses it
+			return !param.matches("q=0(\\.0*)?");
+		}
+
+		return false;
+	}
+
+	/**
+	 * Serve the compressed form that the object was sent or received with over multicast, saving the compression on the server and the bandwidth
+	 *
+	 * @param obj
+	 * @param compressed
+	 * @param response
+	 * @throws IOException
+	 */
+	private static void downloadCompressed(final Blob obj, final PayloadBuffer compressed, final HttpServletResponse response) throws IOException {
+		final int length = compressed.length() - Blob.COMPRESSION_HEADER;
+
+		response.setHeader("Content-Encoding", "deflate");
+		response.setHeader("Vary", "Accept-Encoding");
+		response.setContentLengthLong(length);
+		response.setHeader("Content-Disposition", "inline;filename=\"" + obj.getOriginalName() + "\"");
+		response.setHeader("Content-Type", obj.getProperty("Content-Type", "application/octet-stream"));
+
+		try (OutputStream os = response.getOutputStream()) {
+			compressed.writeTo(os, Blob.COMPRESSION_HEADER, length);
+		}
+
+		if (monitor != null)
+			monitor.addMeasurement("GET_data_compressed", length);
+	}
+
+	private static void download(final Blob obj, final PayloadBuffer payload, final HttpServletRequest request, final HttpServletResponse response) throws IOException {
 		final String range = request.getHeader("Range");
 
 		// System.err.println("Client " + request.getRemoteAddr() + " requested to download " + obj.getUuid() + ", range: " + range);
 
 		if (range == null || range.trim().isEmpty()) {
+			if (acceptsDeflate(request)) {
+				final PayloadBuffer compressed = obj.retainCompressedPayload();
+
+				if (compressed != null) {
+					try {
+						downloadCompressed(obj, compressed, response);
+					}
+					finally {
+						compressed.release();
+					}
+
+					return;
+				}
+			}
+
 			response.setHeader("Accept-Ranges", "bytes");
-			response.setContentLengthLong(obj.getPayload().length);
+			response.setContentLengthLong(payload.length());
 			response.setHeader("Content-Disposition", "inline;filename=\"" + obj.getOriginalName() + "\"");
 			response.setHeader("Content-Type", obj.getProperty("Content-Type", "application/octet-stream"));
 			setMD5Header(obj, response);
 
 			try (OutputStream os = response.getOutputStream()) {
-				os.write(obj.getPayload(), 0, obj.getPayload().length);
+				payload.writeTo(os, 0, payload.length());
 			}
 
 			if (monitor != null)
-				monitor.addMeasurement("GET_data", obj.getPayload().length);
+				monitor.addMeasurement("GET_data", payload.length());
 
 			return;
 		}
 
 		// a Range request was made, serve only the requested bytes
 
-		final long payloadSize = obj.getSize();
+		final long payloadSize = payload.length();
 
 		if (!range.startsWith("bytes=")) {
 			response.setHeader("Content-Range", "bytes */" + payloadSize);
@@ -358,8 +450,7 @@ public class Memory extends HttpServlet {
 			response.setHeader("Content-Type", obj.getProperty("Content-Type", "application/octet-stream"));
 
 			try (OutputStream os = response.getOutputStream()) {
-				// TODO: Check if cast from long to int would be a problem
-				os.write(obj.getPayload(), (int) first, (int) toCopy);
+				payload.writeTo(os, first, toCopy);
 
 				if (monitor != null)
 					monitor.addMeasurement("GET_data", toCopy);
@@ -418,8 +509,7 @@ public class Memory extends HttpServlet {
 
 				os.write(subHeader.getBytes());
 
-				// TODO: Check if cast from long to int would be a problem
-				os.write(obj.getPayload(), (int) first, (int) toCopy);
+				payload.writeTo(os, first, toCopy);
 
 				if (monitor != null)
 					monitor.addMeasurement("GET_data", toCopy);
@@ -582,53 +672,24 @@ public class Memory extends HttpServlet {
 				return;
 			}
 
-			final List<Reference<Blob>> keyContent = UDPReceiver.currentCacheContent.get(matchingObject.getKey());
-
-			if (keyContent != null) {
-				synchronized (keyContent) {
-					final Iterator<Reference<Blob>> it = keyContent.iterator();
-
-					while (it.hasNext()) {
-						final Reference<Blob> sb = it.next();
+			final BlobSeries keyContent = UDPReceiver.currentCacheContent.get(matchingObject.getKey());
 
-						final Blob b = sb.get();
-
-						if (b == null)
-							it.remove();
-						else
-							if (b.equals(matchingObject)) {
-								it.remove();
-								break;
-							}
-					}
-				}
-			}
+			if (keyContent != null)
+				keyContent.remove(matchingObject);
 
 			response.sendError(HttpServletResponse.SC_NO_CONTENT);
 		}
 	}
 
 	private static Blob getMatchingObject(final RequestParser parser) {
-		final List<Reference<Blob>> candidates = UDPReceiver.currentCacheContent.get(parser.path);
+		final BlobSeries candidates = UDPReceiver.currentCacheContent.get(parser.path);
 
-		if (candidates == null || candidates.size() == 0)
+		if (candidates == null)
 			return null;
 
-		Blob bestMatch = null;
-
-		for (final Reference<Blob> sblob : candidates) {
-			final Blob blob = sblob.get();
-
-			if (blob == null)
-				continue;
-
-			if (!blobMatchesParser(blob, parser))
-				continue;
-
-			// most recently created object wins
-			if (bestMatch == null || blob.compareTo(bestMatch) < 0)
-				bestMatch = blob;
-		}
+		// most recently created object wins
+		final Blob bestMatch = parser.startTimeSet ? candidates.getMostRecentCovering(parser.startTime, (blob) -> blobMatchesParser(blob, parser))
+				: candidates.getMostRecent((blob) -> blobMatchesParser(blob, parser));
 
 		try {
 			if (bestMatch == null || !bestMatch.isComplete())
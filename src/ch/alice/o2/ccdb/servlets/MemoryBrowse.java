@@ -2,7 +2,6 @@ package ch.alice.o2.ccdb.servlets;
 
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.lang.ref.Reference;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -19,6 +18,7 @@ import javax.servlet.http.HttpServletResponse;
 
 import ch.alice.o2.ccdb.RequestParser;
 import ch.alice.o2.ccdb.multicast.Blob;
+import ch.alice.o2.ccdb.multicast.BlobSeries;
 import ch.alice.o2.ccdb.multicast.UDPReceiver;
 import ch.alice.o2.ccdb.servlets.formatters.FormatterFactory;
 import ch.alice.o2.ccdb.servlets.formatters.SQLFormatter;
@@ -104,7 +104,7 @@ public class MemoryBrowse extends HttpServlet {
 
 				final Map<String, SubfolderStats> subfolderAggregate = new TreeMap<>();
 
-				for (final Map.Entry<String, List<Reference<Blob>>> entry : UDPReceiver.currentCacheContent.entrySet()) {
+				for (final Map.Entry<String, BlobSeries> entry : UDPReceiver.currentCacheContent.entrySet()) {
 					final String key = entry.getKey();
 
 					if (parser.path == null || parser.path.length() == 0 || key.startsWith(parser.path + "/")) {
@@ -124,12 +124,8 @@ public class MemoryBrowse extends HttpServlet {
 
 						final SubfolderStats stats = subfolderAggregate.computeIfAbsent(firstLevelFolder, k -> new SubfolderStats());
 
-						for (final Reference<Blob> sb : entry.getValue()) {
-							final Blob b = sb.get();
-
-							if (b != null)
-								stats.addObject(isOwnData, b.getSize());
-						}
+						for (final Blob b : entry.getValue().getBlobs())
+							stats.addObject(isOwnData, b.getSize());
 					}
 				}
 
@@ -193,18 +189,13 @@ public class MemoryBrowse extends HttpServlet {
 				pathFilter = pathFilter.substring(0, pathFilter.length() - 1);
 		}
 
-		for (final Map.Entry<String, List<Reference<Blob>>> entry : UDPReceiver.currentCacheContent.entrySet()) {
+		for (final Map.Entry<String, BlobSeries> entry : UDPReceiver.currentCacheContent.entrySet()) {
 			final String path = entry.getKey();
 
 			if ((pFilter == null && path.equals(pathFilter)) || (pFilter != null && pFilter.matcher(path).matches())) {
 				Blob bBest = null;
 
-				for (final Reference<Blob> sb : entry.getValue()) {
-					final Blob b = sb.get();
-
-					if (b == null)
-						continue;
-
+				for (final Blob b : entry.getValue().getBlobs()) {
 					if (Memory.blobMatchesParser(b, parser)) {
 						if (parser.latestFlag) {
 							if (bBest == null || b.compareTo(bBest) < 0)
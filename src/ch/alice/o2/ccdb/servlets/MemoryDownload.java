@@ -1,8 +1,6 @@
 package ch.alice.o2.ccdb.servlets;
 
 import java.io.IOException;
-import java.lang.ref.Reference;
-import java.util.List;
 import java.util.UUID;
 
 import javax.servlet.ServletException;
@@ -15,6 +13,7 @@ import alien.monitoring.Monitor;
 import alien.monitoring.MonitorFactory;
 import alien.monitoring.Timing;
 import ch.alice.o2.ccdb.multicast.Blob;
+import ch.alice.o2.ccdb.multicast.BlobSeries;
 import ch.alice.o2.ccdb.multicast.UDPReceiver;
 
 /**
@@ -59,21 +58,8 @@ public class MemoryDownload extends HttpServlet {
 
 		Blob match = null;
 
-		for (List<Reference<Blob>> candidates : UDPReceiver.currentCacheContent.values()) {
-			if (candidates == null || candidates.size() == 0)
-				continue;
-
-			for (final Reference<Blob> sblob : candidates) {
-				final Blob blob = sblob.get();
-
-				if (blob == null)
-					continue;
-
-				if (blob.getUuid().equals(id)) {
-					match = blob;
-					break;
-				}
-			}
+		for (final BlobSeries candidates : UDPReceiver.currentCacheContent.values()) {
+			match = candidates.get(id);
 
 			if (match != null)
 				break;
@@ -90,7 +76,7 @@ public class MemoryDownload extends HttpServlet {
 			Memory.download(match, request, response);
 		}
 		else {
-			response.setContentLengthLong(match.getPayload().length);
+			response.setContentLengthLong(match.getSize());
 			response.setHeader("Content-Disposition", "inline;filename=\"" + match.getOriginalName() + "\"");
 			response.setHeader("Content-Type", match.getMetadataMap().getOrDefault("Content-Type", "application/octet-stream"));
 			response.setHeader("Accept-Ranges", "bytes");
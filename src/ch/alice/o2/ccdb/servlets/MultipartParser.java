@@ -0,0 +1,314 @@
+package ch.alice.o2.ccdb.servlets;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Incremental parser of a <code>multipart/form-data</code> request body. Unlike {@link javax.servlet.http.HttpServletRequest#getParts()}, which stores the entire body in memory or in temporary
+ * files before the servlet gets to see any of it, the content of each part is handed out as it arrives, through a fixed size buffer.
+ *
+ * <pre>
+ * while (parser.nextPart())
+ * 	while ((n = parser.read(buffer, 0, buffer.length)) &gt;= 0)
+ * 		...
+ * </pre>
+ *
+ * @author costing
+ * @since 2026-10-18
+ */
+final class MultipartParser {
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final InputStream input;
+
+	/**
+	 * <code>CRLF--boundary</code>, that ends the content of each part
+	 */
+	private final byte[] delimiter;
+
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+
+	private int pos = 0;
+
+	private int end = 0;
+
+	private boolean eof = false;
+
+	/**
+	 * <code>true</code> while there is content left in the current part (or in the preamble, before the first part)
+	 */
+	private boolean inPart = true;
+
+	private boolean finished = false;
+
+	private String name = null;
+
+	private String fileName = null;
+
+	private String contentType = null;
+
+	/**
+	 * All headers of the current part, with lowercase names
+	 */
+	private final Map<String, String> headers = new HashMap<>();
+
+	/**
+	 * @param input request body
+	 * @param boundary the boundary parameter of the request content type
+	 */
+	MultipartParser(final InputStream input, final String boundary) {
+		this.input = input;
+		this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+
+		// the first boundary is not preceded by a line break, pretend it was so that the preamble ends like any part
+		buffer[0] = '\r';
+		buffer[1] = '\n';
+		end = 2;
+	}
+
+	/**
+	 * @param contentType request content type
+	 * @return the multipart boundary, or <code>null</code> if this is not a multipart content type
+	 */
+	static String getBoundary(final String contentType) {
+		if (contentType == null || !contentType.toLowerCase().startsWith("multipart/"))
+			return null;
+
+		final String boundary = getParameter(contentType, "boundary");
+
+		if (boundary == null || boundary.isEmpty() || boundary.length() > 70)
+			return null;
+
+		return boundary;
+	}
+
+	/**
+	 * Skip what is left of the current part and read the headers of the next one
+	 *
+	 * @return <code>true</code> if there is another part, <code>false</code> if the end of the body was reached
+	 * @throws IOException if the body is truncated or malformed
+	 */
+	boolean nextPart() throws IOException {
+		if (finished)
+			return false;
+
+		if (inPart) {
+			final byte[] skip = new byte[BUFFER_SIZE];
+
+			while (read(skip, 0, skip.length) >= 0) {
+				// ignore the rest of the current part
+			}
+		}
+
+		// positioned right after the delimiter, either "--" (the last one) or optional whitespace and a line break follow
+		if (!ensure(2))
+			throw new EOFException("Multipart body ends without the closing delimiter");
+
+		if (buffer[pos] == '-' && buffer[pos + 1] == '-') {
+			finished = true;
+			return false;
+		}
+
+		readLine();
+
+		name = fileName = contentType = null;
+		headers.clear();
+
+		String line;
+
+		while (!(line = readLine()).isEmpty()) {
+			final int idx = line.indexOf(':');
+
+			if (idx <= 0)
+				continue;
+
+			final String header = line.substring(0, idx).trim();
+			final String value = line.substring(idx + 1).trim();
+
+			headers.put(header.toLowerCase(), value);
+
+			if (header.equalsIgnoreCase("Content-Disposition")) {
+				name = getParameter(value, "name");
+				fileName = getParameter(value, "filename");
+			}
+			else
+				if (header.equalsIgnoreCase("Content-Type"))
+					contentType = value;
+		}
+
+		inPart = true;
+
+		return true;
+	}
+
+	/**
+	 * Read from the content of the current part
+	 *
+	 * @param b
+	 * @param off
+	 * @param len
+	 * @return number of bytes read, or <code>-1</code> at the end of the part
+	 * @throws IOException
+	 */
+	int read(final byte[] b, final int off, final int len) throws IOException {
+		if (!inPart)
+			return -1;
+
+		while (true) {
+			final int idx = indexOfDelimiter();
+
+			final int available;
+
+			if (idx >= 0) {
+				if (idx == pos) {
+					pos += delimiter.length;
+					inPart = false;
+					return -1;
+				}
+
+				available = idx - pos;
+			}
+			else
+				// the tail of the buffer could be the beginning of the delimiter
+				available = end - pos - delimiter.length + 1;
+
+			if (available > 0) {
+				final int n = Math.min(available, len);
+
+				System.arraycopy(buffer, pos, b, off, n);
+				pos += n;
+
+				return n;
+			}
+
+			if (!fill())
+				throw new EOFException("Multipart body ends in the middle of a part");
+		}
+	}
+
+	/**
+	 * @return the field name of the current part
+	 */
+	String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the file name of the current part, if the client has sent one
+	 */
+	String getSubmittedFileName() {
+		return fileName;
+	}
+
+	/**
+	 * @return the content type of the current part, if the client has sent one
+	 */
+	String getContentType() {
+		return contentType;
+	}
+
+	/**
+	 * @param header header name, case insensitive
+	 * @return the value of this header of the current part, or <code>null</code> if it is not set
+	 */
+	String getHeader(final String header) {
+		return headers.get(header.toLowerCase());
+	}
+
+	private int indexOfDelimiter() {
+		final byte first = delimiter[0];
+		final int last = end - delimiter.length;
+
+		outer: for (int i = pos; i <= last; i++) {
+			if (buffer[i] != first)
+				continue;
+
+			for (int j = 1; j < delimiter.length; j++)
+				if (buffer[i + j] != delimiter[j])
+					continue outer;
+
+			return i;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Move the unread bytes to the beginning of the buffer and read more after them
+	 *
+	 * @return <code>false</code> if the input is exhausted or the buffer is full
+	 */
+	private boolean fill() throws IOException {
+		if (eof)
+			return false;
+
+		if (pos > 0) {
+			System.arraycopy(buffer, pos, buffer, 0, end - pos);
+			end -= pos;
+			pos = 0;
+		}
+
+		if (end == buffer.length)
+			return false;
+
+		final int n = input.read(buffer, end, buffer.length - end);
+
+		if (n < 0) {
+			eof = true;
+			return false;
+		}
+
+		end += n;
+
+		return true;
+	}
+
+	private boolean ensure(final int count) throws IOException {
+		while (end - pos < count)
+			if (!fill())
+				return false;
+
+		return true;
+	}
+
+	private String readLine() throws IOException {
+		while (true) {
+			for (int i = pos; i < end - 1; i++)
+				if (buffer[i] == '\r' && buffer[i + 1] == '\n') {
+					final String line = new String(buffer, pos, i - pos, StandardCharsets.UTF_8);
+					pos = i + 2;
+					return line;
+				}
+
+			if (!fill())
+				throw new IOException("Multipart header line too long or truncated");
+		}
+	}
+
+	/**
+	 * @param headerValue a header value like <code>form-data; name="blob"; filename="x.root"</code>
+	 * @param key parameter name
+	 * @return the (unquoted) parameter value, or <code>null</code> if missing
+	 */
+	static String getParameter(final String headerValue, final String key) {
+		for (final String token : headerValue.split(";")) {
+			final int idx = token.indexOf('=');
+
+			if (idx <= 0 || !token.substring(0, idx).trim().equalsIgnoreCase(key))
+				continue;
+
+			String value = token.substring(idx + 1).trim();
+
+			if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\""))
+				value = value.substring(1, value.length() - 1);
+
+			return value;
+		}
+
+		return null;
+	}
+}
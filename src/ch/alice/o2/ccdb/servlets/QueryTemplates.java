@@ -0,0 +1,78 @@
+package ch.alice.o2.ccdb.servlets;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntFunction;
+
+/**
+ * SQL text of the object lookup queries, built once per query shape instead of on every request. A shape is the set of constraints present in the request, see
+ * {@link SQLObject#getOptionArguments(ch.alice.o2.ccdb.RequestParser, java.util.List, boolean)}; all the values are bound as query arguments. Because the same shape always gives the very same
+ * string, the statements can also be reused from the {@link StatementCache}.
+ *
+ * @author costing
+ * @since 2026-10-18
+ */
+final class QueryTemplates {
+	/**
+	 * Upper limit on the number of templates. The shapes are few in practice; past this limit queries are still built, just not cached.
+	 */
+	private static final int MAX_TEMPLATES = 10000;
+
+	private static final Map<Key, String> templates = new ConcurrentHashMap<>();
+
+	private QueryTemplates() {
+		// static methods only
+	}
+
+	private static final class Key {
+		private final Object base;
+		private final int shape;
+
+		Key(final Object base, final int shape) {
+			this.base = base;
+			this.shape = shape;
+		}
+
+		@Override
+		public int hashCode() {
+			return base.hashCode() * 31 + shape;
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+
+			final Key other = (Key) obj;
+
+			return shape == other.shape && base.equals(other.base);
+		}
+	}
+
+	/**
+	 * @param base identifies the query, apart from the shape of its constraints
+	 * @param shape the constraints present in the request
+	 * @param builder called to build the SQL text the first time this shape is seen
+	 * @return the SQL text
+	 */
+	static String get(final Object base, final int shape, final IntFunction<String> builder) {
+		final Key key = new Key(base, shape);
+
+		final String query = templates.get(key);
+
+		if (query != null)
+			return query;
+
+		if (templates.size() >= MAX_TEMPLATES)
+			return builder.apply(shape);
+
+		return templates.computeIfAbsent(key, (k) -> builder.apply(shape));
+	}
+
+	/**
+	 * @return how many query templates are currently cached
+	 */
+	static int size() {
+		return templates.size();
+	}
+}
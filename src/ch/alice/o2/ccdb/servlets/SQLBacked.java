@@ -3,9 +3,10 @@ package ch.alice.o2.ccdb.servlets;
 import static ch.alice.o2.ccdb.servlets.ServletHelper.printUsage;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
@@ -19,12 +20,10 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.servlet.ServletException;
-import javax.servlet.annotation.MultipartConfig;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.servlet.http.Part;
 
 import alien.monitoring.Monitor;
 import alien.monitoring.MonitorFactory;
@@ -46,7 +45,6 @@ import utils.CachedThreadPool;
  * @since 2017-10-13
  */
 @WebServlet("/*")
-@MultipartConfig(fileSizeThreshold = 1024 * 1024 * 100)
 public class SQLBacked extends HttpServlet {
 	private static final long serialVersionUID = 1L;
 
@@ -81,6 +79,11 @@ public class SQLBacked extends HttpServlet {
 
 		MonitorFactory.getMonitor("ch.alice.o2.ccdb.servlets.qc_stats").addMonitoring("qc_stats", new SQLStatsExporter("qc"));
 
+		monitor.addMonitoring("uploads", (names, values) -> {
+			names.add("POST_inflight_bytes");
+			values.add(Double.valueOf(UploadBudget.getInFlight()));
+		});
+
 		if (Options.getIntOption("gridreplication.enabled", 0) == 1) {
 			try {
 				SEUtils.getSE(0);
@@ -275,18 +278,13 @@ public class SQLBacked extends HttpServlet {
 				return;
 			}
 
-			final Collection<Part> parts = request.getParts();
+			final String boundary = MultipartParser.getBoundary(request.getContentType());
 
-			if (parts.size() == 0) {
+			if (boundary == null) {
 				response.sendError(HttpServletResponse.SC_BAD_REQUEST, "POST request doesn't contain the data to upload");
 				return;
 			}
 
-			if (parts.size() > 1) {
-				response.sendError(HttpServletResponse.SC_BAD_REQUEST, "A single object can be uploaded at a time");
-				return;
-			}
-
 			if (EmbeddedTomcat.getEnforceSSL() > 1) {
 				// Role is checked
 
@@ -303,94 +301,179 @@ public class SQLBacked extends HttpServlet {
 				}
 			}
 
-			final Part part = parts.iterator().next();
+			try (UploadBudget.Reservation reservation = new UploadBudget.Reservation()) {
+				final long contentLength = request.getContentLengthLong();
 
-			final SQLObject newObject = SQLObject.fromRequest(request, parser.path, parser.uuidConstraint);
+				if (!reservation.grow(contentLength)) {
+					sendBusy(response);
+					return;
+				}
 
-			final File targetFile = newObject.getLocalFile(true);
+				final MultipartParser part = new MultipartParser(request.getInputStream(), boundary);
 
-			if (targetFile == null) {
-				response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Cannot create target file to perform the upload");
-				return;
-			}
+				try {
+					if (!part.nextPart()) {
+						response.sendError(HttpServletResponse.SC_BAD_REQUEST, "POST request doesn't contain the data to upload");
+						return;
+					}
+				}
+				catch (final IOException ioe) {
+					response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Cannot parse the multipart request: " + ioe.getMessage());
+					return;
+				}
 
-			final MessageDigest md5;
+				final SQLObject newObject = SQLObject.fromRequest(request, parser.path, parser.uuidConstraint);
 
-			try {
-				md5 = MessageDigest.getInstance("MD5");
-			}
-			catch (@SuppressWarnings("unused") final NoSuchAlgorithmException e) {
-				response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Cannot initialize the MD5 digester");
-				return;
-			}
+				final File targetFile = newObject.getLocalFile(true);
 
-			newObject.size = 0;
+				if (targetFile == null) {
+					response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Cannot create target file to perform the upload");
+					return;
+				}
 
-			try (FileOutputStream fos = new FileOutputStream(targetFile); InputStream is = part.getInputStream()) {
-				final byte[] buffer = new byte[1024 * 16];
+				final boolean received;
+				boolean singlePart = false;
 
-				int n;
+				try {
+					received = receive(part, newObject, targetFile, reservation, contentLength < 0);
 
-				while ((n = is.read(buffer)) >= 0) {
-					fos.write(buffer, 0, n);
-					md5.update(buffer, 0, n);
-					newObject.size += n;
+					if (received)
+						singlePart = !part.nextPart();
 				}
-			}
-			catch (@SuppressWarnings("unused") final IOException ioe) {
-				response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Cannot upload the blob to the local file " + targetFile.getAbsolutePath());
+				catch (@SuppressWarnings("unused") final IOException ioe) {
+					response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Cannot upload the blob to the local file " + targetFile.getAbsolutePath());
 
-				if (!targetFile.delete())
-					logger.log(Level.WARNING, "Cannot delete target file of failed upload " + targetFile.getAbsolutePath());
+					if (!targetFile.delete())
+						logger.log(Level.WARNING, "Cannot delete target file of failed upload " + targetFile.getAbsolutePath());
 
-				return;
-			}
+					return;
+				}
 
-			for (final Map.Entry<String, String> constraint : parser.flagConstraints.entrySet())
-				newObject.setProperty(constraint.getKey(), constraint.getValue());
+				if (!received || !singlePart) {
+					if (!received)
+						sendBusy(response);
+					else
+						response.sendError(HttpServletResponse.SC_BAD_REQUEST, "A single object can be uploaded at a time");
 
-			newObject.uploadedFrom = request.getRemoteHost();
-			newObject.fileName = part.getSubmittedFileName();
-			newObject.setContentType(part.getContentType());
-			newObject.md5 = Utils.humanReadableChecksum(md5.digest()); // UUIDTools.getMD5(targetFile);
-			newObject.setProperty("partName", part.getName());
+					if (!targetFile.delete())
+						logger.log(Level.WARNING, "Cannot delete target file of refused upload " + targetFile.getAbsolutePath());
 
-			newObject.replicas.add(Integer.valueOf(0));
+					return;
+				}
 
-			newObject.validFrom = parser.startTime;
+				for (final Map.Entry<String, String> constraint : parser.flagConstraints.entrySet())
+					newObject.setProperty(constraint.getKey(), constraint.getValue());
 
-			newObject.setValidityLimit(parser.endTime);
+				newObject.uploadedFrom = request.getRemoteHost();
+				newObject.fileName = part.getSubmittedFileName();
+				newObject.setContentType(part.getContentType());
+				newObject.setProperty("partName", part.getName());
 
-			if (!newObject.save(request)) {
-				response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Cannot insert the object in the database");
-				return;
+				newObject.replicas.add(Integer.valueOf(0));
+
+				newObject.validFrom = parser.startTime;
+
+				newObject.setValidityLimit(parser.endTime);
+
+				if (!newObject.save(request)) {
+					response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Cannot insert the object in the database");
+					return;
+				}
+
+				setHeaders(newObject, response);
+
+				final String location = newObject.getAddress(Integer.valueOf(0)).iterator().next();
+
+				response.setHeader("Location", location);
+				response.setHeader("Content-Location", location);
+				response.sendError(HttpServletResponse.SC_CREATED);
+
+				notifyNewObjects(List.of(newObject));
+
+				if (monitor != null)
+					monitor.addMeasurement("POST_data", newObject.size);
 			}
+		}
+	}
 
-			setHeaders(newObject, response);
+	/**
+	 * Write the content of the current part to the target file, computing its size and MD5 checksum on the way
+	 *
+	 * @param part multipart body, positioned at the part to receive
+	 * @param newObject object to set the size and checksum of
+	 * @param targetFile where to write the content
+	 * @param reservation upload budget of this request
+	 * @param accountAsReceived whether the budget has to grow with the content, for requests of unknown length
+	 * @return <code>true</code> if the content was received, <code>false</code> if the upload budget was exhausted before the end of it
+	 * @throws IOException
+	 */
+	static boolean receive(final MultipartParser part, final SQLObject newObject, final File targetFile, final UploadBudget.Reservation reservation, final boolean accountAsReceived)
+			throws IOException {
+		final MessageDigest md5;
 
-			final String location = newObject.getAddress(Integer.valueOf(0)).iterator().next();
+		try {
+			md5 = MessageDigest.getInstance("MD5");
+		}
+		catch (final NoSuchAlgorithmException e) {
+			throw new IOException("Cannot initialize the MD5 digester", e);
+		}
 
-			response.setHeader("Location", location);
-			response.setHeader("Content-Location", location);
-			response.sendError(HttpServletResponse.SC_CREATED);
+		newObject.size = 0;
 
-			asyncOperations.execute(() -> {
-				for (final SQLNotifier notifier : notifiers) {
-					if (notifier instanceof SQLtoUDP) {
+		try (FileChannel fc = FileChannel.open(targetFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			final byte[] buffer = new byte[1024 * 64];
+			final ByteBuffer bb = ByteBuffer.wrap(buffer);
+
+			int n;
+
+			while ((n = part.read(buffer, 0, buffer.length)) >= 0) {
+				if (accountAsReceived && !reservation.grow(n))
+					return false;
+
+				md5.update(buffer, 0, n);
+
+				bb.clear().limit(n);
+
+				while (bb.hasRemaining())
+					fc.write(bb);
+
+				newObject.size += n;
+			}
+		}
+
+		newObject.md5 = Utils.humanReadableChecksum(md5.digest());
+
+		return true;
+	}
+
+	/**
+	 * Hand new objects over to the notifiers (replication, multicast and so on), in one background task
+	 *
+	 * @param newObjects
+	 */
+	static void notifyNewObjects(final List<SQLObject> newObjects) {
+		asyncOperations.execute(() -> {
+			for (final SQLNotifier notifier : notifiers) {
+				if (notifier instanceof SQLtoUDP) {
+					for (final SQLObject newObject : newObjects)
 						if (lazyj.Utils.stringToBool(newObject.getProperty("forSyncReco"), true))
-							AsyncMulticastQueue.queueObject(newObject);
-					}
-					else
-						notifier.newObject(newObject);
+							AsyncMulticastQueue.queueNewObject(newObject);
 				}
-			});
+				else
+					notifier.newObjects(newObjects);
+			}
+		});
+	}
 
-			if (monitor != null)
-				monitor.addMeasurement("POST_data", newObject.size);
-		}
+	static void sendBusy(final HttpServletResponse response) throws IOException {
+		response.setHeader("Retry-After", String.valueOf(UploadBudget.retryAfter));
+		response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many uploads in progress, please retry later");
+
+		if (monitor != null)
+			monitor.incrementCounter("POST_busy");
 	}
 
-	private static boolean canWrite(final AliEnPrincipal account, final String path) {
+	static boolean canWrite(final AliEnPrincipal account, final String path) {
 		if (account.hasRole("ccdb"))
 			return true;
 
@@ -488,10 +571,7 @@ public class SQLBacked extends HttpServlet {
 
 			response.sendError(HttpServletResponse.SC_NO_CONTENT);
 
-			asyncOperations.execute(() -> {
-				for (final SQLNotifier notifier : notifiers)
-					notifier.deletedObject(matchingObject);
-			});
+			AsyncPhysicalRemovalThread.queueDeletion(matchingObject);
 		}
 	}
 
@@ -519,6 +599,27 @@ public class SQLBacked extends HttpServlet {
 	static {
 		// make sure the database structures exist when the server is initialized
 		createDBStructure();
+
+		// future partitions of a time-partitioned ccdb table
+		SQLPartitioning.startMaintenance();
+
+		// finish the physical removals that were pending when the server was stopped
+		AsyncPhysicalRemovalThread.startWorkers();
+
+		// warm up the dictionary caches in parallel with the rest of the server startup
+		DictionaryPreloader.startPreloading();
+
+		// optionally delay accepting requests until the warm-up is done, otherwise early requests fall back to the database for each missing key
+		final int preloadWait = Options.getIntOption("dictionary.preload.wait", 0);
+
+		if (preloadWait > 0)
+			try {
+				if (!DictionaryPreloader.await(preloadWait, TimeUnit.SECONDS))
+					System.err.println("Dictionary preloading didn't finish in " + preloadWait + "s, continuing the startup");
+			}
+			catch (@SuppressWarnings("unused") final InterruptedException e) {
+				// ignore
+			}
 	}
 
 	/**
@@ -533,12 +634,23 @@ public class SQLBacked extends HttpServlet {
 					db.query("CREATE TABLE IF NOT EXISTS ccdb_paths (pathId SERIAL PRIMARY KEY, path text UNIQUE NOT NULL);");
 					db.query("CREATE TABLE IF NOT EXISTS ccdb_contenttype (contentTypeId SERIAL PRIMARY KEY, contentType text UNIQUE NOT NULL);");
 
-					db.query(
-							"CREATE TABLE IF NOT EXISTS ccdb (id uuid PRIMARY KEY, pathId int NOT NULL REFERENCES ccdb_paths(pathId) ON UPDATE CASCADE, validity tsrange, createTime bigint NOT NULL, replicas integer[], size bigint, "
-									+ "md5 uuid, filename text, contenttype int REFERENCES ccdb_contenttype(contentTypeId) ON UPDATE CASCADE, uploadedfrom inet, initialvalidity bigint, metadata hstore, lastmodified bigint);");
-					db.query("CREATE INDEX IF NOT EXISTS ccdb_pathId2_idx ON ccdb(pathId);");
-					db.query("ALTER TABLE ccdb ALTER validity SET STATISTICS 10000;");
-					db.query("CREATE INDEX IF NOT EXISTS ccdb_validity2_idx on ccdb using gist(validity);");
+					final SQLPartitioning.Layout layout = SQLPartitioning.getLayout();
+
+					if (layout != SQLPartitioning.Layout.NONE && !SQLPartitioning.exists(db, "ccdb"))
+						SQLPartitioning.createTable(db, "ccdb", layout);
+					else
+						if (!SQLPartitioning.isPartitioned(db, "ccdb")) {
+							db.query("CREATE TABLE IF NOT EXISTS ccdb (" + SQLPartitioning.CCDB_COLUMNS + ", PRIMARY KEY (id));");
+							db.query("CREATE INDEX IF NOT EXISTS ccdb_pathId2_idx ON ccdb(pathId);");
+							db.query("ALTER TABLE ccdb ALTER validity SET STATISTICS 10000;");
+							db.query("CREATE INDEX IF NOT EXISTS ccdb_validity2_idx on ccdb using gist(validity);");
+
+							if (layout != SQLPartitioning.Layout.NONE)
+								System.err.println("The ccdb table is not partitioned, run ch.alice.o2.ccdb.tools.PartitionMigration to convert it to the " + layout + " layout");
+						}
+						else
+							// tables partitioned before the IDs were indexed separately
+							SQLPartitioning.createIdTable(db, "ccdb");
 
 					db.query("CREATE TABLE IF NOT EXISTS ccdb_metadata (metadataId SERIAL PRIMARY KEY, metadataKey text UNIQUE NOT NULL);");
 					db.query("CREATE TABLE IF NOT EXISTS config(key TEXT PRIMARY KEY, value TEXT);");
@@ -557,7 +669,10 @@ public class SQLBacked extends HttpServlet {
 					if (db.geti(1) == 0)
 						recomputeStatistics();
 
-					db.query("CREATE OR REPLACE FUNCTION ccdb_increment() RETURNS TRIGGER AS $_$\n" + "    BEGIN\n" + "        INSERT INTO \n"
+					// the group commit transactions (see GroupCommit) update the statistics once per batch, the instances with asynchronous statistics (see StatsCounters) periodically
+					db.query("CREATE OR REPLACE FUNCTION ccdb_increment() RETURNS TRIGGER AS $_$\n" + "    BEGIN\n"
+							+ "        IF current_setting('ccdb.group_commit', true) = 'on' OR current_setting('ccdb.stats_async', true) = 'on' THEN\n" + "            RETURN NEW;\n"
+							+ "        END IF;\n" + "\n" + "        INSERT INTO \n"
 							+ "            ccdb_stats (pathid, object_count, object_size) VALUES (NEW.pathid, 1, NEW.size)\n"
 							+ "        ON CONFLICT (pathid) DO UPDATE SET object_count=ccdb_stats.object_count+1, object_size=ccdb_stats.object_size+NEW.size;\n" + "\n" + "        INSERT INTO\n"
 							+ "            ccdb_stats (pathid, object_count, object_size) VALUES (0, 1, NEW.size)\n"
@@ -565,11 +680,23 @@ public class SQLBacked extends HttpServlet {
 							+ "    END\n" + "$_$ LANGUAGE 'plpgsql';");
 
 					db.query("CREATE OR REPLACE FUNCTION ccdb_decrement() RETURNS TRIGGER AS $_$\n" + "    BEGIN\n"
-							+ "        UPDATE ccdb_stats SET object_count=object_count-1, object_size=object_size-OLD.size WHERE pathid IN (0, OLD.pathid);\n" + "        RETURN NEW;\n" + "    END\n"
+							+ "        IF current_setting('ccdb.stats_async', true) = 'on' THEN\n" + "            RETURN NEW;\n" + "        END IF;\n" + "\n"
+							+ "        UPDATE ccdb_stats SET object_count=object_count-1, object_size=object_size-OLD.size WHERE pathid=OLD.pathid;\n"
+							+ "        UPDATE ccdb_stats SET object_count=object_count-1, object_size=object_size-OLD.size WHERE pathid=0;\n" + "        RETURN NEW;\n" + "    END\n"
 							+ "$_$ LANGUAGE 'plpgsql';");
 
-					db.query("CREATE TRIGGER ccdb_increment_trigger AFTER INSERT ON ccdb FOR EACH ROW EXECUTE PROCEDURE ccdb_increment();", true);
-					db.query("CREATE TRIGGER ccdb_decrement_trigger AFTER DELETE ON ccdb FOR EACH ROW EXECUTE PROCEDURE ccdb_decrement();", true);
+					createLatestTable(db);
+
+					for (final String trigger : getTriggerDefinitions())
+						db.query(trigger, true);
+
+					if (SQLObject.latestTable) {
+						db.query("SELECT count(1) FROM ccdb_latest;");
+
+						if (db.geti(1) == 0)
+							db.query(
+									"INSERT INTO ccdb_latest (pathid, id, createtime) SELECT DISTINCT ON (pathid) pathid, id, createtime FROM ccdb ORDER BY pathid, createtime DESC ON CONFLICT (pathid) DO NOTHING;");
+					}
 
 					// cache-less utils
 
@@ -591,42 +718,83 @@ public class SQLBacked extends HttpServlet {
 								+ "end $$ language plpgsql;");
 					}
 
+					// set-based translations between metadata key names and IDs, one join instead of a sub-select for each key
 					db.query("create or replace function ccdb_metadata_latest_keyid_value (values_to_insert hstore) returns hstore as $$\n" +
-							"declare \n" +
-							"	actual_ids_to_insert hstore := ''::hstore;\n" +
-							"	value text;\n" +
-							"begin\n" +
-							"	foreach value in array akeys(values_to_insert) loop\n" +
-							"		actual_ids_to_insert := actual_ids_to_insert || hstore((select metadataId from ccdb_metadata where metadataKey = value)::text, values_to_insert -> value);\n" +
-							"	end loop;\n" +
-							"	return actual_ids_to_insert;\n" +
-							"end\n" +
-							"$$ language plpgsql;");
+							"    select coalesce(hstore(array_agg(m.metadataId::text), array_agg(e.value)), ''::hstore)\n" +
+							"    from each(values_to_insert) as e inner join ccdb_metadata as m on m.metadataKey = e.key;\n" +
+							"$$ language sql stable;");
 					db.query("create or replace function ccdb_metadata_latest_key_value (keyid_value hstore) returns hstore as $$\n" +
-							"declare \n" +
-							"    key_value hstore := ''::hstore;\n" +
-							"    id integer;\n" +
-							"begin\n" +
-							"    foreach id in array akeys(keyid_value) loop\n" +
-							"        key_value := key_value || hstore((select metadataKey from ccdb_metadata where metadataId = id)::text, keyid_value -> cast(id as text));\n" +
-							"    end loop;\n" +
-							"    return key_value;\n" +
-							"end\n" +
-							"$$ language plpgsql;\n");
-					db.query("create view ccdb_view as \n" +
-							"    select ccdb.*, \n" +
-							"        paths.path as path, \n" +
-							"        ctype.contenttype as contenttype_value, \n" +
-							"        ccdb_metadata_latest_key_value(ccdb.metadata) as metadata_key_value\n" +
-							"    from ccdb  \n" +
-							"        left outer join ccdb_paths as paths on ccdb.pathid = paths.pathid\n" +
-							"        left outer join ccdb_contenttype as ctype on ccdb.contenttype = ctype.contenttypeid;");
+							"    select coalesce(hstore(array_agg(m.metadataKey), array_agg(e.value)), ''::hstore)\n" +
+							"    from each(keyid_value) as e inner join ccdb_metadata as m on m.metadataId = e.key::int;\n" +
+							"$$ language sql stable;");
+					db.query(CCDB_VIEW);
 				}
 				else
 					throw new IllegalArgumentException("Only PostgreSQL support is implemented at the moment");
 		}
 	}
 
+	/**
+	 * The most recent object of each path, kept up to date by triggers, for the lookups without any constraint (see {@link SQLObject#latestTable})
+	 *
+	 * @param db
+	 */
+	private static void createLatestTable(final DBFunctions db) {
+		if (!SQLObject.latestTable) {
+			// a table that is no longer maintained would be stale by the time it is enabled again
+			db.query("DROP TABLE IF EXISTS ccdb_latest;", true);
+			db.query("DROP TRIGGER IF EXISTS ccdb_latest_insert_trigger ON ccdb;", true);
+			db.query("DROP TRIGGER IF EXISTS ccdb_latest_delete_trigger ON ccdb;", true);
+			return;
+		}
+
+		db.query("CREATE TABLE IF NOT EXISTS ccdb_latest (pathid int primary key, id uuid NOT NULL, createtime bigint NOT NULL);");
+
+		// statement-level triggers, so that bulk inserts and deletes only touch each path once
+		db.query("CREATE OR REPLACE FUNCTION ccdb_latest_insert() RETURNS TRIGGER AS $_$\n" + "    BEGIN\n"
+				+ "        INSERT INTO ccdb_latest (pathid, id, createtime) SELECT DISTINCT ON (pathid) pathid, id, createtime FROM new_rows ORDER BY pathid, createtime DESC\n"
+				+ "        ON CONFLICT (pathid) DO UPDATE SET id=EXCLUDED.id, createtime=EXCLUDED.createtime WHERE ccdb_latest.createtime<=EXCLUDED.createtime;\n" + "        RETURN NULL;\n"
+				+ "    END\n" + "$_$ LANGUAGE 'plpgsql';");
+
+		db.query("CREATE OR REPLACE FUNCTION ccdb_latest_delete() RETURNS TRIGGER AS $_$\n" + "    BEGIN\n"
+				+ "        WITH removed AS (DELETE FROM ccdb_latest WHERE id IN (SELECT id FROM old_rows) RETURNING pathid)\n"
+				+ "        INSERT INTO ccdb_latest (pathid, id, createtime) SELECT c.pathid, c.id, c.createtime FROM removed CROSS JOIN LATERAL\n"
+				+ "            (SELECT pathid, id, createtime FROM ccdb WHERE ccdb.pathid=removed.pathid ORDER BY createtime DESC LIMIT 1) AS c\n"
+				+ "        ON CONFLICT (pathid) DO NOTHING;\n" + "        RETURN NULL;\n" + "    END\n" + "$_$ LANGUAGE 'plpgsql';");
+
+	}
+
+	/**
+	 * Definition of the multi-master view of the <code>ccdb</code> table, with the values of the path, content type and metadata keys instead of their IDs. The metadata keys are translated with
+	 * a join on <code>ccdb_metadata</code> in the query itself, not with a function call per row.
+	 */
+	public static final String CCDB_VIEW = "create or replace view ccdb_view as \n" +
+			"    select ccdb.*, \n" +
+			"        paths.path as path, \n" +
+			"        ctype.contenttype as contenttype_value, \n" +
+			"        (select coalesce(hstore(array_agg(m.metadataKey), array_agg(e.value)), ''::hstore) \n" +
+			"            from each(ccdb.metadata) as e inner join ccdb_metadata as m on m.metadataId = e.key::int) as metadata_key_value\n" +
+			"    from ccdb  \n" +
+			"        left outer join ccdb_paths as paths on ccdb.pathid = paths.pathid\n" +
+			"        left outer join ccdb_contenttype as ctype on ccdb.contenttype = ctype.contenttypeid;";
+
+	/**
+	 * @return the triggers to set on the <code>ccdb</code> table, keeping <code>ccdb_stats</code> and <code>ccdb_latest</code> up to date
+	 */
+	public static List<String> getTriggerDefinitions() {
+		final List<String> triggers = new ArrayList<>();
+
+		triggers.add("CREATE TRIGGER ccdb_increment_trigger AFTER INSERT ON ccdb FOR EACH ROW EXECUTE PROCEDURE ccdb_increment();");
+		triggers.add("CREATE TRIGGER ccdb_decrement_trigger AFTER DELETE ON ccdb FOR EACH ROW EXECUTE PROCEDURE ccdb_decrement();");
+
+		if (SQLObject.latestTable) {
+			triggers.add("CREATE TRIGGER ccdb_latest_insert_trigger AFTER INSERT ON ccdb REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE ccdb_latest_insert();");
+			triggers.add("CREATE TRIGGER ccdb_latest_delete_trigger AFTER DELETE ON ccdb REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE ccdb_latest_delete();");
+		}
+
+		return triggers;
+	}
+
 	private static void recomputeStatistics() {
 		try (DBFunctions db = SQLObject.getDB()) {
 			db.query("TRUNCATE ccdb_stats;");
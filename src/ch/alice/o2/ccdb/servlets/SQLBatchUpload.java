@@ -0,0 +1,229 @@
+package ch.alice.o2.ccdb.servlets;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import alien.monitoring.Monitor;
+import alien.monitoring.MonitorFactory;
+import alien.monitoring.Timing;
+import alien.user.AliEnPrincipal;
+import alien.user.UserFactory;
+import ch.alice.o2.ccdb.Options;
+import ch.alice.o2.ccdb.RequestParser;
+import ch.alice.o2.ccdb.webserver.EmbeddedTomcat;
+import lazyj.Format;
+
+/**
+ * Upload many objects in a single request. The body is a <code>multipart/form-data</code> with one part per object. The object path comes from the <code>Object-Path</code> header of the part, or
+ * if missing from its field name, in the same format as the URL of a single upload: <code>path/startTime[/endTime][/key=value]*[/UUID]</code>.<br>
+ * <br>
+ * The content of all parts is written to disk as it arrives, then all the objects are inserted in the database with one statement and the notifiers are given the entire batch at once. The reply is a
+ * JSON document with the status of each object, in the order of the parts.
+ *
+ * @author costing
+ * @since 2026-10-18
+ */
+@WebServlet("/batch/*")
+public class SQLBatchUpload extends HttpServlet {
+	private static final long serialVersionUID = 1L;
+
+	private static final Monitor monitor = MonitorFactory.getMonitor(SQLBatchUpload.class.getCanonicalName());
+
+	private static final Logger logger = Logger.getLogger(SQLBatchUpload.class.getCanonicalName());
+
+	/**
+	 * Largest number of objects in one batch, the following parts are refused. It also bounds the number of parameters of the insert statement.
+	 */
+	private static final int maxObjects = Options.getIntOption("upload.batch.max_objects", 1000);
+
+	@Override
+	protected void doPost(final HttpServletRequest request, final HttpServletResponse response) throws ServletException, IOException {
+		try (Timing t = new Timing(monitor, "BATCH_ms")) {
+			final String boundary = MultipartParser.getBoundary(request.getContentType());
+
+			if (boundary == null) {
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST, "The objects to upload have to be sent as a multipart body");
+				return;
+			}
+
+			AliEnPrincipal account = null;
+
+			if (EmbeddedTomcat.getEnforceSSL() > 1) {
+				account = UserFactory.get(request);
+
+				if (account == null) {
+					response.sendError(HttpServletResponse.SC_FORBIDDEN, "Show your ID please");
+					return;
+				}
+			}
+
+			final List<Map<String, Object>> status = new ArrayList<>();
+
+			final List<SQLObject> received = new ArrayList<>();
+
+			final List<Map<String, Object>> receivedStatus = new ArrayList<>();
+
+			long receivedBytes = 0;
+
+			try (UploadBudget.Reservation reservation = new UploadBudget.Reservation()) {
+				final long contentLength = request.getContentLengthLong();
+
+				if (!reservation.grow(contentLength)) {
+					SQLBacked.sendBusy(response);
+					return;
+				}
+
+				final MultipartParser part = new MultipartParser(request.getInputStream(), boundary);
+
+				try {
+					while (part.nextPart()) {
+						final Map<String, Object> objectStatus = new LinkedHashMap<>();
+						status.add(objectStatus);
+
+						String objectPath = part.getHeader("Object-Path");
+
+						if (objectPath == null)
+							objectPath = part.getName();
+
+						objectStatus.put("path", objectPath);
+
+						if (status.size() > maxObjects) {
+							setStatus(objectStatus, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "At most " + maxObjects + " objects can be uploaded in one batch");
+							continue;
+						}
+
+						final RequestParser parser = RequestParser.fromPath(objectPath);
+
+						if (!parser.ok) {
+							setStatus(objectStatus, HttpServletResponse.SC_BAD_REQUEST, "Cannot parse the object path, expecting path/startTime[/endTime][/key=value]*[/UUID]");
+							continue;
+						}
+
+						if (account != null && !SQLBacked.canWrite(account, parser.path)) {
+							setStatus(objectStatus, HttpServletResponse.SC_FORBIDDEN, "You are not allowed to write to this path");
+							continue;
+						}
+
+						final SQLObject newObject = SQLObject.fromRequest(request, parser.path, parser.uuidConstraint);
+
+						final File targetFile = newObject.getLocalFile(true);
+
+						if (targetFile == null) {
+							setStatus(objectStatus, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Cannot create target file to perform the upload");
+							continue;
+						}
+
+						try {
+							if (!SQLBacked.receive(part, newObject, targetFile, reservation, contentLength < 0)) {
+								delete(targetFile);
+
+								// stop reading the body, the following parts are not listed in the reply
+								setStatus(objectStatus, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many uploads in progress, please retry later");
+								response.setHeader("Retry-After", String.valueOf(UploadBudget.retryAfter));
+								break;
+							}
+						}
+						catch (final IOException ioe) {
+							delete(targetFile);
+							throw ioe;
+						}
+
+						for (final Map.Entry<String, String> constraint : parser.flagConstraints.entrySet())
+							newObject.setProperty(constraint.getKey(), constraint.getValue());
+
+						newObject.uploadedFrom = request.getRemoteHost();
+						newObject.fileName = part.getSubmittedFileName();
+						newObject.setContentType(part.getContentType());
+						newObject.setProperty("partName", part.getName());
+
+						newObject.replicas.add(Integer.valueOf(0));
+
+						newObject.validFrom = parser.startTime;
+
+						newObject.setValidityLimit(parser.endTime);
+
+						received.add(newObject);
+						receivedStatus.add(objectStatus);
+
+						receivedBytes += newObject.size;
+					}
+				}
+				catch (final IOException ioe) {
+					// the body is incomplete, nothing of it is kept
+					for (final SQLObject object : received)
+						delete(object.getLocalFile(false));
+
+					response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Cannot read the multipart request: " + ioe.getMessage());
+					return;
+				}
+			}
+
+			final List<SQLObject> failed = SQLObject.insertAll(request, received);
+
+			final List<SQLObject> created = new ArrayList<>(received.size());
+
+			for (int i = 0; i < received.size(); i++) {
+				final SQLObject object = received.get(i);
+				final Map<String, Object> objectStatus = receivedStatus.get(i);
+
+				objectStatus.put("id", object.id.toString());
+
+				if (failed.contains(object)) {
+					delete(object.getLocalFile(false));
+					setStatus(objectStatus, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Cannot insert the object in the database");
+				}
+				else {
+					objectStatus.put("Location", object.getAddress(Integer.valueOf(0)).iterator().next());
+					objectStatus.put("Content-MD5", object.md5);
+					setStatus(objectStatus, HttpServletResponse.SC_CREATED, null);
+
+					created.add(object);
+				}
+			}
+
+			if (created.size() > 0)
+				SQLBacked.notifyNewObjects(created);
+
+			if (monitor != null) {
+				monitor.addMeasurement("BATCH_objects", created.size());
+				monitor.addMeasurement("BATCH_data", receivedBytes);
+			}
+
+			final Map<String, Object> reply = new LinkedHashMap<>();
+			reply.put("created", Integer.valueOf(created.size()));
+			reply.put("failed", Integer.valueOf(status.size() - created.size()));
+			reply.put("objects", status);
+
+			response.setContentType("application/json");
+
+			try (PrintWriter pw = response.getWriter()) {
+				pw.print(Format.toJSON(reply, false));
+			}
+		}
+	}
+
+	private static void setStatus(final Map<String, Object> objectStatus, final int code, final String message) {
+		objectStatus.put("status", Integer.valueOf(code));
+
+		if (message != null)
+			objectStatus.put("message", message);
+	}
+
+	private static void delete(final File f) {
+		if (f != null && f.exists() && !f.delete())
+			logger.log(Level.WARNING, "Cannot delete target file of failed upload " + f.getAbsolutePath());
+	}
+}
@@ -2,7 +2,6 @@ package ch.alice.o2.ccdb.servlets;
 
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.Collection;
 import java.util.Map;
 
 import javax.servlet.ServletException;
@@ -50,8 +49,6 @@ public class SQLBrowse extends HttpServlet {
 			 * }
 			 */
 
-			final Collection<SQLObject> matchingObjects = SQLObject.getAllMatchingObjects(parser);
-
 			final SQLFormatter formatter = FormatterFactory.getFormatter(request);
 
 			response.setContentType(formatter.getContentType());
@@ -64,25 +61,28 @@ public class SQLBrowse extends HttpServlet {
 
 			formatter.setExtendedReport(sizeReport);
 
+			// the statistics changes still held in memory by this instance are added to what the database has
+			final Map<Integer, long[]> pendingStats = sizeReport ? StatsCounters.getPendingChanges() : null;
+
 			try (PrintWriter pw = response.getWriter()) {
 				formatter.start(pw);
 
 				formatter.header(pw);
 
-				boolean first = true;
+				final boolean[] firstObject = { true };
 
-				if (matchingObjects != null)
-					for (final SQLObject object : matchingObjects) {
-						if (first)
-							first = false;
-						else
-							formatter.middle(pw);
+				// objects are written out as the database cursor produces them, without holding the entire listing in memory
+				SQLObject.forEachMatchingObject(parser, (object) -> {
+					if (firstObject[0])
+						firstObject[0] = false;
+					else
+						formatter.middle(pw);
 
-						formatter.format(pw, object);
+					formatter.format(pw, object);
 
-						if (prepare && parser.latestFlag)
-							AsyncMulticastQueue.queueObject(object);
-					}
+					if (prepare && parser.latestFlag)
+						AsyncMulticastQueue.queueObject(object);
+				});
 
 				formatter.footer(pw);
 
@@ -123,7 +123,7 @@ public class SQLBrowse extends HttpServlet {
 						for (final Map.Entry<String, String> entry : parser.flagConstraints.entrySet())
 							suffix.append('/').append(entry.getKey()).append('=').append(entry.getValue());
 
-						first = true;
+						boolean first = true;
 
 						while (db.moveNext()) {
 							if (first)
@@ -137,14 +137,18 @@ public class SQLBrowse extends HttpServlet {
 								try (DBFunctions db2 = SQLObject.getDB()) {
 									db2.query("SELECT object_count, object_size FROM ccdb_stats WHERE pathid=(SELECT pathid FROM ccdb_paths WHERE path=?);", false, folder);
 
-									final long ownCount = db2.getl(1);
-									final long ownSize = db2.getl(2);
+									final long[] ownPending = StatsCounters.getPendingChanges(pendingStats, folder, false);
+
+									final long ownCount = db2.getl(1) + ownPending[0];
+									final long ownSize = db2.getl(2) + ownPending[1];
 
 									db2.query("SELECT sum(object_count), sum(object_size) FROM ccdb_stats WHERE pathid IN (SELECT pathid FROM ccdb_paths WHERE path LIKE ?);", false,
 											folder + "/%");
 
-									final long subfoldersCount = db2.getl(1);
-									final long subfoldersSize = db2.getl(2);
+									final long[] subfoldersPending = StatsCounters.getPendingChanges(pendingStats, folder, true);
+
+									final long subfoldersCount = db2.getl(1) + subfoldersPending[0];
+									final long subfoldersSize = db2.getl(2) + subfoldersPending[1];
 
 									formatter.subfoldersListing(pw, folder, folder + suffix, ownCount, ownSize, subfoldersCount, subfoldersSize);
 								}
@@ -156,8 +160,10 @@ public class SQLBrowse extends HttpServlet {
 						if (sizeReport) {
 							db.query("SELECT object_count, object_size FROM ccdb_stats WHERE pathid=(SELECT pathid FROM ccdb_paths WHERE path=?);", false, parser.path);
 
-							thisFolderCount = db.getl(1);
-							thisFolderSize = db.getl(2);
+							final long[] pending = StatsCounters.getPendingChanges(pendingStats, parser.path, false);
+
+							thisFolderCount = db.getl(1) + pending[0];
+							thisFolderSize = db.getl(2) + pending[1];
 						}
 					}
 
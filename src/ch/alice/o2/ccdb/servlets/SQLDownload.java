@@ -1,11 +1,10 @@
 package ch.alice.o2.ccdb.servlets;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Iterator;
@@ -20,8 +19,6 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.apache.tomcat.util.http.fileupload.IOUtils;
-
 import alien.monitoring.Monitor;
 import alien.monitoring.MonitorFactory;
 import alien.monitoring.Timing;
@@ -115,12 +112,10 @@ public class SQLDownload extends HttpServlet {
 			response.setHeader("Content-Type", obj.getContentType());
 			SQLBacked.setMD5Header(obj, response);
 
-			try (InputStream is = new FileInputStream(localFile); OutputStream os = response.getOutputStream()) {
-				IOUtils.copy(is, os);
-			}
+			serve(obj, localFile, 0, obj.size, request, response);
 
 			if (monitor != null)
-				monitor.addMeasurement("GET_data", localFile.length());
+				monitor.addMeasurement("GET_data", obj.size);
 
 			return;
 		}
@@ -225,13 +220,10 @@ public class SQLDownload extends HttpServlet {
 			response.setHeader("Content-Disposition", "inline;filename=\"" + obj.fileName + "\"");
 			response.setHeader("Content-Type", obj.getContentType());
 
-			try (RandomAccessFile input = new RandomAccessFile(localFile, "r"); OutputStream output = response.getOutputStream()) {
-				input.seek(first);
-				copy(input, output, toCopy);
+			serve(obj, localFile, first, toCopy, request, response);
 
-				if (monitor != null)
-					monitor.addMeasurement("GET_data", toCopy);
-			}
+			if (monitor != null)
+				monitor.addMeasurement("GET_data", toCopy);
 
 			return;
 		}
@@ -270,7 +262,9 @@ public class SQLDownload extends HttpServlet {
 
 		response.setContentLengthLong(contentLength);
 
-		try (RandomAccessFile input = new RandomAccessFile(localFile, "r"); OutputStream output = response.getOutputStream()) {
+		try (MappedFileCache.Mapping mapping = MappedFileCache.downloads.get(obj.id, localFile, obj.size);
+				FileChannel input = mapping == null ? FileChannel.open(localFile.toPath(), StandardOpenOption.READ) : null;
+				OutputStream output = response.getOutputStream()) {
 			final Iterator<Map.Entry<Long, Long>> itRange = requestedRanges.iterator();
 			final Iterator<String> itSubHeader = subHeaders.iterator();
 
@@ -285,8 +279,10 @@ public class SQLDownload extends HttpServlet {
 
 				output.write(subHeader.getBytes());
 
-				input.seek(first);
-				copy(input, output, toCopy);
+				if (mapping != null)
+					MappedFileCache.write(mapping.slice(first, toCopy), output, monitor);
+				else
+					FileServing.copy(input, output, first, toCopy, monitor);
 
 				if (monitor != null)
 					monitor.addMeasurement("GET_data", toCopy);
@@ -296,21 +292,22 @@ public class SQLDownload extends HttpServlet {
 		}
 	}
 
-	private static void copy(final RandomAccessFile input, final OutputStream output, final long count) throws IOException {
-		final byte[] buffer = new byte[4096];
-		int cnt = 0;
-
-		long leftToCopy = count;
-
-		do {
-			final int toCopy = (int) Math.min(leftToCopy, buffer.length);
-
-			cnt = input.read(buffer, 0, toCopy);
+	/**
+	 * Send a contiguous part of the file as the entire response body, from its memory mapping if it is (or can be) cached, otherwise as configured in {@link FileServing}
+	 */
+	private static void serve(final SQLObject obj, final File localFile, final long first, final long count, final HttpServletRequest request, final HttpServletResponse response)
+			throws IOException {
+		try (MappedFileCache.Mapping mapping = MappedFileCache.downloads.get(obj.id, localFile, obj.size)) {
+			if (mapping != null) {
+				try (OutputStream output = response.getOutputStream()) {
+					MappedFileCache.write(mapping.slice(first, count), output, monitor);
+				}
 
-			output.write(buffer, 0, cnt);
+				return;
+			}
+		}
 
-			leftToCopy -= cnt;
-		} while (leftToCopy > 0);
+		FileServing.serve(request, response, localFile, first, count, monitor);
 	}
 
 	@Override
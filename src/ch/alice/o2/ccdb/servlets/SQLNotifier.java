@@ -1,5 +1,7 @@
 package ch.alice.o2.ccdb.servlets;
 
+import java.util.Collection;
+
 /**
  * @author costing
  * @since 2019-09-25
@@ -12,6 +14,16 @@ public interface SQLNotifier {
 	 */
 	public void newObject(SQLObject object);
 
+	/**
+	 * Callback after a batch of new objects was created. Implementations that have a per-notification overhead can override it to pay it once per batch.
+	 *
+	 * @param objects
+	 */
+	public default void newObjects(final Collection<SQLObject> objects) {
+		for (final SQLObject object : objects)
+			newObject(object);
+	}
+
 	/**
 	 * Callback after this object was modified
 	 *
@@ -25,4 +37,14 @@ public interface SQLNotifier {
 	 * @param object
 	 */
 	public void deletedObject(SQLObject object);
+
+	/**
+	 * Callback after a batch of objects was removed. Implementations that remove remote replicas can override it to group the operations of the entire batch.
+	 *
+	 * @param objects
+	 */
+	public default void deletedObjects(final Collection<SQLObject> objects) {
+		for (final SQLObject object : objects)
+			deletedObject(object);
+	}
 }
@@ -3,6 +3,9 @@ package ch.alice.o2.ccdb.servlets;
 import java.io.File;
 import java.net.InetAddress;
 import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -16,6 +19,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.UUID;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -53,6 +57,15 @@ public abstract class SQLObject implements Comparable<SQLObject> {
 	private static ExtProperties config = new ExtProperties(Options.getOption("config.dir", "."),
 			Options.getOption("config.file", "config"));
 
+	static {
+		// before any connection is opened, the ccdb_stats triggers have to skip the changes that StatsCounters accounts for
+		if (StatsCounters.enabled) {
+			final String options = config.gets("options", null);
+
+			config.set("options", options != null && !options.isBlank() ? options + " " + StatsCounters.CONNECTION_OPTIONS : StatsCounters.CONNECTION_OPTIONS);
+		}
+	}
+
 	/**
 	 * Shared monitoring of SQLObject* implementations
 	 */
@@ -68,6 +81,17 @@ public abstract class SQLObject implements Comparable<SQLObject> {
 	 */
 	public static boolean multiMasterVersion = Utils.stringToBool(Options.getOption("multimaster", "false"), false);
 
+	/**
+	 * Whether to look up the objects of all the paths matching a wildcard browse request with a single query (default) or with one query per path, in parallel
+	 */
+	public static boolean singleQueryBrowse = Utils.stringToBool(Options.getOption("browse.single_query", "true"), true);
+
+	/**
+	 * Whether to keep the most recent object of each path in the trigger-maintained <code>ccdb_latest</code> table (default), so that the lookups without any constraint are a primary key probe
+	 * instead of a scan of all the versions of that path
+	 */
+	public static boolean latestTable = Utils.stringToBool(Options.getOption("latest.table", "true"), true);
+
 	static String selectAllFromCCDB() {
 		return multiMasterVersion ? SQLObjectCachelessImpl.selectAllFromCCDB : SQLObjectImpl.selectAllFromCCDB;
 	}
@@ -82,6 +106,116 @@ public abstract class SQLObject implements Comparable<SQLObject> {
 		return null;
 	}
 
+	/**
+	 * Callback for the rows of {@link SQLObject#streamQuery(String, int, RowConsumer, Object...)}
+	 */
+	@FunctionalInterface
+	interface RowConsumer {
+		/**
+		 * @param rs result set, positioned on the current row
+		 * @throws SQLException
+		 */
+		void accept(ResultSet rs) throws SQLException;
+	}
+
+	/**
+	 * Execute a query through a server-side cursor, handing each row to the consumer as soon as it is received instead of materializing the entire result set in memory as
+	 * {@link DBFunctions#query(String, boolean, Object...)} does.
+	 *
+	 * @param query SQL query, with '?' placeholders for the arguments
+	 * @param fetchSize how many rows to fetch from the server in one go
+	 * @param consumer callback for each row
+	 * @param arguments query arguments
+	 * @return <code>true</code> if the query was executed successfully
+	 */
+	static boolean streamQuery(final String query, final int fetchSize, final RowConsumer consumer, final Object... arguments) {
+		return runQuery(query, fetchSize, consumer, arguments);
+	}
+
+	/**
+	 * Execute a query expected to return few rows, reusing the prepared statement of previous executions of the same SQL text on the same connection (see {@link StatementCache})
+	 *
+	 * @param query SQL query, with '?' placeholders for the arguments
+	 * @param consumer callback for each row
+	 * @param arguments query arguments
+	 * @return <code>true</code> if the query was executed successfully
+	 */
+	static boolean executeQuery(final String query, final RowConsumer consumer, final Object... arguments) {
+		return runQuery(query, 0, consumer, arguments);
+	}
+
+	private static boolean runQuery(final String query, final int fetchSize, final RowConsumer consumer, final Object... arguments) {
+		try (DBFunctions db = getDB()) {
+			if (db == null)
+				return false;
+
+			final DBFunctions.DBConnection dbc = db.getConnection();
+
+			if (dbc == null)
+				return false;
+
+			final Connection conn = dbc.getConnection();
+
+			// PostgreSQL only uses a cursor for fetching the results when running inside a transaction
+			final boolean cursor = fetchSize > 0;
+
+			PreparedStatement stat = null;
+
+			boolean failed = true;
+
+			try {
+				if (cursor)
+					conn.setAutoCommit(false);
+
+				stat = StatementCache.prepare(conn, query);
+
+				stat.setFetchSize(fetchSize);
+
+				for (int i = 0; i < arguments.length; i++)
+					stat.setObject(i + 1, arguments[i]);
+
+				try (ResultSet rs = stat.executeQuery()) {
+					while (rs.next())
+						consumer.accept(rs);
+				}
+
+				if (cursor)
+					conn.commit();
+
+				failed = false;
+
+				return true;
+			}
+			catch (final SQLException e) {
+				logger.log(Level.WARNING, "Query failed: " + query, e);
+
+				if (cursor)
+					try {
+						conn.rollback();
+					}
+					catch (@SuppressWarnings("unused") final SQLException e2) {
+						// ignore
+					}
+
+				return false;
+			}
+			finally {
+				if (stat != null)
+					StatementCache.release(conn, query, stat, failed);
+
+				if (cursor)
+					try {
+						conn.setAutoCommit(true);
+					}
+					catch (@SuppressWarnings("unused") final SQLException e) {
+						// ignore
+					}
+
+				dbc.free();
+			}
+		}
+	}
+
 	/**
 	 * Unique identifier of an object
 	 */
@@ -298,52 +432,152 @@ public abstract class SQLObject implements Comparable<SQLObject> {
 		existing = true;
 	}
 
+	/**
+	 * Copy all the fields of another object, so that the copy can be modified without affecting the original
+	 *
+	 * @param other
+	 */
+	SQLObject(final SQLObject other) {
+		id = other.id;
+
+		createTime = other.createTime;
+		validFrom = other.validFrom;
+		validUntil = other.validUntil;
+		metadata.putAll(other.metadata);
+		replicas.addAll(other.replicas);
+		size = other.size;
+		md5 = other.md5;
+		initialValidity = other.initialValidity;
+		fileName = other.fileName;
+		contentType = other.contentType;
+		uploadedFrom = other.uploadedFrom;
+		lastModified = other.lastModified;
+
+		existing = other.existing;
+		tainted = other.tainted;
+	}
+
+	/**
+	 * Load the object from the current row of a streamed query, see {@link #streamQuery(String, int, RowConsumer, Object...)}
+	 *
+	 * @param rs
+	 * @throws SQLException
+	 */
+	SQLObject(final ResultSet rs) throws SQLException {
+		id = (UUID) rs.getObject("id");
+
+		createTime = rs.getLong("createtime");
+		validFrom = (long) rs.getDouble("validfrom");
+		validUntil = (long) rs.getDouble("validuntil");
+		size = rs.getLong("size");
+		md5 = Format.replace(getString(rs, "md5"), "-", "");
+		initialValidity = rs.getLong("initialvalidity");
+		fileName = getString(rs, "filename");
+		uploadedFrom = getString(rs, "uploadedfrom");
+
+		final Array replicasObject = rs.getArray("replicas");
+
+		if (replicasObject != null)
+			Collections.addAll(replicas, (Integer[]) replicasObject.getArray());
+
+		existing = true;
+	}
+
+	/**
+	 * @param rs
+	 * @param column
+	 * @return the value of the column, or the empty string for <code>null</code>, as {@link DBFunctions#gets(String)} does
+	 * @throws SQLException
+	 */
+	static String getString(final ResultSet rs, final String column) throws SQLException {
+		final String value = rs.getString(column);
+
+		return value != null ? value : "";
+	}
+
 	static SQLObject fromDb(final DBFunctions db) {
 		return multiMasterVersion ? new SQLObjectCachelessImpl(db) : new SQLObjectImpl(db);
 	}
 
+	static SQLObject fromResultSet(final ResultSet rs) throws SQLException {
+		return multiMasterVersion ? new SQLObjectCachelessImpl(rs) : new SQLObjectImpl(rs);
+	}
+
 	abstract boolean updateObjectInDB(DBFunctions db, String replicaArray);
 
-	abstract boolean insertObjectIntoDB(DBFunctions db, String replicaArray);
+	/**
+	 * Columns set when inserting a new object, in the order of {@link #getInsertValues()}
+	 */
+	static final String INSERT_COLUMNS = "id, pathid, validity, createTime, replicas, size, md5, initialvalidity, filename, contenttype, uploadedfrom, metadata, lastmodified";
 
 	/**
-	 * @param request request details, to decorate the metadata with
-	 * @return <code>true</code> if the object was successfully saved
+	 * @return the <code>VALUES</code> row of this object, with placeholders for the arguments of {@link #addInsertArguments(List, String)}
 	 */
-	public boolean save(final HttpServletRequest request) {
-		if (!existing || tainted) {
-			if (request != null) {
-				if (existing)
-					setProperty("UpdatedFrom", request.getRemoteHost());
+	abstract String getInsertValues();
 
-				final AliEnPrincipal account = UserFactory.get(request);
+	/**
+	 * @param arguments where to append the values of this object
+	 * @param replicaArray replicas, as a PostgreSQL array literal
+	 */
+	abstract void addInsertArguments(List<Object> arguments, String replicaArray);
 
-				if (account != null)
-					setProperty(existing ? "UpdatedBy" : "UploadedBy", account.getDefaultUser());
-			}
+	boolean insertObjectIntoDB(final DBFunctions db, final String replicaArray) {
+		final List<Object> arguments = new ArrayList<>(13);
 
-			if (this.getPathId(true) == null)
-				System.err.println("Object has not set pathId nor can obtain it from db");
+		addInsertArguments(arguments, replicaArray);
 
-			try (DBFunctions db = getDB()) {
-				final StringBuilder sb = new StringBuilder();
+		return db.query("INSERT INTO ccdb (" + INSERT_COLUMNS + ") VALUES " + getInsertValues() + ";", false, arguments.toArray());
+	}
 
-				String replicaArray = null;
+	/**
+	 * Record who is making the change and make sure the path has an ID
+	 *
+	 * @param request
+	 */
+	private void decorate(final HttpServletRequest request) {
+		if (request != null) {
+			if (existing)
+				setProperty("UpdatedFrom", request.getRemoteHost());
 
-				if (replicas.size() > 0) {
-					sb.setLength(0);
-					sb.append("{");
+			final AliEnPrincipal account = UserFactory.get(request);
 
-					for (final Integer replica : replicas) {
-						if (sb.length() > 2)
-							sb.append(',');
-						sb.append(replica);
-					}
+			if (account != null)
+				setProperty(existing ? "UpdatedBy" : "UploadedBy", account.getDefaultUser());
+		}
 
-					sb.append('}');
+		if (this.getPathId(true) == null)
+			System.err.println("Object has not set pathId nor can obtain it from db");
+	}
 
-					replicaArray = sb.toString();
-				}
+	private String getReplicaArray() {
+		if (replicas.size() == 0)
+			return null;
+
+		final StringBuilder sb = new StringBuilder();
+
+		sb.append("{");
+
+		for (final Integer replica : replicas) {
+			if (sb.length() > 2)
+				sb.append(',');
+			sb.append(replica);
+		}
+
+		sb.append('}');
+
+		return sb.toString();
+	}
+
+	/**
+	 * @param request request details, to decorate the metadata with
+	 * @return <code>true</code> if the object was successfully saved
+	 */
+	public boolean save(final HttpServletRequest request) {
+		if (!existing || tainted) {
+			decorate(request);
+
+			try (DBFunctions db = getDB()) {
+				final String replicaArray = getReplicaArray();
 
 				lastModified = System.currentTimeMillis();
 
@@ -355,14 +589,24 @@ public abstract class SQLObject implements Comparable<SQLObject> {
 					if (ok) {
 						existing = true;
 						tainted = false;
+						LatestObjectIndex.objectUpdated(this);
 						return true;
 					}
 
 					System.err.println("Update query failed for id=" + id);
+					LatestObjectIndex.invalidate(getPathId(false));
 				}
 				else {
 					initialValidity = validUntil;
 
+					if (GroupCommit.enabled && GroupCommit.insert(this, replicaArray)) {
+						existing = true;
+						tainted = false;
+						LatestObjectIndex.objectInserted(this);
+						StatsCounters.objectInserted(this);
+						return true;
+					}
+
 					for (int attempt = 0; attempt < 2; attempt++) {
 						if (attempt > 0) {
 							// if another instance has cleaned up this path
@@ -373,11 +617,14 @@ public abstract class SQLObject implements Comparable<SQLObject> {
 						if (insertObjectIntoDB(db, replicaArray)) {
 							existing = true;
 							tainted = false;
+							LatestObjectIndex.objectInserted(this);
+							StatsCounters.objectInserted(this);
 							return true;
 						}
 					}
 
 					System.err.println("Insert query failed for id=" + id);
+					LatestObjectIndex.invalidate(getPathId(false));
 				}
 			}
 		}
@@ -386,6 +633,66 @@ public abstract class SQLObject implements Comparable<SQLObject> {
 
 	}
 
+	/**
+	 * Insert new objects with a single multi-row statement, so that all of them are stored in one transaction and one round trip to the database. If the statement fails (for example because
+	 * one of the IDs already exists) the objects are inserted one by one, so that a bad object doesn't prevent storing the others.
+	 *
+	 * @param request request details, to decorate the metadata with
+	 * @param objects new objects
+	 * @return the objects that could not be stored
+	 */
+	static List<SQLObject> insertAll(final HttpServletRequest request, final List<SQLObject> objects) {
+		final List<SQLObject> failed = new ArrayList<>();
+
+		if (objects.isEmpty())
+			return failed;
+
+		try (Timing t = new Timing(monitor, "insertAll_ms"); DBFunctions db = getDB()) {
+			final StringBuilder query = new StringBuilder("INSERT INTO ccdb (").append(INSERT_COLUMNS).append(") VALUES ");
+
+			final List<Object> arguments = new ArrayList<>(objects.size() * 13);
+
+			final long now = System.currentTimeMillis();
+
+			for (final SQLObject object : objects) {
+				object.decorate(request);
+
+				object.lastModified = now;
+				object.initialValidity = object.validUntil;
+
+				getContentTypeID(object.getContentType(), true);
+
+				if (arguments.size() > 0)
+					query.append(", ");
+
+				query.append(object.getInsertValues());
+
+				object.addInsertArguments(arguments, object.getReplicaArray());
+			}
+
+			query.append(';');
+
+			if (db.query(query.toString(), false, arguments.toArray())) {
+				for (final SQLObject object : objects) {
+					object.existing = true;
+					object.tainted = false;
+					LatestObjectIndex.objectInserted(object);
+					StatsCounters.objectInserted(object);
+				}
+
+				return failed;
+			}
+		}
+
+		logger.log(Level.WARNING, "Inserting " + objects.size() + " objects at once has failed, inserting them one by one");
+
+		for (final SQLObject object : objects)
+			if (!object.save(request))
+				failed.add(object);
+
+		return failed;
+	}
+
 	/**
 	 * @return last modification timestamp
 	 */
@@ -707,6 +1014,8 @@ public abstract class SQLObject implements Comparable<SQLObject> {
 					return false;
 				}
 
+				deleted();
+
 				return true;
 			}
 
@@ -715,22 +1024,106 @@ public abstract class SQLObject implements Comparable<SQLObject> {
 		return false;
 	}
 
-	private static final Cache pathsCache = new Cache(!multiMasterVersion);
+	/**
+	 * Update the in-memory structures after this object was removed from the database
+	 */
+	private void deleted() {
+		LatestObjectIndex.objectDeleted(this);
 
-	static synchronized Integer getPathID(final String path, final boolean createIfNotExists) {
-		Integer value = pathsCache.getIdFromCache(path);
+		StatsCounters.objectDeleted(this);
 
-		if (value != null)
-			return value;
+		MappedFileCache.downloads.invalidate(id);
+	}
+
+	/**
+	 * Delete, with a single statement, at most <code>limit</code> objects matching the request constraints from the given paths. Each statement is a transaction of its own, so large sets of
+	 * objects can be removed in chunks without holding the locks for too long. When {@link RequestParser#browseLimit} is set the most recent objects are deleted first, so that repeated calls
+	 * remove the same objects that a browse request with the same limit lists.
+	 *
+	 * @param parser request constraints
+	 * @param pathIDs the paths to delete from
+	 * @param limit largest number of objects to delete
+	 * @param consumer callback for each deleted object, to clean up its files and replicas. Called after the statement has completed and its database connection was released.
+	 * @return how many objects were deleted, or <code>-1</code> if the query failed
+	 */
+	static int deleteMatchingObjects(final RequestParser parser, final Collection<Integer> pathIDs, final int limit, final Consumer<SQLObject> consumer) {
+		final StringBuilder idArray = new StringBuilder(pathIDs.size() * 11 + 2);
 
+		idArray.append('{');
+
+		for (final Integer pathId : pathIDs) {
+			if (idArray.length() > 1)
+				idArray.append(',');
+
+			idArray.append(pathId);
+		}
+
+		idArray.append('}');
+
+		final List<Object> arguments = new ArrayList<>();
+
+		arguments.add(idArray.toString());
+
+		// unlike the lookups, a metadata key that doesn't exist means that nothing can match, instead of ignoring the constraint
+		final int shape = getOptionArguments(parser, arguments, true);
+
+		if (shape < 0)
+			return 0;
+
+		arguments.add(Integer.valueOf(limit));
+
+		final StringBuilder q = new StringBuilder("DELETE FROM ccdb WHERE id IN (SELECT id FROM ccdb WHERE pathId IN (SELECT pid FROM unnest(?::int[]) AS p(pid))");
+
+		appendOptions(q, shape);
+
+		if (parser.browseLimit > 0)
+			q.append(" ORDER BY createTime DESC");
+
+		// the rows of the base table have the same structure in both implementations
+		q.append(" LIMIT ?) RETURNING ").append(SQLObjectImpl.ccdbColumns).append(';');
+
+		final List<SQLObject> deleted = new ArrayList<>();
+
+		final boolean ok = executeQuery(q.toString(), (rs) -> {
+			final SQLObject object = new SQLObjectImpl(rs);
+
+			// resolve the path while it still exists, the empty paths are removed after the objects
+			object.getPath();
+
+			deleted.add(object);
+		}, arguments.toArray());
+
+		if (!ok)
+			return -1;
+
+		// the consumer can block (the physical removal queue is bounded), which should not keep the connection busy
+		for (final SQLObject object : deleted) {
+			object.deleted();
+
+			consumer.accept(object);
+		}
+
+		return deleted.size();
+	}
+
+	static final Cache pathsCache = new Cache("paths", multiMasterVersion);
+
+	static Integer getPathID(final String path, final boolean createIfNotExists) {
+		final Integer value = pathsCache.getId(path, (p) -> queryPathID(p, createIfNotExists));
+
+		if (value == null && createIfNotExists)
+			// might have joined a concurrent lookup that was not allowed to create the entry
+			return pathsCache.getId(path, (p) -> queryPathID(p, true));
+
+		return value;
+	}
+
+	private static Integer queryPathID(final String path, final boolean createIfNotExists) {
 		try (DBFunctions db = getDB()) {
 			db.query("SELECT pathid FROM ccdb_paths WHERE path=?;", false, path);
 
-			if (db.moveNext()) {
-				value = Integer.valueOf(db.geti(1));
-				pathsCache.putInCache(value, path);
-				return value;
-			}
+			if (db.moveNext())
+				return Integer.valueOf(db.geti(1));
 
 			if (createIfNotExists) {
 				final Integer hashId = absHashCode(path);
@@ -738,7 +1131,6 @@ public abstract class SQLObject implements Comparable<SQLObject> {
 				if (hashId.intValue() > 0
 						&& db.query("INSERT INTO ccdb_paths (pathId, path) VALUES (?, ?);", false, hashId, path)) {
 					// could create the hash-based path ID, all good
-					pathsCache.putInCache(hashId, path);
 					return hashId;
 				}
 
@@ -749,11 +1141,8 @@ public abstract class SQLObject implements Comparable<SQLObject> {
 				// mean time
 				db.query("SELECT pathid FROM ccdb_paths WHERE path=?;", false, path);
 
-				if (db.moveNext()) {
-					value = Integer.valueOf(db.geti(1));
-					pathsCache.putInCache(hashId, path);
-					return value;
-				}
+				if (db.moveNext())
+					return Integer.valueOf(db.geti(1));
 			}
 		}
 
@@ -764,7 +1153,9 @@ public abstract class SQLObject implements Comparable<SQLObject> {
 	 * @param pathID
 	 * @return cleaned up value, if any
 	 */
-	public static synchronized String removePathID(final Integer pathID) {
+	public static String removePathID(final Integer pathID) {
+		LatestObjectIndex.invalidate(pathID);
+
 		return pathsCache.removeById(pathID);
 	}
 
@@ -775,65 +1166,54 @@ public abstract class SQLObject implements Comparable<SQLObject> {
 			db.query("SELECT " + columnName + " FROM ccdb_paths WHERE path ~ ? ORDER BY path;", false, "^" + pathPattern);
 	}
 
-	static synchronized String getPath(final Integer pathId) { // must be always correct
-		String value = pathsCache.getValueFromCache(pathId);
-
-		if (value != null) {
-			return value;
-		}
-
-		try (DBFunctions db = getDB()) {
-			db.query("SELECT path FROM ccdb_paths WHERE pathId=?;", false, pathId);
-
-			if (db.moveNext()) {
-				value = db.gets(1);
+	static String getPath(final Integer pathId) { // must be always correct
+		return pathsCache.getValue(pathId, (id) -> {
+			try (DBFunctions db = getDB()) {
+				db.query("SELECT path FROM ccdb_paths WHERE pathId=?;", false, id);
 
-				pathsCache.putInCache(pathId, value);
+				if (db.moveNext())
+					return db.gets(1);
 			}
-		}
 
-		return value;
+			return null;
+		});
 	}
 
-	private static final Cache metadataCache = new Cache(!multiMasterVersion);
+	static final Cache metadataCache = new Cache("metadata", multiMasterVersion);
 
-	static synchronized Integer getMetadataID(final String metadataKey, final boolean createIfNotExists) {
+	static Integer getMetadataID(final String metadataKey, final boolean createIfNotExists) {
 		if (metadataKey == null || metadataKey.isBlank())
 			return null;
 
-		Integer value = metadataCache.getIdFromCache(metadataKey);
+		final Integer value = metadataCache.getId(metadataKey, (k) -> queryMetadataID(k, createIfNotExists));
 
-		if (value != null)
-			return value;
+		if (value == null && createIfNotExists)
+			return metadataCache.getId(metadataKey, (k) -> queryMetadataID(k, true));
 
+		return value;
+	}
+
+	private static Integer queryMetadataID(final String metadataKey, final boolean createIfNotExists) {
 		try (DBFunctions db = getDB()) {
 			db.query("SELECT metadataId FROM ccdb_metadata WHERE metadataKey=?;", false, metadataKey);
 
-			if (db.moveNext()) {
-				value = Integer.valueOf(db.geti(1));
-				metadataCache.putInCache(value, metadataKey);
-				return value;
-			}
+			if (db.moveNext())
+				return Integer.valueOf(db.geti(1));
 
 			if (createIfNotExists) {
 				final Integer hashId = absHashCode(metadataKey);
 
 				if (hashId.intValue() > 0
 						&& db.query("INSERT INTO ccdb_metadata(metadataId, metadataKey) VALUES (?, ?);", false, hashId,
-								metadataKey)) {
-					metadataCache.putInCache(hashId, metadataKey);
+								metadataKey))
 					return hashId;
-				}
 
 				db.query("INSERT INTO ccdb_metadata (metadataKey) VALUES (?);", false, metadataKey);
 
 				db.query("SELECT metadataId FROM ccdb_metadata WHERE metadataKey=?;", false, metadataKey);
 
-				if (db.moveNext()) {
-					value = Integer.valueOf(db.geti(1));
-					metadataCache.putInCache(value, metadataKey);
-					return value;
-				}
+				if (db.moveNext())
+					return Integer.valueOf(db.geti(1));
 			}
 		}
 
@@ -847,87 +1227,71 @@ public abstract class SQLObject implements Comparable<SQLObject> {
 	 * @param metadataId
 	 * @return the string representation of this metadata key
 	 */
-	public static synchronized String getMetadataString(final Integer metadataId) {
-		String value = metadataCache.getValueFromCache(metadataId);
-
-		if (value != null)
-			return value;
-
-		try (DBFunctions db = getDB()) {
-			db.query("SELECT metadataKey FROM ccdb_metadata WHERE metadataId=?;", false, metadataId);
-
-			if (db.moveNext()) {
-				value = db.gets(1);
+	public static String getMetadataString(final Integer metadataId) {
+		return metadataCache.getValue(metadataId, (id) -> {
+			try (DBFunctions db = getDB()) {
+				db.query("SELECT metadataKey FROM ccdb_metadata WHERE metadataId=?;", false, id);
 
-				metadataCache.putInCache(metadataId, value);
+				if (db.moveNext())
+					return db.gets(1);
 			}
-		}
 
-		return value;
+			return null;
+		});
 	}
 
-	private static final Cache contentTypeCache = new Cache(!multiMasterVersion);
+	static final Cache contentTypeCache = new Cache("contenttype", multiMasterVersion);
 
-	static synchronized Integer getContentTypeID(final String contentType, final boolean createIfNotExists) {
+	static Integer getContentTypeID(final String contentType, final boolean createIfNotExists) {
 		if (contentType == null || contentType.isBlank())
 			return null;
 
-		Integer value = contentTypeCache.getIdFromCache(contentType);
+		final Integer value = contentTypeCache.getId(contentType, (c) -> queryContentTypeID(c, createIfNotExists));
 
-		if (value != null)
-			return value;
+		if (value == null && createIfNotExists)
+			return contentTypeCache.getId(contentType, (c) -> queryContentTypeID(c, true));
 
+		return value;
+	}
+
+	private static Integer queryContentTypeID(final String contentType, final boolean createIfNotExists) {
 		try (DBFunctions db = getDB()) {
 			db.query("SELECT contentTypeId FROM ccdb_contenttype WHERE contentType=?", false, contentType);
 
-			if (db.moveNext()) {
-				value = Integer.valueOf(db.geti(1));
-				contentTypeCache.putInCache(value, contentType);
-				return value;
-			}
+			if (db.moveNext())
+				return Integer.valueOf(db.geti(1));
 
 			if (createIfNotExists) {
 				final Integer hashId = absHashCode(contentType);
 
 				if (hashId.intValue() > 0
 						&& db.query("INSERT INTO ccdb_contenttype (contentTypeId, contentType) VALUES (?, ?);", false,
-								hashId, contentType)) {
-					contentTypeCache.putInCache(hashId, contentType);
+								hashId, contentType))
 					return hashId;
-				}
 
 				db.query("INSERT INTO ccdb_contenttype (contentType) VALUES (?);", false, contentType);
 
 				db.query("SELECT contentTypeId FROM ccdb_contenttype WHERE contentType=?;", false, contentType);
 
-				if (db.moveNext()) {
-					value = Integer.valueOf(db.geti(1));
-					contentTypeCache.putInCache(value, contentType);
-					return value;
-				}
+				if (db.moveNext())
+					return Integer.valueOf(db.geti(1));
 			}
 		}
 
 		return null;
 	}
 
-	static synchronized String getContentType(final Integer contentTypeId) {
-		String value = contentTypeCache.getValueFromCache(contentTypeId);
-
-		if (value != null)
-			return value;
-
-		try (DBFunctions db = getDB()) {
-			db.query("SELECT contentType FROM ccdb_contenttype WHERE contentTypeId=?;", false, contentTypeId);
-
-			if (db.moveNext()) {
-				value = db.gets(1);
+	static String getContentType(final Integer contentTypeId) {
+		return contentTypeCache.getValue(contentTypeId, (id) -> {
+			try (DBFunctions db = getDB()) {
+				db.query("SELECT contentType FROM ccdb_contenttype WHERE contentTypeId=?;", false, id);
 
-				contentTypeCache.putInCache(contentTypeId, value);
+				if (db.moveNext())
+					return db.gets(1);
 			}
-		}
 
-		return value;
+			return null;
+		});
 	}
 
 	/**
@@ -975,30 +1339,57 @@ public abstract class SQLObject implements Comparable<SQLObject> {
 			final StringBuilder query,
 			final List<Object> arguments,
 			final boolean stopWhenNoSuchMetadata) {
-		if (parser.uuidConstraint != null) {
-			query.append(" AND id=?");
+		final int shape = getOptionArguments(parser, arguments, stopWhenNoSuchMetadata);
 
+		if (shape < 0)
+			return false;
+
+		appendOptions(query, shape);
+
+		return true;
+	}
+
+	private static final int SHAPE_UUID = 1;
+	private static final int SHAPE_START_TIME = 2;
+	private static final int SHAPE_NOT_AFTER = 4;
+	private static final int SHAPE_NOT_BEFORE = 8;
+	private static final int SHAPE_METADATA_SHIFT = 4;
+
+	/**
+	 * Add the values of the request constraints to the query arguments, without building any SQL
+	 *
+	 * @param parser request
+	 * @param arguments where to add the values of the constraints to
+	 * @param stopWhenNoSuchMetadata whether a metadata key that is not known should make the whole query fail (as nothing could match it) or just be ignored
+	 * @return the shape of the constraints, to be given to {@link #appendOptions(StringBuilder, int)}, or <code>-1</code> if a metadata key is unknown and
+	 *         <code>stopWhenNoSuchMetadata</code> was set
+	 */
+	static int getOptionArguments(final RequestParser parser, final List<Object> arguments, final boolean stopWhenNoSuchMetadata) {
+		int shape = 0;
+
+		if (parser.uuidConstraint != null) {
+			shape |= SHAPE_UUID;
 			arguments.add(parser.uuidConstraint);
 		}
 
 		if (parser.startTimeSet) {
-			query.append(" AND to_timestamp(?) AT TIME ZONE 'UTC' <@ validity");
-
+			shape |= SHAPE_START_TIME;
 			arguments.add(Double.valueOf(parser.startTime / 1000.));
 		}
 
+		// plain comparisons of the bare createTime column, that also select the partitions to scan when the table is partitioned by time (see SQLPartitioning)
 		if (parser.notAfter > 0) {
-			query.append(" AND createTime<=?");
-
+			shape |= SHAPE_NOT_AFTER;
 			arguments.add(Long.valueOf(parser.notAfter));
 		}
 
 		if (parser.notBefore > 0) {
-			query.append(" AND createTime>=?");
-
+			shape |= SHAPE_NOT_BEFORE;
 			arguments.add(Long.valueOf(parser.notBefore));
 		}
 
+		int metadataConstraints = 0;
+
 		if (parser.flagConstraints.size() > 0)
 			for (final Map.Entry<String, String> constraint : parser.flagConstraints.entrySet()) {
 				final String key = constraint.getKey();
@@ -1007,18 +1398,147 @@ public abstract class SQLObject implements Comparable<SQLObject> {
 
 				if (metadataId == null) {
 					if (stopWhenNoSuchMetadata)
-						return false;
+						return -1;
 					continue;
 				}
 
-				final String value = constraint.getValue();
+				arguments.add(metadataId.toString());
+				arguments.add(constraint.getValue());
+
+				metadataConstraints++;
+			}
 
-				query.append(" AND metadata -> ? = ?");
+		return shape | (metadataConstraints << SHAPE_METADATA_SHIFT);
+	}
 
-				arguments.add(metadataId.toString());
-				arguments.add(value);
+	/**
+	 * Append the SQL conditions of a query shape, in the order in which {@link #getOptionArguments(RequestParser, List, boolean)} has added their values
+	 *
+	 * @param query where to append the conditions to
+	 * @param shape as returned by {@link #getOptionArguments(RequestParser, List, boolean)}
+	 */
+	static void appendOptions(final StringBuilder query, final int shape) {
+		if ((shape & SHAPE_UUID) != 0)
+			query.append(" AND id=?");
+
+		if ((shape & SHAPE_START_TIME) != 0)
+			query.append(" AND to_timestamp(?) AT TIME ZONE 'UTC' <@ validity");
+
+		if ((shape & SHAPE_NOT_AFTER) != 0)
+			query.append(" AND createTime<=?");
+
+		if ((shape & SHAPE_NOT_BEFORE) != 0)
+			query.append(" AND createTime>=?");
+
+		for (int i = shape >>> SHAPE_METADATA_SHIFT; i > 0; i--)
+			query.append(" AND metadata -> ? = ?");
+	}
+
+	/**
+	 * Build the query returning the objects matching the request from a set of paths, in one go
+	 *
+	 * @param parser request constraints
+	 * @param table table or view to select from (<code>ccdb</code> or <code>ccdb_view</code>)
+	 * @param pathSource <code>FROM</code> item producing the path IDs to look into, as a <code>pid</code> column of an item aliased <code>p</code>
+	 * @param arguments query arguments, already containing the ones of <code>pathSource</code>. The other arguments are appended to it.
+	 * @return the SQL query. When {@link RequestParser#browseLimit} is set the sorting and the limit are part of the query, returning the most recent objects first.
+	 */
+	static String getMultiPathQuery(final RequestParser parser, final String table, final String pathSource, final List<Object> arguments) {
+		final int shape = getOptionArguments(parser, arguments, false);
+
+		final boolean limit = parser.browseLimit > 0;
+
+		if (limit) {
+			final Integer browseLimit = Integer.valueOf(parser.browseLimit);
+
+			if (!parser.latestFlag)
+				arguments.add(browseLimit);
+
+			arguments.add(browseLimit);
+		}
+
+		return QueryTemplates.get(Arrays.asList(table, pathSource, Boolean.valueOf(parser.latestFlag), Boolean.valueOf(limit)), shape, (s) -> {
+			final StringBuilder q = new StringBuilder();
+
+			if (parser.latestFlag) {
+				// the most recent matching object of each path
+				if (limit)
+					q.append("SELECT * FROM (");
+
+				q.append("SELECT DISTINCT ON (pathId) ").append(SQLObjectImpl.ccdbColumns).append(" FROM ").append(table).append(" WHERE pathId IN (SELECT pid FROM ").append(pathSource).append(')');
+
+				appendOptions(q, s);
+
+				q.append(" ORDER BY pathId, createTime DESC");
+
+				if (limit)
+					q.append(") AS l ORDER BY createTime DESC LIMIT ?");
 			}
-		return true;
+			else
+				if (limit) {
+					// the N most recent matching objects of each path, then the N most recent of them all
+					q.append("SELECT c.* FROM ").append(pathSource).append(" CROSS JOIN LATERAL (SELECT ").append(SQLObjectImpl.ccdbColumns).append(" FROM ").append(table)
+							.append(" WHERE pathId=p.pid");
+
+					appendOptions(q, s);
+
+					q.append(" ORDER BY createTime DESC LIMIT ?) AS c ORDER BY c.createTime DESC LIMIT ?");
+				}
+				else {
+					q.append("SELECT ").append(SQLObjectImpl.ccdbColumns).append(" FROM ").append(table).append(" WHERE pathId IN (SELECT pid FROM ").append(pathSource).append(')');
+
+					appendOptions(q, s);
+
+					q.append(" ORDER BY createTime DESC");
+				}
+
+			return q.toString();
+		});
+	}
+
+	/**
+	 * How many rows to fetch at a time when streaming browse results
+	 */
+	static final int browseFetchSize = Options.getIntOption("browse.fetch_size", 1000);
+
+	/**
+	 * Stream the objects matching the request to the consumer, as they are read from the database through a cursor, without holding the entire result set in memory. When
+	 * {@link RequestParser#browseLimit} is set the objects come sorted, most recent first.
+	 *
+	 * @param parser - path could contain regular expression (regex) or PostgreSQL form (with %), see {@link #getAllMatchingObjects(RequestParser)}
+	 * @param consumer callback for each matching object
+	 */
+	public static void forEachMatchingObject(final RequestParser parser, final Consumer<SQLObject> consumer) {
+		try (Timing t = new Timing(monitor, "forEachMatchingObject_ms")) {
+			if (multiMasterVersion)
+				SQLObjectCachelessImpl.forEachMatchingObject(parser, consumer);
+			else
+				SQLObjectImpl.forEachMatchingObject(parser, consumer);
+		}
+	}
+
+	/**
+	 * Run the query through a cursor, converting each row to an object for the consumer
+	 *
+	 * @param query
+	 * @param arguments
+	 * @param consumer
+	 */
+	static void streamObjects(final String query, final List<Object> arguments, final Consumer<SQLObject> consumer) {
+		streamQuery(query, browseFetchSize, (rs) -> {
+			final SQLObject object;
+
+			try {
+				object = fromResultSet(rs);
+			}
+			catch (final Exception e) {
+				System.err.println("Got exception loading object " + rs.getObject("id") + " from DB: " + e.getMessage());
+				e.printStackTrace();
+				return;
+			}
+
+			consumer.accept(object);
+		}, arguments.toArray(new Object[0]));
 	}
 
 	/**
@@ -1125,5 +1645,6 @@ public abstract class SQLObject implements Comparable<SQLObject> {
 		pathsCache.clear();
 		metadataCache.clear();
 		contentTypeCache.clear();
+		LatestObjectIndex.clear();
 	}
 }
@@ -1,5 +1,7 @@
 package ch.alice.o2.ccdb.servlets;
 
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -7,6 +9,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.function.Consumer;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -106,6 +109,20 @@ public class SQLObjectCachelessImpl extends SQLObject {
 				metadataValues.put(entry.getKey().toString(), entry.getValue().toString());
 	}
 
+	SQLObjectCachelessImpl(final ResultSet rs) throws SQLException {
+		super(rs);
+
+		setContentType(getString(rs, "contenttype_value"));
+
+		path = getString(rs, "path");
+
+		final Map<?, ?> md = (Map<?, ?>) rs.getObject("metadata_key_value");
+
+		if (md != null && md.size() > 0)
+			for (final Map.Entry<?, ?> entry : md.entrySet())
+				metadataValues.put(entry.getKey().toString(), entry.getValue().toString());
+	}
+
 	@Override
 	protected boolean updateObjectInDB(final DBFunctions db, final String replicaArray) {
 		return db.query("UPDATE ccdb SET "
@@ -117,16 +134,15 @@ public class SQLObjectCachelessImpl extends SQLObject {
 	}
 
 	@Override
-	protected boolean insertObjectIntoDB(final DBFunctions db, final String replicaArray) {
-		return db.query("INSERT INTO ccdb (id, pathid, validity, createTime, replicas, size, \n"
-				+ "md5, initialvalidity, filename, contenttype, uploadedfrom, metadata, \n"
-				+ "lastmodified) VALUES (?, ccdb_paths_latest(?), \n"
-				+ "tsrange(to_timestamp(?) AT TIME ZONE 'UTC', to_timestamp(?) AT TIME ZONE 'UTC'), \n"
-				+ "?, ?::int[], ?, ?::uuid, ?, ?, ccdb_contenttype_latest(?), \n"
-				+ "	?::inet, ccdb_metadata_latest_keyid_value(?), ? );", false, id, getPath(), Double.valueOf(validFrom / 1000.),
-				Double.valueOf(validUntil / 1000.), Long.valueOf(createTime), replicaArray,
-				Long.valueOf(size), md5, Long.valueOf(initialValidity), fileName, getContentType(),
-				uploadedFrom, getMetadataKeyValue(), Long.valueOf(lastModified));
+	protected String getInsertValues() {
+		return "(?, ccdb_paths_latest(?), tsrange(to_timestamp(?) AT TIME ZONE 'UTC', to_timestamp(?) AT TIME ZONE 'UTC'), ?, ?::int[], ?, ?::uuid, ?, ?, ccdb_contenttype_latest(?), ?::inet, "
+				+ "ccdb_metadata_latest_keyid_value(?), ?)";
+	}
+
+	@Override
+	protected void addInsertArguments(final List<Object> arguments, final String replicaArray) {
+		Collections.addAll(arguments, id, getPath(), Double.valueOf(validFrom / 1000.), Double.valueOf(validUntil / 1000.), Long.valueOf(createTime), replicaArray, Long.valueOf(size), md5,
+				Long.valueOf(initialValidity), fileName, getContentType(), uploadedFrom, getMetadataKeyValue(), Long.valueOf(lastModified));
 	}
 
 	public static Collection<SQLObject> getAllMatchingObjects(final RequestParser parser) {
@@ -212,6 +228,39 @@ public class SQLObjectCachelessImpl extends SQLObject {
 		}
 	}
 
+	/**
+	 * @param parser
+	 * @param consumer
+	 * @see SQLObject#forEachMatchingObject(RequestParser, Consumer)
+	 */
+	public static void forEachMatchingObject(final RequestParser parser, final Consumer<SQLObject> consumer) {
+		final List<Object> arguments = new ArrayList<>();
+
+		final String pathSource;
+
+		if (!parser.wildcardMatching && getPathID(parser.path, false) != null) {
+			pathSource = "(SELECT pathid AS pid FROM ccdb_paths WHERE path=?) AS p";
+			arguments.add(parser.path);
+		}
+		else
+			if (parser.path != null && (parser.path.contains("*") || parser.path.contains("%"))) {
+				parser.wildcardMatching = true;
+
+				if (parser.path.contains("%")) {
+					pathSource = "(SELECT pathid AS pid FROM ccdb_paths WHERE path LIKE ?) AS p";
+					arguments.add(parser.path);
+				}
+				else {
+					pathSource = "(SELECT pathid AS pid FROM ccdb_paths WHERE path ~ ?) AS p";
+					arguments.add("^" + parser.path);
+				}
+			}
+			else
+				return;
+
+		streamObjects(getMultiPathQuery(parser, "ccdb_view", pathSource, arguments), arguments, consumer);
+	}
+
 	private static List<String> getPaths(final String pathPattern) {
 		final List<String> ret = new ArrayList<>();
 
@@ -227,24 +276,28 @@ public class SQLObjectCachelessImpl extends SQLObject {
 	public static SQLObject getMatchingObject(final RequestParser parser) {
 		final List<Object> arguments = new ArrayList<>();
 
-		try (DBFunctions db = getDB()) {
-			final StringBuilder q = new StringBuilder(selectAllFromCCDB());
-			q.append(" WHERE path=?");
+		arguments.add(parser.path);
 
-			arguments.add(parser.path);
+		final int shape = SQLObject.getOptionArguments(parser, arguments, true);
 
-			if (!SQLObject.parseOptionsToQuery(parser, q, arguments, true)) {
-				return null;
-			}
+		if (shape < 0)
+			return null;
 
-			q.append(" ORDER BY createTime DESC LIMIT 1;");
+		final String q = QueryTemplates.get("SQLObjectCachelessImpl.getMatchingObject", shape, (s) -> {
+			final StringBuilder sb = new StringBuilder(selectAllFromCCDB);
+			sb.append(" WHERE path=?");
 
-			db.query(q.toString(), false, arguments.toArray(new Object[0]));
+			SQLObject.appendOptions(sb, s);
 
-			if (db.moveNext())
-				return SQLObject.fromDb(db);
+			sb.append(" ORDER BY createTime DESC LIMIT 1");
 
-			return null;
-		}
+			return sb.toString();
+		});
+
+		final SQLObject[] ret = new SQLObject[1];
+
+		executeQuery(q, (rs) -> ret[0] = new SQLObjectCachelessImpl(rs), arguments.toArray(new Object[0]));
+
+		return ret[0];
 	}
 }
@@ -1,5 +1,7 @@
 package ch.alice.o2.ccdb.servlets;
 
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -8,6 +10,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.function.Consumer;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -33,7 +36,11 @@ public class SQLObjectImpl extends SQLObject {
 
 	private final Map<Integer, String> implMetadata = new HashMap<>();
 
-	static final String selectAllFromCCDB = "SELECT *,extract(epoch from lower(validity))*1000 as validfrom,extract(epoch from upper(validity))*1000 as validuntil FROM ccdb";
+	static final String ccdbColumns = "*,extract(epoch from lower(validity))*1000 as validfrom,extract(epoch from upper(validity))*1000 as validuntil";
+
+	static final String selectAllFromCCDB = "SELECT " + ccdbColumns + " FROM ccdb";
+
+	static final String selectLatestFromCCDB = selectAllFromCCDB + " WHERE id=(SELECT id FROM ccdb_latest WHERE pathid=?)";
 
 	/**
 	 * @return the pathId of this object
@@ -77,6 +84,14 @@ public class SQLObjectImpl extends SQLObject {
 		return keyValue;
 	}
 
+	/**
+	 * @param key metadata key ID
+	 * @return the value associated to this key, if set
+	 */
+	String getMetadataValue(final Integer key) {
+		return implMetadata.get(key);
+	}
+
 	/**
 	 * @param key
 	 * @return old value
@@ -104,6 +119,19 @@ public class SQLObjectImpl extends SQLObject {
 		super(request, path, uuid);
 	}
 
+	/**
+	 * Copy constructor
+	 *
+	 * @param other
+	 */
+	SQLObjectImpl(final SQLObjectImpl other) {
+		super(other);
+
+		pathId = other.pathId;
+		path = other.path;
+		implMetadata.putAll(other.implMetadata);
+	}
+
 	SQLObjectImpl(final DBFunctions db) {
 		super(db);
 
@@ -117,6 +145,19 @@ public class SQLObjectImpl extends SQLObject {
 				implMetadata.put(Integer.valueOf(entry.getKey().toString()), entry.getValue().toString());
 	}
 
+	SQLObjectImpl(final ResultSet rs) throws SQLException {
+		super(rs);
+
+		setContentType(getContentType(Integer.valueOf(rs.getInt("contenttype"))));
+
+		pathId = Integer.valueOf(rs.getInt("pathId"));
+
+		final Map<?, ?> md = (Map<?, ?>) rs.getObject("metadata");
+		if (md != null && md.size() > 0)
+			for (final Map.Entry<?, ?> entry : md.entrySet())
+				implMetadata.put(Integer.valueOf(entry.getKey().toString()), entry.getValue().toString());
+	}
+
 	@Override
 	protected boolean updateObjectInDB(final DBFunctions db, final String replicaArray) {
 		return db.query(
@@ -126,12 +167,14 @@ public class SQLObjectImpl extends SQLObject {
 	}
 
 	@Override
-	protected boolean insertObjectIntoDB(final DBFunctions db, final String replicaArray) {
-		return db.query(
-				"INSERT INTO ccdb (id, pathid, validity, createTime, replicas, size, md5, initialvalidity, filename, contenttype, uploadedfrom, metadata, lastmodified) VALUES (?, ?, tsrange(to_timestamp(?) AT TIME ZONE 'UTC', to_timestamp(?) AT TIME ZONE 'UTC'), ?, ?::int[], ?, ?::uuid, ?, ?, ?, ?::inet, ?, ?);",
-				false, id, pathId, Double.valueOf(validFrom / 1000.), Double.valueOf(validUntil / 1000.), Long.valueOf(createTime), replicaArray, Long.valueOf(size), md5,
-				Long.valueOf(initialValidity), fileName, getContentTypeID(getContentType(), true), uploadedFrom, implMetadata, Long.valueOf(lastModified));
+	protected String getInsertValues() {
+		return "(?, ?, tsrange(to_timestamp(?) AT TIME ZONE 'UTC', to_timestamp(?) AT TIME ZONE 'UTC'), ?, ?::int[], ?, ?::uuid, ?, ?, ?, ?::inet, ?, ?)";
+	}
 
+	@Override
+	protected void addInsertArguments(final List<Object> arguments, final String replicaArray) {
+		Collections.addAll(arguments, id, pathId, Double.valueOf(validFrom / 1000.), Double.valueOf(validUntil / 1000.), Long.valueOf(createTime), replicaArray, Long.valueOf(size), md5,
+				Long.valueOf(initialValidity), fileName, getContentTypeID(getContentType(), true), uploadedFrom, implMetadata, Long.valueOf(lastModified));
 	}
 
 	/**
@@ -168,10 +211,21 @@ public class SQLObjectImpl extends SQLObject {
 			if (pathIDs == null || pathIDs.isEmpty())
 				return null;
 
-			final List<SQLObject> ret = Collections
-					.synchronizedList(new ArrayList<>(pathIDs.size() * (parser.latestFlag ? 1 : 2)));
+			final List<SQLObject> ret;
+
+			if (singleQueryBrowse) {
+				ret = new ArrayList<>(pathIDs.size() * (parser.latestFlag ? 1 : 2));
+
+				// sorted and limited by the query itself
+				getMatchingObjects(parser, pathIDs, ret::add);
+
+				return ret;
+			}
+			else {
+				ret = Collections.synchronizedList(new ArrayList<>(pathIDs.size() * (parser.latestFlag ? 1 : 2)));
 
-			pathIDs.parallelStream().forEach((id) -> getMatchingObjects(parser, id, ret));
+				pathIDs.parallelStream().forEach((id) -> getMatchingObjects(parser, id, ret));
+			}
 
 			if (parser.browseLimit > 0 && ret.size() > parser.browseLimit) {
 				Collections.sort(ret);
@@ -217,6 +271,57 @@ public class SQLObjectImpl extends SQLObject {
 		}
 	}
 
+	/**
+	 * Get the objects matching the request from all the given paths with a single query, passing them to the consumer as they are read from the database cursor
+	 *
+	 * @param parser request constraints
+	 * @param pathIDs the paths to look into
+	 * @param consumer callback for each matching object
+	 */
+	static final void getMatchingObjects(final RequestParser parser, final Collection<Integer> pathIDs, final Consumer<SQLObject> consumer) {
+		final StringBuilder idArray = new StringBuilder(pathIDs.size() * 11 + 2);
+
+		idArray.append('{');
+
+		for (final Integer pathId : pathIDs) {
+			if (idArray.length() > 1)
+				idArray.append(',');
+
+			idArray.append(pathId);
+		}
+
+		idArray.append('}');
+
+		final List<Object> arguments = new ArrayList<>();
+
+		arguments.add(idArray.toString());
+
+		streamObjects(getMultiPathQuery(parser, "ccdb", "unnest(?::int[]) AS p(pid)", arguments), arguments, consumer);
+	}
+
+	/**
+	 * @param parser
+	 * @param consumer
+	 * @see SQLObject#forEachMatchingObject(RequestParser, Consumer)
+	 */
+	public static final void forEachMatchingObject(final RequestParser parser, final Consumer<SQLObject> consumer) {
+		if (!singleQueryBrowse) {
+			final Collection<SQLObject> matchingObjects = getAllMatchingObjects(parser);
+
+			if (matchingObjects != null)
+				matchingObjects.forEach(consumer);
+
+			return;
+		}
+
+		final List<Integer> pathIDs = getPathIDsWithPatternFallback(parser);
+
+		if (pathIDs == null || pathIDs.isEmpty())
+			return;
+
+		getMatchingObjects(parser, pathIDs, consumer);
+	}
+
 	private static List<Integer> getPathIDs(final String pathPattern) {
 		final List<Integer> ret = new ArrayList<>();
 
@@ -235,26 +340,62 @@ public class SQLObjectImpl extends SQLObject {
 		if (pathId == null)
 			return null;
 
-		final List<Object> arguments = new ArrayList<>();
+		if (parser.flagConstraints.isEmpty()) {
+			final SQLObject[] indexed = LatestObjectIndex.getMatchingObject(parser, pathId, Collections.emptyMap());
 
-		try (DBFunctions db = getDB()) {
-			final StringBuilder q = new StringBuilder(selectAllFromCCDB());
-			q.append(" WHERE pathId=?");
+			if (indexed != null)
+				return indexed[0];
+		}
+		else {
+			final Map<Integer, String> metadataConstraints = new HashMap<>(parser.flagConstraints.size());
 
-			arguments.add(pathId);
+			for (final Map.Entry<String, String> constraint : parser.flagConstraints.entrySet()) {
+				final Integer metadataId = getMetadataID(constraint.getKey(), false);
 
-			if (!SQLObject.parseOptionsToQuery(parser, q, arguments, true)) {
-				return null;
+				if (metadataId == null)
+					return null;
+
+				metadataConstraints.put(metadataId, constraint.getValue());
 			}
 
-			q.append(" ORDER BY createTime DESC LIMIT 1;");
+			final SQLObject[] indexed = LatestObjectIndex.getMatchingObject(parser, pathId, metadataConstraints);
 
-			db.query(q.toString(), false, arguments.toArray(new Object[0]));
+			if (indexed != null)
+				return indexed[0];
+		}
+
+		final List<Object> arguments = new ArrayList<>();
+
+		arguments.add(pathId);
 
-			if (db.moveNext())
-				return SQLObject.fromDb(db);
+		final int shape = SQLObject.getOptionArguments(parser, arguments, true);
 
+		if (shape < 0)
 			return null;
+
+		if (shape == 0 && latestTable) {
+			// no constraint at all, the most recent object of the path is directly known
+			final SQLObject[] ret = new SQLObject[1];
+
+			if (executeQuery(selectLatestFromCCDB, (rs) -> ret[0] = new SQLObjectImpl(rs), pathId))
+				return ret[0];
 		}
+
+		final String q = QueryTemplates.get("SQLObjectImpl.getMatchingObject", shape, (s) -> {
+			final StringBuilder sb = new StringBuilder(selectAllFromCCDB);
+			sb.append(" WHERE pathId=?");
+
+			SQLObject.appendOptions(sb, s);
+
+			sb.append(" ORDER BY createTime DESC LIMIT 1");
+
+			return sb.toString();
+		});
+
+		final SQLObject[] ret = new SQLObject[1];
+
+		executeQuery(q, (rs) -> ret[0] = new SQLObjectImpl(rs), arguments.toArray(new Object[0]));
+
+		return ret[0];
 	}
 }
@@ -0,0 +1,235 @@
+package ch.alice.o2.ccdb.servlets;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+import java.util.logging.Level;
+
+import ch.alice.o2.ccdb.Options;
+import lazyj.DBFunctions;
+
+/**
+ * Optional partitioned layout of the <code>ccdb</code> table, selected with the <code>ccdb.partitioning</code> option:
+ * <ul>
+ * <li><code>none</code> (default) - a single table</li>
+ * <li><code>time</code> - one partition per calendar month (UTC) of <code>createTime</code>, created ahead of time, plus a default partition for anything outside them. The
+ * <code>If-Not-After</code> / <code>If-Not-Before</code> constraints are <code>createTime</code> comparisons and prune the partitions outside their range.</li>
+ * <li><code>hash</code> - <code>ccdb.partitioning.hash_partitions</code> partitions (default 16) by the hash of <code>pathId</code>, so that each path lives in a single, smaller partition</li>
+ * </ul>
+ * The layout only applies when the table is created. An existing single table is converted with {@link ch.alice.o2.ccdb.tools.PartitionMigration}. Requires PostgreSQL 11 or newer.<br>
+ * <br>
+ * The primary key of a partitioned table has to include the partitioning column, so it doesn't keep the object IDs unique by itself. The IDs are also kept in the non-partitioned
+ * <code>ccdb_ids</code> table, updated by triggers, so that inserting an existing ID fails with the same unique violation as with a single table, whatever partition it would land in.
+ *
+ * @author costing
+ * @since 2026-10-18
+ */
+public class SQLPartitioning {
+	/**
+	 * Partitioning schemes
+	 */
+	public enum Layout {
+		/**
+		 * Single table
+		 */
+		NONE,
+		/**
+		 * Monthly ranges of createTime
+		 */
+		TIME,
+		/**
+		 * Hash of pathId
+		 */
+		HASH
+	}
+
+	/**
+	 * Column definitions of the <code>ccdb</code> table, without the primary key
+	 */
+	static final String CCDB_COLUMNS = "id uuid NOT NULL, pathId int NOT NULL REFERENCES ccdb_paths(pathId) ON UPDATE CASCADE, validity tsrange, createTime bigint NOT NULL, replicas integer[], size bigint, "
+			+ "md5 uuid, filename text, contenttype int REFERENCES ccdb_contenttype(contentTypeId) ON UPDATE CASCADE, uploadedfrom inet, initialvalidity bigint, metadata hstore, lastmodified bigint";
+
+	private static final int monthsAhead = Options.getIntOption("ccdb.partitioning.months_ahead", 3);
+
+	private static final int hashPartitions = Options.getIntOption("ccdb.partitioning.hash_partitions", 16);
+
+	private static Thread maintenance = null;
+
+	private SQLPartitioning() {
+		// static methods only
+	}
+
+	/**
+	 * @return the configured layout
+	 */
+	public static Layout getLayout() {
+		final String layout = Options.getOption("ccdb.partitioning", "none");
+
+		try {
+			return Layout.valueOf(layout.trim().toUpperCase());
+		}
+		catch (@SuppressWarnings("unused") final IllegalArgumentException iae) {
+			SQLObject.logger.log(Level.WARNING, "Unknown ccdb.partitioning value `" + layout + "`, using a single table");
+			return Layout.NONE;
+		}
+	}
+
+	/**
+	 * @param db
+	 * @param table
+	 * @return <code>true</code> if the table exists
+	 */
+	public static boolean exists(final DBFunctions db, final String table) {
+		db.query("SELECT to_regclass(?) IS NOT NULL;", false, table);
+
+		return db.moveNext() && db.getb(1, false);
+	}
+
+	/**
+	 * @param db
+	 * @param table
+	 * @return <code>true</code> if the table exists and is partitioned
+	 */
+	public static boolean isPartitioned(final DBFunctions db, final String table) {
+		db.query("SELECT 1 FROM pg_partitioned_table WHERE partrelid=to_regclass(?);", false, table);
+
+		return db.moveNext();
+	}
+
+	/**
+	 * Create a partitioned table with the structure of <code>ccdb</code>, its indices and its partitions
+	 *
+	 * @param db
+	 * @param table table name
+	 * @param layout partitioning scheme, anything but {@link Layout#NONE}
+	 * @return <code>true</code> if everything was created
+	 */
+	public static boolean createTable(final DBFunctions db, final String table, final Layout layout) {
+		// the primary key of a partitioned table has to include the partitioning column
+		final String partitioning = layout == Layout.TIME ? "PRIMARY KEY (id, createTime)) PARTITION BY RANGE (createTime)" : "PRIMARY KEY (id, pathId)) PARTITION BY HASH (pathId)";
+
+		if (!db.query("CREATE TABLE " + table + " (" + CCDB_COLUMNS + ", " + partitioning + ";"))
+			return false;
+
+		createIdTable(db, table);
+
+		db.query("CREATE INDEX IF NOT EXISTS " + table + "_pathid_idx ON " + table + "(pathId);");
+		db.query("ALTER TABLE " + table + " ALTER validity SET STATISTICS 10000;");
+		db.query("CREATE INDEX IF NOT EXISTS " + table + "_validity_idx ON " + table + " USING gist(validity);");
+
+		if (layout == Layout.TIME) {
+			db.query("CREATE TABLE IF NOT EXISTS " + table + "_default PARTITION OF " + table + " DEFAULT;");
+
+			createTimePartitions(db, table, System.currentTimeMillis(), System.currentTimeMillis());
+		}
+		else
+			for (int i = 0; i < hashPartitions; i++)
+				db.query("CREATE TABLE IF NOT EXISTS " + table + "_h" + i + " PARTITION OF " + table + " FOR VALUES WITH (MODULUS " + hashPartitions + ", REMAINDER " + i + ");");
+
+		return true;
+	}
+
+	/**
+	 * Keep the IDs of a partitioned table unique across all its partitions, through the <code>ccdb_ids</code> table and the triggers that maintain it. The IDs already in the table are added
+	 * when <code>ccdb_ids</code> is empty.
+	 *
+	 * @param db
+	 * @param table partitioned table
+	 */
+	public static void createIdTable(final DBFunctions db, final String table) {
+		db.query("CREATE TABLE IF NOT EXISTS ccdb_ids (id uuid PRIMARY KEY);");
+
+		db.query("CREATE OR REPLACE FUNCTION ccdb_ids_insert() RETURNS TRIGGER AS $_$\n" + "    BEGIN\n" + "        INSERT INTO ccdb_ids (id) SELECT id FROM new_rows;\n"
+				+ "        RETURN NULL;\n" + "    END\n" + "$_$ LANGUAGE 'plpgsql';");
+
+		db.query("CREATE OR REPLACE FUNCTION ccdb_ids_delete() RETURNS TRIGGER AS $_$\n" + "    BEGIN\n" + "        DELETE FROM ccdb_ids WHERE id IN (SELECT id FROM old_rows);\n"
+				+ "        RETURN NULL;\n" + "    END\n" + "$_$ LANGUAGE 'plpgsql';");
+
+		// fail if they exist already
+		db.query("CREATE TRIGGER ccdb_ids_insert_trigger AFTER INSERT ON " + table + " REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE ccdb_ids_insert();", true);
+		db.query("CREATE TRIGGER ccdb_ids_delete_trigger AFTER DELETE ON " + table + " REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE ccdb_ids_delete();", true);
+
+		db.query("SELECT 1 FROM ccdb_ids LIMIT 1;");
+
+		if (!db.moveNext()) {
+			// the triggers are already in place, so the rows inserted in the meantime are not missed
+			db.query("INSERT INTO ccdb_ids (id) SELECT id FROM " + table + " ON CONFLICT DO NOTHING;");
+
+			if (db.getUpdateCount() > 0)
+				SQLObject.logger.log(Level.INFO, "Indexed the " + db.getUpdateCount() + " object IDs of " + table + " in ccdb_ids");
+		}
+	}
+
+	/**
+	 * Make sure monthly partitions exist from the month of <code>from</code> until <code>ccdb.partitioning.months_ahead</code> (default 3) months after the one of <code>to</code>
+	 *
+	 * @param db
+	 * @param table
+	 * @param from earliest createTime to cover, in epoch milliseconds
+	 * @param to latest createTime to cover, in epoch milliseconds
+	 */
+	public static void createTimePartitions(final DBFunctions db, final String table, final long from, final long to) {
+		final Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+
+		cal.setTimeInMillis(from);
+		cal.set(Calendar.DAY_OF_MONTH, 1);
+		cal.set(Calendar.HOUR_OF_DAY, 0);
+		cal.set(Calendar.MINUTE, 0);
+		cal.set(Calendar.SECOND, 0);
+		cal.set(Calendar.MILLISECOND, 0);
+
+		final Calendar last = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+		last.setTimeInMillis(to);
+		last.add(Calendar.MONTH, monthsAhead);
+
+		while (!cal.after(last)) {
+			final String name = String.format("%s_y%04dm%02d", table, Integer.valueOf(cal.get(Calendar.YEAR)), Integer.valueOf(cal.get(Calendar.MONTH) + 1));
+
+			final long start = cal.getTimeInMillis();
+
+			cal.add(Calendar.MONTH, 1);
+
+			if (!exists(db, name) && !db.query("CREATE TABLE " + name + " PARTITION OF " + table + " FOR VALUES FROM (" + start + ") TO (" + cal.getTimeInMillis() + ");", true))
+				// most likely the default partition already holds rows of this range
+				SQLObject.logger.log(Level.WARNING, "Could not create the partition " + name);
+		}
+	}
+
+	/**
+	 * Start the background creation of the future monthly partitions of <code>ccdb</code>, if it is partitioned by time
+	 */
+	static synchronized void startMaintenance() {
+		if (maintenance != null)
+			return;
+
+		try (DBFunctions db = SQLObject.getDB()) {
+			if (db == null || !isPartitioned(db, "ccdb"))
+				return;
+
+			db.query("SELECT partstrat FROM pg_partitioned_table WHERE partrelid='ccdb'::regclass;");
+
+			if (!"r".equals(db.gets(1)))
+				return;
+		}
+
+		maintenance = new Thread("SQLPartitioning") {
+			@Override
+			public void run() {
+				while (true) {
+					try (DBFunctions db = SQLObject.getDB()) {
+						createTimePartitions(db, "ccdb", System.currentTimeMillis(), System.currentTimeMillis());
+					}
+
+					try {
+						Thread.sleep(1000L * 60 * 60 * 24);
+					}
+					catch (@SuppressWarnings("unused") final InterruptedException e) {
+						return;
+					}
+				}
+			}
+		};
+
+		maintenance.setDaemon(true);
+		maintenance.start();
+	}
+}
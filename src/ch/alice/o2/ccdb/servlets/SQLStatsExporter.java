@@ -1,5 +1,7 @@
 package ch.alice.o2.ccdb.servlets;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Vector;
 
 import alien.monitoring.MonitoringObject;
@@ -38,6 +40,8 @@ public class SQLStatsExporter implements MonitoringObject {
 
 	@Override
 	public void fillValues(final Vector<String> paramNames, final Vector<Object> paramValues) {
+		final Map<String, long[]> folders = new LinkedHashMap<>();
+
 		try (DBFunctions db = SQLObject.getDB()) {
 			if (path != null)
 				db.query("SELECT split_part(path,'/',?), sum(object_count), sum(object_size) FROM ccdb_paths INNER JOIN ccdb_stats USING(pathid) WHERE path LIKE ? GROUP BY 1;", false,
@@ -45,29 +49,47 @@ public class SQLStatsExporter implements MonitoringObject {
 			else
 				db.query("SELECT split_part(path,'/',1), sum(object_count), sum(object_size) FROM ccdb_paths INNER JOIN ccdb_stats USING(pathid) GROUP BY 1;");
 
-			long totalCount = 0;
-			long totalSize = 0;
+			while (db.moveNext())
+				folders.put(db.gets(1), new long[] { db.getl(2), db.getl(3) });
+		}
+
+		// add the changes still held in memory by this instance, grouped the same way as the query above does
+		for (final Map.Entry<Integer, long[]> entry : StatsCounters.getPendingChanges().entrySet()) {
+			final String entryPath = SQLObject.getPath(entry.getKey());
+
+			if (entryPath == null || (path != null && !entryPath.startsWith(path + "/")))
+				continue;
 
-			while (db.moveNext()) {
-				final String folder = db.gets(1);
-				final long pathObjectCount = db.getl(2);
-				final long pathObjectSize = db.getl(3);
+			final String[] parts = entryPath.split("/", -1);
+			final int field = path != null ? depth : 1;
 
-				totalCount += pathObjectCount;
-				totalSize += pathObjectSize;
+			final long[] values = folders.computeIfAbsent(field <= parts.length ? parts[field - 1] : "", k -> new long[2]);
+			values[0] += entry.getValue()[0];
+			values[1] += entry.getValue()[1];
+		}
+
+		long totalCount = 0;
+		long totalSize = 0;
 
-				paramNames.add(folder + "_count");
-				paramNames.add(folder + "_size");
+		for (final Map.Entry<String, long[]> entry : folders.entrySet()) {
+			final String folder = entry.getKey();
+			final long pathObjectCount = entry.getValue()[0];
+			final long pathObjectSize = entry.getValue()[1];
 
-				paramValues.add(Double.valueOf(pathObjectCount));
-				paramValues.add(Double.valueOf(pathObjectSize));
-			}
+			totalCount += pathObjectCount;
+			totalSize += pathObjectSize;
 
-			paramNames.add("_TOTALS__count");
-			paramNames.add("_TOTALS__size");
+			paramNames.add(folder + "_count");
+			paramNames.add(folder + "_size");
 
-			paramValues.add(Double.valueOf(totalCount));
-			paramValues.add(Double.valueOf(totalSize));
+			paramValues.add(Double.valueOf(pathObjectCount));
+			paramValues.add(Double.valueOf(pathObjectSize));
 		}
+
+		paramNames.add("_TOTALS__count");
+		paramNames.add("_TOTALS__size");
+
+		paramValues.add(Double.valueOf(totalCount));
+		paramValues.add(Double.valueOf(totalSize));
 	}
 }
@@ -1,9 +1,10 @@
 package ch.alice.o2.ccdb.servlets;
 
 import java.io.IOException;
-import java.util.Collection;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
@@ -14,11 +15,16 @@ import javax.servlet.http.HttpServletResponse;
 import alien.monitoring.Monitor;
 import alien.monitoring.MonitorFactory;
 import alien.monitoring.Timing;
+import ch.alice.o2.ccdb.Options;
 import ch.alice.o2.ccdb.RequestParser;
-import lazyj.DBFunctions;
+import lazyj.Format;
 
 /**
- * Remove all matching objects in a single operation.
+ * Remove all matching objects in a single operation.<br>
+ * <br>
+ * The objects are deleted directly in the database, in chunks of <code>truncate.chunk_size</code> (default 1000) rows, each chunk being a transaction of its own. The deleted rows are handed to
+ * {@link AsyncPhysicalRemovalThread} as they come back from the database. To leave room for the online traffic the rate is limited to <code>truncate.max_rate</code> objects per second (default
+ * 5000, 0 for no limit). A <code>Browse-Limit</code> header caps the number of deleted objects, the most recent ones being deleted first.
  *
  * @author costing
  * @since 2018-06-08
@@ -29,47 +35,111 @@ public class SQLTruncate extends HttpServlet {
 
 	private static final Monitor monitor = MonitorFactory.getMonitor(SQLTruncate.class.getCanonicalName());
 
+	private static final Logger logger = Logger.getLogger(SQLTruncate.class.getCanonicalName());
+
+	private static final int chunkSize = Math.max(Options.getIntOption("truncate.chunk_size", 1000), 1);
+
+	private static final int maxRate = Options.getIntOption("truncate.max_rate", 5000);
+
+	/**
+	 * How often to log the progress of long running operations, in milliseconds
+	 */
+	private static final long PROGRESS_INTERVAL = 10000;
+
 	@Override
 	protected void doGet(final HttpServletRequest request, final HttpServletResponse response) throws ServletException, IOException {
 		try (Timing t = new Timing(monitor, "TRUNCATE_ms")) {
 			final RequestParser parser = new RequestParser(request, true);
 
-			final Collection<SQLObject> matchingObjects = SQLObject.getAllMatchingObjects(parser);
+			final List<Integer> pathIDs = parser.ok ? SQLObjectImpl.getPathIDsWithPatternFallback(parser) : null;
 
-			if (matchingObjects != null && matchingObjects.size() > 0) {
-				for (final SQLObject object : matchingObjects) {
-					if (!object.delete()) {
-						response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Cannot delete " + object.id);
-						return;
-					}
+			if (pathIDs == null || pathIDs.isEmpty()) {
+				response.sendError(HttpServletResponse.SC_NOT_MODIFIED);
+				return;
+			}
 
-					AsyncPhysicalRemovalThread.queueDeletion(object);
-				}
+			long deleted = 0;
 
-				response.setHeader("Deleted", matchingObjects.size() + " objects");
+			long lastProgress = System.currentTimeMillis();
 
-				response.sendError(HttpServletResponse.SC_NO_CONTENT);
+			while (true) {
+				final int limit = parser.browseLimit > 0 ? (int) Math.min(chunkSize, parser.browseLimit - deleted) : chunkSize;
 
-				try (DBFunctions db = SQLObject.getDB()) {
-					SQLObject.selectFromCcdbPaths("pathid", parser.path, db);
+				final int count = SQLObject.deleteMatchingObjects(parser, pathIDs, limit, AsyncPhysicalRemovalThread::queueDeletion);
 
-					final List<Integer> pathIds = new LinkedList<>();
+				if (count < 0) {
+					logger.log(Level.WARNING, "Truncating " + parser.path + " failed after deleting " + deleted + " objects");
 
-					while (db.moveNext())
-						pathIds.add(Integer.valueOf(db.geti(1)));
+					response.setHeader("Deleted", deleted + " objects");
+					response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Cannot delete the matching objects, " + deleted + " were deleted before the error");
+					return;
+				}
+
+				deleted += count;
+
+				if (monitor != null)
+					monitor.incrementCounter("TRUNCATE_objects", count);
 
-					for (final Integer pathID : pathIds) {
-						db.query("SELECT 1 FROM ccdb WHERE pathid=? LIMIT 1;", false, pathID);
+				if (count < limit || (parser.browseLimit > 0 && deleted >= parser.browseLimit))
+					break;
 
-						if (!db.moveNext())
-							if (db.query("DELETE FROM ccdb_paths WHERE pathid=?;", false, pathID))
-								SQLObject.removePathID(pathID);
-					}
+				if (System.currentTimeMillis() - lastProgress >= PROGRESS_INTERVAL) {
+					logger.log(Level.INFO, "Truncating " + parser.path + ": " + deleted + " objects deleted in " + t + " (" + Format.point(deleted / t.getSeconds()) + " objects/s)");
+					lastProgress = System.currentTimeMillis();
+				}
 
+				if (maxRate > 0) {
+					// sleep until the average rate drops to the limit
+					final long ahead = deleted * 1000 / maxRate - t.getNanos() / 1000000;
+
+					if (ahead > 0)
+						try {
+							Thread.sleep(ahead);
+						}
+						catch (@SuppressWarnings("unused") final InterruptedException e) {
+							break;
+						}
 				}
 			}
-			else
+
+			if (deleted == 0) {
 				response.sendError(HttpServletResponse.SC_NOT_MODIFIED);
+				return;
+			}
+
+			response.setHeader("Deleted", deleted + " objects");
+
+			response.sendError(HttpServletResponse.SC_NO_CONTENT);
+
+			removeEmptyPaths(pathIDs);
 		}
 	}
+
+	/**
+	 * Remove from the dictionary the paths that don't have any object left
+	 *
+	 * @param pathIDs candidate paths
+	 */
+	private static void removeEmptyPaths(final List<Integer> pathIDs) {
+		final StringBuilder idArray = new StringBuilder(pathIDs.size() * 11 + 2);
+
+		idArray.append('{');
+
+		for (final Integer pathId : pathIDs) {
+			if (idArray.length() > 1)
+				idArray.append(',');
+
+			idArray.append(pathId);
+		}
+
+		idArray.append('}');
+
+		final List<Integer> removed = new ArrayList<>();
+
+		SQLObject.executeQuery("DELETE FROM ccdb_paths WHERE pathid IN (SELECT pid FROM unnest(?::int[]) AS p(pid)) AND NOT EXISTS (SELECT 1 FROM ccdb WHERE ccdb.pathid=ccdb_paths.pathid) RETURNING pathid;",
+				(rs) -> removed.add(Integer.valueOf(rs.getInt(1))), idArray.toString());
+
+		for (final Integer pathID : removed)
+			SQLObject.removePathID(pathID);
+	}
 }
@@ -5,15 +5,27 @@ import java.security.NoSuchAlgorithmException;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.StringTokenizer;
+import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import alien.monitoring.Monitor;
 import alien.monitoring.MonitorFactory;
-import alien.monitoring.Timing;
+import alien.monitoring.MonitoringObject;
 import ch.alice.o2.ccdb.Options;
 import ch.alice.o2.ccdb.multicast.Blob;
+import ch.alice.o2.ccdb.multicast.UDPSender;
 
 /**
- * Send newly uploaded objects to one or more UDP targets (multicast or unicast)
+ * Send newly uploaded objects to one or more UDP targets (multicast or unicast).<br>
+ * <br>
+ * The objects are queued and sent by a single background thread, by {@link Priority} and then in the order in which they were queued. Large objects are sent in steps of
+ * <code>udp.send.chunk_size</code> bytes (default 1MB) and go back in the queue after each step, so that a more urgent object can overtake them. Objects up to
+ * <code>udp.send.small_object</code> bytes (default 1MB) are {@link Priority#URGENT}. The outgoing bandwidth is limited by the rate ceilings of {@link UDPSender}. At most
+ * <code>udp.send.max_queue_mb</code> (default 1024) can be waiting to be sent, further objects are dropped (the clients can still get them over HTTP).
  *
  * @author costing
  * @since 2019-10-31
@@ -21,15 +33,115 @@ import ch.alice.o2.ccdb.multicast.Blob;
 public class SQLtoUDP implements SQLNotifier {
 	private static final Monitor monitor = MonitorFactory.getMonitor(SQLtoUDP.class.getCanonicalName());
 
+	private static final Logger logger = Logger.getLogger(SQLtoUDP.class.getCanonicalName());
+
+	private static final int CHUNK_SIZE = Math.max(Options.getIntOption("udp.send.chunk_size", 1024 * 1024), 1);
+
+	private static final int SMALL_OBJECT = Options.getIntOption("udp.send.small_object", 1024 * 1024);
+
+	private static final long MAX_QUEUED_BYTES = Math.max(Options.getIntOption("udp.send.max_queue_mb", 1024), 1) * 1024L * 1024;
+
+	/**
+	 * Order in which the queued objects are sent
+	 */
+	public enum Priority {
+		/**
+		 * Small new objects, sent before everything else
+		 */
+		URGENT,
+		/**
+		 * Large new objects
+		 */
+		NORMAL,
+		/**
+		 * Objects sent again on request (cache warming), only when there is nothing else to send
+		 */
+		BACKGROUND;
+
+		/**
+		 * @param size
+		 * @return the priority of a new object of this size
+		 */
+		static Priority forSize(final long size) {
+			return size <= SMALL_OBJECT ? URGENT : NORMAL;
+		}
+	}
+
+	/**
+	 * One queued object and how much of it was sent so far
+	 */
+	private static final class Transmission implements Comparable<Transmission> {
+		private static final AtomicLong sequencer = new AtomicLong();
+
+		final Priority priority;
+
+		final long sequence = sequencer.incrementAndGet();
+
+		final long queued = System.currentTimeMillis();
+
+		final long size;
+
+		/**
+		 * Set for the objects that are only loaded in memory when their turn comes
+		 */
+		final SQLObject object;
+
+		Blob blob;
+
+		int offset = 0;
+
+		boolean started = false;
+
+		final CountDownLatch done = new CountDownLatch(1);
+
+		Transmission(final SQLObject object, final Blob blob, final long size, final Priority priority) {
+			this.object = object;
+			this.blob = blob;
+			this.size = size;
+			this.priority = priority;
+		}
+
+		@Override
+		public int compareTo(final Transmission o) {
+			final int diff = priority.compareTo(o.priority);
+
+			if (diff != 0)
+				return diff;
+
+			return Long.compare(sequence, o.sequence);
+		}
+
+		@Override
+		public String toString() {
+			return object != null ? object.getPath() + "/" + object.id : blob.getKey() + "/" + blob.getUuid();
+		}
+	}
+
+	private final PriorityBlockingQueue<Transmission> queue = new PriorityBlockingQueue<>();
+
+	private final AtomicLong queuedBytes = new AtomicLong();
+
 	private static class HostAndPort {
 		final String host;
 		final int port;
 
+		private UDPSender sender = null;
+
 		public HostAndPort(final String host, final int port) {
 			this.host = host;
 			this.port = port;
 		}
 
+		/**
+		 * @return the long-lived sender for this destination
+		 */
+		UDPSender getSender() {
+			if (sender == null)
+				sender = UDPSender.get(host, port);
+
+			return sender;
+		}
+
 		@Override
 		public String toString() {
 			return this.host + ":" + this.port;
@@ -83,6 +195,8 @@ public class SQLtoUDP implements SQLNotifier {
 		if (attempt.destinations.size() > 0) {
 			instance = attempt;
 
+			instance.startSender();
+
 			System.err.println("Will send new objects to " + instance.destinations);
 		}
 
@@ -98,17 +212,18 @@ public class SQLtoUDP implements SQLNotifier {
 
 	@Override
 	public void newObject(final SQLObject object) {
-		// notify all UDP receivers of the new object
-		try (Timing t = new Timing(monitor, "UDP_object_send_ms")) {
-			final Blob b = new Blob(object);
-
-			newObject(b);
+		queue(object, Priority.forSize(object.size));
+	}
 
-			monitor.addMeasurement("UDP_send_data", object.size);
-		}
-		catch (NoSuchAlgorithmException | IOException e) {
-			System.err.println("Exception sending Blob on UDP: " + e.getMessage());
-		}
+	/**
+	 * Queue an object to be sent to all UDP receivers. The content is only read when its turn comes.
+	 *
+	 * @param object
+	 * @param priority
+	 * @return a latch that is released once the object was sent
+	 */
+	CountDownLatch queue(final SQLObject object, final Priority priority) {
+		return queue(new Transmission(object, null, object.size, priority));
 	}
 
 	/**
@@ -116,13 +231,169 @@ public class SQLtoUDP implements SQLNotifier {
 	 *            object to send to all configured destinations
 	 */
 	public void newObject(final Blob b) {
+		queue(new Transmission(null, b, b.getSize(), Priority.forSize(b.getSize())));
+	}
+
+	private CountDownLatch queue(final Transmission transmission) {
+		final long total = queuedBytes.addAndGet(transmission.size);
+
+		// an object larger than the limit is still accepted if there is nothing else in the queue
+		if (total > MAX_QUEUED_BYTES && total > transmission.size) {
+			queuedBytes.addAndGet(-transmission.size);
+
+			logger.log(Level.WARNING, "Dropping " + transmission + " of " + transmission.size + " bytes, " + (total - transmission.size) + " bytes are already waiting to be sent");
+
+			if (monitor != null)
+				monitor.incrementCounter("UDP_dropped_objects");
+
+			transmission.done.countDown();
+
+			return transmission.done;
+		}
+
+		queue.offer(transmission);
+
+		return transmission.done;
+	}
+
+	private void startSender() {
+		final Thread sender = new Thread(() -> {
+			while (true) {
+				final Transmission transmission;
+
+				try {
+					transmission = queue.take();
+				}
+				catch (@SuppressWarnings("unused") final InterruptedException e) {
+					return;
+				}
+
+				boolean more = false;
+
+				try {
+					more = sendStep(transmission);
+				}
+				catch (final Throwable t) {
+					// never let one object stop the multicast of all the others
+					logger.log(Level.SEVERE, "Unexpected exception sending " + transmission, t);
+
+					if (monitor != null)
+						monitor.incrementCounter("UDP_send_errors");
+				}
+				finally {
+					if (more)
+						queue.offer(transmission);
+					else {
+						transmission.blob = null;
+						queuedBytes.addAndGet(-transmission.size);
+						transmission.done.countDown();
+					}
+				}
+			}
+		}, "SQLtoUDP.sender");
+
+		sender.setDaemon(true);
+		sender.start();
+
+		if (monitor != null)
+			monitor.addMonitoring("udp_sender", new RateReporter());
+	}
+
+	/**
+	 * Send the next chunk of an object to all destinations
+	 *
+	 * @param transmission
+	 * @return <code>true</code> if there is more to send from this object
+	 */
+	private boolean sendStep(final Transmission transmission) {
+		if (!transmission.started) {
+			transmission.started = true;
+
+			if (monitor != null)
+				monitor.addMeasurement("UDP_queue_delay_ms", System.currentTimeMillis() - transmission.queued);
+		}
+
+		if (transmission.blob == null)
+			try {
+				transmission.blob = new Blob(transmission.object);
+			}
+			catch (NoSuchAlgorithmException | IOException e) {
+				logger.log(Level.WARNING, "Cannot load " + transmission + " to send it on UDP", e);
+				return false;
+			}
+
+		int next = -1;
+
+		// each sender applies its own rate ceiling, the slowest destination sets the pace
 		for (final HostAndPort destination : destinations)
 			try {
-				b.send(destination.host, destination.port);
+				next = transmission.blob.sendPart(destination.getSender(), transmission.offset, CHUNK_SIZE);
 			}
 			catch (NoSuchAlgorithmException | IOException e) {
-				System.err.println("Exception sending Blob on UDP: " + e.getMessage());
+				logger.log(Level.WARNING, "Exception sending " + transmission + " to " + destination, e);
 			}
+
+		if (next < 0)
+			return false;
+
+		transmission.offset = next;
+
+		if (next < transmission.blob.getTransmittedSize())
+			return true;
+
+		if (monitor != null) {
+			monitor.addMeasurement("UDP_object_send_ms", System.currentTimeMillis() - transmission.queued);
+			monitor.addMeasurement("UDP_send_data", transmission.size);
+		}
+
+		return false;
+	}
+
+	/**
+	 * Achieved outgoing rate, globally and for each destination, and the backlog of the queue
+	 */
+	private final class RateReporter implements MonitoringObject {
+		private long lastReport = System.nanoTime();
+
+		private final long[] lastSentBytes = new long[destinations.size()];
+
+		@Override
+		public synchronized void fillValues(final Vector<String> names, final Vector<Object> values) {
+			final long now = System.nanoTime();
+
+			final double seconds = (now - lastReport) / 1000000000.;
+
+			lastReport = now;
+
+			long totalDelta = 0;
+
+			int idx = 0;
+
+			for (final HostAndPort destination : destinations) {
+				final long sent = destination.getSender().getSentBytes();
+				final long delta = sent - lastSentBytes[idx];
+
+				lastSentBytes[idx++] = sent;
+
+				totalDelta += delta;
+
+				if (seconds > 0) {
+					names.add("udp_rate_" + destination);
+					values.add(Double.valueOf(delta / seconds));
+				}
+			}
+
+			if (seconds > 0) {
+				names.add("udp_rate");
+				values.add(Double.valueOf(totalDelta / seconds));
+			}
+
+			names.add("udp_queue");
+			values.add(Double.valueOf(queue.size()));
+
+			names.add("udp_queue_bytes");
+			values.add(Double.valueOf(queuedBytes.get()));
+		}
 	}
 
 	@Override
@@ -0,0 +1,141 @@
+package ch.alice.o2.ccdb.servlets;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import ch.alice.o2.ccdb.Options;
+
+/**
+ * Prepared statements kept open per pooled database connection and reused for the same SQL text. The PostgreSQL driver switches a statement that is executed repeatedly to a named server-side
+ * prepared statement (after <code>prepareThreshold</code> executions, 5 by default), so later executions skip parsing and planning. That only happens while the statement object stays the same,
+ * and {@link lazyj.DBFunctions#query(String, boolean, Object...)} closes its statement after every query.
+ *
+ * A pooled connection is used by one thread at a time, so each per-connection map has no contention. It is still synchronized because consecutive users of a connection may be different threads.
+ *
+ * @author costing
+ * @since 2026-10-18
+ */
+final class StatementCache {
+	/**
+	 * How many statements to keep open on each connection. 0 disables the cache, so every statement is closed after use.
+	 */
+	private static final int maxStatements = Options.getIntOption("sql.statement_cache.size", 256);
+
+	private static final Map<Connection, Map<String, PreparedStatement>> connections = new ConcurrentHashMap<>();
+
+	private StatementCache() {
+		// static methods only
+	}
+
+	private static Map<String, PreparedStatement> getStatements(final Connection conn) {
+		Map<String, PreparedStatement> statements = connections.get(conn);
+
+		if (statements != null)
+			return statements;
+
+		// a new connection, probably because the pool has dropped some idle ones. Forget those, their statements are gone with them.
+		for (final Iterator<Map.Entry<Connection, Map<String, PreparedStatement>>> it = connections.entrySet().iterator(); it.hasNext();) {
+			final Map.Entry<Connection, Map<String, PreparedStatement>> entry = it.next();
+
+			try {
+				if (entry.getKey().isClosed())
+					it.remove();
+			}
+			catch (@SuppressWarnings("unused") final SQLException e) {
+				it.remove();
+			}
+		}
+
+		statements = new LinkedHashMap<>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<String, PreparedStatement> eldest) {
+				if (size() > maxStatements) {
+					close(eldest.getValue());
+					return true;
+				}
+
+				return false;
+			}
+		};
+
+		final Map<String, PreparedStatement> old = connections.putIfAbsent(conn, statements);
+
+		return old != null ? old : statements;
+	}
+
+	/**
+	 * Get an open statement for this query on the given connection, creating it if needed
+	 *
+	 * @param conn connection, that the calling thread has exclusive use of
+	 * @param query SQL text
+	 * @return the statement, to be given back with {@link #release(Connection, String, PreparedStatement, boolean)}
+	 * @throws SQLException
+	 */
+	static PreparedStatement prepare(final Connection conn, final String query) throws SQLException {
+		if (maxStatements <= 0)
+			return conn.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+
+		final Map<String, PreparedStatement> statements = getStatements(conn);
+
+		synchronized (statements) {
+			final PreparedStatement stat = statements.get(query);
+
+			if (stat != null && !stat.isClosed()) {
+				SQLObject.monitor.incrementCacheHits("prepared_statements");
+				return stat;
+			}
+
+			SQLObject.monitor.incrementCacheMisses("prepared_statements");
+
+			final PreparedStatement newStat = conn.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+
+			statements.put(query, newStat);
+
+			return newStat;
+		}
+	}
+
+	/**
+	 * Give back a statement obtained from {@link #prepare(Connection, String)}
+	 *
+	 * @param conn the connection it was prepared on
+	 * @param query SQL text
+	 * @param stat the statement
+	 * @param failed if the execution has failed, in which case the statement is not reused
+	 */
+	static void release(final Connection conn, final String query, final PreparedStatement stat, final boolean failed) {
+		if (maxStatements <= 0) {
+			close(stat);
+			return;
+		}
+
+		if (!failed)
+			return;
+
+		final Map<String, PreparedStatement> statements = connections.get(conn);
+
+		if (statements != null)
+			synchronized (statements) {
+				statements.remove(query, stat);
+			}
+
+		close(stat);
+	}
+
+	private static void close(final PreparedStatement stat) {
+		try {
+			stat.close();
+		}
+		catch (@SuppressWarnings("unused") final SQLException e) {
+			// ignore
+		}
+	}
+}
@@ -0,0 +1,311 @@
+package ch.alice.o2.ccdb.servlets;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+import alien.monitoring.Timing;
+import ch.alice.o2.ccdb.Options;
+import lazyj.DBFunctions;
+
+/**
+ * Asynchronous accounting of the <code>ccdb_stats</code> table, enabled with <code>sql.stats.async=true</code>. The <code>ccdb_increment</code> and <code>ccdb_decrement</code> triggers update
+ * the global <code>pathid=0</code> row for every single inserted or deleted object. Instead the changes made by this instance are added up in memory, in striped counters per path, and written
+ * to the database every <code>sql.stats.flush_interval</code> seconds (default 10) with one statement. The readers don't wait for a flush, they add the changes still held in memory to the
+ * values from the database (see {@link #getPendingChanges()}).<br>
+ * <br>
+ * The triggers stay in place: all the database connections of this instance set <code>ccdb.stats_async</code> (see {@link #CONNECTION_OPTIONS}), on which the triggers skip the rows. The
+ * changes made by anything else, other instances in the synchronous mode, tools or manual SQL, are still accounted by the triggers. The changes that were not yet flushed are lost if the server
+ * is killed, in which case emptying <code>ccdb_stats</code> makes the next startup recompute it.
+ *
+ * @author costing
+ * @since 2026-10-18
+ */
+final class StatsCounters {
+	/**
+	 * Whether the statistics are kept by this class instead of the database triggers
+	 */
+	static final boolean enabled = lazyj.Utils.stringToBool(Options.getOption("sql.stats.async", null), false);
+
+	/**
+	 * PostgreSQL startup options of the connections of an instance with the asynchronous accounting enabled, setting the session variable that the <code>ccdb_stats</code> triggers skip on
+	 */
+	static final String CONNECTION_OPTIONS = "-c ccdb.stats_async=on";
+
+	private static final long flushInterval = Math.max(Options.getIntOption("sql.stats.flush_interval", 10), 1) * 1000L;
+
+	private static final class Counter {
+		final LongAdder count = new LongAdder();
+
+		final LongAdder size = new LongAdder();
+
+		/**
+		 * Set when the entry is removed from the map, after which whoever touches it moves what it still holds to a new entry
+		 */
+		volatile boolean retired = false;
+	}
+
+	/**
+	 * Changes since the last flush, per path ID. The entries that had no change for an entire flush interval are removed, so that the map only holds the recently active paths.
+	 */
+	private static final Map<Integer, Counter> counters = new ConcurrentHashMap<>();
+
+	/**
+	 * Changes taken out of the counters by the flush in progress, until they are committed, so that the readers still see them in the meantime
+	 */
+	private static volatile Map<Integer, long[]> flushing = null;
+
+	static {
+		if (enabled) {
+			final Thread flusher = new Thread("StatsCounters") {
+				@Override
+				public void run() {
+					while (true) {
+						try {
+							Thread.sleep(flushInterval);
+						}
+						catch (@SuppressWarnings("unused") final InterruptedException e) {
+							return;
+						}
+
+						flush();
+					}
+				}
+			};
+
+			flusher.setDaemon(true);
+			flusher.start();
+
+			Runtime.getRuntime().addShutdownHook(new Thread(StatsCounters::flush, "StatsCounters-shutdown"));
+		}
+	}
+
+	private StatsCounters() {
+		// static methods only
+	}
+
+	/**
+	 * Account a new object
+	 *
+	 * @param object
+	 */
+	static void objectInserted(final SQLObject object) {
+		if (enabled)
+			add(object.getPathId(false), 1, object.size);
+	}
+
+	/**
+	 * Account a deleted object
+	 *
+	 * @param object
+	 */
+	static void objectDeleted(final SQLObject object) {
+		if (enabled)
+			add(object.getPathId(false), -1, -object.size);
+	}
+
+	/**
+	 * @param pathId
+	 * @param count change in the number of objects
+	 * @param size change in the total size of the objects
+	 */
+	static void add(final Integer pathId, final long count, final long size) {
+		if (pathId == null)
+			return;
+
+		Counter counter = counters.get(pathId);
+
+		if (counter == null)
+			counter = counters.computeIfAbsent(pathId, k -> new Counter());
+
+		counter.count.add(count);
+		counter.size.add(size);
+
+		// removed by the flush in the meantime, which might have missed these changes
+		if (counter.retired)
+			drain(pathId, counter);
+	}
+
+	/**
+	 * Move whatever a removed entry still holds to the current one of the same path
+	 *
+	 * @param pathId
+	 * @param counter
+	 */
+	private static void drain(final Integer pathId, final Counter counter) {
+		final long count = counter.count.sumThenReset();
+		final long size = counter.size.sumThenReset();
+
+		if (count != 0 || size != 0)
+			add(pathId, count, size);
+	}
+
+	/**
+	 * @return the changes of this instance that are not yet in the database, per path ID. Added to the values read from <code>ccdb_stats</code> they give the current statistics without
+	 *         waiting for a flush. Empty if the asynchronous accounting is disabled.
+	 */
+	static Map<Integer, long[]> getPendingChanges() {
+		final Map<Integer, long[]> ret = new HashMap<>();
+
+		if (!enabled)
+			return ret;
+
+		for (final Map.Entry<Integer, Counter> entry : counters.entrySet()) {
+			final long count = entry.getValue().count.sum();
+			final long size = entry.getValue().size.sum();
+
+			if (count != 0 || size != 0)
+				ret.put(entry.getKey(), new long[] { count, size });
+		}
+
+		final Map<Integer, long[]> inFlight = flushing;
+
+		if (inFlight != null)
+			for (final Map.Entry<Integer, long[]> entry : inFlight.entrySet())
+				ret.merge(entry.getKey(), entry.getValue().clone(), (a, b) -> new long[] { a[0] + b[0], a[1] + b[1] });
+
+		return ret;
+	}
+
+	/**
+	 * @param pending what {@link #getPendingChanges()} has returned
+	 * @param path folder name
+	 * @param subfolders <code>false</code> for the changes of this exact path, <code>true</code> for the sum of the changes of all the paths under it
+	 * @return the not yet flushed changes of the given path(s), as (count, size)
+	 */
+	static long[] getPendingChanges(final Map<Integer, long[]> pending, final String path, final boolean subfolders) {
+		final long[] ret = new long[2];
+
+		if (pending.isEmpty() || path == null)
+			return ret;
+
+		for (final Map.Entry<Integer, long[]> entry : pending.entrySet()) {
+			final String entryPath = SQLObject.getPath(entry.getKey());
+
+			if (entryPath != null && (subfolders ? entryPath.startsWith(path + "/") : entryPath.equals(path))) {
+				ret[0] += entry.getValue()[0];
+				ret[1] += entry.getValue()[1];
+			}
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Write the accumulated changes to <code>ccdb_stats</code> and forget the paths that had no change since the previous flush
+	 */
+	static synchronized void flush() {
+		if (!enabled)
+			return;
+
+		// ordered by path ID, like the group commit, so that concurrent writers lock the rows in the same order
+		final Map<Integer, long[]> deltas = new TreeMap<>();
+
+		final long[] total = new long[2];
+
+		for (final Map.Entry<Integer, Counter> entry : counters.entrySet()) {
+			final long count = entry.getValue().count.sumThenReset();
+			final long size = entry.getValue().size.sumThenReset();
+
+			if (count != 0 || size != 0) {
+				deltas.put(entry.getKey(), new long[] { count, size });
+
+				total[0] += count;
+				total[1] += size;
+			}
+			else
+				prune(entry.getKey(), entry.getValue());
+		}
+
+		if (deltas.isEmpty())
+			return;
+
+		final List<Object> arguments = getUpsertArguments(deltas, total);
+
+		final String query = getUpsertQuery(arguments.size() / 3);
+
+		boolean ok;
+
+		flushing = deltas;
+
+		try (Timing t = new Timing(SQLObject.monitor, "stats_flush_ms"); DBFunctions db = SQLObject.getDB()) {
+			ok = db.query(query, false, arguments.toArray());
+		}
+		finally {
+			flushing = null;
+		}
+
+		if (ok) {
+			SQLObject.monitor.addMeasurement("stats_flush_paths", deltas.size());
+			return;
+		}
+
+		SQLObject.logger.log(Level.WARNING, "Could not flush the statistics of " + deltas.size() + " paths, will retry later");
+
+		// put them back for the next attempt
+		for (final Map.Entry<Integer, long[]> entry : deltas.entrySet())
+			add(entry.getKey(), entry.getValue()[0], entry.getValue()[1]);
+	}
+
+	/**
+	 * Remove an idle entry from the map. A concurrent {@link #add(Integer, long, long)} that still got the old entry notices that it was retired and moves its change to a new one.
+	 *
+	 * @param pathId
+	 * @param counter
+	 */
+	private static void prune(final Integer pathId, final Counter counter) {
+		counter.retired = true;
+
+		if (counters.remove(pathId, counter))
+			SQLObject.monitor.incrementCounter("stats_pruned_paths");
+
+		drain(pathId, counter);
+	}
+
+	/**
+	 * Arguments of {@link #getUpsertQuery(int)} for applying a set of changes. The per-path rows come first and the global <code>pathid=0</code> row last, the same order in which the
+	 * <code>ccdb_increment</code> and <code>ccdb_decrement</code> triggers lock them, otherwise the batched updates and the trigger-driven ones could deadlock each other.
+	 *
+	 * @param deltas object count and size changes per path ID, in ascending path ID order
+	 * @param total the sum of all the changes, to be added to the global row
+	 * @return (pathid, count, size) triplets
+	 */
+	static List<Object> getUpsertArguments(final Map<Integer, long[]> deltas, final long[] total) {
+		final List<Object> arguments = new ArrayList<>((deltas.size() + 1) * 3);
+
+		for (final Map.Entry<Integer, long[]> entry : deltas.entrySet()) {
+			if (entry.getKey().intValue() == 0)
+				continue;
+
+			arguments.add(entry.getKey());
+			arguments.add(Long.valueOf(entry.getValue()[0]));
+			arguments.add(Long.valueOf(entry.getValue()[1]));
+		}
+
+		arguments.add(Integer.valueOf(0));
+		arguments.add(Long.valueOf(total[0]));
+		arguments.add(Long.valueOf(total[1]));
+
+		return arguments;
+	}
+
+	/**
+	 * @param rows how many rows to upsert
+	 * @return the statement adding the given number of (pathid, count, size) changes to <code>ccdb_stats</code>, in the order in which they are given
+	 */
+	static String getUpsertQuery(final int rows) {
+		final StringBuilder query = new StringBuilder("INSERT INTO ccdb_stats (pathid, object_count, object_size) VALUES ");
+
+		for (int i = 0; i < rows; i++)
+			query.append(i > 0 ? ", " : "").append("(?, ?, ?)");
+
+		query.append(" ON CONFLICT (pathid) DO UPDATE SET object_count=ccdb_stats.object_count+EXCLUDED.object_count, object_size=ccdb_stats.object_size+EXCLUDED.object_size;");
+
+		return query.toString();
+	}
+}
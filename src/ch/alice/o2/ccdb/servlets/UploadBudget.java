@@ -0,0 +1,75 @@
+package ch.alice.o2.ccdb.servlets;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import ch.alice.o2.ccdb.Options;
+
+/**
+ * Global limit of the upload bytes that are being received at the same time. Uploads that would exceed it are refused right away, with a hint of when to try again, instead of piling up on the
+ * server.
+ *
+ * @author costing
+ * @since 2026-10-18
+ */
+final class UploadBudget {
+	/**
+	 * Total size of the uploads in progress, in MB. 0 or negative means no limit.
+	 */
+	private static final long maxBytes = Options.getIntOption("upload.inflight.size", 2048) * 1024L * 1024;
+
+	/**
+	 * Seconds after which refused clients are told to retry
+	 */
+	static final int retryAfter = Options.getIntOption("upload.retry_after", 5);
+
+	private static final AtomicLong inFlight = new AtomicLong();
+
+	private UploadBudget() {
+		// static methods only
+	}
+
+	/**
+	 * The part of the budget taken by one upload. It can grow as the content arrives, for requests of unknown length.
+	 */
+	static final class Reservation implements AutoCloseable {
+		private long reserved = 0;
+
+		/**
+		 * @param bytes additional bytes to reserve
+		 * @return <code>true</code> if the budget allows it, <code>false</code> if the upload should be refused
+		 */
+		boolean grow(final long bytes) {
+			if (bytes <= 0)
+				return true;
+
+			while (true) {
+				final long current = inFlight.get();
+
+				// a single upload is always let through, even if it is larger than the entire budget
+				if (maxBytes > 0 && current > reserved && current + bytes > maxBytes)
+					return false;
+
+				if (inFlight.compareAndSet(current, current + bytes)) {
+					reserved += bytes;
+					return true;
+				}
+			}
+		}
+
+		/**
+		 * Give the reserved bytes back
+		 */
+		@Override
+		public void close() {
+			inFlight.addAndGet(-reserved);
+			reserved = 0;
+		}
+	}
+
+	/**
+	 * @return total bytes currently reserved by uploads
+	 */
+	static long getInFlight() {
+		return inFlight.get();
+	}
+}
@@ -0,0 +1,102 @@
+package ch.alice.o2.ccdb.testing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ch.alice.o2.ccdb.servlets.SQLObject;
+import lazyj.DBFunctions;
+
+/**
+ * Throughput of the path / metadata dictionary lookups as a function of the number of concurrent threads. Run it with the "synchronized" argument to serialize all lookups on the SQLObject class
+ * monitor, as the implementation did before the lookups became lock-free, and without it to measure the current implementation.
+ *
+ * @author costing
+ * @since 2026-10-18
+ */
+public class DictionaryBenchmark {
+
+	/**
+	 * @param args [synchronized] [number of distinct keys] [duration of each step in seconds]
+	 * @throws InterruptedException
+	 */
+	public static void main(final String[] args) throws InterruptedException {
+		final boolean globalLock = args.length >= 1 && "synchronized".equalsIgnoreCase(args[0]);
+
+		final int noKeys = args.length >= 2 ? Integer.parseInt(args[1]) : 1000;
+
+		final long stepDuration = (args.length >= 3 ? Long.parseLong(args[2]) : 10) * 1000;
+
+		final List<Integer> metadataIDs = new ArrayList<>();
+
+		try (DBFunctions db = SQLObject.getDB()) {
+			db.query("SELECT metadataId FROM ccdb_metadata LIMIT ?;", false, Integer.valueOf(noKeys));
+
+			while (db.moveNext())
+				metadataIDs.add(Integer.valueOf(db.geti(1)));
+		}
+
+		final String[] paths = new String[noKeys];
+
+		for (int i = 0; i < noKeys; i++) {
+			paths[i] = "benchmark/dictionary/path_" + i;
+
+			// make sure all keys exist in the database and are cached
+			SQLObject.fromPath(paths[i]).getPathId(true);
+		}
+
+		System.err.println("Benchmarking " + (globalLock ? "globally synchronized" : "lock-free") + " lookups of " + noKeys + " paths and " + metadataIDs.size() + " metadata keys");
+
+		for (final int noThreads : new int[] { 1, 2, 4, 8, 16, 32, 64 }) {
+			final AtomicLong lookups = new AtomicLong();
+
+			final long deadline = System.currentTimeMillis() + stepDuration;
+
+			final List<Thread> threads = new ArrayList<>(noThreads);
+
+			for (int thread = 0; thread < noThreads; thread++) {
+				final Thread t = new Thread() {
+					@Override
+					public void run() {
+						long cnt = 0;
+
+						final ThreadLocalRandom r = ThreadLocalRandom.current();
+
+						while ((cnt & 0xFF) != 0 || System.currentTimeMillis() < deadline) {
+							final String path = paths[r.nextInt(paths.length)];
+
+							if (globalLock) {
+								synchronized (SQLObject.class) {
+									lookup(path, metadataIDs, r);
+								}
+							}
+							else
+								lookup(path, metadataIDs, r);
+
+							cnt++;
+						}
+
+						lookups.addAndGet(cnt);
+					}
+				};
+
+				t.start();
+
+				threads.add(t);
+			}
+
+			for (final Thread t : threads)
+				t.join();
+
+			System.err.println(noThreads + " threads: " + lookups.get() * 1000 / stepDuration + " lookups/s");
+		}
+	}
+
+	private static void lookup(final String path, final List<Integer> metadataIDs, final ThreadLocalRandom r) {
+		SQLObject.fromPath(path).getPathId(true);
+
+		if (metadataIDs.size() > 0)
+			SQLObject.getMetadataString(metadataIDs.get(r.nextInt(metadataIDs.size())));
+	}
+}
@@ -0,0 +1,175 @@
+package ch.alice.o2.ccdb.testing;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import ch.alice.o2.ccdb.multicast.Blob;
+import ch.alice.o2.ccdb.multicast.FragmentSink;
+import ch.alice.o2.ccdb.multicast.UDPSender;
+import lazyj.Format;
+
+/**
+ * Loss recovery with the parity packets, over the loopback interface. Objects are sent through {@link UDPSender} with a sink in front of it that drops packets at random with the given
+ * probability, and a receiver on the same host assembles them. For each combination of FEC group size and drop rate the output shows how many of the objects that lost packets could still be
+ * completed locally, i.e. without the HTTP recovery, and how much extra traffic the parity packets cost.
+ *
+ * @author costing
+ * @since 2026-10-18
+ */
+public class FECBenchmark {
+
+	/**
+	 * Forwards the packets to the real sender, except for the randomly dropped ones
+	 */
+	private static final class DroppingSink implements FragmentSink {
+		private final FragmentSink target;
+
+		private final double dropRate;
+
+		private ByteBuffer[] kept = new ByteBuffer[0];
+
+		long sent = 0;
+
+		long dropped = 0;
+
+		DroppingSink(final FragmentSink target, final double dropRate) {
+			this.target = target;
+			this.dropRate = dropRate;
+		}
+
+		@Override
+		public void send(final ByteBuffer[] packets, final int count) throws IOException {
+			if (kept.length < count)
+				kept = new ByteBuffer[count];
+
+			int keptCount = 0;
+
+			for (int i = 0; i < count; i++)
+				if (ThreadLocalRandom.current().nextDouble() < dropRate)
+					dropped++;
+				else
+					kept[keptCount++] = packets[i];
+
+			sent += keptCount;
+
+			target.send(kept, keptCount);
+		}
+	}
+
+	/**
+	 * @param args [object size in bytes] [objects for each setting] [port]
+	 * @throws Exception
+	 */
+	public static void main(final String[] args) throws Exception {
+		final int objectSize = args.length >= 1 ? Integer.parseInt(args[0]) : 1024 * 1024;
+
+		final int objects = args.length >= 2 ? Integer.parseInt(args[1]) : 100;
+
+		final int port = args.length >= 3 ? Integer.parseInt(args[2]) : 33421;
+
+		final BlockingQueue<byte[]> received = new LinkedBlockingQueue<>();
+
+		final Thread receiver = new Thread(() -> {
+			try (DatagramSocket socket = new DatagramSocket(new InetSocketAddress("127.0.0.1", port))) {
+				socket.setReceiveBufferSize(16 * 1024 * 1024);
+				socket.setSoTimeout(1000);
+
+				final byte[] buf = new byte[65536];
+				final DatagramPacket packet = new DatagramPacket(buf, buf.length);
+
+				while (!Thread.currentThread().isInterrupted())
+					try {
+						socket.receive(packet);
+						received.add(Arrays.copyOf(packet.getData(), packet.getLength()));
+					}
+					catch (@SuppressWarnings("unused") final SocketTimeoutException ste) {
+						// check the interrupted flag
+					}
+			}
+			catch (final IOException ioe) {
+				System.err.println("Receiver failed: " + ioe.getMessage());
+			}
+		}, "FECBenchmark.receiver");
+
+		receiver.setDaemon(true);
+		receiver.start();
+
+		final UDPSender sender = UDPSender.get("127.0.0.1", port);
+
+		final byte[] content = new byte[objectSize];
+		ThreadLocalRandom.current().nextBytes(content);
+
+		System.err.println(objects + " objects of " + Format.size(objectSize) + " for each setting, sent to 127.0.0.1:" + port);
+		System.err.println("FEC group\tdrop rate\tpackets\tdropped\tobjects with losses\trecovered locally\tneed HTTP\trebuilt fragments");
+
+		for (final int fecGroup : new int[] { 0, 4, 8, 16, 32 })
+			for (final double dropRate : new double[] { 0.001, 0.005, 0.01, 0.02, 0.05 }) {
+				final DroppingSink sink = new DroppingSink(sender, dropRate);
+
+				int withLosses = 0;
+				int recovered = 0;
+				long rebuilt = 0;
+
+				for (int i = 0; i < objects; i++) {
+					final Blob blob = new Blob(Map.of("Valid-From", "1", "Valid-Until", "2", "Created", "1"), content, "benchmark/fec", UUID.randomUUID());
+
+					final long droppedBefore = sink.dropped;
+					final long sentBefore = sink.sent;
+
+					blob.send(sink, fecGroup);
+
+					final Blob target = new Blob(blob.getKey(), blob.getUuid());
+
+					long expected = sink.sent - sentBefore;
+
+					while (expected > 0) {
+						final byte[] packet = received.poll(2, TimeUnit.SECONDS);
+
+						if (packet == null)
+							break;
+
+						try {
+							rebuilt += target.addPacket(packet, packet.length);
+							expected--;
+						}
+						catch (@SuppressWarnings("unused") IOException | NoSuchAlgorithmException e) {
+							// late packet of a previous object
+						}
+					}
+
+					if (sink.dropped > droppedBefore) {
+						withLosses++;
+
+						if (isComplete(target))
+							recovered++;
+					}
+				}
+
+				System.err.println(fecGroup + "\t" + Format.point(dropRate * 100) + "%\t" + sink.sent + "\t" + sink.dropped + "\t" + withLosses + "\t" + recovered + "\t"
+						+ (withLosses - recovered) + "\t" + rebuilt);
+			}
+
+		receiver.interrupt();
+	}
+
+	private static boolean isComplete(final Blob blob) {
+		try {
+			return blob.isComplete();
+		}
+		catch (@SuppressWarnings("unused") NoSuchAlgorithmException | IOException e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package ch.alice.o2.ccdb.testing;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+import ch.alice.o2.ccdb.multicast.Blob;
+import ch.alice.o2.ccdb.multicast.FragmentSink;
+import ch.alice.o2.ccdb.multicast.Utils.Pair;
+import lazyj.Format;
+
+/**
+ * CPU and allocation cost of encoding the UDP fragments of an object, without the network part. The fragments are encoded first the way {@link Blob} did before the per-thread encoder, with
+ * several temporary arrays and a new digest for each packet, then through {@link Blob#send(int, Pair, byte, FragmentSink)}. Before measuring, the packets produced by both implementations are
+ * compared byte by byte.
+ *
+ * @author costing
+ * @since 2026-10-18
+ */
+public class FragmentEncoderBenchmark {
+
+	/**
+	 * @param args [object size in bytes] [fragment size] [iterations]
+	 * @throws Exception
+	 */
+	public static void main(final String[] args) throws Exception {
+		final int objectSize = args.length >= 1 ? Integer.parseInt(args[0]) : 10 * 1024 * 1024;
+
+		final int maxPayloadSize = args.length >= 2 ? Integer.parseInt(args[1]) : 1200;
+
+		final int iterations = args.length >= 3 ? Integer.parseInt(args[2]) : 20;
+
+		final byte[] content = new byte[objectSize];
+		ThreadLocalRandom.current().nextBytes(content);
+
+		final Blob blob = new Blob(Map.of("Content-Type", "application/octet-stream", "OriginalFileName", "object.root"), content, "benchmark/fragment/encoder", UUID.randomUUID());
+
+		// both implementations have to produce the same packets
+		final List<byte[]> legacyPackets = new ArrayList<>();
+		legacySend(blob, maxPayloadSize, legacyPackets::add);
+
+		final List<byte[]> newPackets = new ArrayList<>();
+		blob.send(maxPayloadSize, new Pair(0, objectSize), Blob.DATA_CODE, (packets, count) -> {
+			for (int i = 0; i < count; i++) {
+				final byte[] packet = new byte[packets[i].remaining()];
+				packets[i].get(packet);
+				newPackets.add(packet);
+			}
+		});
+
+		if (legacyPackets.size() != newPackets.size()) {
+			System.err.println("Different number of packets: " + legacyPackets.size() + " vs " + newPackets.size());
+			return;
+		}
+
+		for (int i = 0; i < legacyPackets.size(); i++)
+			if (!Arrays.equals(legacyPackets.get(i), newPackets.get(i))) {
+				System.err.println("Packet " + i + " differs");
+				return;
+			}
+
+		System.err.println("Both implementations produce the same " + newPackets.size() + " packets, encoding " + iterations + " times an object of " + objectSize + " bytes in fragments of "
+				+ maxPayloadSize + " bytes");
+
+		final long[] sink = new long[1];
+
+		for (int round = 0; round < 2; round++) {
+			System.err.println("Round " + (round + 1));
+
+			run("temporary arrays per fragment", iterations, newPackets.size(), objectSize, () -> legacySend(blob, maxPayloadSize, (packet) -> sink[0] += packet.length));
+
+			run("per-thread encoder", iterations, newPackets.size(), objectSize, () -> blob.send(maxPayloadSize, new Pair(0, objectSize), Blob.DATA_CODE, (packets, count) -> {
+				for (int i = 0; i < count; i++)
+					sink[0] += packets[i].remaining();
+			}));
+		}
+	}
+
+	private interface Encoder {
+		void encode() throws IOException, NoSuchAlgorithmException;
+	}
+
+	private interface PacketConsumer {
+		void accept(byte[] packet);
+	}
+
+	private static void run(final String description, final int iterations, final int packetsPerIteration, final int objectSize, final Encoder encoder)
+			throws IOException, NoSuchAlgorithmException {
+		final com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+		final long threadId = Thread.currentThread().getId();
+
+		final long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+
+		final long start = System.nanoTime();
+
+		for (int i = 0; i < iterations; i++)
+			encoder.encode();
+
+		final long nanos = System.nanoTime() - start;
+
+		final long allocated = threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+		final long packets = (long) iterations * packetsPerIteration;
+
+		System.err.println("  " + description + ": " + Format.point((double) nanos / packets) + " ns/packet, " + Format.point((double) objectSize * iterations / 1024 / 1024 / (nanos / 1000000000.))
+				+ " MB/s, " + Format.point((double) allocated / packets) + " bytes allocated/packet");
+	}
+
+	private static byte[] intToByteArray(final int value) {
+		return new byte[] { (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value };
+	}
+
+	private static byte[] shortToByteArray(final short value) {
+		return new byte[] { (byte) (value >>> 8), (byte) value };
+	}
+
+	private static byte[] uuidToByteArray(final UUID uuid) {
+		final ByteBuffer bb = ByteBuffer.wrap(new byte[16]);
+		bb.putLong(uuid.getMostSignificantBits());
+		bb.putLong(uuid.getLeastSignificantBits());
+		return bb.array();
+	}
+
+	private static byte[] checksum(final byte[] data) throws NoSuchAlgorithmException {
+		final MessageDigest mDigest = MessageDigest.getInstance("MD5");
+		mDigest.update(data);
+		return mDigest.digest();
+	}
+
+	/**
+	 * The payload fragmentation as it was implemented in Blob.send(), with the header offsets of {@link ch.alice.o2.ccdb.multicast.Utils}
+	 */
+	private static void legacySend(final Blob blob, final int maxPayloadSize, final PacketConsumer consumer) throws NoSuchAlgorithmException {
+		final byte[] payload = blob.getPayload();
+		final byte[] payloadChecksum = checksum(payload);
+		final String key = blob.getKey();
+
+		final byte[] payloadToSend = new byte[payload.length];
+		System.arraycopy(payload, 0, payloadToSend, 0, payload.length);
+
+		final byte[] commonHeader = new byte[1 + 16 + 4 + 2];
+
+		commonHeader[0] = Blob.DATA_CODE;
+		System.arraycopy(uuidToByteArray(blob.getUuid()), 0, commonHeader, 1, 16);
+		System.arraycopy(intToByteArray(payload.length), 0, commonHeader, 17, 4);
+		System.arraycopy(shortToByteArray((short) key.getBytes().length), 0, commonHeader, 21, 2);
+
+		int indexPayload = 0;
+
+		while (indexPayload < payloadToSend.length) {
+			int maxPayloadSize_copy = maxPayloadSize;
+			if (maxPayloadSize_copy + indexPayload > payloadToSend.length)
+				maxPayloadSize_copy = payloadToSend.length - indexPayload;
+
+			final byte[] packet = new byte[4 + 1 + 16 + 4 + 2 + 16 + 16 + maxPayloadSize_copy + key.getBytes().length];
+
+			System.arraycopy(intToByteArray(indexPayload), 0, packet, 0, 4);
+			System.arraycopy(commonHeader, 0, packet, 4, commonHeader.length);
+			System.arraycopy(payloadChecksum, 0, packet, 27, 16);
+			System.arraycopy(key.getBytes(), 0, packet, 43, key.getBytes().length);
+			System.arraycopy(payloadToSend, indexPayload, packet, 43 + key.getBytes().length, maxPayloadSize_copy);
+			System.arraycopy(checksum(Arrays.copyOfRange(packet, 0, packet.length - 16)), 0, packet, 43 + key.getBytes().length + maxPayloadSize_copy, 16);
+
+			consumer.accept(packet);
+
+			indexPayload = indexPayload + maxPayloadSize;
+		}
+	}
+}
@@ -12,6 +12,7 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.UUID;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -45,6 +46,13 @@ public class POSTBenchmark {
 	private static class RequestThread extends Thread {
 		private final URL url;
 
+		/**
+		 * Duration of each successful call, in nanoseconds
+		 */
+		final long[] latencies = new long[iterations];
+
+		int successful = 0;
+
 		/**
 		 * @throws MalformedURLException
 		 *
@@ -96,6 +104,8 @@ public class POSTBenchmark {
 
 					requestsMade.incrementAndGet();
 					nanosTook.addAndGet(t.getNanos());
+
+					latencies[successful++] = t.getNanos();
 				}
 				catch (final Exception ioe) {
 					ioe.printStackTrace();
@@ -124,6 +134,32 @@ public class POSTBenchmark {
 				+ Format.point(req / global.getSeconds()) + " Hz and an average time per call of " + Format.point(millis / req) + " ms. " + errors.get() + " errors were recorded.");
 	}
 
+	private static void printLatencies(final ArrayList<RequestThread> threads) {
+		final long[] all = new long[threads.stream().mapToInt(rt -> rt.successful).sum()];
+
+		if (all.length == 0)
+			return;
+
+		int pos = 0;
+
+		for (final RequestThread rt : threads) {
+			System.arraycopy(rt.latencies, 0, all, pos, rt.successful);
+			pos += rt.successful;
+		}
+
+		Arrays.sort(all);
+
+		final StringBuilder sb = new StringBuilder("Latency percentiles (ms):");
+
+		for (final String percentile : new String[] { "50", "90", "99", "99.9", "100" }) {
+			final int idx = (int) Math.ceil(all.length * Double.parseDouble(percentile) / 100) - 1;
+
+			sb.append(" p").append(percentile).append('=').append(Format.point(all[Math.max(idx, 0)] / 1000000.));
+		}
+
+		System.err.println(sb);
+	}
+
 	private static void truncate() throws IOException {
 		System.err.println("Truncating the benchmark paths");
 
@@ -182,6 +218,8 @@ public class POSTBenchmark {
 			printProgress(global, true);
 		}
 
+		printLatencies(list);
+
 		truncate();
 	}
 }
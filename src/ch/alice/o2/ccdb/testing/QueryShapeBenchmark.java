@@ -0,0 +1,129 @@
+package ch.alice.o2.ccdb.testing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ch.alice.o2.ccdb.RequestParser;
+import ch.alice.o2.ccdb.servlets.SQLObject;
+import lazyj.DBFunctions;
+
+/**
+ * Cost of parsing and planning the object lookup queries. The same time-constrained lookups are executed first the way they were before the query shapes were introduced, building the SQL text
+ * for each request and running it through a one-off statement, then through {@link SQLObject#getMatchingObject(RequestParser)}, that reuses the SQL text of the query shape and a prepared statement
+ * of the connection. Run it against a local PostgreSQL instance so that the network latency doesn't hide the difference.
+ *
+ * @author costing
+ * @since 2026-10-18
+ */
+public class QueryShapeBenchmark {
+
+	/**
+	 * @param args [number of objects] [number of lookups per thread] [number of threads]
+	 * @throws InterruptedException
+	 */
+	public static void main(final String[] args) throws InterruptedException {
+		// the lookups would otherwise be answered from memory, without reaching the database at all
+		if (System.getProperty("latest.index.paths") == null)
+			System.setProperty("latest.index.paths", "0");
+
+		final int noObjects = args.length >= 1 ? Integer.parseInt(args[0]) : 1000;
+
+		final int noQueries = args.length >= 2 ? Integer.parseInt(args[1]) : 10000;
+
+		final int noThreads = args.length >= 3 ? Integer.parseInt(args[2]) : 4;
+
+		final String path = "benchmark/queryshape";
+
+		final Integer pathId = SQLObject.fromPath(path).getPathId(true);
+
+		try (DBFunctions db = SQLObject.getDB()) {
+			db.query("SELECT count(1) FROM ccdb WHERE pathId=?;", false, pathId);
+
+			for (int i = db.geti(1); i < noObjects; i++) {
+				final SQLObject obj = SQLObject.fromPath(path);
+
+				obj.validFrom = i * 1000L;
+				obj.validUntil = obj.validFrom + 1000;
+				obj.fileName = "object.root";
+				obj.setContentType("application/octet-stream");
+				obj.uploadedFrom = "127.0.0.1";
+				obj.size = 1;
+				obj.md5 = "7e8fbee4f76f7079ec87bdc83d7d5538";
+				obj.setProperty("benchmark", "queryshape");
+				obj.replicas.add(Integer.valueOf(0));
+
+				obj.save(null);
+			}
+		}
+
+		System.err.println("Looking up " + noQueries + " objects on each of " + noThreads + " threads from a set of " + noObjects);
+
+		for (int round = 0; round < 2; round++) {
+			System.err.println("Round " + (round + 1));
+
+			run("SQL text built for each request, parsed and planned every time", noQueries, noThreads, () -> {
+				final long startTime = ThreadLocalRandom.current().nextLong(noObjects) * 1000 + 500;
+
+				final StringBuilder q = new StringBuilder(
+						"SELECT *,extract(epoch from lower(validity))*1000 as validfrom,extract(epoch from upper(validity))*1000 as validuntil FROM ccdb WHERE pathId=?");
+
+				q.append(" AND to_timestamp(?) AT TIME ZONE 'UTC' <@ validity");
+				q.append(" ORDER BY createTime DESC LIMIT 1;");
+
+				try (DBFunctions db = SQLObject.getDB()) {
+					db.query(q.toString(), false, pathId, Double.valueOf(startTime / 1000.));
+
+					return db.moveNext();
+				}
+			});
+
+			run("query shape template and cached prepared statement", noQueries, noThreads, () -> {
+				final RequestParser parser = new RequestParser(null);
+
+				parser.path = path;
+				parser.startTime = ThreadLocalRandom.current().nextLong(noObjects) * 1000 + 500;
+				parser.startTimeSet = true;
+
+				return SQLObject.getMatchingObject(parser) != null;
+			});
+		}
+	}
+
+	private interface Lookup {
+		boolean run();
+	}
+
+	private static void run(final String description, final int noQueries, final int noThreads, final Lookup lookup) throws InterruptedException {
+		final AtomicInteger misses = new AtomicInteger();
+
+		final List<Thread> threads = new ArrayList<>(noThreads);
+
+		final long start = System.nanoTime();
+
+		for (int thread = 0; thread < noThreads; thread++) {
+			final Thread t = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < noQueries; i++)
+						if (!lookup.run())
+							misses.incrementAndGet();
+				}
+			};
+
+			t.start();
+
+			threads.add(t);
+		}
+
+		for (final Thread t : threads)
+			t.join();
+
+		final double duration = (System.nanoTime() - start) / 1000000.;
+
+		final long total = (long) noQueries * noThreads;
+
+		System.err.println("  " + description + ": " + total * 1000 / duration + " lookups/s, " + duration * noThreads / total + " ms/lookup/thread" + (misses.get() > 0 ? ", " + misses + " not found" : ""));
+	}
+}
@@ -1,6 +1,7 @@
 package ch.alice.o2.ccdb.testing;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -150,5 +151,66 @@ public class SQLBenchmark {
 
 			System.err.println(nullObjects + " / " + (noQueries * queryThreads) + " results were null");
 		}
+
+		final int browsePaths = args.length >= 4 ? Integer.parseInt(args[3]) : 1000;
+
+		if (browsePaths > 0)
+			benchmarkBrowse(browsePaths);
+	}
+
+	/**
+	 * Compare the single-query and the query-per-path implementations of wildcard browsing
+	 *
+	 * @param browsePaths how many paths to match with the wildcard
+	 */
+	private static void benchmarkBrowse(final int browsePaths) {
+		final String prefix = "benchmark/browse/";
+
+		try (DBFunctions db = SQLObject.getDB()) {
+			db.query("SELECT count(1) FROM ccdb_paths WHERE path LIKE ?;", false, prefix + "%");
+
+			for (int i = db.geti(1); i < browsePaths; i++)
+				for (int j = 0; j < 2; j++) {
+					final SQLObject obj = SQLObject.fromPath(prefix + "path_" + i);
+
+					obj.validFrom = System.currentTimeMillis() + j;
+					obj.validUntil = obj.validFrom + 600000;
+					obj.fileName = "some_new_detector_object.root";
+					obj.setContentType("application/octet-stream");
+					obj.uploadedFrom = "127.0.0.1";
+					obj.size = j;
+					obj.md5 = "7e8fbee4f76f7079ec87bdc83d7d5538";
+					obj.replicas.add(Integer.valueOf(1));
+
+					obj.save(null);
+				}
+		}
+
+		final int noQueries = 20;
+
+		for (final boolean latest : new boolean[] { true, false })
+			for (final boolean singleQuery : new boolean[] { false, true }) {
+				SQLObject.singleQueryBrowse = singleQuery;
+
+				long objects = 0;
+
+				final long startBrowseTime = System.currentTimeMillis();
+
+				for (int i = 0; i < noQueries; i++) {
+					final RequestParser parser = new RequestParser(null);
+
+					parser.path = prefix + ".*";
+					parser.latestFlag = latest;
+
+					final Collection<SQLObject> result = SQLObject.getAllMatchingObjects(parser);
+
+					if (result != null)
+						objects += result.size();
+				}
+
+				System.err.println((singleQuery ? "single query" : "query per path") + ", " + (latest ? "latest object" : "all objects") + " of " + browsePaths + " paths: " + noQueries
+						+ " browse requests in " + Format.toInterval(System.currentTimeMillis() - startBrowseTime) + ", " + (double) (System.currentTimeMillis() - startBrowseTime) / noQueries
+						+ " ms/request, " + objects / noQueries + " objects/request");
+			}
 	}
 }
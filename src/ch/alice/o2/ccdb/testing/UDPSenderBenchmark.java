@@ -0,0 +1,116 @@
+package ch.alice.o2.ccdb.testing;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ch.alice.o2.ccdb.multicast.UDPSender;
+import lazyj.Format;
+
+/**
+ * Local loopback throughput of the UDP packet sending. The same fragments are sent first the way they were before {@link UDPSender} was introduced, with a new socket and a new address lookup
+ * for each packet, then through the long-lived sender one by one and in batches. A receiver on the same host counts what actually arrives.
+ *
+ * @author costing
+ * @since 2026-10-18
+ */
+public class UDPSenderBenchmark {
+
+	/**
+	 * @param args [number of packets] [packet size] [port]
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static void main(final String[] args) throws IOException, InterruptedException {
+		final int noPackets = args.length >= 1 ? Integer.parseInt(args[0]) : 200000;
+
+		final int packetSize = args.length >= 2 ? Integer.parseInt(args[1]) : 1200 + 100;
+
+		final int port = args.length >= 3 ? Integer.parseInt(args[2]) : 33420;
+
+		final AtomicLong receivedPackets = new AtomicLong();
+
+		final Thread receiver = new Thread(() -> {
+			try (DatagramSocket socket = new DatagramSocket(new InetSocketAddress("127.0.0.1", port))) {
+				socket.setReceiveBufferSize(16 * 1024 * 1024);
+				socket.setSoTimeout(1000);
+
+				final byte[] buf = new byte[65536];
+				final DatagramPacket packet = new DatagramPacket(buf, buf.length);
+
+				while (!Thread.currentThread().isInterrupted())
+					try {
+						socket.receive(packet);
+						receivedPackets.incrementAndGet();
+					}
+					catch (@SuppressWarnings("unused") final SocketTimeoutException ste) {
+						// check the interrupted flag
+					}
+			}
+			catch (final IOException ioe) {
+				System.err.println("Receiver failed: " + ioe.getMessage());
+			}
+		}, "UDPSenderBenchmark.receiver");
+
+		receiver.setDaemon(true);
+		receiver.start();
+
+		final byte[] packet = new byte[packetSize];
+
+		System.err.println("Sending " + noPackets + " packets of " + packetSize + " bytes to 127.0.0.1:" + port);
+
+		for (int round = 0; round < 2; round++) {
+			System.err.println("Round " + (round + 1));
+
+			run("new socket and address lookup per packet", noPackets, 1, packetSize, receivedPackets, () -> {
+				try (DatagramSocket socket = new DatagramSocket()) {
+					final InetAddress group = InetAddress.getByName("127.0.0.1");
+					socket.send(new DatagramPacket(packet, packet.length, group, port));
+				}
+			});
+
+			final UDPSender sender = UDPSender.get("127.0.0.1", port);
+
+			run("long-lived sender, one packet at a time", noPackets, 1, packetSize, receivedPackets, () -> sender.send(packet));
+
+			final List<byte[]> batch = new ArrayList<>();
+
+			for (int i = 0; i < 64; i++)
+				batch.add(packet);
+
+			run("long-lived sender, batches of " + batch.size() + " packets", noPackets / batch.size(), batch.size(), packetSize, receivedPackets, () -> sender.send(batch));
+		}
+
+		receiver.interrupt();
+	}
+
+	private interface Sender {
+		void send() throws IOException;
+	}
+
+	private static void run(final String description, final int calls, final int packetsPerCall, final int packetSize, final AtomicLong receivedPackets, final Sender sender)
+			throws IOException, InterruptedException {
+		final long receivedBefore = receivedPackets.get();
+
+		final long start = System.nanoTime();
+
+		for (int i = 0; i < calls; i++)
+			sender.send();
+
+		final double seconds = (System.nanoTime() - start) / 1000000000.;
+
+		// let the receiver drain its buffer
+		Thread.sleep(1000);
+
+		final long sentPackets = (long) calls * packetsPerCall;
+
+		System.err.println("  " + description + ": " + Format.point(sentPackets / seconds) + " packets/s, " + Format.point(sentPackets * packetSize / seconds / 1024 / 1024) + " MB/s, "
+				+ (receivedPackets.get() - receivedBefore) + " of " + sentPackets + " packets received");
+	}
+}
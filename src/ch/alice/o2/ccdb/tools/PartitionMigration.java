@@ -0,0 +1,226 @@
+package ch.alice.o2.ccdb.tools;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import ch.alice.o2.ccdb.servlets.SQLBacked;
+import ch.alice.o2.ccdb.servlets.SQLObject;
+import ch.alice.o2.ccdb.servlets.SQLPartitioning;
+import lazyj.DBFunctions;
+import lazyj.Format;
+
+/**
+ * Convert an existing, single <code>ccdb</code> table to the partitioned layout (see {@link SQLPartitioning}) while the service keeps running:
+ * <ol>
+ * <li>the partitioned table is created as <code>ccdb_partitioned</code>, its object IDs being kept unique through <code>ccdb_ids</code></li>
+ * <li>a trigger on <code>ccdb</code> mirrors all the changes made from this moment on to the new table</li>
+ * <li>the existing rows are copied in batches of primary keys, each batch in its own short transaction, sharing the lock on the rows being copied so that concurrent updates are not lost</li>
+ * <li>in one short transaction, the old table is renamed to <code>ccdb_unpartitioned</code>, the new one takes its place and gets the triggers and the view of the original one</li>
+ * </ol>
+ * The old table is kept, to be dropped by hand once the result is verified. The tool can be interrupted and restarted, the copy simply starts over and skips the rows that are already there.
+ *
+ * @author costing
+ * @since 2026-10-18
+ */
+public class PartitionMigration {
+	private static final String COLUMNS = "id, pathId, validity, createTime, replicas, size, md5, filename, contenttype, uploadedfrom, initialvalidity, metadata, lastmodified";
+
+	private static final String TARGET = "ccdb_partitioned";
+
+	/**
+	 * @param args [time|hash] [batch size] [pause between batches, in milliseconds]
+	 * @throws InterruptedException
+	 */
+	public static void main(final String[] args) throws InterruptedException {
+		final SQLPartitioning.Layout layout;
+
+		try {
+			layout = args.length >= 1 ? SQLPartitioning.Layout.valueOf(args[0].toUpperCase()) : SQLPartitioning.getLayout();
+		}
+		catch (@SuppressWarnings("unused") final IllegalArgumentException iae) {
+			System.out.println("Usage: ch.alice.o2.ccdb.tools.PartitionMigration [time|hash] [batch size, default 10000] [pause between batches in ms, default 0]");
+			return;
+		}
+
+		final int batchSize = args.length >= 2 ? Integer.parseInt(args[1]) : 10000;
+
+		final long pause = args.length >= 3 ? Long.parseLong(args[2]) : 0;
+
+		if (layout == SQLPartitioning.Layout.NONE) {
+			System.out.println("Indicate the target layout (time or hash) as argument or with the ccdb.partitioning option");
+			return;
+		}
+
+		try (DBFunctions db = SQLObject.getDB()) {
+			if (SQLPartitioning.isPartitioned(db, "ccdb")) {
+				System.out.println("The ccdb table is already partitioned");
+				return;
+			}
+
+			if (!SQLPartitioning.exists(db, TARGET)) {
+				System.out.println("Creating " + TARGET + " with the " + layout + " layout");
+
+				if (!SQLPartitioning.createTable(db, TARGET, layout)) {
+					System.out.println("Could not create the table");
+					return;
+				}
+			}
+
+			if (layout == SQLPartitioning.Layout.TIME) {
+				db.query("SELECT min(createTime), max(createTime) FROM ccdb;");
+
+				if (db.moveNext() && db.getl(1) > 0)
+					SQLPartitioning.createTimePartitions(db, TARGET, db.getl(1), Math.max(db.getl(2), System.currentTimeMillis()));
+			}
+
+			System.out.println("Mirroring all changes of ccdb to " + TARGET);
+
+			final StringBuilder newValues = new StringBuilder();
+
+			for (final String column : COLUMNS.split(",\\s*")) {
+				if (newValues.length() > 0)
+					newValues.append(", ");
+
+				newValues.append("NEW.").append(column);
+			}
+
+			db.query("CREATE OR REPLACE FUNCTION ccdb_partition_mirror() RETURNS TRIGGER AS $_$\n" + "    BEGIN\n" + "        IF TG_OP <> 'INSERT' THEN\n"
+					+ "            DELETE FROM " + TARGET + " WHERE id=OLD.id AND pathId=OLD.pathId AND createTime=OLD.createTime;\n" + "        END IF;\n"
+					+ "        IF TG_OP <> 'DELETE' THEN\n" + "            INSERT INTO " + TARGET + " (" + COLUMNS + ") VALUES (" + newValues + ") ON CONFLICT DO NOTHING;\n"
+					+ "        END IF;\n" + "        RETURN NULL;\n" + "    END\n" + "$_$ LANGUAGE 'plpgsql';");
+
+			db.query("DROP TRIGGER IF EXISTS ccdb_partition_mirror_trigger ON ccdb;");
+
+			if (!db.query("CREATE TRIGGER ccdb_partition_mirror_trigger AFTER INSERT OR UPDATE OR DELETE ON ccdb FOR EACH ROW EXECUTE PROCEDURE ccdb_partition_mirror();")) {
+				System.out.println("Could not create the mirroring trigger");
+				return;
+			}
+
+			db.query("SELECT reltuples::bigint FROM pg_class WHERE oid='ccdb'::regclass;");
+
+			final long estimatedRows = db.getl(1);
+
+			System.out.println("Copying about " + estimatedRows + " rows in batches of " + batchSize);
+
+			final long start = System.currentTimeMillis();
+
+			UUID lastId = new UUID(0, 0);
+
+			long copied = 0;
+
+			while (true) {
+				if (!db.query("WITH batch AS (SELECT " + COLUMNS + " FROM ccdb WHERE id>? ORDER BY id LIMIT ? FOR SHARE), copy AS (INSERT INTO " + TARGET + " (" + COLUMNS + ") SELECT "
+						+ COLUMNS + " FROM batch ON CONFLICT DO NOTHING) SELECT id, (SELECT count(1) FROM batch) FROM batch ORDER BY id DESC LIMIT 1;", false, lastId,
+						Integer.valueOf(batchSize))) {
+					System.out.println("Copying failed after " + lastId + ", restart the tool to continue");
+					return;
+				}
+
+				if (!db.moveNext())
+					break;
+
+				lastId = (UUID) db.getObject(1);
+				copied += db.getl(2);
+
+				final long elapsed = System.currentTimeMillis() - start;
+
+				System.out.println(copied + " rows copied" + (estimatedRows > 0 ? " (" + copied * 100 / estimatedRows + "%)" : "") + " in " + Format.toInterval(elapsed) + ", "
+						+ (elapsed > 0 ? copied * 1000 / elapsed : copied) + " rows/s");
+
+				if (pause > 0)
+					Thread.sleep(pause);
+			}
+
+			System.out.println("Copy complete, switching the tables");
+
+			swap(db);
+		}
+	}
+
+	/**
+	 * Put the partitioned table in place of the original one, atomically
+	 *
+	 * @param db
+	 */
+	private static void swap(final DBFunctions db) {
+		final List<String> oldTriggers = new ArrayList<>();
+
+		db.query("SELECT tgname FROM pg_trigger WHERE tgrelid='ccdb'::regclass AND NOT tgisinternal AND tgname<>'ccdb_partition_mirror_trigger';");
+
+		while (db.moveNext())
+			oldTriggers.add(db.gets(1));
+
+		final List<String> partitions = new ArrayList<>();
+
+		db.query("SELECT c.relname FROM pg_inherits i INNER JOIN pg_class c ON c.oid=i.inhrelid WHERE i.inhparent=?::regclass;", false, TARGET);
+
+		while (db.moveNext())
+			partitions.add(db.gets(1));
+
+		final DBFunctions.DBConnection dbc = db.getConnection();
+
+		if (dbc == null) {
+			System.out.println("Could not get a database connection");
+			return;
+		}
+
+		final Connection conn = dbc.getConnection();
+
+		try {
+			conn.setAutoCommit(false);
+
+			try (Statement stat = conn.createStatement()) {
+				// don't queue the service requests behind the exclusive lock for too long, better fail and retry
+				stat.execute("SET LOCAL lock_timeout = '10s';");
+				stat.execute("LOCK TABLE ccdb IN ACCESS EXCLUSIVE MODE;");
+
+				stat.execute("DROP VIEW IF EXISTS ccdb_view;");
+				stat.execute("DROP TRIGGER ccdb_partition_mirror_trigger ON ccdb;");
+
+				// the old table would otherwise still update the statistics if rows were deleted from it
+				for (final String trigger : oldTriggers)
+					stat.execute("DROP TRIGGER " + trigger + " ON ccdb;");
+
+				stat.execute("ALTER TABLE ccdb RENAME TO ccdb_unpartitioned;");
+				stat.execute("ALTER TABLE " + TARGET + " RENAME TO ccdb;");
+
+				// the names of the partitions have to follow the table name, the future ones are looked up by name
+				for (final String partition : partitions)
+					stat.execute("ALTER TABLE " + partition + " RENAME TO ccdb" + partition.substring(TARGET.length()) + ";");
+
+				for (final String trigger : SQLBacked.getTriggerDefinitions())
+					stat.execute(trigger);
+
+				stat.execute(SQLBacked.CCDB_VIEW);
+			}
+
+			conn.commit();
+
+			System.out.println("The ccdb table is now partitioned. The original table was kept as ccdb_unpartitioned, drop it once everything is verified.");
+		}
+		catch (final SQLException e) {
+			System.out.println("Switching the tables failed, nothing was changed and the mirroring continues. Run the tool again to retry: " + e.getMessage());
+
+			try {
+				conn.rollback();
+			}
+			catch (@SuppressWarnings("unused") final SQLException e2) {
+				// ignore
+			}
+		}
+		finally {
+			try {
+				conn.setAutoCommit(true);
+			}
+			catch (@SuppressWarnings("unused") final SQLException e) {
+				// ignore
+			}
+
+			dbc.free();
+		}
+	}
+}
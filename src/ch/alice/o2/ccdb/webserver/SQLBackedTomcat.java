@@ -8,6 +8,7 @@ import org.apache.catalina.Wrapper;
 import ch.alice.o2.ccdb.servlets.JSRoot;
 import ch.alice.o2.ccdb.servlets.MonitorServlet;
 import ch.alice.o2.ccdb.servlets.SQLBacked;
+import ch.alice.o2.ccdb.servlets.SQLBatchUpload;
 import ch.alice.o2.ccdb.servlets.SQLBrowse;
 import ch.alice.o2.ccdb.servlets.SQLDownload;
 import ch.alice.o2.ccdb.servlets.SQLTruncate;
@@ -41,6 +42,7 @@ public class SQLBackedTomcat {
 
 		tomcat.addServlet(SQLBacked.class.getName(), "/*");
 		tomcat.addServlet(SQLTruncate.class.getName(), "/truncate/*");
+		tomcat.addServlet(SQLBatchUpload.class.getName(), "/batch/*");
 		tomcat.addServlet(MonitorServlet.class.getName(), "/monitor/*");
 		tomcat.addServlet(JSRoot.class.getName(), "/JSRoot");
 
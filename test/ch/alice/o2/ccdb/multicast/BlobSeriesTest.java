@@ -0,0 +1,72 @@
+package ch.alice.o2.ccdb.multicast;
+
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author costing
+ * @since 2026-10-18
+ */
+class BlobSeriesTest {
+    private static Blob blob(final long startTime, final long endTime, final long createTime) {
+        final Blob b = new Blob("test/series", UUID.randomUUID());
+        b.startTime = startTime;
+        b.endTime = endTime;
+        b.setProperty("Created", String.valueOf(createTime));
+        return b;
+    }
+
+    @Test
+    void mostRecentCovering() {
+        final BlobSeries series = new BlobSeries();
+
+        // a long lived object created first, then shorter ones on top of it
+        final Blob longLived = blob(0, 1000, 1);
+        final Blob first = blob(100, 200, 2);
+        final Blob second = blob(150, 300, 3);
+
+        assertSame(second, series.add(second, 10));
+        assertSame(longLived, series.add(longLived, 10));
+        assertSame(first, series.add(first, 10));
+
+        // adding the same ID again returns the object already in memory
+        assertSame(first, series.add(first, 10));
+        assertEquals(3, series.size());
+
+        assertSame(longLived, series.getMostRecentCovering(50, b -> true));
+        assertSame(first, series.getMostRecentCovering(120, b -> true));
+        assertSame(second, series.getMostRecentCovering(160, b -> true));
+        assertSame(longLived, series.getMostRecentCovering(500, b -> true));
+        assertNull(series.getMostRecentCovering(1000, b -> true));
+        assertNull(series.getMostRecentCovering(-1, b -> true));
+
+        assertSame(first, series.getMostRecentCovering(160, b -> b != second));
+        assertSame(second, series.getMostRecent(b -> true));
+
+        assertTrue(series.remove(second));
+        assertSame(first, series.getMostRecentCovering(160, b -> true));
+        assertEquals(first, series.get(first.getUuid()));
+        assertNull(series.get(second.getUuid()));
+    }
+
+    @Test
+    void retire() {
+        final BlobSeries series = new BlobSeries();
+        final Blob b = blob(0, 10, 1);
+
+        series.add(b, 10);
+
+        assertEquals(false, series.retireIfEmpty());
+        assertTrue(series.remove(b));
+        assertTrue(series.retireIfEmpty());
+
+        // the series is no longer in the index, the caller has to create a new one
+        assertNull(series.add(b, 10));
+    }
+}
@@ -0,0 +1,151 @@
+package ch.alice.o2.ccdb.multicast;
+
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.function.IntPredicate;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author costing
+ * @since 2026-10-18
+ */
+class ParityGroupsTest {
+    private static final int FEC_GROUP = 8;
+
+    private static Blob newBlob(final int size) throws NoSuchAlgorithmException, IOException {
+        final byte[] payload = new byte[size];
+        new Random(size).nextBytes(payload);
+
+        return new Blob(Map.of("Valid-From", "1", "Valid-Until", "2", "Created", "1"), payload, "test/fec", UUID.randomUUID());
+    }
+
+    private static List<byte[]> encode(final Blob blob) throws NoSuchAlgorithmException, IOException {
+        final List<byte[]> ret = new ArrayList<>();
+
+        blob.send((packets, count) -> {
+            for (int i = 0; i < count; i++) {
+                final byte[] packet = new byte[packets[i].remaining()];
+                packets[i].get(packet);
+                ret.add(packet);
+            }
+        }, FEC_GROUP);
+
+        return ret;
+    }
+
+    private static byte type(final byte[] packet) {
+        return packet[Utils.PACKET_TYPE_START_INDEX];
+    }
+
+    /**
+     * @param dropData which data fragments (counted from 0) to drop
+     * @return the rebuilt fragments
+     */
+    private static int receive(final Blob target, final List<byte[]> packets, final IntPredicate dropData) throws NoSuchAlgorithmException, IOException {
+        int dataFragment = 0;
+        int rebuilt = 0;
+
+        for (final byte[] packet : packets) {
+            if (type(packet) == Blob.DATA_CODE && dropData.test(dataFragment++))
+                continue;
+
+            rebuilt += target.addPacket(packet, packet.length);
+        }
+
+        return rebuilt;
+    }
+
+    @Test
+    void parityPackets() throws NoSuchAlgorithmException, IOException {
+        final List<byte[]> packets = encode(newBlob(100000));
+
+        long data = 0;
+        long parity = 0;
+
+        for (final byte[] packet : packets)
+            if (type(packet) == Blob.DATA_CODE)
+                data++;
+            else
+                if (type(packet) == Blob.DATA_PARITY_CODE)
+                    parity++;
+
+        assertEquals((data + FEC_GROUP - 1) / FEC_GROUP, parity);
+    }
+
+    @Test
+    void oneLossPerGroupIsRebuilt() throws NoSuchAlgorithmException, IOException {
+        final Blob sent = newBlob(100000);
+        final Blob received = new Blob(sent.getKey(), sent.getUuid());
+
+        final int rebuilt = receive(received, encode(sent), i -> i % FEC_GROUP == 3);
+
+        assertTrue(received.isComplete());
+        assertArrayEquals(sent.getPayload(), received.getPayload());
+        // 84 data fragments, one lost in each of the 11 groups
+        assertEquals(11, rebuilt);
+    }
+
+    @Test
+    void lastShortFragmentIsRebuilt() throws NoSuchAlgorithmException, IOException {
+        final Blob sent = newBlob(100000);
+        final Blob received = new Blob(sent.getKey(), sent.getUuid());
+
+        final int lastFragment = 100000 / 1200;
+
+        assertEquals(1, receive(received, encode(sent), i -> i == lastFragment));
+        assertTrue(received.isComplete());
+        assertArrayEquals(sent.getPayload(), received.getPayload());
+    }
+
+    @Test
+    void parityBeforeFragments() throws NoSuchAlgorithmException, IOException {
+        final Blob sent = newBlob(50000);
+        final Blob received = new Blob(sent.getKey(), sent.getUuid());
+
+        final List<byte[]> packets = encode(sent);
+        Collections.reverse(packets);
+
+        // with the parity first, fragments that are still on their way are rebuilt as soon as they are the only missing ones
+        assertTrue(receive(received, packets, i -> i == 5) >= 1);
+        assertTrue(received.isComplete());
+        assertArrayEquals(sent.getPayload(), received.getPayload());
+    }
+
+    @Test
+    void lostMetadataIsRebuilt() throws NoSuchAlgorithmException, IOException {
+        final Blob sent = newBlob(50000);
+        final Blob received = new Blob(sent.getKey(), sent.getUuid());
+
+        int rebuilt = 0;
+
+        for (final byte[] packet : encode(sent))
+            if (type(packet) != Blob.METADATA_CODE)
+                rebuilt += received.addPacket(packet, packet.length);
+
+        assertEquals(1, rebuilt);
+        assertTrue(received.isComplete());
+        assertEquals("2", received.getProperty("Valid-Until"));
+    }
+
+    @Test
+    void twoLossesInAGroup() throws NoSuchAlgorithmException, IOException {
+        final Blob sent = newBlob(100000);
+        final Blob received = new Blob(sent.getKey(), sent.getUuid());
+
+        assertEquals(0, receive(received, encode(sent), i -> i == 1 || i == 2));
+        assertFalse(received.isComplete());
+        assertEquals(1, received.getMissingPayloadBlocks().size());
+    }
+}
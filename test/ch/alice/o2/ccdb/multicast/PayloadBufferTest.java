@@ -0,0 +1,110 @@
+package ch.alice.o2.ccdb.multicast;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author costing
+ * @since 2026-10-18
+ */
+class PayloadBufferTest {
+    private static byte[] content(final int length) {
+        final byte[] ret = new byte[length];
+
+        for (int i = 0; i < length; i++)
+            ret[i] = (byte) (i * 31 + 7);
+
+        return ret;
+    }
+
+    @Test
+    void assembleFragments() throws NoSuchAlgorithmException {
+        final byte[] original = content(200000);
+
+        final PayloadBuffer buffer = PayloadBuffer.allocate(original.length);
+
+        // fragments arrive in reverse order
+        for (int offset = original.length - (original.length % 1200); offset >= 0; offset -= 1200)
+            buffer.put(offset, original, offset, Math.min(1200, original.length - offset));
+
+        assertEquals(original.length, buffer.length());
+        assertArrayEquals(original, buffer.toByteArray());
+        assertArrayEquals(Utils.calculateChecksum(original), buffer.checksum());
+        assertTrue(buffer.contentEquals(PayloadBuffer.wrap(original)));
+
+        final byte[] part = new byte[100];
+        buffer.get(1000, part, 0, part.length);
+        assertArrayEquals(Arrays.copyOfRange(original, 1000, 1100), part);
+    }
+
+    @Test
+    void writeRanges() throws IOException {
+        final byte[] original = content(300000);
+
+        final PayloadBuffer buffer = PayloadBuffer.copyOf(original);
+
+        assertTrue(buffer.retain());
+
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+            buffer.writeTo(baos, 0, original.length);
+            assertArrayEquals(original, baos.toByteArray());
+        }
+
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+            buffer.writeTo(baos, 12345, 100000);
+            assertArrayEquals(Arrays.copyOfRange(original, 12345, 112345), baos.toByteArray());
+        }
+
+        buffer.release();
+        buffer.release();
+    }
+
+    @Test
+    void compressionRoundTrip() throws IOException {
+        final byte[] original = content(300000);
+
+        final PayloadBuffer compressed = PayloadBuffer.copyOf(original).deflate(1, 0.9);
+
+        assertNotNull(compressed);
+        assertTrue(compressed.length() < original.length / 10, "compressed to " + compressed.length() + " bytes");
+
+        final PayloadBuffer inflated = compressed.inflate();
+
+        assertArrayEquals(original, inflated.toByteArray());
+
+        inflated.release();
+    }
+
+    @Test
+    void incompressibleContent() {
+        final byte[] original = new byte[100000];
+        new Random(1).nextBytes(original);
+
+        assertNull(PayloadBuffer.wrap(original).deflate(1, 0.9));
+    }
+
+    @Test
+    void corruptedCompressedContent() {
+        final byte[] compressed = PayloadBuffer.wrap(content(100000)).deflate(1, 0.9).toByteArray();
+
+        // announce more content than the stream holds
+        compressed[1]++;
+
+        assertThrows(IOException.class, () -> PayloadBuffer.wrap(compressed).inflate());
+
+        // truncated stream
+        assertThrows(IOException.class, () -> PayloadBuffer.wrap(Arrays.copyOf(compressed, compressed.length / 2)).inflate());
+    }
+}
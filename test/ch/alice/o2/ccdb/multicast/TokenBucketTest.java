@@ -0,0 +1,61 @@
+package ch.alice.o2.ccdb.multicast;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author costing
+ * @since 2026-10-18
+ */
+class TokenBucketTest {
+    @Test
+    void burstGoesThroughImmediately() throws InterruptedException {
+        final TokenBucket bucket = new TokenBucket(1000, 100000);
+
+        final long start = System.nanoTime();
+
+        bucket.acquire(50000);
+        bucket.acquire(50000);
+
+        assertTrue(System.nanoTime() - start < 100000000L, "the burst should not wait");
+    }
+
+    @Test
+    void rateIsEnforced() throws InterruptedException {
+        // 1MB/s with a 10KB burst
+        final TokenBucket bucket = new TokenBucket(1000000, 10000);
+
+        final long start = System.nanoTime();
+
+        // 10KB of burst plus 200KB at 1MB/s should take ~200ms
+        for (int i = 0; i < 21; i++)
+            bucket.acquire(10000);
+
+        final long elapsedMs = (System.nanoTime() - start) / 1000000;
+
+        assertTrue(elapsedMs >= 190, "sent too fast: " + elapsedMs + "ms");
+        assertTrue(elapsedMs < 1000, "sent too slow: " + elapsedMs + "ms");
+    }
+
+    @Test
+    void requestsLargerThanTheBurst() throws InterruptedException {
+        final TokenBucket bucket = new TokenBucket(1000000, 1000);
+
+        final long start = System.nanoTime();
+
+        // one batch larger than the bucket goes out and the next one pays the debt
+        bucket.acquire(100000);
+        bucket.acquire(1);
+
+        final long elapsedMs = (System.nanoTime() - start) / 1000000;
+
+        assertTrue(elapsedMs >= 90, "sent too fast: " + elapsedMs + "ms");
+    }
+
+    @Test
+    void invalidRate() {
+        assertThrows(IllegalArgumentException.class, () -> new TokenBucket(0, 1000));
+    }
+}
@@ -0,0 +1,81 @@
+package ch.alice.o2.ccdb.servlets;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * @author costing
+ * @since 2026-10-18
+ */
+class CacheTest {
+    @Test
+    void putGetRemove() {
+        Cache cache = new Cache("test", false);
+
+        for (int i = 1; i <= 100000; i++)
+            cache.putInCache(Integer.valueOf(i), "value_" + i);
+
+        for (int i = 1; i <= 100000; i += 2)
+            assertEquals("value_" + i, cache.removeById(Integer.valueOf(i)));
+
+        for (int i = 1; i <= 100000; i++) {
+            if (i % 2 == 1) {
+                assertNull(cache.getValueFromCache(i));
+                assertNull(cache.getIdFromCache("value_" + i));
+            }
+            else {
+                assertEquals("value_" + i, cache.getValueFromCache(i));
+                assertEquals(Integer.valueOf(i), cache.getIdFromCache("value_" + i));
+            }
+        }
+
+        cache.clear();
+
+        assertNull(cache.getValueFromCache(2));
+        assertNull(cache.getIdFromCache("value_2"));
+    }
+
+    @Test
+    void singleLoadPerMiss() {
+        Cache cache = new Cache("test", false);
+
+        int[] loads = new int[1];
+
+        for (int i = 0; i < 10; i++)
+            assertEquals(Integer.valueOf(42), cache.getId("answer", (v) -> {
+                loads[0]++;
+                return Integer.valueOf(42);
+            }));
+
+        assertEquals(1, loads[0]);
+        assertEquals("answer", cache.getValue(Integer.valueOf(42), (id) -> null));
+    }
+
+    @Test
+    void removalDuringLoad() {
+        Cache cache = new Cache("test", false);
+
+        // the entry is removed while the lookup is still waiting for the database
+        assertEquals(Integer.valueOf(7), cache.getId("removed", (v) -> {
+            cache.removeById(Integer.valueOf(7));
+            return Integer.valueOf(7);
+        }));
+
+        assertNull(cache.getIdFromCache("removed"));
+        assertNull(cache.getValueFromCache(7));
+
+        // a preload snapshot taken before a removal is not applied to the removed ID any more
+        final long[] removals = cache.getRemovals();
+
+        cache.removeById(Integer.valueOf(8));
+        cache.putInCache(Integer.valueOf(8), "preloaded", removals);
+
+        assertNull(cache.getIdFromCache("preloaded"));
+
+        // but a later lookup caches it again
+        assertEquals(Integer.valueOf(7), cache.getId("removed", (v) -> Integer.valueOf(7)));
+        assertEquals("removed", cache.getValueFromCache(7));
+    }
+}
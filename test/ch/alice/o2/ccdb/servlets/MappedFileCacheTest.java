@@ -0,0 +1,105 @@
+package ch.alice.o2.ccdb.servlets;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * @author costing
+ * @since 2026-10-18
+ */
+class MappedFileCacheTest {
+    @TempDir
+    File folder;
+
+    File createFile(String name, int size) throws IOException {
+        byte[] content = new byte[size];
+
+        for (int i = 0; i < size; i++)
+            content[i] = (byte) i;
+
+        File f = new File(folder, name);
+        Files.write(f.toPath(), content);
+        return f;
+    }
+
+    @Test
+    void rangesAreSlicesOfTheFile() throws IOException {
+        MappedFileCache cache = new MappedFileCache("test", 1024 * 1024, 1024 * 1024);
+
+        File f = createFile("ranges", 1000);
+        UUID id = UUID.randomUUID();
+
+        try (MappedFileCache.Mapping mapping = cache.get(id, f, 1000)) {
+            assertNotNull(mapping);
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            MappedFileCache.write(mapping.slice(10, 5), output, null);
+
+            assertArrayEquals(new byte[] { 10, 11, 12, 13, 14 }, output.toByteArray());
+
+            ByteBuffer full = mapping.slice(0, 1000);
+            assertEquals(1000, full.remaining());
+            assertEquals((byte) 999, full.get(999));
+        }
+
+        try (MappedFileCache.Mapping again = cache.get(id, f, 1000)) {
+            assertNotNull(again);
+        }
+
+        assertEquals(1000, cache.getMappedBytes());
+    }
+
+    @Test
+    void leastRecentlyUsedIsUnmapped() throws IOException {
+        MappedFileCache cache = new MappedFileCache("test", 2500, 2500);
+
+        UUID first = UUID.randomUUID();
+        UUID second = UUID.randomUUID();
+        UUID third = UUID.randomUUID();
+
+        File f1 = createFile("first", 1000);
+        File f2 = createFile("second", 1000);
+        File f3 = createFile("third", 1000);
+
+        MappedFileCache.Mapping m1 = cache.get(first, f1, 1000);
+        m1.close();
+        cache.get(second, f2, 1000).close();
+
+        // touch the first one, the second becomes the eldest
+        MappedFileCache.Mapping m1again = cache.get(first, f1, 1000);
+        assertSame(m1, m1again);
+        m1again.close();
+
+        cache.get(third, f3, 1000).close();
+
+        assertEquals(2000, cache.getMappedBytes());
+
+        MappedFileCache.Mapping m1last = cache.get(first, f1, 1000);
+        assertSame(m1, m1last);
+        m1last.close();
+    }
+
+    @Test
+    void sizeMismatchIsNotMapped() throws IOException {
+        MappedFileCache cache = new MappedFileCache("test", 1024 * 1024, 1024);
+
+        File f = createFile("mismatch", 100);
+
+        assertNull(cache.get(UUID.randomUUID(), f, 200));
+        assertNull(cache.get(UUID.randomUUID(), createFile("large", 2048), 2048));
+        assertEquals(0, cache.getMappedBytes());
+    }
+}
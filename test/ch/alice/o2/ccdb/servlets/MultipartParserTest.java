@@ -0,0 +1,121 @@
+package ch.alice.o2.ccdb.servlets;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author costing
+ * @since 2026-10-18
+ */
+class MultipartParserTest {
+    static final String BOUNDARY = "----------------------------a1b2c3";
+
+    /**
+     * Hands out the content a few bytes at a time, to cross the delimiter with the buffer boundaries
+     */
+    static InputStream trickle(byte[] content, int chunk) {
+        return new FilterInputStream(new ByteArrayInputStream(content)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(len, chunk));
+            }
+        };
+    }
+
+    static byte[] body(byte[]... payloads) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        body.writeBytes("preamble to ignore\r\n".getBytes(StandardCharsets.ISO_8859_1));
+
+        for (int i = 0; i < payloads.length; i++) {
+            body.writeBytes(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"blob" + i + "\"; filename=\"file" + i + ".root\"\r\n"
+                    + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            body.writeBytes(payloads[i]);
+            body.writeBytes("\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        }
+
+        body.writeBytes(("--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.ISO_8859_1));
+
+        return body.toByteArray();
+    }
+
+    static byte[] readPart(MultipartParser parser) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+
+        int n;
+
+        while ((n = parser.read(buffer, 0, buffer.length)) >= 0)
+            content.write(buffer, 0, n);
+
+        return content.toByteArray();
+    }
+
+    @Test
+    void boundaryFromContentType() {
+        assertEquals(BOUNDARY, MultipartParser.getBoundary("multipart/form-data; boundary=" + BOUNDARY));
+        assertEquals("quoted", MultipartParser.getBoundary("multipart/form-data; boundary=\"quoted\""));
+        assertEquals(null, MultipartParser.getBoundary("application/octet-stream"));
+    }
+
+    @Test
+    void partsAcrossReads() throws IOException {
+        // content that contains pieces of the delimiter
+        byte[] first = ("\r\n--" + BOUNDARY.substring(0, 10) + "\r\n-").getBytes(StandardCharsets.ISO_8859_1);
+        byte[] second = new byte[200000];
+
+        for (int i = 0; i < second.length; i++)
+            second[i] = (byte) (i * 31);
+
+        for (int chunk : new int[] { 1, 7, 4096, 1 << 20 }) {
+            MultipartParser parser = new MultipartParser(trickle(body(first, second), chunk), BOUNDARY);
+
+            assertTrue(parser.nextPart());
+            assertEquals("blob0", parser.getName());
+            assertEquals("file0.root", parser.getSubmittedFileName());
+            assertEquals("application/octet-stream", parser.getContentType());
+            assertArrayEquals(first, readPart(parser));
+
+            assertTrue(parser.nextPart());
+            assertEquals("blob1", parser.getName());
+            assertArrayEquals(second, readPart(parser));
+
+            assertFalse(parser.nextPart());
+        }
+    }
+
+    @Test
+    void unreadContentIsSkipped() throws IOException {
+        MultipartParser parser = new MultipartParser(trickle(body(new byte[100000], new byte[] { 1, 2, 3 }), 1000), BOUNDARY);
+
+        assertTrue(parser.nextPart());
+        assertTrue(parser.nextPart());
+        assertArrayEquals(new byte[] { 1, 2, 3 }, readPart(parser));
+        assertFalse(parser.nextPart());
+    }
+
+    @Test
+    void truncatedBody() throws IOException {
+        byte[] full = body(new byte[10000]);
+        byte[] truncated = new byte[5000];
+        System.arraycopy(full, 0, truncated, 0, truncated.length);
+
+        MultipartParser parser = new MultipartParser(new ByteArrayInputStream(truncated), BOUNDARY);
+
+        assertTrue(parser.nextPart());
+        assertThrows(EOFException.class, () -> readPart(parser));
+    }
+}
@@ -0,0 +1,56 @@
+package ch.alice.o2.ccdb.servlets;
+
+import ch.alice.o2.ccdb.RequestParser;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * @author costing
+ * @since 2026-10-18
+ */
+class QueryTemplatesTest {
+    @Test
+    void sameShapeSameQuery() {
+        RequestParser first = new RequestParserImpl("x");
+        first.startTime = 1000;
+        first.startTimeSet = true;
+
+        RequestParser second = new RequestParserImpl("y");
+        second.startTime = 2000;
+        second.startTimeSet = true;
+
+        List<Object> firstArguments = new ArrayList<>();
+        List<Object> secondArguments = new ArrayList<>();
+
+        String firstQuery = SQLObject.getMultiPathQuery(first, "ccdb", "unnest(?::int[]) AS p(pid)", firstArguments);
+        String secondQuery = SQLObject.getMultiPathQuery(second, "ccdb", "unnest(?::int[]) AS p(pid)", secondArguments);
+
+        assertSame(firstQuery, secondQuery);
+        assertEquals(List.of(Double.valueOf(1)), firstArguments);
+        assertEquals(List.of(Double.valueOf(2)), secondArguments);
+    }
+
+    @Test
+    void optionsMatchArguments() {
+        RequestParser parser = new RequestParserImpl("x");
+        parser.startTime = 1000;
+        parser.startTimeSet = true;
+        parser.notAfter = 5;
+        parser.notBefore = 3;
+
+        List<Object> arguments = new ArrayList<>();
+
+        int shape = SQLObject.getOptionArguments(parser, arguments, true);
+
+        StringBuilder query = new StringBuilder();
+        SQLObject.appendOptions(query, shape);
+
+        assertEquals(" AND to_timestamp(?) AT TIME ZONE 'UTC' <@ validity AND createTime<=? AND createTime>=?", query.toString());
+        assertEquals(List.of(Double.valueOf(1), Long.valueOf(5), Long.valueOf(3)), arguments);
+    }
+}
@@ -0,0 +1,118 @@
+package ch.alice.o2.ccdb.servlets;
+
+import ch.alice.o2.ccdb.RequestParser;
+import lazyj.DBFunctions;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collection;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Browsing in multi-master mode through the original PL/pgSQL metadata translation of ccdb_view (one sub-select per key of each row) and through the set-based one.
+ * Not part of the regular test suite (the name doesn't match the test patterns), run it explicitly against a scratch database.
+ *
+ * @author costing
+ * @since 2026-10-18
+ */
+class SQLObjectCachelessImplBenchmark {
+    static final int OBJECTS = 10000;
+    static final int KEYS = 5;
+    static final int ROUNDS = 5;
+
+    static final String PLPGSQL_FUNCTION = "create or replace function ccdb_metadata_latest_key_value_plpgsql (keyid_value hstore) returns hstore as $$\n" +
+            "declare \n" +
+            "    key_value hstore := ''::hstore;\n" +
+            "    id integer;\n" +
+            "begin\n" +
+            "    foreach id in array akeys(keyid_value) loop\n" +
+            "        key_value := key_value || hstore((select metadataKey from ccdb_metadata where metadataId = id)::text, keyid_value -> cast(id as text));\n" +
+            "    end loop;\n" +
+            "    return key_value;\n" +
+            "end\n" +
+            "$$ language plpgsql;\n";
+
+    static final String PLPGSQL_VIEW = "create or replace view ccdb_view as \n" +
+            "    select ccdb.*, \n" +
+            "        paths.path as path, \n" +
+            "        ctype.contenttype as contenttype_value, \n" +
+            "        ccdb_metadata_latest_key_value_plpgsql(ccdb.metadata) as metadata_key_value\n" +
+            "    from ccdb  \n" +
+            "        left outer join ccdb_paths as paths on ccdb.pathid = paths.pathid\n" +
+            "        left outer join ccdb_contenttype as ctype on ccdb.contenttype = ctype.contenttypeid;";
+
+    @BeforeAll
+    static void fill() {
+        SQLObject.multiMasterVersion = true;
+
+        try (DBFunctions db = SQLObject.getDB()) {
+            db.query("insert into ccdb_paths (path) values ('benchmark_view') on conflict do nothing;");
+            db.query("insert into ccdb_contenttype (contenttype) values ('benchmark') on conflict do nothing;");
+
+            for (int k = 0; k < KEYS; k++)
+                db.query("insert into ccdb_metadata (metadataKey) values (?) on conflict do nothing;", false, "benchmark_key_" + k);
+
+            db.query("insert into ccdb (id, pathid, validity, createtime, replicas, size, md5, filename, contenttype, uploadedfrom, initialvalidity, metadata, lastmodified) " +
+                    "select md5('benchmark_view' || i)::uuid, (select pathid from ccdb_paths where path='benchmark_view'), " +
+                    "tsrange(to_timestamp(i) at time zone 'UTC', to_timestamp(i + 1) at time zone 'UTC'), i, '{0}', 1, md5(i::text)::uuid, 'file', " +
+                    "(select contenttypeid from ccdb_contenttype where contenttype='benchmark'), '127.0.0.1', i, " +
+                    "(select hstore(array_agg(metadataid::text), array_agg('value_' || i)) from ccdb_metadata where metadataKey like 'benchmark_key_%'), i " +
+                    "from generate_series(1, ?) as i on conflict do nothing;", false, Integer.valueOf(OBJECTS));
+
+            db.query(PLPGSQL_FUNCTION);
+        }
+    }
+
+    @AfterAll
+    static void cleanup() {
+        try (DBFunctions db = SQLObject.getDB()) {
+            db.query(SQLBacked.CCDB_VIEW);
+            db.query("drop function if exists ccdb_metadata_latest_key_value_plpgsql(hstore);");
+            db.query("delete from ccdb where pathid=(select pathid from ccdb_paths where path='benchmark_view');");
+            db.query("delete from ccdb_paths where path='benchmark_view';");
+            db.query("delete from ccdb_contenttype where contenttype='benchmark';");
+            db.query("delete from ccdb_metadata where metadataKey like 'benchmark_key_%';");
+        }
+
+        SQLObject.multiMasterVersion = false;
+    }
+
+    static long browse() {
+        long best = Long.MAX_VALUE;
+
+        for (int round = 0; round < ROUNDS; round++) {
+            RequestParser parser = new RequestParserImpl("benchmark_view");
+            parser.latestFlag = false;
+
+            long start = System.nanoTime();
+
+            Collection<SQLObject> objects = SQLObject.getAllMatchingObjects(parser);
+
+            best = Math.min(best, System.nanoTime() - start);
+
+            assertEquals(OBJECTS, objects.size());
+            assertEquals(KEYS, objects.iterator().next().getMetadataKeyValue().size());
+        }
+
+        return best / 1000000;
+    }
+
+    @Test
+    void compareViews() {
+        try (DBFunctions db = SQLObject.getDB()) {
+            db.query(PLPGSQL_VIEW);
+        }
+
+        long plpgsql = browse();
+
+        try (DBFunctions db = SQLObject.getDB()) {
+            db.query(SQLBacked.CCDB_VIEW);
+        }
+
+        long setBased = browse();
+
+        System.err.println("Browsing " + OBJECTS + " objects with " + KEYS + " metadata keys each: " + plpgsql + " ms with the PL/pgSQL view, " + setBased + " ms with the set-based view");
+    }
+}
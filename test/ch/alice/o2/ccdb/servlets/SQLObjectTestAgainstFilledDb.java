@@ -67,6 +67,19 @@ public class SQLObjectTestAgainstFilledDb {
         assertEquals(object1Id, object1.id);
     }
 
+    @Test
+    void getMatchingObjectAfterDelete() {
+        RequestParser parser = new RequestParserImpl("x");
+        SQLObject latest = SQLObject.getMatchingObject(parser);
+
+        assertEquals(object1Id, latest.id);
+        assertTrue(latest.delete());
+
+        SQLObject previous = SQLObject.getMatchingObject(parser);
+
+        assertEquals(UUID.fromString("a3fe6ab0-82a0-11eb-8f02-08f1eaf0250c"), previous.id);
+    }
+
     void checkObjects(Collection<SQLObject> objects) {
         assertEquals(2, objects.size());
         SQLObject[] arrayOfObjects = objects.toArray(SQLObject[]::new);
@@ -115,6 +128,22 @@ public class SQLObjectTestAgainstFilledDb {
         assertEquals(UUID.fromString("a3fe6ab0-82a0-11eb-8f02-08f1eaf0251c"), arrayOfObjects[0].id);
     }
 
+    @Test
+    void forEachMatchingObjectWithBrowseLimit() {
+        RequestParser parser = new RequestParserImpl("%");
+        parser.latestFlag = false;
+        parser.browseLimit = 3;
+
+        List<SQLObject> objects = new ArrayList<>();
+        SQLObject.forEachMatchingObject(parser, objects::add);
+
+        // the most recent objects of all paths, newest first
+        assertEquals(3, objects.size());
+        assertEquals(object3Id, objects.get(0).id);
+        assertEquals(UUID.fromString("a3fe6ab0-82a0-11eb-8f02-08f1eaf0252c"), objects.get(1).id);
+        assertEquals(object1Id, objects.get(2).id);
+    }
+
     void saveInDatabase(SQLObject object, int expectedNumberOfObjects, int expectedNumberOfPaths) {
         object.save(null);
 
@@ -0,0 +1,109 @@
+package ch.alice.o2.ccdb.servlets;
+
+import lazyj.DBFunctions;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The object IDs have to stay unique with all the table layouts. The partitioned ones are tried by putting a partitioned <code>ccdb</code> table in place of the single one for the duration of
+ * the test.
+ *
+ * @author costing
+ * @since 2026-10-18
+ */
+public class SQLPartitioningTestAgainstEmptyDb {
+    private static final String SAVED_TABLE = "ccdb_partitioning_test_saved";
+
+    private boolean swapped = false;
+
+    @BeforeAll
+    static void setUpDatabase() {
+        SQLBacked.createDBStructure();
+    }
+
+    @AfterEach
+    void tearDown() {
+        try (DBFunctions db = SQLObject.getDB()) {
+            db.query("delete from ccdb where pathid in (select pathid from ccdb_paths where path in ('x', 'y'));\n" +
+                    "delete from ccdb_paths where path in ('x', 'y');\n" +
+                    "delete from ccdb_contenttype where contentType in ('x');"
+            );
+
+            if (swapped) {
+                db.query("DROP TABLE ccdb;");
+                db.query("DROP TABLE ccdb_ids;");
+                db.query("ALTER TABLE " + SAVED_TABLE + " RENAME TO ccdb;");
+                swapped = false;
+            }
+        }
+
+        SQLObject.clearCaches();
+    }
+
+    private void useLayout(SQLPartitioning.Layout layout) {
+        if (layout == SQLPartitioning.Layout.NONE)
+            return;
+
+        try (DBFunctions db = SQLObject.getDB()) {
+            assertFalse(SQLPartitioning.isPartitioned(db, "ccdb"), "the test expects the single table layout of the test database");
+
+            assertTrue(db.query("ALTER TABLE ccdb RENAME TO " + SAVED_TABLE + ";"));
+            swapped = true;
+
+            assertTrue(SQLPartitioning.createTable(db, "ccdb", layout));
+
+            for (final String trigger : SQLBacked.getTriggerDefinitions())
+                db.query(trigger);
+        }
+    }
+
+    private static SQLObject newObject(String path, UUID id) {
+        SQLObject object = SQLObject.fromRequest(null, path, id);
+        object.setContentType("x");
+        object.md5 = UUID.randomUUID().toString();
+        object.validFrom = 1000;
+        object.validUntil = 2000;
+        return object;
+    }
+
+    @ParameterizedTest
+    @EnumSource(SQLPartitioning.Layout.class)
+    void uploadSameForcedUUIDTwice(SQLPartitioning.Layout layout) {
+        useLayout(layout);
+
+        UUID id = UUID.randomUUID();
+
+        SQLObject first = newObject("x", id);
+        assertTrue(first.save(null));
+
+        // a retried upload gets a new creation time, in another monthly partition, and a replicated one could even come with another path, in another hash partition
+        SQLObject second = newObject(layout == SQLPartitioning.Layout.HASH ? "y" : "x", id);
+        second.createTime = first.createTime - 1000L * 60 * 60 * 24 * 62;
+        assertFalse(second.save(null));
+
+        try (DBFunctions db = SQLObject.getDB()) {
+            db.query("select count(1) from ccdb where id=?;", false, id);
+            assertEquals(1, db.geti(1));
+        }
+
+        SQLObject.clearCaches();
+
+        SQLObject fromDb = SQLObject.getObject(id);
+        assertNotNull(fromDb);
+        assertEquals("x", fromDb.getPath());
+        assertEquals(first.createTime, fromDb.createTime);
+
+        // and the ID can be used again once the object is gone
+        assertTrue(fromDb.delete());
+        assertTrue(newObject("x", id).save(null));
+    }
+}